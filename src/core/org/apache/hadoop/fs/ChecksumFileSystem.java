@@ -26,8 +26,8 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.DataChecksum;
 import org.apache.hadoop.util.Progressable;
-import org.apache.hadoop.util.PureJavaCrc32;
 import org.apache.hadoop.util.StringUtils;
 
 /****************************************************************
@@ -136,7 +136,8 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
         if (!Arrays.equals(version, CHECKSUM_VERSION))
           throw new IOException("Not a checksum file: "+sumFile);
         this.bytesPerSum = sums.readInt();
-        set(fs.verifyChecksum, new PureJavaCrc32(), bytesPerSum, 4);
+        set(fs.verifyChecksum, DataChecksum.newDataChecksum(
+            DataChecksum.CHECKSUM_CRC32, bytesPerSum), bytesPerSum, 4);
       } catch (FileNotFoundException e) {         // quietly ignore
         set(fs.verifyChecksum, null, 1, 0);
       } catch (IOException e) {                   // loudly ignore
@@ -196,21 +197,34 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
       return sums.seekToNewSource(sumsPos) || newDataSource;
     }
 
+    @Override
+    protected int getChunksPerRead() {
+      return CHUNKS_PER_READ;
+    }
+
     @Override
     protected int readChunk(long pos, byte[] buf, int offset, int len,
         byte[] checksum) throws IOException {
       boolean eof = false;
       if(needChecksum()) {
-        try {
-          long checksumPos = getChecksumFilePos(pos); 
-          if(checksumPos != sums.getPos()) {
-            sums.seek(checksumPos);
-          }
-          sums.readFully(checksum);
-        } catch (EOFException e) {
+        // read as many whole chunks as both buffers hold
+        int chunks = Math.max(1, Math.min(len / bytesPerSum,
+                                          checksum.length / 4));
+        long checksumPos = getChecksumFilePos(pos); 
+        if(checksumPos != sums.getPos()) {
+          sums.seek(checksumPos);
+        }
+        int sumLen = readFully(sums, checksum, 0, chunks * 4);
+        if (sumLen > 0 && sumLen % 4 != 0) {
+          throw new ChecksumException("Checksum file not a length multiple " +
+              "of checksum size in " + file + " at " + pos, pos);
+        }
+        if (sumLen <= 0) {
           eof = true;
+          len = bytesPerSum;
+        } else {
+          len = Math.min(len, (sumLen / 4) * bytesPerSum);
         }
-        len = bytesPerSum;
       }
       if(pos != datas.getPos()) {
         datas.seek(pos);
@@ -331,7 +345,8 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
                           long blockSize,
                           Progressable progress)
       throws IOException {
-      super(new PureJavaCrc32(), fs.getBytesPerSum(), 4);
+      super(DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32,
+                                         fs.getBytesPerSum()));
       int bytesPerSum = fs.getBytesPerSum();
       this.datas = fs.getRawFileSystem().create(file, overwrite, bufferSize, 
                                          replication, blockSize, progress);
@@ -355,6 +370,14 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
       datas.write(b, offset, len);
       sums.write(checksum);
     }
+
+    @Override
+    protected void writeChunks(byte[] b, int offset, int len,
+        byte[] checksum, int checksumOffset, int checksumLen)
+    throws IOException {
+      datas.write(b, offset, len);
+      sums.write(checksum, checksumOffset, checksumLen);
+    }
   }
 
   /** {@inheritDoc} */
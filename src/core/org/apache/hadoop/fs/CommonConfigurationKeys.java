@@ -48,6 +48,38 @@ public class CommonConfigurationKeys {
   public static final String IPC_SERVER_RPC_READ_THREADS_KEY =
                                         "ipc.server.read.threadpool.size";
   public static final int IPC_SERVER_RPC_READ_THREADS_DEFAULT = 1;
+  /** See src/core/core-default.xml */
+  public static final String IPC_SERVER_BUFFER_POOL_MAX_BYTES_KEY =
+                                        "ipc.server.buffer.pool.max.bytes";
+  public static final long IPC_SERVER_BUFFER_POOL_MAX_BYTES_DEFAULT =
+                                        8 * 1024 * 1024;
+  /** See src/core/core-default.xml */
+  public static final String IPC_SERVER_BUFFER_POOL_DIRECT_KEY =
+                                        "ipc.server.buffer.pool.direct";
+  public static final boolean IPC_SERVER_BUFFER_POOL_DIRECT_DEFAULT = true;
+  /** See src/core/core-default.xml */
+  public static final String IPC_SERVER_CALLQUEUE_IMPL_KEY =
+                                        "ipc.server.callqueue.impl";
+  /** See src/core/core-default.xml */
+  public static final String IPC_SERVER_CALLQUEUE_FAIR_LEVELS_KEY =
+                                        "ipc.server.callqueue.fair.levels";
+  public static final int IPC_SERVER_CALLQUEUE_FAIR_LEVELS_DEFAULT = 4;
+  /** See src/core/core-default.xml */
+  public static final String IPC_SERVER_CALLQUEUE_FAIR_DECAY_PERIOD_KEY =
+                                "ipc.server.callqueue.fair.decay.period.ms";
+  public static final long IPC_SERVER_CALLQUEUE_FAIR_DECAY_PERIOD_DEFAULT =
+                                        5000;
+  /** See src/core/core-default.xml */
+  public static final String IPC_SERVER_CALLQUEUE_PRIORITY_PROTOCOLS_KEY =
+                                "ipc.server.callqueue.priority.protocols";
+  public static final String[] IPC_SERVER_CALLQUEUE_PRIORITY_PROTOCOLS_DEFAULT = {
+    "org.apache.hadoop.hdfs.server.protocol.DatanodeProtocol",
+    "org.apache.hadoop.mapred.InterTrackerProtocol"
+  };
+  /** See src/core/core-default.xml */
+  public static final String IPC_CLIENT_METHOD_IDS_KEY =
+                                        "ipc.client.method.ids";
+  public static final boolean IPC_CLIENT_METHOD_IDS_DEFAULT = true;
 
   /** Internal buffer size for Snappy compressor/decompressors */
   public static final String IO_COMPRESSION_CODEC_SNAPPY_BUFFERSIZE_KEY =
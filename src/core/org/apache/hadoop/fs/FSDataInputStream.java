@@ -18,11 +18,12 @@
 package org.apache.hadoop.fs;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /** Utility that wraps a {@link FSInputStream} in a {@link DataInputStream}
  * and buffers input through a {@link BufferedInputStream}. */
 public class FSDataInputStream extends DataInputStream
-    implements Seekable, PositionedReadable, Closeable {
+    implements Seekable, PositionedReadable, Closeable, ByteBufferReadable {
 
   public FSDataInputStream(InputStream in)
     throws IOException {
@@ -59,4 +60,17 @@ public class FSDataInputStream extends DataInputStream
   public boolean seekToNewSource(long targetPos) throws IOException {
     return ((Seekable)in).seekToNewSource(targetPos); 
   }
+
+  /**
+   * Read into a ByteBuffer if the wrapped stream supports it.
+   * @throws UnsupportedOperationException if it does not
+   * @see ByteBufferReadable#read(ByteBuffer)
+   */
+  public int read(ByteBuffer buf) throws IOException {
+    if (in instanceof ByteBufferReadable) {
+      return ((ByteBufferReadable)in).read(buf);
+    }
+    throw new UnsupportedOperationException("Byte-buffer read unsupported by "
+        + in.getClass().getName());
+  }
 }
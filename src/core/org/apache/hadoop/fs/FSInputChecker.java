@@ -23,6 +23,7 @@ import java.util.zip.Checksum;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.util.DataChecksum;
 import org.apache.hadoop.util.StringUtils;
 
 /**
@@ -34,12 +35,17 @@ abstract public class FSInputChecker extends FSInputStream {
   public static final Log LOG 
   = LogFactory.getLog(FSInputChecker.class);
   
+  /** The chunks per readChunk call used by readers that opt in to
+   * multi-chunk reads through {@link #getChunksPerRead()} */
+  public static final int CHUNKS_PER_READ = 32;
+
   /** The file name from which data is read from */
   protected Path file;
   private Checksum sum;
   private boolean verifyChecksum = true;
   private byte[] buf;
   private byte[] checksum;
+  private int checksumSize;
   private int pos;
   private int count;
   
@@ -75,7 +81,13 @@ abstract public class FSInputChecker extends FSInputStream {
   /** Reads in next checksum chunk data into <code>buf</code> at <code>offset</code>
    * and checksum into <code>checksum</code>.
    * The method is used for implementing read, therefore, it should be optimized
-   * for sequential reading
+   * for sequential reading.
+   *
+   * <p>When <code>len</code> spans several chunks, implementations may read
+   * as many whole chunks as fit in <code>len</code>, up to
+   * {@link #getChunksPerRead()} of them, storing their checksums one after
+   * another in <code>checksum</code>. Only the last chunk returned may be
+   * partial. Reading a single chunk is always allowed.
    * @param pos chunkPos
    * @param buf desitination buffer
    * @param offset offset in buf at which to store data
@@ -237,8 +249,7 @@ abstract public class FSInputChecker extends FSInputStream {
         read = readChunk(chunkPos, b, off, len, checksum);
         if( read > 0 ) {
           if( needChecksum() ) {
-            sum.update(b, off, read);
-            verifySum(chunkPos);
+            verifySums(b, off, read);
           }
           chunkPos += read;
         } 
@@ -266,29 +277,41 @@ abstract public class FSInputChecker extends FSInputStream {
     return read;
   }
   
-  /* verify checksum for the chunk.
+  /* verify checksums for the chunks just read into b[off, off+read).
    * @throws ChecksumException if there is a mismatch
    */
-  private void verifySum(long errPos) throws ChecksumException {
-    long crc = getChecksum();
-    long sumValue = sum.getValue();
-    sum.reset();
-    if (crc != sumValue) {
-      throw new ChecksumException(
-          "Checksum error: "+file+" at "+errPos, errPos);
+  private void verifySums(byte[] b, int off, int read)
+  throws ChecksumException {
+    if (sum instanceof DataChecksum) {
+      // all chunks in one call
+      ((DataChecksum)sum).verifyChunkedSums(b, off, read, checksum, 0,
+                                            String.valueOf(file), chunkPos);
+      return;
+    }
+    int chunkSize = buf.length;
+    for (int done = 0, ckOff = 0; done < read;
+         done += chunkSize, ckOff += checksumSize) {
+      sum.update(b, off + done, Math.min(read - done, chunkSize));
+      long crc = checksum2long(checksum, ckOff, checksumSize);
+      long sumValue = sum.getValue();
+      sum.reset();
+      if (crc != sumValue) {
+        long errPos = chunkPos + done;
+        throw new ChecksumException(
+            "Checksum error: "+file+" at "+errPos, errPos);
+      }
     }
-  }
-  
-  /* calculate checksum value */
-  private long getChecksum() {
-    return checksum2long(checksum);
   }
 
   /** Convert a checksum byte array to a long */
   static public long checksum2long(byte[] checksum) {
+    return checksum2long(checksum, 0, checksum.length);
+  }
+
+  private static long checksum2long(byte[] checksum, int off, int len) {
     long crc = 0L;
-    for(int i=0; i<checksum.length; i++) {
-      crc |= (0xffL&(long)checksum[i])<<((checksum.length-i-1)*8);
+    for(int i=0; i<len; i++) {
+      crc |= (0xffL&(long)checksum[off+i])<<((len-i-1)*8);
     }
     return crc;
   }
@@ -390,6 +413,17 @@ abstract public class FSInputChecker extends FSInputStream {
     }
   }
   
+  /**
+   * The most chunks that one call to readChunk may return. The checksum
+   * array passed to readChunk holds this many checksums. Subclasses whose
+   * readChunk can return several chunks override this; the default of one
+   * keeps the single-chunk contract.
+   * @return chunks per readChunk call
+   */
+  protected int getChunksPerRead() {
+    return 1;
+  }
+
   /**
    * Set the checksum related parameters
    * @param verifyChecksum whether to verify checksum
@@ -402,7 +436,8 @@ abstract public class FSInputChecker extends FSInputStream {
     this.verifyChecksum = verifyChecksum;
     this.sum = sum;
     this.buf = new byte[maxChunkSize];
-    this.checksum = new byte[checksumSize];
+    this.checksum = new byte[getChunksPerRead() * checksumSize];
+    this.checksumSize = checksumSize;
     this.count = 0;
     this.pos = 0;
   }
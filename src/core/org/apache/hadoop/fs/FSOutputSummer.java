@@ -22,25 +22,54 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.zip.Checksum;
 
+import org.apache.hadoop.util.DataChecksum;
+
 /**
  * This is a generic output stream for generating checksums for
  * data before it is written to the underlying stream
  */
 
 abstract public class FSOutputSummer extends OutputStream {
+  // most chunks checksummed at once straight from the user's buffer
+  private static final int CHUNKS_PER_WRITE = 32;
+
   // data checksum
   private Checksum sum;
+  // computes the checksums of many chunks at once; null if every flush
+  // is checksummed as a single chunk with sum
+  private final DataChecksum chunkedSum;
+  private final int checksumSize;
   // internal buffer for storing data before it is checksumed
   private byte buf[];
-  // internal buffer for storing checksum
+  // internal buffer for storing checksums
   private byte checksum[];
+  // checksum passed to writeChunk
+  private final byte chunkChecksum[];
   // The number of valid bytes in the buffer.
   private int count;
   
   protected FSOutputSummer(Checksum sum, int maxChunkSize, int checksumSize) {
     this.sum = sum;
+    this.chunkedSum = null;
+    this.checksumSize = checksumSize;
     this.buf = new byte[maxChunkSize];
     this.checksum = new byte[checksumSize];
+    this.chunkChecksum = checksum;
+    this.count = 0;
+  }
+
+  /**
+   * Create a summer for chunks of <code>sum.getBytesPerChecksum()</code>
+   * bytes. Writes spanning several whole chunks have their checksums
+   * computed in one pass over the user's buffer.
+   */
+  protected FSOutputSummer(DataChecksum sum) {
+    this.sum = sum;
+    this.chunkedSum = sum;
+    this.checksumSize = sum.getChecksumSize();
+    this.buf = new byte[sum.getBytesPerChecksum()];
+    this.checksum = new byte[checksumSize * CHUNKS_PER_WRITE];
+    this.chunkChecksum = new byte[checksumSize];
     this.count = 0;
   }
   
@@ -50,9 +79,32 @@ abstract public class FSOutputSummer extends OutputStream {
   protected abstract void writeChunk(byte[] b, int offset, int len, byte[] checksum)
   throws IOException;
 
+  /**
+   * Write the data chunks in <code>b[offset, offset+len)</code> along with
+   * their checksums, which are stored one after another in
+   * <code>checksum[checksumOffset, checksumOffset+checksumLen)</code>.
+   * Every chunk but the last is a whole checksum chunk. The default
+   * implementation calls {@link #writeChunk} once per chunk.
+   */
+  protected void writeChunks(byte[] b, int offset, int len,
+      byte[] checksum, int checksumOffset, int checksumLen)
+  throws IOException {
+    if (chunkedSum == null) {
+      writeChunk(b, offset, len, checksum);
+      return;
+    }
+    int bytesPerChecksum = chunkedSum.getBytesPerChecksum();
+    for (int done = 0; done < len; done += bytesPerChecksum) {
+      System.arraycopy(checksum, checksumOffset, chunkChecksum, 0,
+                       checksumSize);
+      checksumOffset += checksumSize;
+      writeChunk(b, offset + done, Math.min(len - done, bytesPerChecksum),
+                 chunkChecksum);
+    }
+  }
+
   /** Write one byte */
   public synchronized void write(int b) throws IOException {
-    sum.update(b);
     buf[count++] = (byte)b;
     if(count == buf.length) {
       flushBuffer();
@@ -71,6 +123,7 @@ abstract public class FSOutputSummer extends OutputStream {
    * requested length is at least as large as the size of next checksum chunk
    * size, this method will checksum and write the chunk directly 
    * to the underlying output stream.  Thus it avoids uneccessary data copy.
+   * Whole chunks written this way are checksummed together.
    *
    * @param      b     the data.
    * @param      off   the start offset in the data.
@@ -93,18 +146,19 @@ abstract public class FSOutputSummer extends OutputStream {
    */
   private int write1(byte b[], int off, int len) throws IOException {
     if(count==0 && len>=buf.length) {
-      // local buffer is empty and user data has one chunk
+      // local buffer is empty and user data has one chunk or more
       // checksum and output data
-      final int length = buf.length;
-      sum.update(b, off, length);
-      writeChecksumChunk(b, off, length, false);
+      int length = buf.length;
+      if (chunkedSum != null && length == chunkedSum.getBytesPerChecksum()) {
+        length *= Math.min(len / length, CHUNKS_PER_WRITE);
+      }
+      writeChecksumChunks(b, off, length);
       return length;
     }
     
     // copy user data to local buffer
     int bytesToCopy = buf.length-count;
     bytesToCopy = (len<bytesToCopy) ? len : bytesToCopy;
-    sum.update(b, off, bytesToCopy);
     System.arraycopy(b, off, buf, count, bytesToCopy);
     count += bytesToCopy;
     if (count == buf.length) {
@@ -129,25 +183,29 @@ abstract public class FSOutputSummer extends OutputStream {
     if (count != 0) {
       int chunkLen = count;
       count = 0;
-      writeChecksumChunk(buf, 0, chunkLen, keep);
+      writeChecksumChunks(buf, 0, chunkLen);
       if (keep) {
         count = chunkLen;
       }
     }
   }
   
-  /** Generate checksum for the data chunk and output data chunk & checksum
-   * to the underlying output stream. If keep is true then keep the
-   * current checksum intact, do not reset it.
+  /** Generate checksums for the data chunks and output data chunks &
+   * checksums to the underlying output stream.
    */
-  private void writeChecksumChunk(byte b[], int off, int len, boolean keep)
+  private void writeChecksumChunks(byte b[], int off, int len)
   throws IOException {
-    int tempChecksum = (int)sum.getValue();
-    if (!keep) {
+    if (chunkedSum != null) {
+      chunkedSum.calculateChunkedSums(b, off, len, checksum, 0);
+      int bytesPerChecksum = chunkedSum.getBytesPerChecksum();
+      int numChunks = (len + bytesPerChecksum - 1) / bytesPerChecksum;
+      writeChunks(b, off, len, checksum, 0, numChunks * checksumSize);
+    } else {
       sum.reset();
+      sum.update(b, off, len);
+      int2byte((int)sum.getValue(), checksum);
+      writeChunks(b, off, len, checksum, 0, checksumSize);
     }
-    int2byte(tempChecksum, checksum);
-    writeChunk(b, off, len, checksum);
   }
 
   /**
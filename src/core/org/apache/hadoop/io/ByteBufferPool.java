@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of {@link ByteBuffer}s in power of two size classes.
+ *
+ * <p>A request is served from the smallest class that fits it, so a buffer
+ * handed out may have more capacity than asked for.  Buffers larger than
+ * the biggest class are allocated on demand and never pooled; they are
+ * always heap buffers, since direct memory is only freed when the garbage
+ * collector gets to it and large one-off buffers could exhaust it.  The pool
+ * holds at most a configured number of bytes; buffers returned beyond that
+ * are left to the garbage collector.
+ *
+ * <p>The pool is thread safe.
+ */
+//@InterfaceAudience.Private
+public class ByteBufferPool {
+  private final boolean direct;
+  private final int minShift;
+  private final int maxSize;
+  private final long maxPooledBytes;
+  private final List<Queue<ByteBuffer>> classes;
+  private final AtomicLong pooledBytes = new AtomicLong();
+  private final AtomicLong allocatedBytes = new AtomicLong();
+
+  /**
+   * @param minSize capacity of the smallest size class
+   * @param maxSize capacity of the largest size class
+   * @param maxPooledBytes the most bytes kept in the pool at any time
+   * @param direct whether to allocate direct buffers
+   */
+  public ByteBufferPool(int minSize, int maxSize, long maxPooledBytes,
+                        boolean direct) {
+    if (minSize <= 0 || maxSize < minSize) {
+      throw new IllegalArgumentException("Bad size classes: minSize="
+          + minSize + ", maxSize=" + maxSize);
+    }
+    this.direct = direct;
+    this.minShift = log2Ceiling(minSize);
+    int maxShift = log2Ceiling(maxSize);
+    this.maxSize = 1 << maxShift;
+    this.maxPooledBytes = maxPooledBytes;
+    this.classes = new ArrayList<Queue<ByteBuffer>>(maxShift - minShift + 1);
+    for (int i = minShift; i <= maxShift; i++) {
+      classes.add(new ConcurrentLinkedQueue<ByteBuffer>());
+    }
+  }
+
+  private static int log2Ceiling(int n) {
+    return n <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(n - 1);
+  }
+
+  private int sizeClass(int size) {
+    return Math.max(log2Ceiling(size) - minShift, 0);
+  }
+
+  /**
+   * Get a buffer with room for at least <code>size</code> bytes.
+   * Its position is zero and its limit is <code>size</code>.
+   */
+  public ByteBuffer getBuffer(int size) {
+    ByteBuffer buf;
+    if (size > maxSize) {
+      // never pooled, so never direct
+      buf = ByteBuffer.allocate(size);
+      allocatedBytes.addAndGet(size);
+    } else {
+      int c = sizeClass(size);
+      buf = classes.get(c).poll();
+      if (buf != null) {
+        pooledBytes.addAndGet(-buf.capacity());
+      } else {
+        int capacity = 1 << (c + minShift);
+        buf = direct ? ByteBuffer.allocateDirect(capacity)
+                     : ByteBuffer.allocate(capacity);
+        allocatedBytes.addAndGet(capacity);
+      }
+    }
+    buf.clear();
+    buf.limit(size);
+    return buf;
+  }
+
+  /**
+   * Return a buffer obtained from {@link #getBuffer(int)} to the pool.
+   * The caller must not use the buffer afterwards.  Buffers that do not
+   * belong to a size class of this pool are ignored.
+   */
+  public void putBuffer(ByteBuffer buf) {
+    int capacity = buf.capacity();
+    if (buf.isDirect() != direct || capacity > maxSize
+        || Integer.bitCount(capacity) != 1
+        || capacity < (1 << minShift)) {
+      return;
+    }
+    if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+      pooledBytes.addAndGet(-capacity);
+      return;
+    }
+    classes.get(sizeClass(capacity)).offer(buf);
+  }
+
+  /** Whether this pool hands out direct buffers. */
+  public boolean isDirect() {
+    return direct;
+  }
+
+  /** The number of bytes currently held by the pool. */
+  public long getPooledBytes() {
+    return pooledBytes.get();
+  }
+
+  /**
+   * The number of bytes allocated because no pooled buffer was available,
+   * since the pool was created.
+   */
+  public long getAllocatedBytes() {
+    return allocatedBytes.get();
+  }
+}
@@ -207,6 +207,14 @@ public class BytesWritable extends BinaryComparable
       return compareBytes(b1, s1+LENGTH_BYTES, l1-LENGTH_BYTES, 
                           b2, s2+LENGTH_BYTES, l2-LENGTH_BYTES);
     }
+
+    /**
+     * Prefix of the buffer in serialized form, ordered as compare() orders
+     * the buffers. Subclasses overriding compare() must not rely on it.
+     */
+    public long getPrefix(byte[] b, int s, int l) {
+      return prefixBytes(b, s+LENGTH_BYTES, l-LENGTH_BYTES);
+    }
   }
   
   static {                                        // register this comparator
@@ -22,6 +22,7 @@ import java.lang.reflect.Array;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.hadoop.conf.*;
 
@@ -83,6 +84,34 @@ public class ObjectWritable implements Writable, Configurable {
     PRIMITIVE_NAMES.put("void", Void.TYPE);
   }
 
+  /** Class names as written by {@link UTF8#writeString}, by class */
+  private static final Map<Class<?>, byte[]> CLASS_NAMES =
+    new ConcurrentHashMap<Class<?>, byte[]>();
+
+  private static void writeClassName(DataOutput out, Class<?> c)
+    throws IOException {
+    byte[] name = CLASS_NAMES.get(c);
+    if (name == null) {
+      DataOutputBuffer buf = new DataOutputBuffer();
+      UTF8.writeString(buf, c.getName());
+      name = Arrays.copyOf(buf.getData(), buf.getLength());
+      CLASS_NAMES.put(c, name);
+    }
+    out.write(name);
+  }
+
+  /** Skip a class name written by {@link UTF8#writeString}. */
+  private static void skipClassName(DataInput in) throws IOException {
+    int len = in.readUnsignedShort();
+    while (len > 0) {
+      int skipped = in.skipBytes(len);
+      if (skipped <= 0) {
+        throw new EOFException("Truncated class name");
+      }
+      len -= skipped;
+    }
+  }
+
   private static class NullInstance extends Configured implements Writable {
     private Class<?> declaredClass;
     public NullInstance() { super(null); }
@@ -117,45 +146,33 @@ public class ObjectWritable implements Writable, Configurable {
       declaredClass = Writable.class;
     }
 
-    UTF8.writeString(out, declaredClass.getName()); // always write declared
+    writeClassName(out, declaredClass);           // always write declared
 
     if (declaredClass.isArray()) {                // array
       int length = Array.getLength(instance);
       out.writeInt(length);
-      for (int i = 0; i < length; i++) {
-        writeObject(out, Array.get(instance, i),
-                    declaredClass.getComponentType(), conf);
+      Class<?> componentType = declaredClass.getComponentType();
+      if (componentType.isPrimitive()) {
+        // same format, without boxing every element
+        for (int i = 0; i < length; i++) {
+          writeClassName(out, componentType);
+          writeArrayElement(out, instance, componentType, i);
+        }
+      } else {
+        for (int i = 0; i < length; i++) {
+          writeObject(out, Array.get(instance, i), componentType, conf);
+        }
       }
       
     } else if (declaredClass == String.class) {   // String
       UTF8.writeString(out, (String)instance);
       
     } else if (declaredClass.isPrimitive()) {     // primitive type
-
-      if (declaredClass == Boolean.TYPE) {        // boolean
-        out.writeBoolean(((Boolean)instance).booleanValue());
-      } else if (declaredClass == Character.TYPE) { // char
-        out.writeChar(((Character)instance).charValue());
-      } else if (declaredClass == Byte.TYPE) {    // byte
-        out.writeByte(((Byte)instance).byteValue());
-      } else if (declaredClass == Short.TYPE) {   // short
-        out.writeShort(((Short)instance).shortValue());
-      } else if (declaredClass == Integer.TYPE) { // int
-        out.writeInt(((Integer)instance).intValue());
-      } else if (declaredClass == Long.TYPE) {    // long
-        out.writeLong(((Long)instance).longValue());
-      } else if (declaredClass == Float.TYPE) {   // float
-        out.writeFloat(((Float)instance).floatValue());
-      } else if (declaredClass == Double.TYPE) {  // double
-        out.writeDouble(((Double)instance).doubleValue());
-      } else if (declaredClass == Void.TYPE) {    // void
-      } else {
-        throw new IllegalArgumentException("Not a primitive: "+declaredClass);
-      }
+      writePrimitive(out, instance, declaredClass);
     } else if (declaredClass.isEnum()) {         // enum
       UTF8.writeString(out, ((Enum)instance).name());
     } else if (Writable.class.isAssignableFrom(declaredClass)) { // Writable
-      UTF8.writeString(out, instance.getClass().getName());
+      writeClassName(out, instance.getClass());
       ((Writable)instance).write(out);
 
     } else {
@@ -214,9 +231,18 @@ public class ObjectWritable implements Writable, Configurable {
 
     } else if (declaredClass.isArray()) {              // array
       int length = in.readInt();
-      instance = Array.newInstance(declaredClass.getComponentType(), length);
-      for (int i = 0; i < length; i++) {
-        Array.set(instance, i, readObject(in, conf));
+      Class<?> componentType = declaredClass.getComponentType();
+      instance = Array.newInstance(componentType, length);
+      if (componentType.isPrimitive()) {
+        // every element is written with the component type
+        for (int i = 0; i < length; i++) {
+          skipClassName(in);
+          readArrayElement(in, instance, componentType, i);
+        }
+      } else {
+        for (int i = 0; i < length; i++) {
+          Array.set(instance, i, readObject(in, conf));
+        }
       }
       
     } else if (declaredClass == String.class) {        // String
@@ -252,6 +278,211 @@ public class ObjectWritable implements Writable, Configurable {
       
   }
 
+  private static void writePrimitive(DataOutput out, Object instance,
+                                     Class<?> declaredClass)
+    throws IOException {
+    if (declaredClass == Boolean.TYPE) {        // boolean
+      out.writeBoolean(((Boolean)instance).booleanValue());
+    } else if (declaredClass == Character.TYPE) { // char
+      out.writeChar(((Character)instance).charValue());
+    } else if (declaredClass == Byte.TYPE) {    // byte
+      out.writeByte(((Byte)instance).byteValue());
+    } else if (declaredClass == Short.TYPE) {   // short
+      out.writeShort(((Short)instance).shortValue());
+    } else if (declaredClass == Integer.TYPE) { // int
+      out.writeInt(((Integer)instance).intValue());
+    } else if (declaredClass == Long.TYPE) {    // long
+      out.writeLong(((Long)instance).longValue());
+    } else if (declaredClass == Float.TYPE) {   // float
+      out.writeFloat(((Float)instance).floatValue());
+    } else if (declaredClass == Double.TYPE) {  // double
+      out.writeDouble(((Double)instance).doubleValue());
+    } else if (declaredClass == Void.TYPE) {    // void
+    } else {
+      throw new IllegalArgumentException("Not a primitive: "+declaredClass);
+    }
+  }
+
+  private static void writeArrayElement(DataOutput out, Object array,
+                                        Class<?> componentType, int i)
+    throws IOException {
+    if (componentType == Boolean.TYPE) {
+      out.writeBoolean(((boolean[])array)[i]);
+    } else if (componentType == Character.TYPE) {
+      out.writeChar(((char[])array)[i]);
+    } else if (componentType == Byte.TYPE) {
+      out.writeByte(((byte[])array)[i]);
+    } else if (componentType == Short.TYPE) {
+      out.writeShort(((short[])array)[i]);
+    } else if (componentType == Integer.TYPE) {
+      out.writeInt(((int[])array)[i]);
+    } else if (componentType == Long.TYPE) {
+      out.writeLong(((long[])array)[i]);
+    } else if (componentType == Float.TYPE) {
+      out.writeFloat(((float[])array)[i]);
+    } else if (componentType == Double.TYPE) {
+      out.writeDouble(((double[])array)[i]);
+    } else {
+      throw new IllegalArgumentException("Not a primitive: "+componentType);
+    }
+  }
+
+  private static void readArrayElement(DataInput in, Object array,
+                                       Class<?> componentType, int i)
+    throws IOException {
+    if (componentType == Boolean.TYPE) {
+      ((boolean[])array)[i] = in.readBoolean();
+    } else if (componentType == Character.TYPE) {
+      ((char[])array)[i] = in.readChar();
+    } else if (componentType == Byte.TYPE) {
+      ((byte[])array)[i] = in.readByte();
+    } else if (componentType == Short.TYPE) {
+      ((short[])array)[i] = in.readShort();
+    } else if (componentType == Integer.TYPE) {
+      ((int[])array)[i] = in.readInt();
+    } else if (componentType == Long.TYPE) {
+      ((long[])array)[i] = in.readLong();
+    } else if (componentType == Float.TYPE) {
+      ((float[])array)[i] = in.readFloat();
+    } else if (componentType == Double.TYPE) {
+      ((double[])array)[i] = in.readDouble();
+    } else {
+      throw new IllegalArgumentException("Not a primitive: "+componentType);
+    }
+  }
+
+  private static final byte COMPACT_NULL = 0;        // null instance
+  private static final byte COMPACT_DECLARED = 1;    // of the declared class
+  private static final byte COMPACT_SUBCLASS = 2;    // Writable, class follows
+
+  /**
+   * Write an instance for a reader which knows its declared class, to be
+   * read by {@link #readCompact(DataInput, Class, Configuration)}.  Unlike
+   * {@link #writeObject(DataOutput, Object, Class, Configuration)}, no
+   * class name is written unless a {@link Writable} is of a class other
+   * than the declared one, and arrays of primitives are written as a
+   * plain run of values.
+   */
+  public static void writeCompact(DataOutput out, Object instance,
+                                  Class<?> declaredClass,
+                                  Configuration conf) throws IOException {
+    if (declaredClass.isPrimitive()) {
+      writePrimitive(out, instance, declaredClass);
+      return;
+    }
+    if (instance == null) {
+      out.writeByte(COMPACT_NULL);
+      return;
+    }
+    if (declaredClass.isArray()) {
+      out.writeByte(COMPACT_DECLARED);
+      int length = Array.getLength(instance);
+      out.writeInt(length);
+      Class<?> componentType = declaredClass.getComponentType();
+      if (componentType.isPrimitive()) {
+        for (int i = 0; i < length; i++) {
+          writeArrayElement(out, instance, componentType, i);
+        }
+      } else {
+        for (int i = 0; i < length; i++) {
+          writeCompact(out, Array.get(instance, i), componentType, conf);
+        }
+      }
+    } else if (declaredClass == String.class) {
+      out.writeByte(COMPACT_DECLARED);
+      Text.writeString(out, (String)instance);
+    } else if (declaredClass.isEnum()) {
+      out.writeByte(COMPACT_DECLARED);
+      Text.writeString(out, ((Enum<?>)instance).name());
+    } else if (Writable.class.isAssignableFrom(declaredClass)) {
+      if (instance.getClass() == declaredClass) {
+        out.writeByte(COMPACT_DECLARED);
+      } else {
+        out.writeByte(COMPACT_SUBCLASS);
+        writeClassName(out, instance.getClass());
+      }
+      ((Writable)instance).write(out);
+    } else {
+      throw new IOException("Can't write: "+instance+" as "+declaredClass);
+    }
+  }
+
+  /**
+   * Read an instance of the given declared class written by
+   * {@link #writeCompact(DataOutput, Object, Class, Configuration)}.
+   */
+  @SuppressWarnings("unchecked")
+  public static Object readCompact(DataInput in, Class<?> declaredClass,
+                                   Configuration conf) throws IOException {
+    if (declaredClass.isPrimitive()) {
+      return readPrimitive(in, declaredClass);
+    }
+    byte kind = in.readByte();
+    if (kind == COMPACT_NULL) {
+      return null;
+    }
+    if (declaredClass.isArray()) {
+      int length = in.readInt();
+      Class<?> componentType = declaredClass.getComponentType();
+      Object instance = Array.newInstance(componentType, length);
+      if (componentType.isPrimitive()) {
+        for (int i = 0; i < length; i++) {
+          readArrayElement(in, instance, componentType, i);
+        }
+      } else {
+        Object[] array = (Object[])instance;
+        for (int i = 0; i < length; i++) {
+          array[i] = readCompact(in, componentType, conf);
+        }
+      }
+      return instance;
+    } else if (declaredClass == String.class) {
+      return Text.readString(in);
+    } else if (declaredClass.isEnum()) {
+      return Enum.valueOf((Class<? extends Enum>) declaredClass,
+                          Text.readString(in));
+    } else {
+      Class<?> instanceClass = declaredClass;
+      if (kind == COMPACT_SUBCLASS) {
+        String str = UTF8.readString(in);
+        try {
+          instanceClass = conf.getClassByName(str);
+        } catch (ClassNotFoundException e) {
+          throw new RuntimeException("readCompact can't find class " + str, e);
+        }
+      }
+      Writable writable = WritableFactories.newInstance(
+          (Class<? extends Writable>)instanceClass, conf);
+      writable.readFields(in);
+      return writable;
+    }
+  }
+
+  private static Object readPrimitive(DataInput in, Class<?> declaredClass)
+    throws IOException {
+    if (declaredClass == Boolean.TYPE) {
+      return Boolean.valueOf(in.readBoolean());
+    } else if (declaredClass == Character.TYPE) {
+      return Character.valueOf(in.readChar());
+    } else if (declaredClass == Byte.TYPE) {
+      return Byte.valueOf(in.readByte());
+    } else if (declaredClass == Short.TYPE) {
+      return Short.valueOf(in.readShort());
+    } else if (declaredClass == Integer.TYPE) {
+      return Integer.valueOf(in.readInt());
+    } else if (declaredClass == Long.TYPE) {
+      return Long.valueOf(in.readLong());
+    } else if (declaredClass == Float.TYPE) {
+      return Float.valueOf(in.readFloat());
+    } else if (declaredClass == Double.TYPE) {
+      return Double.valueOf(in.readDouble());
+    } else if (declaredClass == Void.TYPE) {
+      return null;
+    } else {
+      throw new IllegalArgumentException("Not a primitive: "+declaredClass);
+    }
+  }
+
   public void setConf(Configuration conf) {
     this.conf = conf;
   }
@@ -0,0 +1,38 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io;
+
+/**
+ * A {@link RawComparator} that can summarize a serialized key by a fixed
+ * width prefix. Sorters may cache the prefix of every key and compare the
+ * prefixes first, calling {@link #compare(byte[],int,int,byte[],int,int)}
+ * only for keys whose prefixes are equal.
+ * @param <T>
+ */
+public interface PrefixComparator<T> extends RawComparator<T> {
+
+  /**
+   * Compute the prefix of a serialized key. If the prefixes of two keys
+   * differ, comparing the prefixes as signed longs must order the keys the
+   * same way as the comparator does. Keys with equal prefixes may compare
+   * in any order.
+   */
+  public long getPrefix(byte[] b, int s, int l);
+
+}
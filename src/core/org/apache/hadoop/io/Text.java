@@ -305,6 +305,15 @@ public class Text extends BinaryComparable
       int n2 = WritableUtils.decodeVIntSize(b2[s2]);
       return compareBytes(b1, s1+n1, l1-n1, b2, s2+n2, l2-n2);
     }
+
+    /**
+     * Prefix of the text in serialized form, ordered as compare() orders
+     * the texts. Subclasses overriding compare() must not rely on it.
+     */
+    public long getPrefix(byte[] b, int s, int l) {
+      int n = WritableUtils.decodeVIntSize(b[s]);
+      return prefixBytes(b, s+n, l-n);
+    }
   }
 
   static {
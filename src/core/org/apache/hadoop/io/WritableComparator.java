@@ -150,6 +150,20 @@ public class WritableComparator implements RawComparator {
     return FastByteComparisons.compareTo(b1, s1, l1, b2, s2, l2);
   }
 
+  /**
+   * Prefix of binary data for {@link PrefixComparator}s that order keys
+   * lexicographically. The first eight bytes, padded with zeros, are read
+   * as a long whose signed order is the lexicographic order of the bytes.
+   */
+  public static long prefixBytes(byte[] bytes, int start, int length) {
+    long prefix = 0;
+    final int n = Math.min(length, 8);
+    for (int i = 0; i < n; i++) {
+      prefix |= (bytes[start + i] & 0xFFL) << (56 - 8 * i);
+    }
+    return prefix ^ Long.MIN_VALUE;
+  }
+
   /** Compute hash for binary data. */
   public static int hashBytes(byte[] bytes, int offset, int length) {
     int hash = 1;
@@ -45,6 +45,9 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -324,6 +327,11 @@ public class Client {
       return true;
     }
 
+    /** Forget a call whose response is no longer wanted. */
+    private void removeCall(Call call) {
+      calls.remove(call.id);
+    }
+
     /** This class sends a ping to the remote side when timeout on
      * reading. If no failure is detected, it retries until at least
      * a byte is read.
@@ -817,17 +825,22 @@ public class Client {
         if (LOG.isDebugEnabled())
           LOG.debug(getName() + " got value #" + id);
 
-        Call call = calls.get(id);
+        Call call = calls.get(id);              // null if cancelled
 
         int state = in.readInt();     // read call status
         if (state == Status.SUCCESS.state) {
           Writable value = ReflectionUtils.newInstance(valueClass, conf);
           value.readFields(in);                 // read value
-          call.setValue(value);
+          if (call != null) {
+            call.setValue(value);
+          }
           calls.remove(id);
         } else if (state == Status.ERROR.state) {
-          call.setException(new RemoteException(WritableUtils.readString(in),
-                                                WritableUtils.readString(in)));
+          RemoteException error = new RemoteException(
+              WritableUtils.readString(in), WritableUtils.readString(in));
+          if (call != null) {
+            call.setException(error);
+          }
           calls.remove(id);
         } else if (state == Status.FATAL.state) {
           // Close the connection
@@ -918,6 +931,79 @@ public class Client {
     }
   }
 
+  /** Call implementation used for asynchronous calls. */
+  private class AsyncCall extends Call implements Future<Writable> {
+    private final ConnectionId remoteId;
+    private Connection connection;
+    private boolean cancelled;
+
+    public AsyncCall(Writable param, ConnectionId remoteId) {
+      super(param);
+      this.remoteId = remoteId;
+    }
+
+    /** Wake up every thread waiting for the value. */
+    protected synchronized void callComplete() {
+      this.done = true;
+      notifyAll();
+    }
+
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+      if (done) {
+        return false;
+      }
+      cancelled = true;
+      if (connection != null) {
+        connection.removeCall(this);
+      }
+      callComplete();
+      return true;
+    }
+
+    public synchronized boolean isCancelled() {
+      return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+      return done;
+    }
+
+    public synchronized Writable get()
+      throws InterruptedException, ExecutionException {
+      while (!done) {
+        wait();
+      }
+      return getValue();
+    }
+
+    public synchronized Writable get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      while (!done) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          throw new TimeoutException("Call to " + remoteId.getAddress() +
+                                     " timed out after " + timeout + " " + unit);
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+      return getValue();
+    }
+
+    private Writable getValue() throws ExecutionException {
+      if (cancelled) {
+        throw new CancellationException();
+      } else if (error instanceof RemoteException) {
+        error.fillInStackTrace();
+        throw new ExecutionException(error);
+      } else if (error != null) {
+        throw new ExecutionException(
+            wrapException(remoteId.getAddress(), error));
+      }
+      return value;
+    }
+  }
+
   /** Result collector for parallel calls. */
   private static class ParallelResults {
     private Writable[] values;
@@ -1076,15 +1162,7 @@ public class Client {
                        throws InterruptedException, IOException {
     Call call = new Call(param);
     Connection connection = getConnection(remoteId, call);
-    try {
-      connection.sendParam(call);                 // send the parameter
-    } catch (RejectedExecutionException e) {
-      throw new IOException("connection has been closed", e);
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
-      LOG.warn("interrupted waiting to send params to server", e);
-      throw new IOException(e);
-    }
+    sendParam(connection, call);
 
     boolean interrupted = false;
     synchronized (call) {
@@ -1115,6 +1193,41 @@ public class Client {
     }
   }
 
+  /**
+   * Make a call, passing <code>param</code>, to the IPC server defined by
+   * <code>remoteId</code>, without waiting for its value.  Calls to the same
+   * server share a connection, so that a single thread can have many calls
+   * in flight.  The returned future throws an {@link ExecutionException}
+   * caused by a {@link RemoteException} if the remote code threw an
+   * exception, or by an IOException if there were network problems.
+   * Cancelling the future discards the value when it arrives.
+   *
+   * @throws IOException if the call could not be sent
+   */
+  public Future<Writable> callAsync(Writable param, ConnectionId remoteId)
+    throws InterruptedException, IOException {
+    AsyncCall call = new AsyncCall(param, remoteId);
+    Connection connection = getConnection(remoteId, call);
+    synchronized (call) {
+      call.connection = connection;
+    }
+    sendParam(connection, call);
+    return call;
+  }
+
+  private void sendParam(Connection connection, Call call)
+    throws IOException {
+    try {
+      connection.sendParam(call);                 // send the parameter
+    } catch (RejectedExecutionException e) {
+      throw new IOException("connection has been closed", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.warn("interrupted waiting to send params to server", e);
+      throw new IOException(e);
+    }
+  }
+
   /**
    * Take an IOException and the address we were trying to connect to
    * and return an IOException with the input exception as the cause.
@@ -0,0 +1,398 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.security.UserGroupInformation;
+import static org.apache.hadoop.fs.CommonConfigurationKeys.*;
+
+/**
+ * A call queue which keeps a single user from starving the others.
+ *
+ * <p>Calls are put in one of several levels.  Level 0 is a priority lane
+ * for the protocols listed in
+ * <code>ipc.server.callqueue.priority.protocols</code>, such as datanode
+ * heartbeats, and is always served first.  The remaining levels are
+ * assigned by the share of recent calls made by the calling user: the
+ * heavier the user, the lower the level.  Call counts are halved every
+ * <code>ipc.server.callqueue.fair.decay.period.ms</code> so that a user
+ * who backs off soon gets its level back.
+ *
+ * <p>The fair levels are served in weighted round robin; each level gets
+ * twice the turns of the one below it, so even the heaviest user keeps
+ * making progress.  Every level holds up to its share of the queue
+ * capacity, and a put blocks while the level of the call is full.
+ *
+ * @param <E> the type of calls in the queue
+ */
+public class FairCallQueue<E extends Schedulable> extends AbstractQueue<E>
+    implements BlockingQueue<E> {
+  public static final Log LOG = LogFactory.getLog(FairCallQueue.class);
+
+  private static final double DECAY_FACTOR = 0.5;
+
+  private final ArrayDeque<E>[] queues;
+  private final int levelCapacity;
+  private final Set<String> priorityProtocols;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private int count = 0;
+
+  // weighted round robin over the fair levels; guarded by lock
+  private final int[] weights;
+  private int currentLevel = 1;
+  private int currentTurns = 0;
+
+  // recent calls per user, decayed over time
+  private final Map<String, AtomicLong> callCounts =
+    new ConcurrentHashMap<String, AtomicLong>();
+  private final AtomicLong totalCalls = new AtomicLong();
+  private final double[] thresholds;
+  private final long decayPeriod;
+  private volatile long lastDecay;
+
+  /**
+   * @param capacity the number of calls the queue holds over all levels
+   * @param conf configuration of the number of levels, the decay period
+   *        and the priority protocols
+   */
+  @SuppressWarnings("unchecked")
+  public FairCallQueue(int capacity, Configuration conf) {
+    int fairLevels = conf.getInt(IPC_SERVER_CALLQUEUE_FAIR_LEVELS_KEY,
+                                 IPC_SERVER_CALLQUEUE_FAIR_LEVELS_DEFAULT);
+    if (fairLevels < 1) {
+      throw new IllegalArgumentException(IPC_SERVER_CALLQUEUE_FAIR_LEVELS_KEY
+          + " must be at least 1 but is " + fairLevels);
+    }
+    this.decayPeriod = conf.getLong(IPC_SERVER_CALLQUEUE_FAIR_DECAY_PERIOD_KEY,
+        IPC_SERVER_CALLQUEUE_FAIR_DECAY_PERIOD_DEFAULT);
+    this.priorityProtocols = new HashSet<String>(
+        conf.getStringCollection(IPC_SERVER_CALLQUEUE_PRIORITY_PROTOCOLS_KEY));
+    if (conf.get(IPC_SERVER_CALLQUEUE_PRIORITY_PROTOCOLS_KEY) == null) {
+      for (String p : IPC_SERVER_CALLQUEUE_PRIORITY_PROTOCOLS_DEFAULT) {
+        priorityProtocols.add(p);
+      }
+    }
+
+    queues = new ArrayDeque[fairLevels + 1];
+    levelCapacity = Math.max(1, capacity / queues.length);
+    for (int i = 0; i < queues.length; i++) {
+      queues[i] = new ArrayDeque<E>();
+    }
+    // level i is served 2^(fairLevels-i) times per round
+    weights = new int[queues.length];
+    for (int i = 1; i < queues.length; i++) {
+      weights[i] = 1 << Math.min(fairLevels - i, 20);
+    }
+    // a user with less than thresholds[i] of the recent calls goes to
+    // level i+1; the last level takes the rest
+    thresholds = new double[fairLevels - 1];
+    for (int i = 0; i < thresholds.length; i++) {
+      thresholds[i] = Math.pow(2, i - thresholds.length);
+    }
+    lastDecay = System.currentTimeMillis();
+    LOG.info("Fair call queue with " + fairLevels + " levels of capacity "
+        + levelCapacity + ", priority protocols " + priorityProtocols);
+  }
+
+  /** The number of levels, including the priority lane. */
+  public int getNumLevels() {
+    return queues.length;
+  }
+
+  /** The number of calls waiting in a level. */
+  public int size(int level) {
+    lock.lock();
+    try {
+      return queues[level].size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Choose the level of a call and count it against its user. */
+  int computeLevel(Schedulable call) {
+    Class<?> protocol = call.getProtocol();
+    if (protocol != null && priorityProtocols.contains(protocol.getName())) {
+      return 0;
+    }
+    decayIfNeeded();
+    UserGroupInformation ugi = call.getUserGroupInformation();
+    String user = ugi == null ? "" : ugi.getUserName();
+    AtomicLong userCalls = callCounts.get(user);
+    if (userCalls == null) {
+      synchronized (callCounts) {
+        userCalls = callCounts.get(user);
+        if (userCalls == null) {
+          userCalls = new AtomicLong();
+          callCounts.put(user, userCalls);
+        }
+      }
+    }
+    double share = (double) userCalls.incrementAndGet()
+        / totalCalls.incrementAndGet();
+    for (int i = 0; i < thresholds.length; i++) {
+      if (share < thresholds[i]) {
+        return i + 1;
+      }
+    }
+    return queues.length - 1;
+  }
+
+  private void decayIfNeeded() {
+    long now = System.currentTimeMillis();
+    if (now - lastDecay < decayPeriod) {
+      return;
+    }
+    synchronized (callCounts) {
+      if (now - lastDecay < decayPeriod) {
+        return;
+      }
+      decay();
+      lastDecay = now;
+    }
+  }
+
+  /** Scale down the call counts of all users. */
+  void decay() {
+    synchronized (callCounts) {
+      long total = 0;
+      for (Iterator<AtomicLong> it = callCounts.values().iterator();
+           it.hasNext();) {
+        AtomicLong c = it.next();
+        long decayed = (long) (c.get() * DECAY_FACTOR);
+        if (decayed == 0) {
+          it.remove();
+        } else {
+          c.set(decayed);
+          total += decayed;
+        }
+      }
+      totalCalls.set(total);
+    }
+  }
+
+  /** Remove the next call to serve.  Must hold lock and count > 0. */
+  private E dequeue() {
+    E e = queues[0].poll();
+    if (e == null) {
+      while ((e = queues[currentLevel].poll()) == null) {
+        nextLevel();
+      }
+      if (++currentTurns >= weights[currentLevel]) {
+        nextLevel();
+      }
+    }
+    count--;
+    notFull.signalAll();
+    return e;
+  }
+
+  private void nextLevel() {
+    currentLevel = currentLevel == queues.length - 1 ? 1 : currentLevel + 1;
+    currentTurns = 0;
+  }
+
+  private boolean enqueue(E e, int level) {
+    if (queues[level].size() >= levelCapacity) {
+      return false;
+    }
+    e.setPriorityLevel(level);
+    queues[level].add(e);
+    count++;
+    notEmpty.signal();
+    return true;
+  }
+
+  @Override
+  public void put(E e) throws InterruptedException {
+    int level = computeLevel(e);
+    lock.lockInterruptibly();
+    try {
+      while (!enqueue(e, level)) {
+        notFull.await();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean offer(E e, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    int level = computeLevel(e);
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while (!enqueue(e, level)) {
+        if (nanos <= 0) {
+          return false;
+        }
+        nanos = notFull.awaitNanos(nanos);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean offer(E e) {
+    int level = computeLevel(e);
+    lock.lock();
+    try {
+      return enqueue(e, level);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public E take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (count == 0) {
+        notEmpty.await();
+      }
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while (count == 0) {
+        if (nanos <= 0) {
+          return null;
+        }
+        nanos = notEmpty.awaitNanos(nanos);
+      }
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public E poll() {
+    lock.lock();
+    try {
+      return count == 0 ? null : dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** The call at the head of the highest non-empty level. */
+  @Override
+  public E peek() {
+    lock.lock();
+    try {
+      for (ArrayDeque<E> q : queues) {
+        if (!q.isEmpty()) {
+          return q.peek();
+        }
+      }
+      return null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    lock.lock();
+    try {
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int remainingCapacity() {
+    lock.lock();
+    try {
+      return levelCapacity * queues.length - count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int drainTo(Collection<? super E> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(Collection<? super E> c, int maxElements) {
+    if (c == this) {
+      throw new IllegalArgumentException("Cannot drain a queue to itself");
+    }
+    lock.lock();
+    try {
+      int n = 0;
+      while (n < maxElements && count > 0) {
+        c.add(dequeue());
+        n++;
+      }
+      return n;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** An iterator over a snapshot of the queue, from the highest level. */
+  @Override
+  public Iterator<E> iterator() {
+    lock.lock();
+    try {
+      List<E> snapshot = new ArrayList<E>(count);
+      for (ArrayDeque<E> q : queues) {
+        snapshot.addAll(q);
+      }
+      return Collections.unmodifiableList(snapshot).iterator();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
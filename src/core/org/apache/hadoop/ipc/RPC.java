@@ -29,13 +29,23 @@ import java.net.InetSocketAddress;
 import java.net.NoRouteToHostException;
 import java.net.SocketTimeoutException;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.net.SocketFactory;
 
 import org.apache.commons.logging.*;
 
+import org.apache.hadoop.fs.CommonConfigurationKeys;
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.security.SaslRpcServer;
 import org.apache.hadoop.security.UserGroupInformation;
@@ -71,12 +81,158 @@ public class RPC {
   private RPC() {}                                  // no public ctor
 
 
-  /** A method invocation, including the method name and its parameters.*/
-  private static class Invocation implements Writable, Configurable {
+  /**
+   * The methods of a protocol, resolved once.  Each method is given an id
+   * derived from its signature, so that a client and a server built from the
+   * same protocol interface agree on it without negotiation.  Methods whose
+   * ids collide get none and are always called by name.
+   */
+  static class MethodTable {
+    private static final Map<Class<?>, MethodTable> BY_PROTOCOL =
+      new ConcurrentHashMap<Class<?>, MethodTable>();
+    private static final Map<Integer, MethodTable> BY_ID =
+      new ConcurrentHashMap<Integer, MethodTable>();
+
+    private final Class<?> protocol;
+    private final int protocolId;
+    private final Map<String, Method[]> byName = new HashMap<String, Method[]>();
+    private final Map<Integer, Method> byId = new HashMap<Integer, Method>();
+    private final Map<Method, Integer> ids = new HashMap<Method, Integer>();
+
+    private MethodTable(Class<?> protocol) {
+      this.protocol = protocol;
+      this.protocolId = protocol.getName().hashCode();
+      Map<String, List<Method>> named = new HashMap<String, List<Method>>();
+      List<Integer> collisions = new ArrayList<Integer>();
+      for (Method method : protocol.getMethods()) {
+        method.setAccessible(true);
+        List<Method> overloads = named.get(method.getName());
+        if (overloads == null) {
+          overloads = new ArrayList<Method>(1);
+          named.put(method.getName(), overloads);
+        }
+        overloads.add(method);
+        int id = signature(method).hashCode();
+        if (byId.put(id, method) != null) {
+          collisions.add(id);
+        }
+      }
+      for (Integer id : collisions) {
+        byId.remove(id);
+      }
+      for (Map.Entry<Integer, Method> e : byId.entrySet()) {
+        ids.put(e.getValue(), e.getKey());
+      }
+      for (Map.Entry<String, List<Method>> e : named.entrySet()) {
+        byName.put(e.getKey(), e.getValue().toArray(new Method[0]));
+      }
+    }
+
+    private static String signature(Method method) {
+      StringBuilder b = new StringBuilder(method.getName()).append('(');
+      Class<?>[] types = method.getParameterTypes();
+      for (int i = 0; i < types.length; i++) {
+        if (i != 0) {
+          b.append(',');
+        }
+        b.append(types[i].getName());
+      }
+      return b.append(')').toString();
+    }
+
+    /** Get the table of a protocol, building it on first use. */
+    static MethodTable get(Class<?> protocol) {
+      MethodTable table = BY_PROTOCOL.get(protocol);
+      if (table == null) {
+        table = new MethodTable(protocol);
+        BY_PROTOCOL.put(protocol, table);
+      }
+      return table;
+    }
+
+    /**
+     * Make the protocols implemented by a server instance resolvable by
+     * their ids.
+     */
+    static void register(Class<?> implementation) {
+      for (Class<?> c = implementation; c != null; c = c.getSuperclass()) {
+        for (Class<?> iface : c.getInterfaces()) {
+          registerInterface(iface);
+        }
+      }
+    }
+
+    private static void registerInterface(Class<?> protocol) {
+      MethodTable table = get(protocol);
+      MethodTable old = BY_ID.get(table.protocolId);
+      if (old == null) {
+        BY_ID.put(table.protocolId, table);
+      } else if (old.protocol != protocol) {
+        LOG.warn("Protocols " + old.protocol.getName() + " and " +
+                 protocol.getName() + " have the same id " + table.protocolId);
+      }
+      for (Class<?> iface : protocol.getInterfaces()) {
+        registerInterface(iface);
+      }
+    }
+
+    /** Get a registered table by its protocol id, or null. */
+    static MethodTable get(int protocolId) {
+      return BY_ID.get(protocolId);
+    }
+
+    Class<?> getProtocol() { return protocol; }
+
+    int getProtocolId() { return protocolId; }
+
+    /** Get the method with the given id, or null. */
+    Method getMethod(int methodId) {
+      return byId.get(methodId);
+    }
+
+    /** Get the id of a method, or null if it must be called by name. */
+    Integer getId(Method method) {
+      return ids.get(method);
+    }
+
+    /** Like {@link Class#getMethod(String, Class...)}, without the search. */
+    Method getMethod(String name, Class<?>[] parameterClasses)
+      throws NoSuchMethodException {
+      Method[] overloads = byName.get(name);
+      if (overloads != null) {
+        for (Method method : overloads) {
+          if (Arrays.equals(method.getParameterTypes(), parameterClasses)) {
+            return method;
+          }
+        }
+      }
+      // let the JDK report the failure
+      return protocol.getMethod(name, parameterClasses);
+    }
+  }
+
+  /**
+   * A method invocation, including the method name and its parameters.
+   *
+   * An invocation may instead carry the ids of its protocol and method, with
+   * the parameters written without their classes; see
+   * {@link ObjectWritable#writeCompact(DataOutput, Object, Class, Configuration)}.
+   * It then starts with an empty method name and no parameters, so that a
+   * server which does not know ids fails the call with a
+   * NoSuchMethodException, and the client can fall back to the full form.
+   */
+  static class Invocation implements Writable, Configurable {
     private String methodName;
     private Class[] parameterClasses;
     private Object[] parameters;
     private Configuration conf;
+    /** Set for calls using method ids */
+    private MethodTable table;
+    private Method method;
+    /** The ids read from a call using method ids, resolved or not */
+    private boolean byId;
+    private int protocolId;
+    private int methodId;
 
     public Invocation() {}
 
@@ -86,6 +242,18 @@ public class RPC {
       this.parameters = parameters;
     }
 
+    /**
+     * Create an invocation which names its method by id, if the method has
+     * one in the protocol's table.
+     */
+    Invocation(MethodTable table, Method method, Object[] parameters) {
+      this(method, parameters);
+      if (table.getId(method) != null) {
+        this.table = table;
+        this.method = method;
+      }
+    }
+
     /** The name of the method invoked. */
     public String getMethodName() { return methodName; }
 
@@ -95,9 +263,35 @@ public class RPC {
     /** The parameter instances. */
     public Object[] getParameters() { return parameters; }
 
+    /** The method table the invocation was resolved with, or null. */
+    MethodTable getMethodTable() { return table; }
+
+    /** The method, if the invocation named it by id. */
+    Method getMethod() { return method; }
+
+    /** Whether the invocation was read with a method id. */
+    boolean isByMethodId() { return byId; }
+
+    /**
+     * The method named by the ids the invocation was read with.
+     * @throws NoSuchMethodException if the ids are not known here
+     */
+    Method resolveMethodId() throws NoSuchMethodException {
+      if (method == null) {
+        throw new NoSuchMethodException("Unknown method id " + methodId +
+            (table == null ? " of unknown protocol id " + protocolId
+                           : " for " + table.getProtocol().getName()));
+      }
+      return method;
+    }
+
     public void readFields(DataInput in) throws IOException {
       methodName = UTF8.readString(in);
       parameters = new Object[in.readInt()];
+      if (parameters.length == 0 && methodName.length() == 0) {
+        readCompact(in);
+        return;
+      }
       parameterClasses = new Class[parameters.length];
       ObjectWritable objectWritable = new ObjectWritable();
       for (int i = 0; i < parameters.length; i++) {
@@ -106,7 +300,39 @@ public class RPC {
       }
     }
 
+    private void readCompact(DataInput in) throws IOException {
+      byId = true;
+      protocolId = in.readInt();
+      methodId = in.readInt();
+      table = MethodTable.get(protocolId);
+      method = (table == null) ? null : table.getMethod(methodId);
+      if (method == null) {
+        // The parameters cannot be read without their classes. Leave them;
+        // the server fails just this call when it resolves the ids.
+        parameterClasses = new Class[0];
+        return;
+      }
+      methodName = method.getName();
+      parameterClasses = method.getParameterTypes();
+      parameters = new Object[parameterClasses.length];
+      for (int i = 0; i < parameters.length; i++) {
+        parameters[i] =
+          ObjectWritable.readCompact(in, parameterClasses[i], this.conf);
+      }
+    }
+
     public void write(DataOutput out) throws IOException {
+      if (method != null) {
+        UTF8.writeString(out, "");
+        out.writeInt(0);
+        out.writeInt(table.getProtocolId());
+        out.writeInt(table.getId(method));
+        for (int i = 0; i < parameterClasses.length; i++) {
+          ObjectWritable.writeCompact(out, parameters[i], parameterClasses[i],
+                                      conf);
+        }
+        return;
+      }
       UTF8.writeString(out, methodName);
       out.writeInt(parameterClasses.length);
       for (int i = 0; i < parameterClasses.length; i++) {
@@ -115,6 +341,12 @@ public class RPC {
       }
     }
 
+    /** Write the method name and parameter classes, as old servers expect. */
+    void useMethodName() {
+      table = null;
+      method = null;
+    }
+
     public String toString() {
       StringBuffer buffer = new StringBuffer();
       buffer.append(methodName);
@@ -202,10 +434,18 @@ public class RPC {
     return CLIENTS.getClient(conf);
   }
   
+  /** Servers found not to understand method ids */
+  private static final Map<InetSocketAddress, Boolean> NO_METHOD_IDS =
+    new ConcurrentHashMap<InetSocketAddress, Boolean>();
+
   private static class Invoker implements InvocationHandler {
     private Client.ConnectionId remoteId;
     private Client client;
     private boolean isClosed = false;
+    /** The protocol's method table, or null to always call by name */
+    private final MethodTable methods;
+    /** Whether calls return at once, leaving a future in CALL_FUTURE */
+    private volatile boolean async = false;
 
     public Invoker(Class<? extends VersionedProtocol> protocol,
         InetSocketAddress address, UserGroupInformation ticket,
@@ -213,6 +453,49 @@ public class RPC {
       this.remoteId = Client.ConnectionId.getConnectionId(address, protocol,
           ticket, rpcTimeout, conf);
       this.client = CLIENTS.getClient(conf, factory);
+      this.methods = conf.getBoolean(
+          CommonConfigurationKeys.IPC_CLIENT_METHOD_IDS_KEY,
+          CommonConfigurationKeys.IPC_CLIENT_METHOD_IDS_DEFAULT)
+          ? MethodTable.get(protocol) : null;
+    }
+
+    private Invocation newInvocation(Method method, Object[] args) {
+      if (methods == null || NO_METHOD_IDS.containsKey(remoteId.getAddress())) {
+        return new Invocation(method, args);
+      }
+      return new Invocation(methods, method, args);
+    }
+
+    /**
+     * If a call by method id failed because the server does not know ids,
+     * switch the invocation to the method name so that it can be retried.
+     * @return true if the invocation should be retried
+     */
+    private boolean retryByName(Invocation invocation, RemoteException e) {
+      if (invocation.getMethod() == null ||
+          e.getMessage() == null ||
+          !e.getMessage().contains("java.lang.NoSuchMethodException: " +
+              remoteId.getProtocol().getName() + ".()")) {
+        return false;
+      }
+      LOG.info("Server at " + remoteId.getAddress() +
+               " does not support method ids; calling methods by name");
+      NO_METHOD_IDS.put(remoteId.getAddress(), Boolean.TRUE);
+      invocation.useMethodName();
+      return true;
+    }
+
+    private Writable call(Method method, Object[] args)
+      throws IOException, InterruptedException {
+      Invocation invocation = newInvocation(method, args);
+      try {
+        return client.call(invocation, remoteId);
+      } catch (RemoteException e) {
+        if (!retryByName(invocation, e)) {
+          throw e;
+        }
+        return client.call(invocation, remoteId);
+      }
     }
 
     public Object invoke(Object proxy, Method method, Object[] args)
@@ -223,8 +506,15 @@ public class RPC {
         startTime = System.currentTimeMillis();
       }
 
-      ObjectWritable value = (ObjectWritable)
-        client.call(new Invocation(method, args), remoteId);
+      if (async && method.getDeclaringClass() != Object.class) {
+        CALL_FUTURE.set(new CallFuture(this, newInvocation(method, args)));
+        Class<?> returnType = method.getReturnType();
+        // the default value of a primitive return type
+        return returnType.isPrimitive() && returnType != Void.TYPE
+          ? Array.get(Array.newInstance(returnType, 1), 0) : null;
+      }
+
+      ObjectWritable value = (ObjectWritable) call(method, args);
       if (logDebug) {
         long callTime = System.currentTimeMillis() - startTime;
         LOG.debug("Call: " + method.getName() + " " + callTime);
@@ -241,6 +531,91 @@ public class RPC {
     }
   }
 
+  /** The future of the last call made by a thread through an async proxy */
+  private static final ThreadLocal<Future<Object>> CALL_FUTURE =
+    new ThreadLocal<Future<Object>>();
+
+  /** The value of a call made through an async proxy. */
+  private static class CallFuture implements Future<Object> {
+    private final Invoker invoker;
+    private final Invocation invocation;
+    private Future<Writable> future;
+
+    CallFuture(Invoker invoker, Invocation invocation)
+      throws IOException, InterruptedException {
+      this.invoker = invoker;
+      this.invocation = invocation;
+      this.future = invoker.client.callAsync(invocation, invoker.remoteId);
+    }
+
+    private synchronized Future<Writable> getFuture() {
+      return future;
+    }
+
+    /**
+     * Resend the invocation by name if the server does not know method ids.
+     * @return true if it was resent
+     */
+    private synchronized boolean retryByName(Future<Writable> failed,
+                                             ExecutionException e)
+      throws InterruptedException, ExecutionException {
+      if (failed != future) {
+        return true;                    // already resent by another thread
+      }
+      if (!(e.getCause() instanceof RemoteException) ||
+          !invoker.retryByName(invocation, (RemoteException)e.getCause())) {
+        return false;
+      }
+      try {
+        future = invoker.client.callAsync(invocation, invoker.remoteId);
+      } catch (IOException ioe) {
+        throw new ExecutionException(ioe);
+      }
+      return true;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return getFuture().cancel(mayInterruptIfRunning);
+    }
+
+    public boolean isCancelled() {
+      return getFuture().isCancelled();
+    }
+
+    public boolean isDone() {
+      return getFuture().isDone();
+    }
+
+    public Object get() throws InterruptedException, ExecutionException {
+      while (true) {
+        Future<Writable> f = getFuture();
+        try {
+          return ((ObjectWritable)f.get()).get();
+        } catch (ExecutionException e) {
+          if (!retryByName(f, e)) {
+            throw e;
+          }
+        }
+      }
+    }
+
+    public Object get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      while (true) {
+        Future<Writable> f = getFuture();
+        try {
+          return ((ObjectWritable)f.get(deadline - System.nanoTime(),
+                                        TimeUnit.NANOSECONDS)).get();
+        } catch (ExecutionException e) {
+          if (!retryByName(f, e)) {
+            throw e;
+          }
+        }
+      }
+    }
+  }
+
   /**
    * A version mismatch for the RPC protocol.
    */
@@ -424,6 +799,53 @@ public class RPC {
         NetUtils.getDefaultSocketFactory(conf));
   }
 
+  /**
+   * Construct a client-side proxy object whose calls do not wait for their
+   * values.  Each method returns at once, with null, zero or false, and
+   * the value of the call is then given by {@link #getCallFuture()}.  All
+   * calls to a server share one connection, so a single thread may have
+   * many calls in flight.  Methods of {@link Object} are still called
+   * synchronously.
+   */
+  public static VersionedProtocol getAsyncProxy(
+      Class<? extends VersionedProtocol> protocol,
+      long clientVersion, InetSocketAddress addr, UserGroupInformation ticket,
+      Configuration conf, SocketFactory factory, int rpcTimeout)
+      throws IOException {
+    VersionedProtocol proxy = getProxy(protocol, clientVersion, addr, ticket,
+                                       conf, factory, rpcTimeout);
+    ((Invoker)Proxy.getInvocationHandler(proxy)).async = true;
+    return proxy;
+  }
+
+  /**
+   * Construct a client-side async proxy object with the default
+   * SocketFactory.
+   * @see #getAsyncProxy(Class, long, InetSocketAddress, UserGroupInformation, Configuration, SocketFactory, int)
+   */
+  public static VersionedProtocol getAsyncProxy(
+      Class<? extends VersionedProtocol> protocol,
+      long clientVersion, InetSocketAddress addr, Configuration conf)
+      throws IOException {
+    return getAsyncProxy(protocol, clientVersion, addr,
+        UserGroupInformation.getCurrentUser(), conf,
+        NetUtils.getDefaultSocketFactory(conf), 0);
+  }
+
+  /**
+   * Get the value of the last call this thread made through a proxy from
+   * {@link #getAsyncProxy(Class, long, InetSocketAddress, Configuration)}.
+   * Its {@link Future#get()} throws an {@link ExecutionException} caused by
+   * the IOException the call failed with.
+   * @return the future value, or null if there was no such call since the
+   *         last time this was called
+   */
+  public static Future<Object> getCallFuture() {
+    Future<Object> future = CALL_FUTURE.get();
+    CALL_FUTURE.remove();
+    return future;
+  }
+
   /**
    * Stop this proxy and release its invoker's resource
    * @param proxy the proxy to be stopped
@@ -505,6 +927,35 @@ public class RPC {
     private Object instance;
     private boolean verbose;
 
+    /** Per thread allocation counters, if this JVM provides them. */
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN;
+    static {
+      java.lang.management.ThreadMXBean bean =
+        ManagementFactory.getThreadMXBean();
+      com.sun.management.ThreadMXBean threadBean = null;
+      try {
+        if (bean instanceof com.sun.management.ThreadMXBean &&
+            ((com.sun.management.ThreadMXBean) bean)
+              .isThreadAllocatedMemorySupported()) {
+          threadBean = (com.sun.management.ThreadMXBean) bean;
+        }
+      } catch (Throwable t) {
+        LOG.info("Per method allocation metrics are not available", t);
+        threadBean = null;
+      }
+      THREAD_BEAN = threadBean;
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, or -1 if the JVM
+     * does not keep count or counting is disabled.
+     */
+    private static long getThreadAllocatedBytes() {
+      return THREAD_BEAN == null ? -1
+          : THREAD_BEAN.getThreadAllocatedBytes(
+              Thread.currentThread().getId());
+    }
+
     /** Construct an RPC server.
      * @param instance the instance whose methods will be called
      * @param conf the configuration to use
@@ -540,6 +991,7 @@ public class RPC {
           classNameBase(instance.getClass().getName()), secretManager);
       this.instance = instance;
       this.verbose = verbose;
+      MethodTable.register(instance.getClass());
     }
 
     public Writable call(Class<?> protocol, Writable param, long receivedTime) 
@@ -548,14 +1000,27 @@ public class RPC {
         Invocation call = (Invocation)param;
         if (verbose) log("Call: " + call);
 
-        Method method =
-          protocol.getMethod(call.getMethodName(),
-                                   call.getParameterClasses());
-        method.setAccessible(true);
+        Method method;
+        if (call.isByMethodId()) {
+          method = call.resolveMethodId();
+          if (call.getMethodTable().getProtocol() != protocol) {
+            throw new IOException("Method " + method.getName() + " of " +
+                call.getMethodTable().getProtocol().getName() +
+                " called over a connection for " + protocol);
+          }
+        } else {
+          method = MethodTable.get(protocol).getMethod(call.getMethodName(),
+                                                   call.getParameterClasses());
+        }
 
+        long startAllocated = getThreadAllocatedBytes();
         long startTime = System.currentTimeMillis();
         Object value = method.invoke(instance, call.getParameters());
         int processingTime = (int) (System.currentTimeMillis() - startTime);
+        if (startAllocated >= 0) {
+          rpcDetailedMetrics.incAllocatedBytes(call.getMethodName(),
+              getThreadAllocatedBytes() - startAllocated);
+        }
         int qTime = (int) (startTime-receivedTime);
         if (LOG.isDebugEnabled()) {
           LOG.debug("Served: " + call.getMethodName() +
@@ -0,0 +1,41 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import org.apache.hadoop.security.UserGroupInformation;
+
+/**
+ * A call as seen by a call queue which schedules calls by who makes them
+ * and what they are for, such as {@link FairCallQueue}.
+ */
+public interface Schedulable {
+  /** The user making the call, or null if it is not known yet. */
+  public UserGroupInformation getUserGroupInformation();
+
+  /** The protocol the call is made on, or null if it is not known yet. */
+  public Class<?> getProtocol();
+
+  /**
+   * The queue level the call was put in; 0 is served first.  Always 0 in
+   * a queue with a single level.
+   */
+  public int getPriorityLevel();
+
+  /** Record the queue level the call was put in. */
+  public void setPriorityLevel(int level);
+}
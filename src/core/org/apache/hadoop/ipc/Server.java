@@ -23,6 +23,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
 import java.net.BindException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -61,7 +63,9 @@ import javax.security.sasl.SaslServer;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.ByteBufferPool;
 import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.IntWritable;
 import static org.apache.hadoop.fs.CommonConfigurationKeys.*;
 import org.apache.hadoop.io.Writable;
@@ -120,6 +124,11 @@ public abstract class Server {
   static final String IPC_SERVER_RPC_MAX_RESPONSE_SIZE_KEY = 
                         "ipc.server.max.response.size";
   static final int IPC_SERVER_RPC_MAX_RESPONSE_SIZE_DEFAULT = 1024*1024;
+
+  /**
+   * Smallest size class of the pooled call and response buffers
+   */
+  static final int MIN_POOLED_BUF_SIZE = 1024;
   
   public static final Log LOG = LogFactory.getLog(Server.class);
   private static final Log AUDITLOG = 
@@ -197,6 +206,8 @@ public abstract class Server {
 
   private int maxQueueSize;
   private final int maxRespSize;
+  private final ByteBufferPool requestPool;       // buffers calls are read into
+  private final ByteBufferPool responsePool;      // buffers responses are sent from
   private int socketSendBufferSize;
   private final boolean tcpNoDelay; // if T then disable Nagle's Algorithm
 
@@ -268,13 +279,14 @@ public abstract class Server {
   }
 
   /** A call queued for handling. */
-  private static class Call {
+  private static class Call implements Schedulable {
     private int id;                               // the client's call id
     private Writable param;                       // the parameter passed
     private Connection connection;                // connection to client
     private long timestamp;     // the time received when response is null
                                    // the time served when response is not null
     private ByteBuffer response;                      // the response for this call
+    private int priorityLevel;                    // the call queue level
 
     public Call(int id, Writable param, Connection connection) { 
       this.id = id;
@@ -292,6 +304,26 @@ public abstract class Server {
     public void setResponse(ByteBuffer response) {
       this.response = response;
     }
+
+    @Override
+    public UserGroupInformation getUserGroupInformation() {
+      return connection.user;
+    }
+
+    @Override
+    public Class<?> getProtocol() {
+      return connection.protocol;
+    }
+
+    @Override
+    public int getPriorityLevel() {
+      return priorityLevel;
+    }
+
+    @Override
+    public void setPriorityLevel(int level) {
+      this.priorityLevel = level;
+    }
   }
 
   /** Listens on the socket. Creates jobs for the handler threads*/
@@ -775,6 +807,8 @@ public abstract class Server {
             return true;
           }
           if (!call.response.hasRemaining()) {
+            responsePool.putBuffer(call.response);
+            call.response = null;
             call.connection.decRpcCount();
             if (numElements == 1) {    // last call fully processes.
               done = true;             // no more data for this channel.
@@ -863,6 +897,7 @@ public abstract class Server {
 
     private SocketChannel channel;
     private ByteBuffer data;
+    private boolean dataPooled;        // whether data came from requestPool
     private ByteBuffer dataLengthBuffer;
     private LinkedList<Call> responseQueue;
     private volatile int rpcCount = 0; // number of outstanding rpcs
@@ -893,7 +928,7 @@ public abstract class Server {
     private final int AUTHORIZATION_FAILED_CALLID = -1;
     private final Call authFailedCall = 
       new Call(AUTHORIZATION_FAILED_CALLID, null, this);
-    private ByteArrayOutputStream authFailedResponse = new ByteArrayOutputStream();
+    private DataOutputBuffer authFailedResponse = new DataOutputBuffer();
     // Fake 'call' for SASL context setup
     private static final int SASL_CALLID = -33;
     private final Call saslCall = new Call(SASL_CALLID, null, this);
@@ -1195,7 +1230,11 @@ public abstract class Server {
             LOG.warn("Unexpected data length " + dataLength + "!! from " + 
                 getHostAddress());
           }
-          data = ByteBuffer.allocate(dataLength);
+          // a SASL token is handed on as a whole array, so it must be
+          // sized exactly
+          dataPooled = !useSasl;
+          data = dataPooled ? requestPool.getBuffer(dataLength)
+                            : ByteBuffer.allocate(dataLength);
         }
         
         count = channelRead(channel, data);
@@ -1209,12 +1248,19 @@ public abstract class Server {
             continue;
           }
           boolean isHeaderRead = headerRead;
-          if (useSasl) {
-            saslReadAndProcess(data.array());
-          } else {
-            processOneRpc(data.array());
+          try {
+            if (useSasl) {
+              saslReadAndProcess(data.array());
+            } else {
+              processOneRpc(data.array(), data.limit());
+            }
+          } finally {
+            // the call parameters have been deserialized out of the buffer
+            if (dataPooled) {
+              requestPool.putBuffer(data);
+            }
+            data = null;
           }
-          data = null;
           if (!isHeaderRead) {
             continue;
           }
@@ -1224,9 +1270,9 @@ public abstract class Server {
     }
 
     /// Reads the connection header following version
-    private void processHeader(byte[] buf) throws IOException {
+    private void processHeader(byte[] buf, int len) throws IOException {
       DataInputStream in =
-        new DataInputStream(new ByteArrayInputStream(buf));
+        new DataInputStream(new ByteArrayInputStream(buf, 0, len));
       header.readFields(in);
       try {
         String protocolClassName = header.getProtocol();
@@ -1311,10 +1357,15 @@ public abstract class Server {
     
     private void processOneRpc(byte[] buf) throws IOException,
         InterruptedException {
+      processOneRpc(buf, buf.length);
+    }
+
+    private void processOneRpc(byte[] buf, int len) throws IOException,
+        InterruptedException {
       if (headerRead) {
-        processData(buf);
+        processData(buf, len);
       } else {
-        processHeader(buf);
+        processHeader(buf, len);
         headerRead = true;
         if (!authorizeConnection()) {
           throw new AccessControlException("Connection from " + this
@@ -1324,9 +1375,10 @@ public abstract class Server {
       }
     }
     
-    private void processData(byte[] buf) throws  IOException, InterruptedException {
+    private void processData(byte[] buf, int len)
+        throws IOException, InterruptedException {
       DataInputStream dis =
-        new DataInputStream(new ByteArrayInputStream(buf));
+        new DataInputStream(new ByteArrayInputStream(buf, 0, len));
       int id = dis.readInt();                    // try to read an id
         
       if (LOG.isDebugEnabled())
@@ -1339,7 +1391,7 @@ public abstract class Server {
         LOG.warn("Unable to read call parameters for client " +
                  getHostAddress(), t);
         final Call readParamsFailedCall = new Call(id, null, this);
-        ByteArrayOutputStream responseBuffer = new ByteArrayOutputStream();
+        DataOutputBuffer responseBuffer = new DataOutputBuffer();
 
         setupResponse(responseBuffer, readParamsFailedCall, Status.FATAL, null,
             t.getClass().getName(),
@@ -1403,11 +1455,12 @@ public abstract class Server {
     public void run() {
       LOG.info(getName() + ": starting");
       SERVER.set(Server.this);
-      ByteArrayOutputStream buf = 
-        new ByteArrayOutputStream(INITIAL_RESP_BUF_SIZE);
+      DataOutputBuffer buf = new DataOutputBuffer(INITIAL_RESP_BUF_SIZE);
       while (running) {
         try {
           final Call call = callQueue.take(); // pop the queue; maybe blocked here
+          rpcMetrics.addCallQueueWaitTime(call.getPriorityLevel(),
+              System.currentTimeMillis() - call.timestamp);
 
           if (LOG.isDebugEnabled())
             LOG.debug(getName() + ": has #" + call.id + " from " +
@@ -1454,10 +1507,10 @@ public abstract class Server {
                         value, errorClass, error);
           // Discard the large buf and reset it back to 
           // smaller size to freeup heap
-          if (buf.size() > maxRespSize) {
-            LOG.warn("Large response size " + buf.size() + " for call " + 
+          if (buf.getLength() > maxRespSize) {
+            LOG.warn("Large response size " + buf.getLength() + " for call " + 
                 call.toString());
-              buf = new ByteArrayOutputStream(INITIAL_RESP_BUF_SIZE);
+              buf = new DataOutputBuffer(INITIAL_RESP_BUF_SIZE);
             }
             responder.doRespond(call);
           }
@@ -1513,10 +1566,19 @@ public abstract class Server {
                                 IPC_SERVER_HANDLER_QUEUE_SIZE_DEFAULT);
     this.maxRespSize = conf.getInt(IPC_SERVER_RPC_MAX_RESPONSE_SIZE_KEY,
                                    IPC_SERVER_RPC_MAX_RESPONSE_SIZE_DEFAULT);
+    long maxPooledBytes = conf.getLong(IPC_SERVER_BUFFER_POOL_MAX_BYTES_KEY,
+                                       IPC_SERVER_BUFFER_POOL_MAX_BYTES_DEFAULT);
+    int maxPooledBufSize = Math.max(maxRespSize, MIN_POOLED_BUF_SIZE);
+    this.requestPool = new ByteBufferPool(MIN_POOLED_BUF_SIZE,
+        maxPooledBufSize, maxPooledBytes, false);
+    this.responsePool = new ByteBufferPool(MIN_POOLED_BUF_SIZE,
+        maxPooledBufSize, maxPooledBytes,
+        conf.getBoolean(IPC_SERVER_BUFFER_POOL_DIRECT_KEY,
+                        IPC_SERVER_BUFFER_POOL_DIRECT_DEFAULT));
     this.readThreads = conf.getInt(
         IPC_SERVER_RPC_READ_THREADS_KEY,
         IPC_SERVER_RPC_READ_THREADS_DEFAULT);
-    this.callQueue  = new LinkedBlockingQueue<Call>(maxQueueSize); 
+    this.callQueue  = createCallQueue(maxQueueSize, conf);
     this.maxIdleTime = 2*conf.getInt("ipc.client.connection.maxidletime", 1000);
     this.maxConnectionsToNuke = conf.getInt("ipc.client.kill.max", 10);
     this.thresholdIdleConnections = conf.getInt("ipc.client.idlethreshold", 4000);
@@ -1542,6 +1604,34 @@ public abstract class Server {
     }
   }
 
+  /**
+   * Create the queue calls wait in for a handler, of the class configured
+   * by ipc.server.callqueue.impl.
+   */
+  @SuppressWarnings("unchecked")
+  private static BlockingQueue<Call> createCallQueue(int capacity,
+      Configuration conf) throws IOException {
+    Class<? extends BlockingQueue> queueClass = conf.getClass(
+        IPC_SERVER_CALLQUEUE_IMPL_KEY, LinkedBlockingQueue.class,
+        BlockingQueue.class);
+    try {
+      Constructor<? extends BlockingQueue> ctor;
+      try {
+        ctor = queueClass.getConstructor(int.class, Configuration.class);
+        return ctor.newInstance(capacity, conf);
+      } catch (NoSuchMethodException e) {
+        ctor = queueClass.getConstructor(int.class);
+        return ctor.newInstance(capacity);
+      }
+    } catch (InvocationTargetException e) {
+      throw (IOException)new IOException("Cannot create call queue "
+          + queueClass.getName()).initCause(e.getCause());
+    } catch (Exception e) {
+      throw (IOException)new IOException("Cannot create call queue "
+          + queueClass.getName()).initCause(e);
+    }
+  }
+
   private void closeConnection(Connection connection) {
     synchronized (connectionList) {
       if (connectionList.remove(connection))
@@ -1564,18 +1654,17 @@ public abstract class Server {
    * @param error error message, if the call failed
    * @throws IOException
    */
-  private void setupResponse(ByteArrayOutputStream response, 
+  private void setupResponse(DataOutputBuffer response, 
                              Call call, Status status, 
                              Writable rv, String errorClass, String error) 
   throws IOException {
     response.reset();
-    DataOutputStream out = new DataOutputStream(response);
-    out.writeInt(call.id);                // write call id
-    out.writeInt(status.state);           // write status
+    response.writeInt(call.id);                // write call id
+    response.writeInt(status.state);           // write status
 
     if (status == Status.SUCCESS) {
       try {
-        rv.write(out);
+        rv.write(response);
       } catch (Throwable t) {
         LOG.warn("Error serializing call response for call " + call, t);
         // Call back to same function - this is OK since the
@@ -1587,31 +1676,36 @@ public abstract class Server {
         return;
       }
     } else {
-      WritableUtils.writeString(out, errorClass);
-      WritableUtils.writeString(out, error);
+      WritableUtils.writeString(response, errorClass);
+      WritableUtils.writeString(response, error);
     }
     if (call.connection.useWrap) {
       wrapWithSasl(response, call);
     }
-    call.setResponse(ByteBuffer.wrap(response.toByteArray()));
+    // copy into a pooled buffer, which the responder returns to the pool
+    // once the response is sent
+    ByteBuffer buf = responsePool.getBuffer(response.getLength());
+    buf.put(response.getData(), 0, response.getLength());
+    buf.flip();
+    call.setResponse(buf);
   }
   
-  private void wrapWithSasl(ByteArrayOutputStream response, Call call)
+  private void wrapWithSasl(DataOutputBuffer response, Call call)
       throws IOException {
     if (call.connection.useSasl) {
-      byte[] token = response.toByteArray();
+      byte[] token;
       // synchronization may be needed since there can be multiple Handler
       // threads using saslServer to wrap responses.
       synchronized (call.connection.saslServer) {
-        token = call.connection.saslServer.wrap(token, 0, token.length);
+        token = call.connection.saslServer.wrap(response.getData(), 0,
+                                                response.getLength());
       }
       if (LOG.isDebugEnabled())
         LOG.debug("Adding saslServer wrapped token of size " + token.length
             + " as call response.");
       response.reset();
-      DataOutputStream saslOut = new DataOutputStream(response);
-      saslOut.writeInt(token.length);
-      saslOut.write(token, 0, token.length);
+      response.writeInt(token.length);
+      response.write(token, 0, token.length);
     }
   }
   
@@ -1738,6 +1832,23 @@ public abstract class Server {
   public int getCallQueueLen() {
     return callQueue.size();
   }
+
+  /**
+   * The number of levels of the call queue; 1 unless the queue is a
+   * {@link FairCallQueue}.
+   */
+  public int getCallQueueLevels() {
+    return callQueue instanceof FairCallQueue ?
+        ((FairCallQueue<?>)callQueue).getNumLevels() : 1;
+  }
+
+  /**
+   * The number of rpc calls in a level of the call queue.
+   */
+  public int getCallQueueLen(int level) {
+    return callQueue instanceof FairCallQueue ?
+        ((FairCallQueue<?>)callQueue).size(level) : callQueue.size();
+  }
   
   
   /**
@@ -1753,14 +1864,15 @@ public abstract class Server {
    * This is to avoid jdk from creating many direct buffers as the size of 
    * buffer increases. This also minimizes extra copies in NIO layer
    * as a result of multiple write operations required to write a large 
-   * buffer.  
+   * buffer.  A direct buffer is written as is, since the jdk does not
+   * copy it.
    *
    * @see WritableByteChannel#write(ByteBuffer)
    */
   private int channelWrite(WritableByteChannel channel, 
                            ByteBuffer buffer) throws IOException {
     
-    int count =  (buffer.remaining() <= NIO_BUFFER_LIMIT) ?
+    int count =  (buffer.isDirect() || buffer.remaining() <= NIO_BUFFER_LIMIT) ?
                  channel.write(buffer) : channelIO(null, channel, buffer);
     if (count > 0) {
       rpcMetrics.sentBytes.inc(count);
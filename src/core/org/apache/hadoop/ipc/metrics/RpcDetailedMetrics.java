@@ -25,6 +25,7 @@ import org.apache.hadoop.metrics.MetricsUtil;
 import org.apache.hadoop.metrics.Updater;
 import org.apache.hadoop.metrics.util.MetricsBase;
 import org.apache.hadoop.metrics.util.MetricsRegistry;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingLong;
 import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
 
 /**
@@ -62,6 +63,25 @@ public class RpcDetailedMetrics implements Updater {
   }
   
   
+  /**
+   * Count bytes allocated on the heap while serving a call to the given
+   * method.  They are published as <code>&lt;method&gt;AllocatedBytes</code>,
+   * so the rate of each method shows next to its processing time.
+   */
+  public void incAllocatedBytes(String methodName, long bytes) {
+    String name = methodName + "AllocatedBytes";
+    MetricsTimeVaryingLong m = (MetricsTimeVaryingLong) registry.get(name);
+    if (m == null) {
+      try {
+        m = new MetricsTimeVaryingLong(name, registry);
+      } catch (IllegalArgumentException iae) {
+        // the metrics has been registered; re-fetch the handle
+        m = (MetricsTimeVaryingLong) registry.get(name);
+      }
+    }
+    m.inc(bytes);
+  }
+
   /**
    * Push the metrics to the monitoring subsystem on doUpdate() call.
    */
@@ -61,6 +61,21 @@ public class RpcMetrics implements Updater {
     LOG.info("Initializing RPC Metrics with hostName=" 
         + hostName + ", port=" + port);
 
+    int levels = server.getCallQueueLevels();
+    if (levels > 1) {
+      callQueueLevelLen = new MetricsIntValue[levels];
+      callQueueLevelWaitTime = new MetricsTimeVaryingRate[levels];
+      for (int i = 0; i < levels; i++) {
+        callQueueLevelLen[i] =
+          new MetricsIntValue("callQueue" + i + "Len", registry);
+        callQueueLevelWaitTime[i] =
+          new MetricsTimeVaryingRate("callQueue" + i + "WaitTime", registry);
+      }
+    } else {
+      callQueueLevelLen = null;
+      callQueueLevelWaitTime = null;
+    }
+
     context.registerUpdater(this);
     
     // Need to clean up the interface to RpcMgt - don't need both metrics and server params
@@ -104,6 +119,12 @@ public class RpcMetrics implements Updater {
    */
   public final MetricsIntValue callQueueLen = 
           new MetricsIntValue("callQueueLen", registry);
+  /**
+   * metrics - length of and time spent in each level of a call queue
+   * with more than one level; null otherwise
+   */
+  public final MetricsIntValue[] callQueueLevelLen;
+  public final MetricsTimeVaryingRate[] callQueueLevelWaitTime;
   /**
    * metrics - number of failed authentications
    */
@@ -125,6 +146,15 @@ public class RpcMetrics implements Updater {
   public final MetricsTimeVaryingInt authorizationSuccesses = 
          new MetricsTimeVaryingInt("rpcAuthorizationSuccesses", registry);
   
+  /**
+   * Record the time a call waited in the given level of the call queue.
+   */
+  public void addCallQueueWaitTime(int level, long time) {
+    if (callQueueLevelWaitTime != null) {
+      callQueueLevelWaitTime[level].inc(time);
+    }
+  }
+
   /**
    * Push the metrics to the monitoring subsystem on doUpdate() call.
    */
@@ -135,6 +165,11 @@ public class RpcMetrics implements Updater {
       // the metrics do not have be copied here.
       numOpenConnections.set(myServer.getNumOpenConnections());
       callQueueLen.set(myServer.getCallQueueLen());
+      if (callQueueLevelLen != null) {
+        for (int i = 0; i < callQueueLevelLen.length; i++) {
+          callQueueLevelLen[i].set(myServer.getCallQueueLen(i));
+        }
+      }
       for (MetricsBase m : registry.getMetricsList()) {
         m.pushMetric(metricsRecord);
       }
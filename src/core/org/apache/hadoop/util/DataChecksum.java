@@ -22,6 +22,9 @@ import java.util.zip.Checksum;
 import java.util.zip.CRC32;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.fs.ChecksumException;
 
 /**
  * This class provides inteface and utilities for processing checksums for
@@ -36,9 +39,43 @@ public class DataChecksum implements Checksum {
   // checksum types
   public static final int CHECKSUM_NULL    = 0;
   public static final int CHECKSUM_CRC32   = 1;
+  public static final int CHECKSUM_CRC32C  = 2;
   
   private static final int CHECKSUM_NULL_SIZE  = 0;
   private static final int CHECKSUM_CRC32_SIZE = 4;
+  private static final int CHECKSUM_CRC32C_SIZE = 4;
+
+  /** Names of the checksum types, indexed by type */
+  private static final String[] CHECKSUM_NAMES = {"NULL", "CRC32", "CRC32C"};
+
+  /**
+   * @return the checksum type with the given name, ignoring case
+   * @throws IllegalArgumentException if there is no such type
+   */
+  public static int getChecksumTypeByName(String name) {
+    for (int i = 0; i < CHECKSUM_NAMES.length; i++) {
+      if (CHECKSUM_NAMES[i].equalsIgnoreCase(name.trim())) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("Unknown checksum type " + name);
+  }
+
+  /**
+   * @return a new Checksum computing checksums of the given type
+   */
+  public static Checksum newChecksum(int type) {
+    switch (type) {
+    case CHECKSUM_NULL :
+      return new ChecksumNull();
+    case CHECKSUM_CRC32 :
+      return new PureJavaCrc32();
+    case CHECKSUM_CRC32C :
+      return new PureJavaCrc32C();
+    default:
+      return null;
+    }
+  }
   
   
   public static DataChecksum newDataChecksum( int type, int bytesPerChecksum ) {
@@ -53,6 +90,9 @@ public class DataChecksum implements Checksum {
     case CHECKSUM_CRC32 :
       return new DataChecksum( CHECKSUM_CRC32, new PureJavaCrc32(), 
                                CHECKSUM_CRC32_SIZE, bytesPerChecksum );
+    case CHECKSUM_CRC32C :
+      return new DataChecksum( CHECKSUM_CRC32C, new PureJavaCrc32C(), 
+                               CHECKSUM_CRC32C_SIZE, bytesPerChecksum );
     default:
       return null;  
     }
@@ -122,7 +162,7 @@ public class DataChecksum implements Checksum {
        return 0;
      }
 
-     if ( type == CHECKSUM_CRC32 ) {
+     if ( type == CHECKSUM_CRC32 || type == CHECKSUM_CRC32C ) {
        out.writeInt( (int) summer.getValue() );
      } else {
        throw new IOException( "Unknown Checksum " + type );
@@ -146,7 +186,7 @@ public class DataChecksum implements Checksum {
         return 0;
       }
 
-      if ( type == CHECKSUM_CRC32 ) {
+      if ( type == CHECKSUM_CRC32 || type == CHECKSUM_CRC32C ) {
         int checksum = (int) summer.getValue();
         buf[offset+0] = (byte) ((checksum >>> 24) & 0xff);
         buf[offset+1] = (byte) ((checksum >>> 16) & 0xff);
@@ -168,7 +208,7 @@ public class DataChecksum implements Checksum {
     * @return true if the checksum matches and false otherwise.
     */
    public boolean compare( byte buf[], int offset ) {
-     if ( size > 0 && type == CHECKSUM_CRC32 ) {
+     if ( size > 0 && (type == CHECKSUM_CRC32 || type == CHECKSUM_CRC32C) ) {
        int checksum = ( (buf[offset+0] & 0xff) << 24 ) | 
                       ( (buf[offset+1] & 0xff) << 16 ) |
                       ( (buf[offset+2] & 0xff) << 8 )  |
@@ -178,6 +218,144 @@ public class DataChecksum implements Checksum {
      return size == 0;
    }
    
+  /**
+   * Verifies that the checksums of the chunks in <i>data[dataOff, 
+   * dataOff+dataLen)</i> match the checksums stored one after another
+   * in <i>checksums</i> starting at <i>checksumsOff</i>. Every chunk but
+   * the last must be bytesPerChecksum long. This leaves the running
+   * checksum reset.
+   *
+   * @param fileName name of the data, used in the exception message
+   * @param basePos position of <i>data[dataOff]</i> in the file
+   * @throws ChecksumException on the first chunk that does not match
+   */
+  public void verifyChunkedSums(byte[] data, int dataOff, int dataLen,
+                                byte[] checksums, int checksumsOff,
+                                String fileName, long basePos)
+                                throws ChecksumException {
+    if ( size <= 0 ) {
+      return;
+    }
+    try {
+      for (int done = 0; done < dataLen; done += bytesPerChecksum) {
+        int n = Math.min(dataLen - done, bytesPerChecksum);
+        summer.reset();
+        summer.update(data, dataOff + done, n);
+        int calculated = (int) summer.getValue();
+        int expected = ( (checksums[checksumsOff+0] & 0xff) << 24 ) |
+                       ( (checksums[checksumsOff+1] & 0xff) << 16 ) |
+                       ( (checksums[checksumsOff+2] & 0xff) << 8 )  |
+                       ( (checksums[checksumsOff+3] & 0xff) );
+        if (calculated != expected) {
+          long errPos = basePos + done;
+          throw new ChecksumException("Checksum error: " + fileName +
+              " at " + errPos + " exp: " + expected + " got: " + calculated,
+              errPos);
+        }
+        checksumsOff += size;
+      }
+    } finally {
+      reset();
+    }
+  }
+
+  /**
+   * Verifies the chunks between the position and the limit of <i>data</i>
+   * against the checksums starting at the position of <i>checksums</i>.
+   * The positions of both buffers are left unchanged.
+   * @see #verifyChunkedSums(byte[], int, int, byte[], int, String, long)
+   */
+  public void verifyChunkedSums(ByteBuffer data, ByteBuffer checksums,
+                                String fileName, long basePos)
+                                throws ChecksumException {
+    if ( size <= 0 ) {
+      return;
+    }
+    if (data.hasArray() && checksums.hasArray()) {
+      verifyChunkedSums(data.array(), data.arrayOffset() + data.position(),
+          data.remaining(), checksums.array(),
+          checksums.arrayOffset() + checksums.position(), fileName, basePos);
+      return;
+    }
+    // direct buffers: checksum a chunk at a time through a small array
+    ByteBuffer d = data.duplicate();
+    ByteBuffer c = checksums.duplicate();
+    byte[] chunk = new byte[bytesPerChecksum];
+    try {
+      for (int done = 0; d.hasRemaining(); done += bytesPerChecksum) {
+        int n = Math.min(d.remaining(), bytesPerChecksum);
+        d.get(chunk, 0, n);
+        summer.reset();
+        summer.update(chunk, 0, n);
+        int calculated = (int) summer.getValue();
+        int expected = c.getInt();
+        if (calculated != expected) {
+          long errPos = basePos + done;
+          throw new ChecksumException("Checksum error: " + fileName +
+              " at " + errPos + " exp: " + expected + " got: " + calculated,
+              errPos);
+        }
+      }
+    } finally {
+      reset();
+    }
+  }
+
+  /**
+   * Computes the checksum of each chunk in <i>data[dataOff, 
+   * dataOff+dataLen)</i> and stores them one after another in
+   * <i>checksums</i> starting at <i>checksumsOff</i>. Every chunk but
+   * the last is bytesPerChecksum long. This leaves the running checksum
+   * reset.
+   */
+  public void calculateChunkedSums(byte[] data, int dataOff, int dataLen,
+                                   byte[] checksums, int checksumsOff) {
+    if ( size <= 0 ) {
+      return;
+    }
+    for (int done = 0; done < dataLen; done += bytesPerChecksum) {
+      int n = Math.min(dataLen - done, bytesPerChecksum);
+      summer.reset();
+      summer.update(data, dataOff + done, n);
+      int checksum = (int) summer.getValue();
+      checksums[checksumsOff+0] = (byte) ((checksum >>> 24) & 0xff);
+      checksums[checksumsOff+1] = (byte) ((checksum >>> 16) & 0xff);
+      checksums[checksumsOff+2] = (byte) ((checksum >>> 8) & 0xff);
+      checksums[checksumsOff+3] = (byte) (checksum & 0xff);
+      checksumsOff += size;
+    }
+    reset();
+  }
+
+  /**
+   * Computes the checksums of the chunks between the position and the
+   * limit of <i>data</i> and stores them from the position of
+   * <i>checksums</i>. The positions of both buffers are left unchanged.
+   * @see #calculateChunkedSums(byte[], int, int, byte[], int)
+   */
+  public void calculateChunkedSums(ByteBuffer data, ByteBuffer checksums) {
+    if ( size <= 0 ) {
+      return;
+    }
+    if (data.hasArray() && checksums.hasArray()) {
+      calculateChunkedSums(data.array(), data.arrayOffset() + data.position(),
+          data.remaining(), checksums.array(),
+          checksums.arrayOffset() + checksums.position());
+      return;
+    }
+    ByteBuffer d = data.duplicate();
+    ByteBuffer c = checksums.duplicate();
+    byte[] chunk = new byte[bytesPerChecksum];
+    while (d.hasRemaining()) {
+      int n = Math.min(d.remaining(), bytesPerChecksum);
+      d.get(chunk, 0, n);
+      summer.reset();
+      summer.update(chunk, 0, n);
+      c.putInt((int) summer.getValue());
+    }
+    reset();
+  }
+
   private final int type;
   private final int size;
   private final Checksum summer;
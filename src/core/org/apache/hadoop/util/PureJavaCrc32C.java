@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import java.util.zip.Checksum;
+
+/**
+ * A pure-java implementation of the CRC32C checksum, which uses the
+ * Castagnoli polynomial.  Its error detection is at least as good as that
+ * of CRC32, and newer processors compute it in hardware.
+ *
+ * Like {@link PureJavaCrc32}, it processes eight bytes at a time with
+ * eight lookup tables ("slicing-by-8").
+ *
+ * @see PureJavaCrc32
+ */
+public class PureJavaCrc32C implements Checksum {
+
+  /** the current CRC value, bit-flipped */
+  private int crc;
+
+  public PureJavaCrc32C() {
+    reset();
+  }
+
+  /** {@inheritDoc} */
+  public long getValue() {
+    return (~crc) & 0xffffffffL;
+  }
+
+  /** {@inheritDoc} */
+  public void reset() {
+    crc = 0xffffffff;
+  }
+
+  /** {@inheritDoc} */
+  public void update(byte[] b, int off, int len) {
+    int localCrc = crc;
+    while(len > 7) {
+      int c0 = b[off++] ^ localCrc;
+      int c1 = b[off++] ^ (localCrc >>>= 8);
+      int c2 = b[off++] ^ (localCrc >>>= 8);
+      int c3 = b[off++] ^ (localCrc >>>= 8);
+      localCrc = (T8_7[c0 & 0xff] ^ T8_6[c1 & 0xff])
+          ^ (T8_5[c2 & 0xff] ^ T8_4[c3 & 0xff]);
+
+      localCrc ^= (T8_3[b[off++] & 0xff] ^ T8_2[b[off++] & 0xff])
+           ^ (T8_1[b[off++] & 0xff] ^ T8_0[b[off++] & 0xff]);
+
+      len -= 8;
+    }
+    while(len > 0) {
+      localCrc = (localCrc >>> 8) ^ T8_0[(localCrc ^ b[off++]) & 0xff];
+      len--;
+    }
+    crc = localCrc;
+  }
+
+  /** {@inheritDoc} */
+  final public void update(int b) {
+    crc = (crc >>> 8) ^ T8_0[(crc ^ b) & 0xff];
+  }
+
+  /** The reversed CRC-32C (Castagnoli) polynomial */
+  static final int POLYNOMIAL = 0x82F63B78;
+
+  /*
+   * CRC-32C lookup tables generated by the polynomial 0x82F63B78.
+   * T8_0 is the usual byte-at-a-time table; T8_k[i] is the CRC of byte i
+   * followed by k zero bytes.
+   */
+  private static final int[] T8_0 = new int[256];
+  private static final int[] T8_1 = new int[256];
+  private static final int[] T8_2 = new int[256];
+  private static final int[] T8_3 = new int[256];
+  private static final int[] T8_4 = new int[256];
+  private static final int[] T8_5 = new int[256];
+  private static final int[] T8_6 = new int[256];
+  private static final int[] T8_7 = new int[256];
+
+  static {
+    final int[][] tables = {T8_0, T8_1, T8_2, T8_3, T8_4, T8_5, T8_6, T8_7};
+    for (int i = 0; i < 256; i++) {
+      int c = i;
+      for (int j = 0; j < 8; j++) {
+        c = (c & 1) != 0 ? (c >>> 1) ^ POLYNOMIAL : c >>> 1;
+      }
+      T8_0[i] = c;
+    }
+    for (int k = 1; k < tables.length; k++) {
+      for (int i = 0; i < 256; i++) {
+        int c = tables[k - 1][i];
+        tables[k][i] = (c >>> 8) ^ T8_0[c & 0xff];
+      }
+    }
+  }
+}
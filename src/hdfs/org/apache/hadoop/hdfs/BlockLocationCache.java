@@ -0,0 +1,158 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
+
+/**
+ * A cache of the block locations a {@link DFSClient} gets from the
+ * namenode when it opens a file, so that re-opening the same file does not
+ * cost a namenode call every time.
+ * <p>
+ * Entries expire after a fixed time and the least recently used entry is
+ * dropped when the cache is full. Files under construction are never
+ * cached. Callers get their own copy of the cached block list, since
+ * DFSInputStream adds to the list it is given.
+ */
+public class BlockLocationCache {
+  private static class Entry {
+    final LocatedBlocks blocks;
+    final long fetchTime;
+
+    Entry(LocatedBlocks blocks, long fetchTime) {
+      this.blocks = blocks;
+      this.fetchTime = fetchTime;
+    }
+  }
+
+  private final int capacity;
+  private final long ttlMillis;
+  private final LinkedHashMap<String, Entry> map;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  /**
+   * @param capacity  max number of files cached
+   * @param ttlMillis how long an entry may be served after it was fetched
+   */
+  BlockLocationCache(int capacity, long ttlMillis) {
+    this.capacity = capacity;
+    this.ttlMillis = ttlMillis;
+    this.map = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(
+          Map.Entry<String, BlockLocationCache.Entry> eldest) {
+        return size() > BlockLocationCache.this.capacity;
+      }
+    };
+  }
+
+  /**
+   * Get the cached block locations of a file.
+   * @return a copy of the cached locations, or null if the file is not
+   *         cached or its entry has expired
+   */
+  synchronized LocatedBlocks get(String src) {
+    Entry e = map.get(src);
+    if (e != null && System.currentTimeMillis() - e.fetchTime > ttlMillis) {
+      map.remove(src);
+      e = null;
+    }
+    if (e == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return copy(e.blocks);
+  }
+
+  /**
+   * Cache the block locations the namenode returned for a file.
+   * Files under construction are ignored.
+   */
+  synchronized void put(String src, LocatedBlocks blocks) {
+    if (blocks == null || blocks.isUnderConstruction()) {
+      return;
+    }
+    map.put(src, new Entry(copy(blocks), System.currentTimeMillis()));
+  }
+
+  /**
+   * Drop the entry of a file, e.g. because reading it failed or its
+   * blocks have changed.
+   */
+  synchronized void invalidate(String src) {
+    if (map.remove(src) != null) {
+      invalidations.incrementAndGet();
+    }
+  }
+
+  /**
+   * Drop the entry of a path and of every file below it, for when a
+   * directory is renamed or deleted.
+   */
+  synchronized void invalidateTree(String src) {
+    invalidate(src);
+    String prefix = src.endsWith("/") ? src : src + "/";
+    for (Iterator<String> it = map.keySet().iterator(); it.hasNext(); ) {
+      if (it.next().startsWith(prefix)) {
+        it.remove();
+        invalidations.incrementAndGet();
+      }
+    }
+  }
+
+  private static LocatedBlocks copy(LocatedBlocks blocks) {
+    return new LocatedBlocks(blocks.getFileLength(),
+        new ArrayList<LocatedBlock>(blocks.getLocatedBlocks()), false);
+  }
+
+  /** @return the number of files cached */
+  public synchronized int size() {
+    return map.size();
+  }
+
+  /** @return the number of opens served from the cache */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** @return the number of opens that had to ask the namenode */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** @return the number of entries dropped before they expired */
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  @Override
+  public String toString() {
+    return "hits=" + getHits() + ", misses=" + getMisses()
+        + ", invalidations=" + getInvalidations();
+  }
+}
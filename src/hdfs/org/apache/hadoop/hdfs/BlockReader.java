@@ -18,6 +18,7 @@
 package org.apache.hadoop.hdfs;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.apache.hadoop.io.Closeable;
 
@@ -28,6 +29,12 @@ public interface BlockReader extends Closeable {
 
   public int read(byte buf[], int off, int len) throws IOException;
 
+  /**
+   * Read up to buf.remaining() bytes into buf, advancing its position.
+   * @return the number of bytes read, or -1 at the end of the block
+   */
+  public int read(ByteBuffer buf) throws IOException;
+
   public int readAll(byte[] buf, int offset, int len) throws IOException;
 
   public long skip(long n) throws IOException;
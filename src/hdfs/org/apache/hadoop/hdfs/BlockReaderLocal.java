@@ -21,6 +21,9 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -57,6 +60,9 @@ import org.apache.hadoop.util.DataChecksum;
  * <li>Client uses kerberos authentication to connect to the datanode over RPC,
  * if security is enabled.</li>
  * </ul>
+ * When checksums are skipped, {@link #read(ByteBuffer)} reads the block file
+ * straight into the caller's buffer, optionally through a read-only memory
+ * mapping of the block file.
  */
 class BlockReaderLocal extends FSInputChecker implements BlockReader {
   public static final Log LOG = LogFactory.getLog(DFSClient.class);
@@ -128,6 +134,9 @@ class BlockReaderLocal extends FSInputChecker implements BlockReader {
   private long startOffset;
   private boolean eos = false;
   private byte[] skipBuf = null;
+  private byte[] bounceBuf = null;
+  private boolean useMmap = false;
+  private MappedByteBuffer dataMap = null; // mapped block file, if useMmap
 
   /**
    * The only way this object can be instantiated.
@@ -251,6 +260,9 @@ class BlockReaderLocal extends FSInputChecker implements BlockReader {
         1);
     this.dataIn = dataIn;
     this.startOffset = startOffset;
+    this.useMmap = conf.getBoolean(
+        DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_KEY,
+        DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_DEFAULT);
     long toSkip = startOffset;
     while (toSkip > 0) {
       long skipped = dataIn.skip(toSkip);
@@ -338,6 +350,43 @@ class BlockReaderLocal extends FSInputChecker implements BlockReader {
     return super.read(buf, off, len);
   }
 
+  /**
+   * Without checksums the data goes straight from the block file into buf,
+   * through the file channel or the mapped block file. Checksummed reads
+   * go through the verifying byte[] path.
+   */
+  @Override
+  public synchronized int read(ByteBuffer buf) throws IOException {
+    if (checksum != null) {
+      if (bounceBuf == null && !buf.hasArray()) {
+        bounceBuf = new byte[bytesPerChecksum * CHUNKS_PER_READ];
+      }
+      return DFSClient.readViaArray(this, buf, bounceBuf);
+    }
+    FileChannel channel = dataIn.getChannel();
+    if (useMmap && dataMap == null && channel.size() <= Integer.MAX_VALUE) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Mapping " + channel.size() + " bytes of block file");
+      }
+      dataMap = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (dataMap == null) {
+      return channel.read(buf);
+    }
+    // keep the channel position in step so byte[] reads can be mixed in
+    long position = channel.position();
+    int n = (int) Math.min(buf.remaining(), dataMap.limit() - position);
+    if (n <= 0) {
+      return buf.hasRemaining() ? -1 : 0;
+    }
+    ByteBuffer src = dataMap.duplicate();
+    src.position((int) position);
+    src.limit((int) position + n);
+    buf.put(src);
+    channel.position(position + n);
+    return n;
+  }
+
   @Override
   public int readAll(byte[] buf, int offset, int len) throws IOException {
     return readFully(this, buf, offset, len);
@@ -393,6 +442,11 @@ class BlockReaderLocal extends FSInputChecker implements BlockReader {
       "since seek is not implemented");
   }
 
+  @Override
+  protected int getChunksPerRead() {
+    return CHUNKS_PER_READ;
+  }
+
   @Override
   protected synchronized int readChunk(long pos, byte[] buf, int offset,
       int len, byte[] checksumBuf) throws IOException {
@@ -406,10 +460,16 @@ class BlockReaderLocal extends FSInputChecker implements BlockReader {
       return -1;
     }
 
-    if (checksumBuf.length != checksumSize) {
-      throw new IOException("Cannot read checksum into buffer. "
-          + "The buffer must be exactly '" + checksumSize
-          + "' bytes long to hold the checksum bytes.");
+    // Read as many whole chunks as fit in buf and checksumBuf
+    int chunks = Math.max(1, len / bytesPerChecksum);
+    if (checksumSize > 0) {
+      if (checksumBuf.length < checksumSize ||
+          checksumBuf.length % checksumSize != 0) {
+        throw new IOException("Cannot read checksum into buffer. "
+            + "The buffer must be a multiple of '" + checksumSize
+            + "' bytes long to hold the checksum bytes.");
+      }
+      chunks = Math.min(chunks, checksumBuf.length / checksumSize);
     }
 
     if ((pos + firstChunkOffset) != lastChunkOffset) {
@@ -417,18 +477,24 @@ class BlockReaderLocal extends FSInputChecker implements BlockReader {
           + firstChunkOffset + " != " + lastChunkOffset);
     }
 
-    int nRead = dataIn.read(buf, offset, bytesPerChecksum);
-    if (nRead < bytesPerChecksum) {
+    int toRead = chunks * bytesPerChecksum;
+    int nRead = readFully(dataIn, buf, offset, toRead);
+    if (nRead < toRead) {
       eos = true;
     }
+    if (nRead <= 0) {
+      return nRead;
+    }
 
     lastChunkOffset += nRead;
     lastChunkLen = nRead;
 
     // If verifyChecksum is false, we omit reading the checksum
     if (checksumIn != null) {
-      int nChecksumRead = checksumIn.read(checksumBuf);
-      if (nChecksumRead != checksumSize) {
+      int checksumLen =
+        ((nRead + bytesPerChecksum - 1) / bytesPerChecksum) * checksumSize;
+      int nChecksumRead = readFully(checksumIn, checksumBuf, 0, checksumLen);
+      if (nChecksumRead != checksumLen) {
         throw new IOException("Could not read checksum at offset " +
             checksumIn.getChannel().position() + " from the meta file.");
       }
@@ -439,6 +505,7 @@ class BlockReaderLocal extends FSInputChecker implements BlockReader {
 
   @Override
   public synchronized void close() throws IOException {
+    dataMap = null; // unmapped once collected
     IOUtils.closeStream(dataIn);
     IOUtils.closeStream(checksumIn);
   }
@@ -51,8 +51,17 @@ import org.apache.commons.logging.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
@@ -76,6 +85,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   public static final Log LOG = LogFactory.getLog(DFSClient.class);
   public static final int MAX_BLOCK_ACQUIRE_FAILURES = 3;
   private static final int TCP_WINDOW_SIZE = 128 * 1024; // 128 KB
+  private static final int MIN_PACKET_BUFFER_SIZE = 4 * 1024;
   public final ClientProtocol namenode;
   private final ClientProtocol rpcNamenode;
   final UserGroupInformation ugi;
@@ -90,14 +100,30 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   private int socketTimeout;
   private int datanodeWriteTimeout;
   final int writePacketSize;
+  /** Recycles the buffers of acknowledged write packets. */
+  final ByteBufferPool packetBufferPool;
   private final FileSystem.Statistics stats;
   private int maxBlockAcquireFailures;
+  private final int checksumType;
   private boolean shortCircuitLocalReads;
   private boolean connectToDnViaHostname;
   private SocketAddress[] localInterfaceAddrs;
 
   final SocketCache socketCache;
 
+  /**
+   * Threads for hedged positional reads, shared by all clients in the JVM.
+   * Null until a client is created with hedged reads enabled.
+   */
+  private static ThreadPoolExecutor hedgedReadThreadPool;
+  private final boolean hedgedReadEnabled;
+  private final long hedgedReadThresholdMillis;
+  private final DFSHedgedReadMetrics hedgedReadMetrics =
+    new DFSHedgedReadMetrics();
+
+  /** Block locations of recently opened files, or null if disabled. */
+  private final BlockLocationCache blockLocationCache;
+
   /**
    * We assume we're talking to another CDH server, which supports
    * HDFS-630's addBlock method. If we get a RemoteException indicating
@@ -233,7 +259,15 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     this.socketFactory = NetUtils.getSocketFactory(conf, ClientProtocol.class);
     // dfs.write.packet.size is an internal config variable
     this.writePacketSize = conf.getInt("dfs.write.packet.size", 64*1024);
+    this.packetBufferPool = new ByteBufferPool(MIN_PACKET_BUFFER_SIZE,
+        Math.max(writePacketSize, MIN_PACKET_BUFFER_SIZE),
+        conf.getLong(DFSConfigKeys.DFS_CLIENT_WRITE_PACKET_POOL_MAX_BYTES_KEY,
+            DFSConfigKeys.DFS_CLIENT_WRITE_PACKET_POOL_MAX_BYTES_DEFAULT),
+        false);
     this.maxBlockAcquireFailures = getMaxBlockAcquireFailures(conf);
+    this.checksumType = DataChecksum.getChecksumTypeByName(
+        conf.get(DFSConfigKeys.DFS_CHECKSUM_TYPE_KEY,
+                 DFSConfigKeys.DFS_CHECKSUM_TYPE_DEFAULT));
 
     ugi = UserGroupInformation.getCurrentUser();
 
@@ -283,6 +317,97 @@ public class DFSClient implements FSConstants, java.io.Closeable {
           Joiner.on(',').join(localInterfaces)+ "] with addresses [" +
           Joiner.on(',').join(localInterfaceAddrs) + "]");
     }
+
+    int hedgedReadThreadPoolSize = conf.getInt(
+        DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE_KEY,
+        DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE_DEFAULT);
+    this.hedgedReadThresholdMillis = conf.getLong(
+        DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THRESHOLD_MILLIS_KEY,
+        DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THRESHOLD_MILLIS_DEFAULT);
+    this.hedgedReadEnabled = hedgedReadThreadPoolSize > 0;
+    if (hedgedReadEnabled) {
+      initHedgedReadThreadPool(hedgedReadThreadPoolSize);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Hedged reads enabled with threshold " +
+            hedgedReadThresholdMillis + " ms");
+      }
+    }
+
+    int blockLocationCacheSize = conf.getInt(
+        DFSConfigKeys.DFS_CLIENT_BLOCK_LOCATION_CACHE_SIZE_KEY,
+        DFSConfigKeys.DFS_CLIENT_BLOCK_LOCATION_CACHE_SIZE_DEFAULT);
+    if (blockLocationCacheSize > 0) {
+      this.blockLocationCache = new BlockLocationCache(blockLocationCacheSize,
+          conf.getLong(
+              DFSConfigKeys.DFS_CLIENT_BLOCK_LOCATION_CACHE_TTL_MILLIS_KEY,
+              DFSConfigKeys.DFS_CLIENT_BLOCK_LOCATION_CACHE_TTL_MILLIS_DEFAULT));
+    } else {
+      this.blockLocationCache = null;
+    }
+  }
+
+  /**
+   * Create the shared hedged read thread pool if no client has done so yet.
+   * When all the threads are busy the hedged read runs in the reading
+   * thread instead of being queued.
+   */
+  private static synchronized void initHedgedReadThreadPool(int numThreads) {
+    if (hedgedReadThreadPool != null) {
+      return;
+    }
+    hedgedReadThreadPool = new ThreadPoolExecutor(1, numThreads,
+        60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+        new ThreadFactory() {
+          private final AtomicInteger threadIndex = new AtomicInteger();
+          public Thread newThread(Runnable r) {
+            Thread t = new Daemon(r);
+            t.setName("hedgedRead-" + threadIndex.getAndIncrement());
+            return t;
+          }
+        },
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    hedgedReadThreadPool.allowCoreThreadTimeOut(true);
+    LOG.info("Using " + numThreads + " threads for hedged reads");
+  }
+
+  /** Is this client sending hedged positional reads? */
+  public boolean isHedgedReadsEnabled() {
+    return hedgedReadEnabled;
+  }
+
+  /** @return the counters of hedged positional reads by this client */
+  public DFSHedgedReadMetrics getHedgedReadMetrics() {
+    return hedgedReadMetrics;
+  }
+
+  /**
+   * @return the cache of block locations of opened files, or null if
+   *         dfs.client.block.location.cache.size is 0
+   */
+  public BlockLocationCache getBlockLocationCache() {
+    return blockLocationCache;
+  }
+
+  /** Drop the cached block locations of a file this client changes. */
+  private void invalidateBlockLocations(String src) {
+    if (blockLocationCache != null) {
+      blockLocationCache.invalidate(src);
+    }
+  }
+
+  /**
+   * Create the checksum for a new output stream, checking that the
+   * block size is a multiple of the checksum chunk size.
+   */
+  private static DataChecksum createChecksum(int checksumType,
+      int bytesPerChecksum, long blockSize) throws IOException {
+    if ( bytesPerChecksum < 1 || blockSize % bytesPerChecksum != 0) {
+      throw new IOException("io.bytes.per.checksum(" + bytesPerChecksum +
+                            ") and blockSize(" + blockSize + 
+                            ") do not match. " + "blockSize should be a " +
+                            "multiple of io.bytes.per.checksum");
+    }
+    return DataChecksum.newDataChecksum(checksumType, bytesPerChecksum);
   }
 
   static int getMaxBlockAcquireFailures(Configuration conf) {
@@ -702,6 +827,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     }
     FsPermission masked = permission.applyUMask(FsPermission.getUMask(conf));
     LOG.debug(src + ": masked=" + masked);
+    invalidateBlockLocations(src);
     OutputStream result = new DFSOutputStream(src, masked,
         overwrite, createParent, replication, blockSize, progress, buffersize,
         conf.getInt("io.bytes.per.checksum", 512));
@@ -738,6 +864,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   OutputStream append(String src, int buffersize, Progressable progress
       ) throws IOException {
     checkOpen();
+    invalidateBlockLocations(src);
     HdfsFileStatus stat = null;
     LocatedBlock lastBlock = null;
     try {
@@ -749,12 +876,52 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                                      NSQuotaExceededException.class,
                                      DSQuotaExceededException.class);
     }
+    // the last block keeps the checksum it was written with
+    DataChecksum checksum = (lastBlock == null)
+      ? DataChecksum.newDataChecksum(checksumType,
+                                     conf.getInt("io.bytes.per.checksum", 512))
+      : getBlockChecksum(src, lastBlock);
     OutputStream result = new DFSOutputStream(src, buffersize, progress,
-        lastBlock, stat, conf.getInt("io.bytes.per.checksum", 512));
+        lastBlock, stat, checksum.getChecksumType(),
+        checksum.getBytesPerChecksum());
     leasechecker.put(src, result);
     return result;
   }
 
+  /**
+   * Get the checksum type and chunk size the data of a block was written
+   * with, from the header a datanode sends before the block's data.
+   */
+  private DataChecksum getBlockChecksum(String src, LocatedBlock lb)
+      throws IOException {
+    final Block block = lb.getBlock();
+    final DatanodeInfo[] datanodes = lb.getLocations();
+    IOException lastException = null;
+    for (int j = 0; j < datanodes.length; j++) {
+      final String dnName = datanodes[j].getName(connectToDnViaHostname);
+      Socket sock = null;
+      try {
+        sock = socketFactory.createSocket();
+        NetUtils.connect(sock, NetUtils.createSocketAddr(dnName),
+                         socketTimeout);
+        sock.setSoTimeout(socketTimeout);
+        RemoteBlockReader reader = (RemoteBlockReader)
+          RemoteBlockReader.newBlockReader(sock, src, block.getBlockId(),
+              lb.getBlockToken(), block.getGenerationStamp(), 0, 0,
+              DataNode.SMALL_BUFFER_SIZE, true, clientName);
+        return reader.getChecksum();
+      } catch (IOException ie) {
+        LOG.warn("Failed to get the checksum of " + block + " of " + src +
+                 " from " + dnName, ie);
+        lastException = ie;
+      } finally {
+        IOUtils.closeSocket(sock);
+      }
+    }
+    throw (IOException)new IOException("Could not get the checksum of " +
+        block + " of " + src).initCause(lastException);
+  }
+
   /**
    * Set replication for an existing file.
    * 
@@ -781,6 +948,9 @@ public class DFSClient implements FSConstants, java.io.Closeable {
    */
   public boolean rename(String src, String dst) throws IOException {
     checkOpen();
+    if (blockLocationCache != null) {
+      blockLocationCache.invalidateTree(src);
+    }
     try {
       return namenode.rename(src, dst);
     } catch(RemoteException re) {
@@ -796,8 +966,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
    */
   @Deprecated
   public boolean delete(String src) throws IOException {
-    checkOpen();
-    return namenode.delete(src, true);
+    return delete(src, true);
   }
 
   /**
@@ -807,6 +976,9 @@ public class DFSClient implements FSConstants, java.io.Closeable {
    */
   public boolean delete(String src, boolean recursive) throws IOException {
     checkOpen();
+    if (blockLocationCache != null) {
+      blockLocationCache.invalidateTree(src);
+    }
     try {
       return namenode.delete(src, recursive);
     } catch(RemoteException re) {
@@ -1416,6 +1588,28 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     }
   }
 
+  /**
+   * Read into buf through the byte[] read of a block reader: straight into
+   * the backing array of a heap buffer, or through bounce for a direct one.
+   */
+  static int readViaArray(BlockReader reader, ByteBuffer buf, byte[] bounce)
+      throws IOException {
+    int n;
+    if (buf.hasArray()) {
+      n = reader.read(buf.array(), buf.arrayOffset() + buf.position(),
+                      buf.remaining());
+      if (n > 0) {
+        buf.position(buf.position() + n);
+      }
+    } else {
+      n = reader.read(bounce, 0, Math.min(buf.remaining(), bounce.length));
+      if (n > 0) {
+        buf.put(bounce, 0, n);
+      }
+    }
+    return n;
+  }
+
   /** This is a wrapper around connection to datadone
    * and understands checksum, offset etc
    */
@@ -1435,6 +1629,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     private boolean sentStatusCode = false;
     
     byte[] skipBuf = null;
+    byte[] bounceBuf = null;
     ByteBuffer checksumBytes = null;
     /** Amount of unread data in the current received packet */
     int dataLeft = 0;
@@ -1481,6 +1676,17 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       return nRead;
     }
 
+    /**
+     * Packet data arrives through a stream, so a direct buffer is filled
+     * through a reused array.
+     */
+    public synchronized int read(ByteBuffer buf) throws IOException {
+      if (bounceBuf == null && !buf.hasArray()) {
+        bounceBuf = new byte[bytesPerChecksum * CHUNKS_PER_READ];
+      }
+      return readViaArray(this, buf, bounceBuf);
+    }
+
     @Override
     public synchronized long skip(long n) throws IOException {
       /* How can we make sure we don't throw a ChecksumException, at least
@@ -1543,11 +1749,17 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       checksumBytes.limit(requiredSize);
     }
     
+    @Override
+    protected int getChunksPerRead() {
+      return CHUNKS_PER_READ;
+    }
+
     @Override
     protected synchronized int readChunk(long pos, byte[] buf, int offset, 
                                          int len, byte[] checksumBuf) 
                                          throws IOException {
-      // Read one chunk.
+      // Read as many chunks of the current packet as fit in buf and
+      // checksumBuf.
       
       if (eos) {
         if ( startOffset < 0 ) {
@@ -1558,7 +1770,6 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         return -1;
       }
       
-      // Read one DATA_CHUNK.
       long chunkOffset = lastChunkOffset;
       if ( lastChunkLen > 0 ) {
         chunkOffset += lastChunkLen;
@@ -1607,12 +1818,18 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         }
       }
 
-      int chunkLen = Math.min(dataLeft, bytesPerChecksum);
+      int maxChunks = Math.max(1, len / bytesPerChecksum);
+      if (checksumSize > 0) {
+        maxChunks = Math.min(maxChunks, checksumBuf.length / checksumSize);
+      }
+      int chunkLen = Math.min(dataLeft, maxChunks * bytesPerChecksum);
       
       if ( chunkLen > 0 ) {
         // len should be >= chunkLen
         IOUtils.readFully(in, buf, offset, chunkLen);
-        checksumBytes.get(checksumBuf, 0, checksumSize);
+        checksumBytes.get(checksumBuf, 0, 
+            ((chunkLen + bytesPerChecksum - 1) / bytesPerChecksum) *
+            checksumSize);
       }
       
       dataLeft -= chunkLen;
@@ -1780,6 +1997,11 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                               startOffset, firstChunkOffset, sock );
     }
 
+    /** The checksum of the block being read. */
+    DataChecksum getChecksum() {
+      return checksum;
+    }
+
     @Override
     public synchronized void close() throws IOException {
       startOffset = -1;
@@ -1846,7 +2068,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
    * DFSInputStream provides bytes from a named file.  It handles 
    * negotiation of the namenode and various datanodes as necessary.
    ****************************************************************/
-  public class DFSInputStream extends FSInputStream {
+  public class DFSInputStream extends FSInputStream
+      implements ByteBufferReadable {
     private boolean closed = false;
 
     private String src;
@@ -1884,6 +2107,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     
     void addToDeadNodes(DatanodeInfo dnInfo) {
       deadNodes.put(dnInfo, dnInfo);
+      // the cached locations may be stale, let the next open ask the namenode
+      invalidateBlockLocations(src);
     }
     
     DFSInputStream(String src, int buffersize, boolean verifyChecksum
@@ -1903,9 +2128,20 @@ public class DFSClient implements FSConstants, java.io.Closeable {
      * Grab the open-file info from namenode
      */
     synchronized void openInfo() throws IOException {
-      LocatedBlocks newInfo = callGetBlockLocations(namenode, src, 0, prefetchSize);
+      // only the first open may be served from the cache; a refresh after
+      // a read failure must see what the namenode has now
+      LocatedBlocks newInfo = null;
+      if (blockLocationCache != null && locatedBlocks == null) {
+        newInfo = blockLocationCache.get(src);
+      }
       if (newInfo == null) {
-        throw new FileNotFoundException("File does not exist: " + src);
+        newInfo = callGetBlockLocations(namenode, src, 0, prefetchSize);
+        if (newInfo == null) {
+          throw new FileNotFoundException("File does not exist: " + src);
+        }
+        if (blockLocationCache != null) {
+          blockLocationCache.put(src, newInfo);
+        }
       }
 
       // I think this check is not correct. A file could have been appended to
@@ -1916,6 +2152,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         Iterator<LocatedBlock> newIter = newInfo.getLocatedBlocks().iterator();
         while (oldIter.hasNext() && newIter.hasNext()) {
           if (! oldIter.next().getBlock().equals(newIter.next().getBlock())) {
+            invalidateBlockLocations(src);
             throw new IOException("Blocklist for " + src + " has changed!");
           }
         }
@@ -2185,11 +2422,65 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       return ( ret <= 0 ) ? -1 : (oneByteBuf[0] & 0xff);
     }
 
+    /**
+     * Where a read puts the data it gets from the current block reader.
+     */
+    private abstract class ReaderStrategy {
+      /**
+       * Read up to len bytes from blockReader.
+       * On failure the destination is left as it was before the call.
+       */
+      abstract int doRead(BlockReader blockReader, int len)
+          throws IOException;
+    }
+
+    /** Reads into a byte array at a fixed offset. */
+    private class ByteArrayStrategy extends ReaderStrategy {
+      private final byte[] buf;
+      private final int off;
+
+      ByteArrayStrategy(byte[] buf, int off) {
+        this.buf = buf;
+        this.off = off;
+      }
+
+      int doRead(BlockReader blockReader, int len) throws IOException {
+        return blockReader.read(buf, off, len);
+      }
+    }
+
+    /** Reads into a ByteBuffer at its position. */
+    private class ByteBufferStrategy extends ReaderStrategy {
+      private final ByteBuffer buf;
+
+      ByteBufferStrategy(ByteBuffer buf) {
+        this.buf = buf;
+      }
+
+      int doRead(BlockReader blockReader, int len) throws IOException {
+        int oldPos = buf.position();
+        int oldLimit = buf.limit();
+        boolean success = false;
+        buf.limit(oldPos + len);
+        try {
+          int n = blockReader.read(buf);
+          success = true;
+          return n;
+        } finally {
+          buf.limit(oldLimit);
+          if (!success) {
+            // reset so that a retry on another datanode starts afresh
+            buf.position(oldPos);
+          }
+        }
+      }
+    }
+
     /* This is a used by regular read() and handles ChecksumExceptions.
      * name readBuffer() is chosen to imply similarity to readBuffer() in
      * ChecksumFileSystem
      */ 
-    private synchronized int readBuffer(byte buf[], int off, int len) 
+    private synchronized int readBuffer(ReaderStrategy reader, int len)
                                                     throws IOException {
       IOException ioe;
       
@@ -2204,7 +2495,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       while (true) {
         // retry as many times as seekToNewSource allows.
         try {
-          return blockReader.read(buf, off, len);
+          return reader.doRead(blockReader, len);
         } catch ( ChecksumException ce ) {
           LOG.warn("Found Checksum error for " + currentBlock + " from " +
                    currentNode.getName() + " at " + ce.getPos());          
@@ -2237,11 +2528,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       }
     }
 
-    /**
-     * Read the entire buffer.
-     */
-    @Override
-    public synchronized int read(byte buf[], int off, int len) throws IOException {
+    private synchronized int readWithStrategy(ReaderStrategy strategy,
+                                              int len) throws IOException {
       checkOpen();
       if (closed) {
         throw new IOException("Stream closed");
@@ -2256,7 +2544,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
               currentNode = blockSeekTo(pos);
             }
             int realLen = Math.min(len, (int) (blockEnd - pos + 1));
-            int result = readBuffer(buf, off, realLen);
+            int result = readBuffer(strategy, realLen);
             
             if (result >= 0) {
               pos += result;
@@ -2285,6 +2573,23 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       return -1;
     }
 
+    /**
+     * Read the entire buffer.
+     */
+    @Override
+    public synchronized int read(byte buf[], int off, int len) throws IOException {
+      return readWithStrategy(new ByteArrayStrategy(buf, off), len);
+    }
+
+    /**
+     * Read into a ByteBuffer. A short-circuit local reader fills a direct
+     * buffer straight from the block file; other readers fill it through
+     * a reused array.
+     */
+    public synchronized int read(ByteBuffer buf) throws IOException {
+      return readWithStrategy(new ByteBufferStrategy(buf), buf.remaining());
+    }
+
         
     private DNAddrPair chooseDataNode(LocatedBlock block)
       throws IOException {
@@ -2322,19 +2627,35 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         
     private void fetchBlockByteRange(LocatedBlock block, long start,
                                      long end, byte[] buf, int offset) throws IOException {
-      //
-      // Connect to best DataNode for desired Block, with potential offset
-      //
-      int refetchToken = 1; // only need to get a new access token once
-
+      if (hedgedReadEnabled) {
+        hedgedFetchBlockByteRange(block, start, end, buf, offset);
+        return;
+      }
       while (true) {
         // cached block locations may have been updated by chooseDataNode()
         // or fetchBlockAt(). Always get the latest list of locations at the 
         // start of the loop.
         block = getBlockAt(block.getStartOffset(), false);
         DNAddrPair retval = chooseDataNode(block);
-        DatanodeInfo chosenNode = retval.info;
-        InetSocketAddress targetAddr = retval.addr;
+        if (fetchFromDataNode(retval, block, start, end, buf, offset)) {
+          return;
+        }
+      }
+    }
+
+    /**
+     * Read the given byte range of a block from one datanode.
+     * If the datanode fails the read, it is put into the dead nodes list.
+     *
+     * @return true if the range was read into buf
+     */
+    private boolean fetchFromDataNode(DNAddrPair datanode, LocatedBlock block,
+        long start, long end, byte[] buf, int offset) throws IOException {
+      DatanodeInfo chosenNode = datanode.info;
+      InetSocketAddress targetAddr = datanode.addr;
+      int refetchToken = 1; // only need to get a new access token once
+
+      while (true) {
         BlockReader reader = null;
             
         try {
@@ -2363,7 +2684,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                                                 verifyChecksum, clientName);
             IOUtils.readFully((RemoteBlockReader)reader, buf, offset, len);
           }
-          return;
+          return true;
         } catch (ChecksumException e) {
           LOG.warn("fetchBlockByteRange(). Got a checksum exception for " +
                    src + " at " + block.getBlock() + ":" + 
@@ -2373,6 +2694,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
           if (refetchToken > 0 && tokenRefetchNeeded(e, targetAddr)) {
             refetchToken--;
             fetchBlockAt(block.getStartOffset());
+            block = getBlockAt(block.getStartOffset(), false);
             continue;
           } else {
             LOG.warn("Failed to connect to " + targetAddr + 
@@ -2385,9 +2707,127 @@ public class DFSClient implements FSConstants, java.io.Closeable {
             closeBlockReader(reader);
           }
         }
-        // Put chosen node into dead list, continue
+        // Put chosen node into dead list
         addToDeadNodes(chosenNode);
+        return false;
+      }
+    }
+
+    /**
+     * Like {@link #fetchBlockByteRange}, but if the datanodes being read
+     * from have not answered within the hedged read threshold, the same
+     * range is also requested from another replica and the first answer
+     * wins. Each request reads into its own buffer, so a slow request that
+     * completes after the caller has returned cannot touch buf.
+     */
+    private void hedgedFetchBlockByteRange(LocatedBlock block, long start,
+        long end, byte[] buf, int offset) throws IOException {
+      CompletionService<byte[]> hedgedService =
+        new ExecutorCompletionService<byte[]>(hedgedReadThreadPool);
+      // reads in flight and the datanodes they were sent to
+      Map<Future<byte[]>, DatanodeInfo> futures =
+        new HashMap<Future<byte[]>, DatanodeInfo>();
+      Future<byte[]> first = null;
+      try {
+        while (true) {
+          block = getBlockAt(block.getStartOffset(), false);
+          Future<byte[]> done;
+          if (futures.isEmpty()) {
+            // Nothing in flight. Choose a datanode the usual way, which
+            // refetches the locations if every replica has failed.
+            DNAddrPair chosen = chooseDataNode(block);
+            first = submitHedgedRead(hedgedService, chosen, block, start, end);
+            futures.put(first, chosen.info);
+            done = hedgedService.poll(hedgedReadThresholdMillis,
+                                      TimeUnit.MILLISECONDS);
+            if (done == null) {
+              continue;
+            }
+          } else {
+            // The reads in flight are slow or have failed. Ask one more
+            // replica if there is one left, then wait for the first answer.
+            DNAddrPair chosen = chooseHedgedDataNode(block, futures.values());
+            if (chosen != null) {
+              hedgedReadMetrics.incHedgedReadOps();
+              futures.put(submitHedgedRead(hedgedService, chosen, block,
+                                           start, end), chosen.info);
+            }
+            done = hedgedService.take();
+          }
+          DatanodeInfo node = futures.remove(done);
+          byte[] result = getHedgedReadResult(done, node);
+          if (result != null) {
+            if (done != first) {
+              hedgedReadMetrics.incHedgedReadOpsWin();
+            }
+            System.arraycopy(result, 0, buf, offset, result.length);
+            return;
+          }
+        }
+      } catch (InterruptedException ie) {
+        throw new InterruptedIOException("Interrupted while reading " +
+            block.getBlock() + " of " + src);
+      } finally {
+        // Let the losers finish on their own; interrupting a read would
+        // make its datanode look dead.
+        for (Future<byte[]> f : futures.keySet()) {
+          f.cancel(false);
+        }
+      }
+    }
+
+    private Future<byte[]> submitHedgedRead(
+        CompletionService<byte[]> hedgedService, final DNAddrPair datanode,
+        final LocatedBlock block, final long start, final long end) {
+      final Thread submitter = Thread.currentThread();
+      return hedgedService.submit(new Callable<byte[]>() {
+        public byte[] call() throws IOException {
+          if (Thread.currentThread() == submitter) {
+            hedgedReadMetrics.incHedgedReadOpsInCurThread();
+          }
+          byte[] result = new byte[(int) (end - start + 1)];
+          return fetchFromDataNode(datanode, block, start, end, result, 0) ?
+              result : null;
+        }
+      });
+    }
+
+    /**
+     * @return the bytes read by a completed hedged read, or null if it
+     *         failed, in which case its datanode is put into the dead list
+     */
+    private byte[] getHedgedReadResult(Future<byte[]> done,
+        DatanodeInfo node) throws InterruptedException {
+      try {
+        byte[] result = done.get();
+        if (result != null) {
+          return result;
+        }
+      } catch (ExecutionException e) {
+        LOG.warn("Hedged read from " + node.getName() + " for file " + src +
+                 " failed: " + StringUtils.stringifyException(e.getCause()));
+      }
+      addToDeadNodes(node);
+      return null;
+    }
+
+    /**
+     * Choose a replica that is neither dead nor being read from already.
+     * @return null if there is none
+     */
+    private DNAddrPair chooseHedgedDataNode(LocatedBlock block,
+        Collection<DatanodeInfo> busyNodes) {
+      DatanodeInfo[] nodes = block.getLocations();
+      if (nodes != null) {
+        for (DatanodeInfo node : nodes) {
+          if (!deadNodes.containsKey(node) && !busyNodes.contains(node)) {
+            InetSocketAddress targetAddr =
+              NetUtils.createSocketAddr(node.getName(connectToDnViaHostname));
+            return new DNAddrPair(node, targetAddr);
+          }
+        }
       }
+      return null;
     }
 
     /**
@@ -2768,6 +3208,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     private class Packet {
       ByteBuffer buffer;           // only one of buf and buffer is non-null
       byte[]  buf;
+      ByteBuffer pooled;           // from packetBufferPool, backs buf
       long    seqno;               // sequencenumber of buffer in block
       long    offsetInBlock;       // offset in block
       boolean lastPacketInBlock;   // is this the last packet in block?
@@ -2787,7 +3228,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         currentSeqno++;
         
         buffer = null;
-        buf = new byte[pktSize];
+        pooled = packetBufferPool.getBuffer(pktSize);
+        buf = pooled.array();
         
         checksumStart = DataNode.PKT_HEADER_LEN + SIZE_OF_INTEGER;
         checksumPos = checksumStart;
@@ -2797,7 +3239,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       }
 
       void writeData(byte[] inarray, int off, int len) {
-        if ( dataPos + len > buf.length) {
+        if ( dataPos + len > pooled.limit()) {
           throw new BufferOverflowException();
         }
         System.arraycopy(inarray, off, buf, dataPos, len);
@@ -2858,6 +3300,19 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         buffer.reset();
         return buffer;
       }
+
+      /**
+       * Give the packet buffer back to the pool. Called once the packet has
+       * been acknowledged or dropped; the packet must not be used after.
+       */
+      void releaseBuffer() {
+        if (pooled != null) {
+          packetBufferPool.putBuffer(pooled);
+          pooled = null;
+          buf = null;
+          buffer = null;
+        }
+      }
     }
   
     //
@@ -2886,6 +3341,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
           }
 
           Packet one = null;
+          ByteBuffer buf = null;
           synchronized (dataQueue) {
 
             // process IO errors if any
@@ -2927,7 +3383,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                                       " Aborting file " + src);
               }
 
-              ByteBuffer buf = one.getBuffer();
+              buf = one.getBuffer();
               
               // move packet from dataQueue to ackQueue
               dataQueue.removeFirst();
@@ -2936,28 +3392,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                 ackQueue.addLast(one);
                 ackQueue.notifyAll();
               } 
-              
-              // write out data to remote datanode
-              blockStream.write(buf.array(), buf.position(), buf.remaining());
-              
-              if (one.lastPacketInBlock) {
-                blockStream.writeInt(0); // indicate end-of-block 
-              }
-              blockStream.flush();
-              if (LOG.isDebugEnabled()) {
-                LOG.debug("DataStreamer block " + block +
-                          " wrote packet seqno:" + one.seqno +
-                          " size:" + buf.remaining() +
-                          " offsetInBlock:" + one.offsetInBlock + 
-                          " lastPacketInBlock:" + one.lastPacketInBlock);
-              }
             } catch (Throwable e) {
-              LOG.warn("DataStreamer Exception: " + 
-                       StringUtils.stringifyException(e));
-              if (e instanceof IOException) {
-                setLastException((IOException)e);
-              }
-              hasError = true;
+              handleStreamerException(e);
             }
           }
 
@@ -2965,6 +3401,30 @@ public class DFSClient implements FSConstants, java.io.Closeable {
             continue;
           }
 
+          // Write out data to remote datanode. Only this thread uses
+          // blockStream, so the writer can keep queueing packets meanwhile.
+          try {
+            blockStream.write(buf.array(), buf.position(), buf.remaining());
+            
+            if (one.lastPacketInBlock) {
+              blockStream.writeInt(0); // indicate end-of-block 
+            }
+            blockStream.flush();
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("DataStreamer block " + block +
+                        " wrote packet seqno:" + one.seqno +
+                        " size:" + buf.remaining() +
+                        " offsetInBlock:" + one.offsetInBlock + 
+                        " lastPacketInBlock:" + one.lastPacketInBlock);
+            }
+          } catch (Throwable e) {
+            handleStreamerException(e);
+          }
+
+          if (closed || hasError || !clientRunning) {
+            continue;
+          }
+
           // Is this block full?
           if (one.lastPacketInBlock) {
             synchronized (ackQueue) {
@@ -3010,6 +3470,15 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         }
       }
 
+      private void handleStreamerException(Throwable e) {
+        LOG.warn("DataStreamer Exception: " + 
+                 StringUtils.stringifyException(e));
+        if (e instanceof IOException) {
+          setLastException((IOException)e);
+        }
+        hasError = true;
+      }
+
       // shutdown thread
       void close() {
         closed = true;
@@ -3083,12 +3552,15 @@ public class DFSClient implements FSConstants, java.io.Closeable {
               }
             }
 
+            Packet acked;
             synchronized (ackQueue) {
               assert ack.getSeqno() == lastAckedSeqno + 1;
               lastAckedSeqno = ack.getSeqno();
-              ackQueue.removeFirst();
+              acked = ackQueue.removeFirst();
               ackQueue.notifyAll();
             }
+            // every datanode has the packet, so its buffer can be reused
+            acked.releaseBuffer();
           } catch (Exception e) {
             if (!closed) {
               hasError = true;
@@ -3306,8 +3778,9 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     }
 
     private DFSOutputStream(String src, long blockSize, Progressable progress,
-        int bytesPerChecksum, short replication) throws IOException {
-      super(new PureJavaCrc32(), bytesPerChecksum, 4);
+        int checksumType, int bytesPerChecksum, short replication)
+        throws IOException {
+      super(createChecksum(checksumType, bytesPerChecksum, blockSize));
       this.src = src;
       this.blockSize = blockSize;
       this.blockReplication = replication;
@@ -3315,16 +3788,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       if (progress != null) {
         LOG.debug("Set non-null progress callback on DFSOutputStream "+src);
       }
-      
-      if ( bytesPerChecksum < 1 || blockSize % bytesPerChecksum != 0) {
-        throw new IOException("io.bytes.per.checksum(" + bytesPerChecksum +
-                              ") and blockSize(" + blockSize + 
-                              ") do not match. " + "blockSize should be a " +
-                              "multiple of io.bytes.per.checksum");
-                              
-      }
-      checksum = DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32, 
-                                              bytesPerChecksum);
+      checksum = DataChecksum.newDataChecksum(checksumType, bytesPerChecksum);
     }
 
     /**
@@ -3334,7 +3798,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     DFSOutputStream(String src, FsPermission masked, boolean overwrite,
         boolean createParent, short replication, long blockSize, Progressable progress,
         int buffersize, int bytesPerChecksum) throws IOException {
-      this(src, blockSize, progress, bytesPerChecksum, replication);
+      this(src, blockSize, progress, checksumType, bytesPerChecksum,
+           replication);
 
       computePacketChunkSize(writePacketSize, bytesPerChecksum);
 
@@ -3399,13 +3864,15 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     }
 
     /**
-     * Create a new output stream to the given DataNode.
+     * Create a new output stream to the given DataNode, appending to the
+     * last block with the checksum its data was written with.
      * @see ClientProtocol#create(String, FsPermission, String, boolean, short, long)
      */
     DFSOutputStream(String src, int buffersize, Progressable progress,
-        LocatedBlock lastBlock, HdfsFileStatus stat,
+        LocatedBlock lastBlock, HdfsFileStatus stat, int checksumType,
         int bytesPerChecksum) throws IOException {
-      this(src, stat.getBlockSize(), progress, bytesPerChecksum, stat.getReplication());
+      this(src, stat.getBlockSize(), progress, checksumType, bytesPerChecksum,
+           stat.getReplication());
       initialFileSize = stat.getLen(); // length of file when opened
 
       //
@@ -3478,7 +3945,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     private void computePacketChunkSize(int psize, int csize) {
       int chunkSize = csize + checksum.getChecksumSize();
       int n = DataNode.PKT_HEADER_LEN + SIZE_OF_INTEGER;
-      chunksPerPacket = Math.max((psize - n + chunkSize-1)/chunkSize, 1);
+      // round down so that a packet fits its pooled buffer size class
+      chunksPerPacket = Math.max((psize - n)/chunkSize, 1);
       packetSize = n + chunkSize*chunksPerPacket;
       if (LOG.isDebugEnabled()) {
         LOG.debug("computePacketChunkSize: src=" + src +
@@ -3725,8 +4193,68 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                               " but found to be " + checksum.length);
       }
 
+      // Only the writer touches currentPacket, so it is filled without
+      // holding dataQueue; the lock is only taken to queue a full packet.
+      if (currentPacket == null) {
+        currentPacket = new Packet(packetSize, chunksPerPacket, 
+                                   bytesCurBlock);
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("DFSClient writeChunk allocating new packet seqno=" + 
+                    currentPacket.seqno +
+                    ", src=" + src +
+                    ", packetSize=" + packetSize +
+                    ", chunksPerPacket=" + chunksPerPacket +
+                    ", bytesCurBlock=" + bytesCurBlock);
+        }
+      }
+
+      currentPacket.writeChecksum(checksum, 0, cklen);
+      currentPacket.writeData(b, offset, len);
+      currentPacket.numChunks++;
+      bytesCurBlock += len;
+
+      // If packet is full, enqueue it for transmission
+      //
+      if (currentPacket.numChunks == currentPacket.maxChunks ||
+          bytesCurBlock == blockSize) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("DFSClient writeChunk packet full seqno=" +
+                    currentPacket.seqno +
+                    ", src=" + src +
+                    ", bytesCurBlock=" + bytesCurBlock +
+                    ", blockSize=" + blockSize +
+                    ", appendChunk=" + appendChunk);
+        }
+        //
+        // if we allocated a new packet because we encountered a block
+        // boundary, reset bytesCurBlock.
+        //
+        if (bytesCurBlock == blockSize) {
+          currentPacket.lastPacketInBlock = true;
+          bytesCurBlock = 0;
+          lastFlushOffset = 0;
+        }
+        waitAndQueueCurrentPacket();
+ 
+        // If this was the first write after reopening a file, then the above
+        // write filled up any partial chunk. Tell the summer to generate full 
+        // crc chunks from now on.
+        if (appendChunk) {
+          appendChunk = false;
+          resetChecksumChunk(bytesPerChecksum);
+        }
+        int psize = Math.min((int)(blockSize-bytesCurBlock), writePacketSize);
+        computePacketChunkSize(psize, bytesPerChecksum);
+      }
+      //LOG.debug("DFSClient writeChunk done length " + len +
+      //          " checksum length " + cklen);
+    }
+
+    /**
+     * Wait until the queues have room, then queue the current packet.
+     */
+    private synchronized void waitAndQueueCurrentPacket() throws IOException {
       synchronized (dataQueue) {
-  
         // If queue is full, then wait till we can create  enough space
         while (!closed && dataQueue.size() + ackQueue.size()  > maxPackets) {
           try {
@@ -3735,61 +4263,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
           }
         }
         isClosed();
-  
-        if (currentPacket == null) {
-          currentPacket = new Packet(packetSize, chunksPerPacket, 
-                                     bytesCurBlock);
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("DFSClient writeChunk allocating new packet seqno=" + 
-                      currentPacket.seqno +
-                      ", src=" + src +
-                      ", packetSize=" + packetSize +
-                      ", chunksPerPacket=" + chunksPerPacket +
-                      ", bytesCurBlock=" + bytesCurBlock);
-          }
-        }
-
-        currentPacket.writeChecksum(checksum, 0, cklen);
-        currentPacket.writeData(b, offset, len);
-        currentPacket.numChunks++;
-        bytesCurBlock += len;
-
-        // If packet is full, enqueue it for transmission
-        //
-        if (currentPacket.numChunks == currentPacket.maxChunks ||
-            bytesCurBlock == blockSize) {
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("DFSClient writeChunk packet full seqno=" +
-                      currentPacket.seqno +
-                      ", src=" + src +
-                      ", bytesCurBlock=" + bytesCurBlock +
-                      ", blockSize=" + blockSize +
-                      ", appendChunk=" + appendChunk);
-          }
-          //
-          // if we allocated a new packet because we encountered a block
-          // boundary, reset bytesCurBlock.
-          //
-          if (bytesCurBlock == blockSize) {
-            currentPacket.lastPacketInBlock = true;
-            bytesCurBlock = 0;
-            lastFlushOffset = 0;
-          }
-          enqueueCurrentPacket();
- 
-          // If this was the first write after reopening a file, then the above
-          // write filled up any partial chunk. Tell the summer to generate full 
-          // crc chunks from now on.
-          if (appendChunk) {
-            appendChunk = false;
-            resetChecksumChunk(bytesPerChecksum);
-          }
-          int psize = Math.min((int)(blockSize-bytesCurBlock), writePacketSize);
-          computePacketChunkSize(psize, bytesPerChecksum);
-        }
+        enqueueCurrentPacket();
       }
-      //LOG.debug("DFSClient writeChunk done length " + len +
-      //          " checksum length " + cklen);
     }
 
     private synchronized void enqueueCurrentPacket() {
@@ -3843,6 +4318,9 @@ public class DFSClient implements FSConstants, java.io.Closeable {
               // skip a sequence number for it!
               currentSeqno--;
             }
+            if (currentPacket != null) {
+              currentPacket.releaseBuffer();
+            }
             currentPacket = null;
           }
           // Restore state of stream. Record the last flush offset 
@@ -35,14 +35,26 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final int     DFS_STREAM_BUFFER_SIZE_DEFAULT = 4096;
   public static final String  DFS_BYTES_PER_CHECKSUM_KEY = "dfs.bytes-per-checksum";
   public static final int     DFS_BYTES_PER_CHECKSUM_DEFAULT = 512;
+  public static final String  DFS_CHECKSUM_TYPE_KEY = "dfs.checksum.type";
+  public static final String  DFS_CHECKSUM_TYPE_DEFAULT = "CRC32";
   public static final String  DFS_CLIENT_WRITE_PACKET_SIZE_KEY = "dfs.client-write-packet-size";
   public static final int     DFS_CLIENT_WRITE_PACKET_SIZE_DEFAULT = 64*1024;
+  public static final String  DFS_CLIENT_WRITE_PACKET_POOL_MAX_BYTES_KEY = "dfs.client.write.packet.pool.max.bytes";
+  public static final long    DFS_CLIENT_WRITE_PACKET_POOL_MAX_BYTES_DEFAULT = 8*1024*1024;
   public static final String  DFS_CLIENT_SOCKET_CACHE_CAPACITY_KEY = "dfs.client.socketcache.capacity";
   public static final int     DFS_CLIENT_SOCKET_CACHE_CAPACITY_DEFAULT = 16;
   public static final String  DFS_CLIENT_CACHED_CONN_RETRY_KEY = "dfs.client.cached.conn.retry";
   public static final int     DFS_CLIENT_CACHED_CONN_RETRY_DEFAULT = 3;
   public static final String  DFS_CLIENT_USE_DN_HOSTNAME = "dfs.client.use.datanode.hostname";
   public static final boolean DFS_CLIENT_USE_DN_HOSTNAME_DEFAULT = false;
+  public static final String  DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE_KEY = "dfs.client.hedged.read.threadpool.size";
+  public static final int     DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE_DEFAULT = 0;
+  public static final String  DFS_CLIENT_HEDGED_READ_THRESHOLD_MILLIS_KEY = "dfs.client.hedged.read.threshold.millis";
+  public static final long    DFS_CLIENT_HEDGED_READ_THRESHOLD_MILLIS_DEFAULT = 500;
+  public static final String  DFS_CLIENT_BLOCK_LOCATION_CACHE_SIZE_KEY = "dfs.client.block.location.cache.size";
+  public static final int     DFS_CLIENT_BLOCK_LOCATION_CACHE_SIZE_DEFAULT = 0;
+  public static final String  DFS_CLIENT_BLOCK_LOCATION_CACHE_TTL_MILLIS_KEY = "dfs.client.block.location.cache.ttl.millis";
+  public static final long    DFS_CLIENT_BLOCK_LOCATION_CACHE_TTL_MILLIS_DEFAULT = 60*1000;
 
   public static final String  DFS_NAMENODE_BACKUP_ADDRESS_KEY = "dfs.namenode.backup.address";
   public static final String  DFS_NAMENODE_BACKUP_ADDRESS_DEFAULT = "localhost:50100";
@@ -110,6 +122,24 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final boolean DFS_NAMENODE_NAME_DIR_RESTORE_DEFAULT = false;
   public static final String  DFS_LIST_LIMIT = "dfs.ls.limit";
   public static final int     DFS_LIST_LIMIT_DEFAULT = 1000;
+  public static final String  DFS_NAMENODE_FSLOCK_FAIR_KEY = "dfs.namenode.fslock.fair";
+  public static final boolean DFS_NAMENODE_FSLOCK_FAIR_DEFAULT = true;
+  public static final String  DFS_NAMENODE_EDITS_SYNC_THREAD_KEY = "dfs.namenode.edits.sync.thread";
+  public static final boolean DFS_NAMENODE_EDITS_SYNC_THREAD_DEFAULT = true;
+  public static final String  DFS_IMAGE_COMPRESS_KEY = "dfs.image.compress";
+  public static final boolean DFS_IMAGE_COMPRESS_DEFAULT = false;
+  public static final String  DFS_IMAGE_COMPRESSION_CODEC_KEY = "dfs.image.compression.codec";
+  public static final String  DFS_IMAGE_COMPRESSION_CODEC_DEFAULT = "org.apache.hadoop.io.compress.DefaultCodec";
+  public static final String  DFS_IMAGE_PARALLEL_THREADS_KEY = "dfs.image.parallel.threads";
+  public static final int     DFS_IMAGE_PARALLEL_THREADS_DEFAULT = 4;
+  public static final String  DFS_IMAGE_SECTION_INODES_KEY = "dfs.image.section.inodes";
+  public static final long    DFS_IMAGE_SECTION_INODES_DEFAULT = 1000000;
+  public static final String  DFS_NAMENODE_NAME_CACHE_THRESHOLD_KEY = "dfs.namenode.name.cache.threshold";
+  public static final int     DFS_NAMENODE_NAME_CACHE_THRESHOLD_DEFAULT = 10;
+  public static final String  DFS_NAMENODE_BLOCKSMAP_OFFHEAP_KEY = "dfs.namenode.blocksmap.offheap";
+  public static final boolean DFS_NAMENODE_BLOCKSMAP_OFFHEAP_DEFAULT = false;
+  public static final String  DFS_NAMENODE_BLOCKREPORT_CHUNK_SIZE_KEY = "dfs.namenode.blockreport.chunk.size";
+  public static final int     DFS_NAMENODE_BLOCKREPORT_CHUNK_SIZE_DEFAULT = 10000;
 
   //Delegation token related keys
   public static final String  DFS_NAMENODE_DELEGATION_KEY_UPDATE_INTERVAL_KEY = "dfs.namenode.delegation.key.update-interval";
@@ -162,6 +192,8 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final String  DFS_DATANODE_HTTP_ADDRESS_DEFAULT = "0.0.0.0:50075";
   public static final String  DFS_DATANODE_MAX_XCIEVERS_KEY = "dfs.datanode.max.xcievers";
   public static final int     DFS_DATANODE_MAX_XCIEVERS_DEFAULT = 256;
+  public static final String  DFS_DATANODE_XCEIVER_SELECTORS_KEY = "dfs.datanode.xceiver.selectors";
+  public static final int     DFS_DATANODE_XCEIVER_SELECTORS_DEFAULT = 1;
   public static final String  DFS_DATANODE_NUMBLOCKS_KEY = "dfs.datanode.numblocks";
   public static final int     DFS_DATANODE_NUMBLOCKS_DEFAULT = 64;
   public static final String  DFS_DATANODE_SCAN_PERIOD_HOURS_KEY = "dfs.datanode.scan.period.hours";
@@ -212,6 +244,8 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final boolean DFS_CLIENT_READ_SHORTCIRCUIT_DEFAULT = false;
   public static final String  DFS_CLIENT_READ_SHORTCIRCUIT_SKIP_CHECKSUM_KEY = "dfs.client.read.shortcircuit.skip.checksum";
   public static final boolean DFS_CLIENT_READ_SHORTCIRCUIT_SKIP_CHECKSUM_DEFAULT = false;
+  public static final String  DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_KEY = "dfs.client.read.shortcircuit.mmap";
+  public static final boolean DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_DEFAULT = false;
 
   //Keys with no defaults
   public static final String  DFS_DATANODE_PLUGINS_KEY = "dfs.datanode.plugins";
@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for hedged positional reads made by a {@link DFSClient}.
+ * <ul>
+ * <li>hedgedReadOps: reads whose first replica did not answer within the
+ * threshold, so a second replica was asked as well.</li>
+ * <li>hedgedReadOpsWin: hedged reads that were answered first by a replica
+ * other than the one asked first.</li>
+ * <li>hedgedReadOpsInCurThread: hedges that ran in the reading thread
+ * because the hedged read thread pool was busy.</li>
+ * </ul>
+ */
+public class DFSHedgedReadMetrics {
+  final AtomicLong hedgedReadOps = new AtomicLong();
+  final AtomicLong hedgedReadOpsWin = new AtomicLong();
+  final AtomicLong hedgedReadOpsInCurThread = new AtomicLong();
+
+  void incHedgedReadOps() {
+    hedgedReadOps.incrementAndGet();
+  }
+
+  void incHedgedReadOpsWin() {
+    hedgedReadOpsWin.incrementAndGet();
+  }
+
+  void incHedgedReadOpsInCurThread() {
+    hedgedReadOpsInCurThread.incrementAndGet();
+  }
+
+  public long getHedgedReadOps() {
+    return hedgedReadOps.get();
+  }
+
+  public long getHedgedReadWins() {
+    return hedgedReadOpsWin.get();
+  }
+
+  public long getHedgedReadOpsInCurThread() {
+    return hedgedReadOpsInCurThread.get();
+  }
+
+  @Override
+  public String toString() {
+    return "hedgedReadOps=" + getHedgedReadOps()
+        + ", hedgedReadWins=" + getHedgedReadWins()
+        + ", hedgedReadOpsInCurThread=" + getHedgedReadOpsInCurThread();
+  }
+}
@@ -340,22 +340,8 @@ class BlockSender implements java.io.Closeable, FSConstants {
       IOUtils.readFully(blockIn, buf, dataOff, len);
 
       if (verifyChecksum) {
-        int dOff = dataOff;
-        int cOff = checksumOff;
-        int dLeft = len;
-
-        for (int i=0; i<numChunks; i++) {
-          checksum.reset();
-          int dLen = Math.min(dLeft, bytesPerChecksum);
-          checksum.update(buf, dOff, dLen);
-          if (!checksum.compare(buf, cOff)) {
-            throw new ChecksumException("Checksum failed at " + 
-                                        (offset + len - dLeft), len);
-          }
-          dLeft -= dLen;
-          dOff += dLen;
-          cOff += checksumSize;
-        }
+        checksum.verifyChunkedSums(buf, dataOff, len, buf, checksumOff,
+                                   block.toString(), offset);
       }
       
       // only recompute checksum if we can't trust the meta data due to 
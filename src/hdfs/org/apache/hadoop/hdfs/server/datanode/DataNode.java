@@ -196,6 +196,8 @@ public class DataNode extends Configured
   /** list of blocks being recovered */
   private final Map<Block, Block> ongoingRecovery = new HashMap<Block, Block>();
   private LinkedList<String> delHints = new LinkedList<String>();
+  /** blocks deleted since they were last reported to the namenode */
+  private LinkedList<Block> deletedBlockList = new LinkedList<Block>();
   public final static String EMPTY_DEL_HINT = "";
   AtomicInteger xmitsInProgress = new AtomicInteger();
   Daemon dataXceiverServer = null;
@@ -446,7 +448,8 @@ public class DataNode extends Configured
     this.threadGroup.setDaemon(true); // auto destroy when empty
 
     this.blockReportInterval =
-      conf.getLong("dfs.blockreport.intervalMsec", BLOCKREPORT_INTERVAL);
+      conf.getLong(DFSConfigKeys.DFS_BLOCKREPORT_INTERVAL_MSEC_KEY,
+                   DFSConfigKeys.DFS_BLOCKREPORT_INTERVAL_MSEC_DEFAULT);
     this.initialBlockReportDelay = conf.getLong("dfs.blockreport.initialDelay",
                                             BLOCKREPORT_INITIAL_DELAY)* 1000L; 
     if (this.initialBlockReportDelay >= blockReportInterval) {
@@ -918,7 +921,8 @@ public class DataNode extends Configured
     
   /** Number of concurrent xceivers per node. */
   public int getXceiverCount() {
-    return threadGroup == null ? 0 : threadGroup.activeCount();
+    return dataXceiverServer == null ? 0 :
+      ((DataXceiverServer) dataXceiverServer.getRunnable()).getXceiverCount();
   }
     
   /**
@@ -997,6 +1001,23 @@ public class DataNode extends Configured
           }
         }
 
+        // check if there are newly deleted blocks
+        Block[] deletedArray = null;
+        synchronized (deletedBlockList) {
+          if (!deletedBlockList.isEmpty()) {
+            deletedArray = deletedBlockList.toArray(
+                new Block[deletedBlockList.size()]);
+          }
+        }
+        if (deletedArray != null) {
+          namenode.blocksDeleted(dnRegistration, deletedArray);
+          synchronized (deletedBlockList) {
+            for (Block b : deletedArray) {
+              deletedBlockList.remove(b);
+            }
+          }
+        }
+
         // send block report
         if (startTime - lastBlockReport > blockReportInterval) {
           if (data.isAsyncBlockReportReady()) {
@@ -1163,6 +1184,8 @@ public class DataNode extends Configured
       } catch(IOException e) {
         checkDiskError();
         throw e;
+      } finally {
+        notifyNamenodeDeletedBlocks(toDelete);
       }
       myMetrics.blocksRemoved.inc(toDelete.length);
       break;
@@ -1296,6 +1319,10 @@ public class DataNode extends Configured
     if(block==null || delHint==null) {
       throw new IllegalArgumentException(block==null?"Block is null":"delHint is null");
     }
+    synchronized (deletedBlockList) {
+      // the block is back, a pending deletion must not follow it
+      deletedBlockList.remove(block);
+    }
     synchronized (receivedBlockList) {
       synchronized (delHints) {
         receivedBlockList.add(block);
@@ -1305,6 +1332,20 @@ public class DataNode extends Configured
     }
   }
 
+  /**
+   * Queue the blocks which are gone from the dataset to be reported
+   * to the namenode as deleted.
+   */
+  private void notifyNamenodeDeletedBlocks(Block[] blocks) {
+    synchronized (deletedBlockList) {
+      for (Block b : blocks) {
+        if (!data.isValidBlock(b)) {
+          deletedBlockList.add(b);
+        }
+      }
+    }
+  }
+
   
 
 
@@ -29,6 +29,7 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
 
 import org.apache.commons.logging.Log;
 import org.apache.hadoop.hdfs.DFSConfigKeys;
@@ -52,9 +53,12 @@ import org.apache.hadoop.util.StringUtils;
 import static org.apache.hadoop.hdfs.server.datanode.DataNode.DN_CLIENTTRACE_FORMAT;
 
 /**
- * Thread for processing incoming/outgoing data stream.
+ * Processes the incoming/outgoing data stream of a connection.
+ * Either runs in a thread of its own for the life of the connection, or,
+ * when the {@link DataXceiverServer} multiplexes idle connections, runs
+ * in a worker thread for as long as the client has requests ready.
  */
-class DataXceiver extends Thread implements Runnable, FSConstants {
+class DataXceiver implements Runnable, FSConstants {
   public static final Log LOG = DataNode.LOG;
   static final Log ClientTraceLog = DataNode.ClientTraceLog;
   
@@ -67,10 +71,20 @@ class DataXceiver extends Thread implements Runnable, FSConstants {
   private int socketKeepaliveTimeout;
   private boolean connectToDnViaHostname;
 
+  // Connection state, kept while the connection waits in a selector
+  private SocketInputWrapper sin = null;
+  private DataInputStream in = null;
+  private int opsProcessed = 0;
+  private boolean local;
+  private byte pendingOp;
+  private boolean hasPendingOp = false;
+  /** The key, if any, of the connection with its selector */
+  SelectionKey selectionKey = null;
+  /** When the connection stops waiting for its next operation */
+  long idleDeadline;
+
   public DataXceiver(Socket s, DataNode datanode, 
       DataXceiverServer dataXceiverServer) {
-    super(datanode.threadGroup, "DataXceiver (initializing)");
-
     this.s = s;
     this.datanode = datanode;
     this.dataXceiverServer = dataXceiverServer;
@@ -83,7 +97,6 @@ class DataXceiver extends Thread implements Runnable, FSConstants {
         DFSConfigKeys.DFS_DATANODE_SOCKET_REUSE_KEEPALIVE_DEFAULT);
     
     LOG.debug("Number of active connections is: " + datanode.getXceiverCount());
-    updateThreadName("waiting for handshake");
     
     this.connectToDnViaHostname = datanode.getConf().getBoolean(
         DFSConfigKeys.DFS_DATANODE_USE_DN_HOSTNAME,
@@ -99,68 +112,100 @@ class DataXceiver extends Thread implements Runnable, FSConstants {
     if (status != null) {
       sb.append(" [").append(status).append("]");
     }
-    this.setName(sb.toString());
+    Thread.currentThread().setName(sb.toString());
+  }
+
+  /** @return the idle timeout while waiting for the next operation */
+  int getIdleTimeout() {
+    return opsProcessed == 0 ? datanode.socketTimeout : socketKeepaliveTimeout;
+  }
+
+  public String toString() {
+    return "DataXceiver for client " + remoteAddress;
   }
 
   /**
    * Read/write data from/to the DataXceiverServer.
    */
   public void run() {
-    DataInputStream in = null;
-    SocketInputWrapper sin = null;
-    int opsProcessed = 0;
+    boolean parked = false;
+    final int opsBefore = opsProcessed;
     try {
-      sin = NetUtils.getInputStream(s, datanode.socketTimeout);
-      in = new DataInputStream(
-          new BufferedInputStream(sin, SMALL_BUFFER_SIZE));
-      boolean local = s.getInetAddress().equals(s.getLocalAddress());
+      if (in == null) {
+        sin = NetUtils.getInputStream(s, datanode.socketTimeout);
+        in = new DataInputStream(
+            new BufferedInputStream(sin, SMALL_BUFFER_SIZE));
+        local = s.getInetAddress().equals(s.getLocalAddress());
+      }
 
       // We process requests in a loop, and stay around for a short timeout.
       // This optimistic behaviour allows the other end to reuse connections.
       // Setting keepalive timeout to 0 disable this behavior.
       do {
-        updateThreadName("Waiting for operation #" + (opsProcessed + 1));
-
+        if (opsProcessed != opsBefore && dataXceiverServer.isMultiplexing() &&
+            in.available() == 0) {
+          // Wait for the next operation without holding a thread
+          parked = dataXceiverServer.park(this);
+          break;
+        }
         byte op;
-        try {
-          if (opsProcessed != 0) {
-            assert socketKeepaliveTimeout > 0;
-            sin.setTimeout(socketKeepaliveTimeout);
-          } else {
-            sin.setTimeout(datanode.socketTimeout);
-          }
-          short version = in.readShort();
-          if ( version != DataTransferProtocol.DATA_TRANSFER_VERSION ) {
-            throw new IOException("Version Mismatch (Expected: " +
-               DataTransferProtocol.DATA_TRANSFER_VERSION  +
-               ", Received: " +  version + " )");
-          }
+        if (hasPendingOp) {
+          op = pendingOp;
+          hasPendingOp = false;
+        } else {
+          updateThreadName("Waiting for operation #" + (opsProcessed + 1));
+
+          try {
+            if (opsProcessed != 0) {
+              assert socketKeepaliveTimeout > 0;
+              sin.setTimeout(socketKeepaliveTimeout);
+            } else {
+              sin.setTimeout(datanode.socketTimeout);
+            }
+            short version = in.readShort();
+            if ( version != DataTransferProtocol.DATA_TRANSFER_VERSION ) {
+              throw new IOException("Version Mismatch (Expected: " +
+                 DataTransferProtocol.DATA_TRANSFER_VERSION  +
+                 ", Received: " +  version + " )");
+            }
 
-          op = in.readByte();
-        } catch (InterruptedIOException ignored) {
-          // Time out while waiting for client RPC
-          break;
-        } catch (IOException err) {
-          // Since we optimistically expect the next op, it's quite normal to get EOF here.
-          if (opsProcessed > 0 &&
-              (err instanceof EOFException || err instanceof ClosedChannelException ||
-               err.getMessage().contains("Connection reset by peer"))) {
-            if (LOG.isDebugEnabled()) {
-              LOG.debug("Cached " + s.toString() + " closing after " + opsProcessed + " ops");
+            op = in.readByte();
+          } catch (InterruptedIOException ignored) {
+            // Time out while waiting for client RPC
+            break;
+          } catch (IOException err) {
+            // Since we optimistically expect the next op, it's quite normal to get EOF here.
+            if (opsProcessed > 0 &&
+                (err instanceof EOFException || err instanceof ClosedChannelException ||
+                 err.getMessage().contains("Connection reset by peer"))) {
+              if (LOG.isDebugEnabled()) {
+                LOG.debug("Cached " + s.toString() + " closing after " + opsProcessed + " ops");
+              }
+            } else {
+              throw err;
             }
-          } else {
-            throw err;
+            break;
+          }
+          if (dataXceiverServer.isMultiplexing() &&
+              (op == DataTransferProtocol.OP_WRITE_BLOCK ||
+               op == DataTransferProtocol.OP_REPLACE_BLOCK)) {
+            // Block recovery interrupts and joins the threads writing a
+            // block, so writes run in a thread that ends with them
+            pendingOp = op;
+            hasPendingOp = true;
+            dataXceiverServer.startWriter(this);
+            parked = true;
+            break;
           }
-          break;
         }
-        
+
         // restore normal timeout. To lessen risk of HDFS-3357 backport in CDH3,
         // set to having no timeout, which was the prior behavior.
         sin.setTimeout(0);
         // Indentation is left alone here so that patches merge easier from 0.20.20x
         
       // Make sure the xciver count is not exceeded
-      int curXceiverCount = datanode.getXceiverCount();
+      int curXceiverCount = dataXceiverServer.getActiveXceiverCount();
       if (curXceiverCount > dataXceiverServer.maxXceiverCount) {
         throw new IOException("xceiverCount " + curXceiverCount
                               + " exceeds the limit of concurrent xcievers "
@@ -209,15 +254,24 @@ class DataXceiver extends Thread implements Runnable, FSConstants {
     } catch (Throwable t) {
       LOG.error(datanode.dnRegistration + ":DataXceiver",t);
     } finally {
-      LOG.debug(datanode.dnRegistration + ":Number of active connections is: "
-                               + datanode.getXceiverCount());
-      updateThreadName("Cleaning up");
-      IOUtils.closeStream(in);
-      IOUtils.closeSocket(s);
-      dataXceiverServer.childSockets.remove(s);
+      if (!parked) {
+        updateThreadName("Cleaning up");
+        close();
+      }
     }
   }
 
+  /**
+   * Close the connection.
+   */
+  void close() {
+    IOUtils.closeStream(in);
+    IOUtils.closeSocket(s);
+    dataXceiverServer.childSockets.remove(s);
+    LOG.debug(datanode.dnRegistration + ":Number of active connections is: "
+                             + datanode.getXceiverCount());
+  }
+
   /**
    * Read a block from the disk.
    * @param in The stream to read from
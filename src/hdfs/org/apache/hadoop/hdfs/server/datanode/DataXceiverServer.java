@@ -21,15 +21,29 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.protocol.FSConstants;
 import org.apache.hadoop.hdfs.server.balancer.Balancer;
+import org.apache.hadoop.util.Daemon;
 import org.apache.hadoop.util.StringUtils;
 
 /**
@@ -37,6 +51,13 @@ import org.apache.hadoop.util.StringUtils;
  * This is created to listen for requests from clients or 
  * other DataNodes.  This small server does not use the 
  * Hadoop IPC mechanism.
+ * 
+ * By default connections that wait for their next operation are
+ * multiplexed over a few selector threads, and only handed to a worker
+ * thread, at most dfs.datanode.max.xcievers of them, once an operation
+ * arrives.  Block writes run in a thread of their own, since block
+ * recovery waits for the threads writing a block to exit.  If dfs.datanode.xceiver.selectors is 0, or the streaming socket
+ * has no channel, each connection has a thread of its own instead.
  */
 class DataXceiverServer implements Runnable, FSConstants {
   public static final Log LOG = DataNode.LOG;
@@ -103,10 +124,18 @@ class DataXceiverServer implements Runnable, FSConstants {
    * i.e. either the actual block size or the default block size.
    */
   long estimateBlockSize;
+
+  /** Selectors of the connections waiting for an operation, or null */
+  private final ConnectionSelector[] selectors;
+  /** Workers running the operations of multiplexed connections */
+  private final ThreadPoolExecutor workers;
+  /** Number of threads running block writes of multiplexed connections */
+  private final AtomicInteger writers = new AtomicInteger();
+  private int nextSelector = 0;
   
   
   DataXceiverServer(ServerSocket ss, Configuration conf, 
-      DataNode datanode) {
+      DataNode datanode) throws IOException {
     
     this.ss = ss;
     this.datanode = datanode;
@@ -119,18 +148,271 @@ class DataXceiverServer implements Runnable, FSConstants {
     //set up parameter for cluster balancing
     this.balanceThrottler = new BlockBalanceThrottler(
       conf.getLong("dfs.balance.bandwidthPerSec", 1024L*1024));
+
+    int numSelectors = conf.getInt(
+        DFSConfigKeys.DFS_DATANODE_XCEIVER_SELECTORS_KEY,
+        DFSConfigKeys.DFS_DATANODE_XCEIVER_SELECTORS_DEFAULT);
+    if (numSelectors > 0 && ss.getChannel() != null) {
+      selectors = new ConnectionSelector[numSelectors];
+      for (int i = 0; i < numSelectors; i++) {
+        selectors[i] = new ConnectionSelector();
+      }
+      workers = new ThreadPoolExecutor(0, maxXceiverCount,
+          60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+          new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              return new Daemon(DataXceiverServer.this.datanode.threadGroup, r);
+            }
+          }) {
+        protected void afterExecute(Runnable r, Throwable t) {
+          Thread.currentThread().setName("DataXceiver worker");
+        }
+      };
+      LOG.info("Multiplexing idle connections over " + numSelectors +
+               " selector(s), with up to " + maxXceiverCount + " workers");
+    } else {
+      selectors = null;
+      workers = null;
+    }
+  }
+
+  /** @return true if idle connections are multiplexed over selectors */
+  boolean isMultiplexing() {
+    return selectors != null;
+  }
+
+  /** @return the number of connections, plus one for this server */
+  int getXceiverCount() {
+    if (selectors == null) {
+      return datanode.threadGroup.activeCount();
+    }
+    return 1 + childSockets.size();
+  }
+
+  /** @return the number of connections being served by a thread */
+  int getActiveXceiverCount() {
+    if (workers == null) {
+      return datanode.getXceiverCount();
+    }
+    return workers.getActiveCount() + writers.get();
+  }
+
+  /**
+   * Run the next operation of a connection, a block write, in a thread
+   * that ends with the operation.
+   */
+  void startWriter(final DataXceiver xceiver) {
+    writers.incrementAndGet();
+    new Daemon(datanode.threadGroup, new Runnable() {
+      public void run() {
+        try {
+          xceiver.run();
+        } finally {
+          writers.decrementAndGet();
+        }
+      }
+    }).start();
+  }
+
+  /**
+   * Wait for the next operation of a connection in a selector.
+   * @return false if the connection could not be added to a selector
+   */
+  boolean park(DataXceiver xceiver) {
+    if (!datanode.shouldRun) {
+      return false;
+    }
+    ConnectionSelector selector = null;
+    if (xceiver.selectionKey != null) {
+      // stay with the selector the connection is registered with
+      for (ConnectionSelector cs : selectors) {
+        if (cs.selector == xceiver.selectionKey.selector()) {
+          selector = cs;
+        }
+      }
+    } else {
+      synchronized (this) {
+        selector = selectors[nextSelector];
+        nextSelector = (nextSelector + 1) % selectors.length;
+      }
+    }
+    if (selector == null) {
+      return false;
+    }
+    selector.add(xceiver);
+    return true;
+  }
+
+  /**
+   * Hand a connection with an operation to a worker.
+   * @return false if there are too many workers
+   */
+  private boolean dispatch(DataXceiver xceiver) {
+    try {
+      workers.execute(xceiver);
+      return true;
+    } catch (RejectedExecutionException e) {
+      if (datanode.shouldRun) {
+        LOG.warn(datanode.dnRegistration + ":DataXceiverServer: " + xceiver +
+            " closed, since there are " + maxXceiverCount + " concurrent" +
+            " xcievers, the limit set by dfs.datanode.max.xcievers");
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Waits for the connections added to it to become readable, and hands
+   * them to the workers.  Connections idle beyond their timeout are
+   * closed.
+   */
+  private class ConnectionSelector implements Runnable {
+    private final Selector selector;
+    private final Queue<DataXceiver> pending =
+      new ConcurrentLinkedQueue<DataXceiver>();
+    /** No connection times out before this */
+    private long nextExpiry = Long.MAX_VALUE;
+
+    ConnectionSelector() throws IOException {
+      selector = Selector.open();
+    }
+
+    void add(DataXceiver xceiver) {
+      pending.add(xceiver);
+      selector.wakeup();
+    }
+
+    public void run() {
+      try {
+        while (datanode.shouldRun) {
+          long now = System.currentTimeMillis();
+          registerPending(now);
+          if (now >= nextExpiry) {
+            closeExpired(now);
+          }
+          // select(0) waits until woken up
+          long timeout = nextExpiry == Long.MAX_VALUE ? 0 :
+            Math.max(1, nextExpiry - now);
+          selector.select(timeout);
+          Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+          while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            DataXceiver xceiver = (DataXceiver) key.attachment();
+            try {
+              if (key.isValid() && key.isReadable()) {
+                key.interestOps(0);
+                if (!dispatch(xceiver)) {
+                  xceiver.close();
+                }
+              }
+            } catch (CancelledKeyException e) {
+              xceiver.close();
+            }
+          }
+        }
+      } catch (IOException ie) {
+        LOG.error(datanode.dnRegistration + ":DataXceiverServer: selector " +
+            "exiting due to: " + StringUtils.stringifyException(ie));
+      } finally {
+        closeAll();
+      }
+    }
+
+    private void registerPending(long now) {
+      DataXceiver xceiver;
+      while ((xceiver = pending.poll()) != null) {
+        try {
+          if (xceiver.selectionKey == null) {
+            SocketChannel channel = xceiver.s.getChannel();
+            channel.configureBlocking(false);
+            xceiver.selectionKey = channel.register(
+                selector, SelectionKey.OP_READ, xceiver);
+          } else {
+            xceiver.selectionKey.interestOps(SelectionKey.OP_READ);
+          }
+          xceiver.idleDeadline = now + xceiver.getIdleTimeout();
+          nextExpiry = Math.min(nextExpiry, xceiver.idleDeadline);
+        } catch (IOException e) {
+          LOG.warn(datanode.dnRegistration + ":DataXceiverServer: " +
+              "could not register " + xceiver + ": " + e);
+          xceiver.close();
+        } catch (RuntimeException e) {
+          // the connection got closed meanwhile
+          xceiver.close();
+        }
+      }
+    }
+
+    private void closeExpired(long now) {
+      nextExpiry = Long.MAX_VALUE;
+      for (SelectionKey key : selector.keys()) {
+        DataXceiver xceiver = (DataXceiver) key.attachment();
+        try {
+          if (!key.isValid() || key.interestOps() == 0) {
+            continue;
+          }
+        } catch (CancelledKeyException e) {
+          continue;
+        }
+        if (now >= xceiver.idleDeadline) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Closing idle connection " + xceiver);
+          }
+          key.cancel();
+          xceiver.close();
+        } else {
+          nextExpiry = Math.min(nextExpiry, xceiver.idleDeadline);
+        }
+      }
+    }
+
+    private void closeAll() {
+      DataXceiver xceiver;
+      while ((xceiver = pending.poll()) != null) {
+        xceiver.close();
+      }
+      try {
+        for (SelectionKey key : selector.keys()) {
+          if (key.isValid() && key.interestOps() != 0) {
+            ((DataXceiver) key.attachment()).close();
+          }
+        }
+      } catch (CancelledKeyException ignored) {
+      }
+      try {
+        selector.close();
+      } catch (IOException ie) {
+        LOG.warn(datanode.dnRegistration + ":DataXceiverServer: selector " +
+            "close exception due to: " + StringUtils.stringifyException(ie));
+      }
+    }
   }
 
   /**
    */
   public void run() {
+    if (selectors != null) {
+      for (int i = 0; i < selectors.length; i++) {
+        Daemon t = new Daemon(datanode.threadGroup, selectors[i]);
+        t.setName("DataXceiver selector #" + i);
+        t.start();
+      }
+    }
     while (datanode.shouldRun) {
       try {
         Socket s = ss.accept();
         s.setTcpNoDelay(true);
         // Timeouts are set within DataXceiver.run()
 
-        new DataXceiver(s, datanode, this).start();
+        DataXceiver xceiver = new DataXceiver(s, datanode, this);
+        if (selectors != null) {
+          if (!park(xceiver)) {
+            xceiver.close();
+          }
+        } else {
+          new Daemon(datanode.threadGroup, xceiver).start();
+        }
       } catch (SocketTimeoutException ignored) {
         // wake up to see if should continue to run
       } catch (IOException ie) {
@@ -160,6 +442,12 @@ class DataXceiverServer implements Runnable, FSConstants {
       LOG.warn(datanode.dnRegistration + ":DataXceiverServer.kill(): "
                               + StringUtils.stringifyException(ie));
     }
+    if (selectors != null) {
+      for (ConnectionSelector selector : selectors) {
+        selector.selector.wakeup();
+      }
+      workers.shutdownNow();
+    }
 
     // close all the sockets that were accepted earlier
     synchronized (childSockets) {
@@ -37,6 +37,7 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -245,7 +246,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       }
     }    
     
-    void getVolumeMap(HashMap<Block, DatanodeBlockInfo> volumeMap, FSVolume volume) {
+    void getVolumeMap(Map<Block, DatanodeBlockInfo> volumeMap, FSVolume volume) {
       if (children != null) {
         for (int i = 0; i < children.length; i++) {
           children[i].getVolumeMap(volumeMap, volume);
@@ -341,6 +342,13 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     }
   }
 
+  /**
+   * A storage directory of the dataset.  Its lock guards its tree of
+   * finalized blocks, and is held while blocks are moved into or cleared
+   * from the tree, so that a slow disk only holds up work on its own
+   * volume.  The dataset lock may be taken while holding a volume lock,
+   * but not the other way around.
+   */
   class FSVolume {
     private File currentDir;
     private FSDir dataDir;
@@ -403,11 +411,9 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     }
     
     void decDfsUsed(long value) {
-      // The caller to this method (BlockFileDeleteTask.run()) does
-      // not have locked FSDataset.this yet.
-      synchronized(FSDataset.this) {
-        dfsUsage.decDfsUsed(value);
-      }
+      // DU keeps its count atomically, so the caller
+      // (BlockFileDeleteTask.run()) needs no lock
+      dfsUsage.decDfsUsed(value);
     }
     
     long getDfsUsed() throws IOException {
@@ -495,7 +501,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       return f;
     }
       
-    File addBlock(Block b, File f) throws IOException {
+    synchronized File addBlock(Block b, File f) throws IOException {
       File blockFile = dataDir.addBlock(b, f);
       File metaFile = getMetaFile( blockFile , b);
       dfsUsage.incDfsUsed(b.getNumBytes()+metaFile.length());
@@ -575,13 +581,18 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       }
     }
 
-    void getVolumeMap(HashMap<Block, DatanodeBlockInfo> volumeMap) {
+    synchronized void getVolumeMap(Map<Block, DatanodeBlockInfo> volumeMap) {
       dataDir.getVolumeMap(volumeMap, this);
     }
       
-    void clearPath(File f) {
+    synchronized void clearPath(File f) {
       dataDir.clearPath(f);
     }
+
+    /** Wait for a block being finalized on this volume to be moved. */
+    synchronized void waitForFinalize() {
+      // finalizeBlockInternal holds this lock while it moves a block
+    }
       
     public String toString() {
       return dataDir.dir.getAbsolutePath();
@@ -657,7 +668,8 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   static class FSVolumeSet {
-    FSVolume[] volumes = null;
+    // replaced, never modified, so that it can be read without the lock
+    volatile FSVolume[] volumes = null;
     int curVolume = 0;
     int numFailedVolumes;
     private final ThreadPoolExecutor pool;
@@ -683,7 +695,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     }
 
     synchronized FSVolume getNextVolume(long blockSize) throws IOException {
-      
+      FSVolume[] volumes = this.volumes;
       if(volumes.length < 1) {
         throw new DiskOutOfSpaceException("No more available volumes");
       }
@@ -708,39 +720,35 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       
     long getDfsUsed() throws IOException {
       long dfsUsed = 0L;
-      for (int idx = 0; idx < volumes.length; idx++) {
-        dfsUsed += volumes[idx].getDfsUsed();
+      for (FSVolume volume : volumes) {
+        dfsUsed += volume.getDfsUsed();
       }
       return dfsUsed;
     }
 
-    synchronized long getCapacity() throws IOException {
+    long getCapacity() throws IOException {
       long capacity = 0L;
-      for (int idx = 0; idx < volumes.length; idx++) {
-        capacity += volumes[idx].getCapacity();
+      for (FSVolume volume : volumes) {
+        capacity += volume.getCapacity();
       }
       return capacity;
     }
       
-    synchronized long getRemaining() throws IOException {
+    long getRemaining() throws IOException {
       long remaining = 0L;
-      for (int idx = 0; idx < volumes.length; idx++) {
-        remaining += volumes[idx].getAvailable();
+      for (FSVolume volume : volumes) {
+        remaining += volume.getAvailable();
       }
       return remaining;
     }
 
     private void scanBlockFilesInconsistent(Map<Block, File> seenOnDisk)
         throws InterruptedException {
-      // Make a local consistent copy of the volume list, since
-      // it might change due to a disk failure
-      FSVolume volumesCopy[];
-      synchronized (this) {
-        volumesCopy = Arrays.copyOf(volumes, volumes.length);
-      }
+      // The volume list might be replaced due to a disk failure
+      FSVolume volumesCopy[] = volumes;
 
       ArrayList<Future<Void>> results =
-        new ArrayList<Future<Void>>(volumes.length);
+        new ArrayList<Future<Void>>(volumesCopy.length);
 
       for (FSVolume vol : volumesCopy) {
         results.add(pool.submit(new VolumeScanner(vol, seenOnDisk)));
@@ -754,22 +762,23 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       }
     }
     
-    synchronized void getVolumeMap(HashMap<Block, DatanodeBlockInfo> volumeMap) {
-      for (int idx = 0; idx < volumes.length; idx++) {
-        volumes[idx].getVolumeMap(volumeMap);
+    void getVolumeMap(Map<Block, DatanodeBlockInfo> volumeMap) {
+      for (FSVolume volume : volumes) {
+        volume.getVolumeMap(volumeMap);
       }
     }
     
-    synchronized void getBlocksBeingWrittenInfo(TreeSet<Block> blockSet) {
+    void getBlocksBeingWrittenInfo(TreeSet<Block> blockSet) {
       long startTime = System.currentTimeMillis();
 
-      for (int idx = 0; idx < volumes.length; idx++) {
-        volumes[idx].getBlocksBeingWrittenInfo(blockSet);
+      FSVolume[] volumesCopy = volumes;
+      for (FSVolume volume : volumesCopy) {
+        volume.getBlocksBeingWrittenInfo(blockSet);
       }
       
       long scanTime = (System.currentTimeMillis() - startTime)/1000;
       DataNode.LOG.info("Finished generating blocks being written report for " +
-          volumes.length + " volumes in " + scanTime + " seconds");
+          volumesCopy.length + " volumes in " + scanTime + " seconds");
     }
       
     /**
@@ -781,9 +790,11 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     synchronized List<FSVolume> checkDirs() {
       
       ArrayList<FSVolume> removed_vols = null;  
+      // a copy, since readers of the volumes do not lock
+      FSVolume[] fsvs = Arrays.copyOf(volumes, volumes.length);
       
-      for (int idx = 0; idx < volumes.length; idx++) {
-        FSVolume fsv = volumes[idx];
+      for (int idx = 0; idx < fsvs.length; idx++) {
+        FSVolume fsv = fsvs[idx];
         try {
           fsv.checkDirs();
         } catch (DiskErrorException e) {
@@ -791,9 +802,9 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
           if(removed_vols == null) {
             removed_vols = new ArrayList<FSVolume>(1);
           }
-          removed_vols.add(volumes[idx]);
-          volumes[idx].dfsUsage.shutdown(); //Shutdown the running DU thread
-          volumes[idx] = null; //remove the volume
+          removed_vols.add(fsv);
+          fsv.dfsUsage.shutdown(); //Shutdown the running DU thread
+          fsvs[idx] = null; //remove the volume
           numFailedVolumes++;
         }
       }
@@ -801,14 +812,14 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       // repair array - copy non null elements
       int removed_size = (removed_vols==null)? 0 : removed_vols.size();
       if(removed_size > 0) {
-        FSVolume fsvs[] = new FSVolume [volumes.length-removed_size];
-        for(int idx=0,idy=0; idx<volumes.length; idx++) {
-          if(volumes[idx] != null) {
-            fsvs[idy] = volumes[idx];
+        FSVolume remaining[] = new FSVolume [fsvs.length-removed_size];
+        for(int idx=0,idy=0; idx<fsvs.length; idx++) {
+          if(fsvs[idx] != null) {
+            remaining[idy] = fsvs[idx];
             idy++;
           }
         }
-        volumes = fsvs; // replace array of volumes
+        volumes = remaining; // replace array of volumes
         DataNode.LOG.info("Completed FSVolumeSet.checkDirs. Removed "
             + removed_vols.size() + " volumes. List of current volumes: "
             + this);
@@ -818,6 +829,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     }
       
     public String toString() {
+      FSVolume[] volumes = this.volumes;
       StringBuffer sb = new StringBuffer();
       for (int idx = 0; idx < volumes.length; idx++) {
         sb.append(volumes[idx].toString());
@@ -859,6 +871,11 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
      * underlying filesystem journal replay)
      */
     final boolean wasRecoveredOnStartup;
+    /**
+     * Set, under the dataset lock, while finalizeBlockInternal moves the
+     * file to its finalized directory holding only the volume lock
+     */
+    volatile boolean finalizing = false;
     
     ActiveFile(File f, List<Thread> list) {
       this(f, false);
@@ -945,7 +962,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   /** Return the block file for the given ID */ 
-  public synchronized File findBlockFile(long blockId) {
+  public File findBlockFile(long blockId) {
     final Block b = new Block(blockId);
     File blockfile = null;
     ActiveFile activefile = ongoingCreates.get(b);
@@ -993,9 +1010,15 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   FSVolumeSet volumes;
-  private HashMap<Block,ActiveFile> ongoingCreates = new HashMap<Block,ActiveFile>();
+  /*
+   * The replica maps may be read without the dataset lock. Changes that
+   * must be consistent across both maps are made under the lock.
+   */
+  private final Map<Block,ActiveFile> ongoingCreates =
+    new ConcurrentHashMap<Block,ActiveFile>();
   private int maxBlocksPerDir = 0;
-  HashMap<Block,DatanodeBlockInfo> volumeMap = new HashMap<Block, DatanodeBlockInfo>();;
+  final Map<Block,DatanodeBlockInfo> volumeMap =
+    new ConcurrentHashMap<Block, DatanodeBlockInfo>();
   static  Random random = new Random();
   private int validVolsRequired;
 
@@ -1089,7 +1112,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   @Override
-  public synchronized long getVisibleLength(Block b) throws IOException {
+  public long getVisibleLength(Block b) throws IOException {
     ActiveFile activeFile = ongoingCreates.get(b);
 
     if (activeFile != null) {
@@ -1100,7 +1123,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   @Override
-  public synchronized void setVisibleLength(Block b, long length) 
+  public void setVisibleLength(Block b, long length) 
     throws IOException {
     ActiveFile activeFile = ongoingCreates.get(b);
 
@@ -1116,7 +1139,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   /**
    * Get File name for a given block.
    */
-  public synchronized File getBlockFile(Block b) throws IOException {
+  public File getBlockFile(Block b) throws IOException {
     File f = validateBlockFile(b);
     if(f == null) {
       if (InterDatanodeProtocol.LOG.isDebugEnabled()) {
@@ -1137,11 +1160,11 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     return info;
   }
   
-  public synchronized InputStream getBlockInputStream(Block b) throws IOException {
+  public InputStream getBlockInputStream(Block b) throws IOException {
     return new FileInputStream(getBlockFile(b));
   }
 
-  public synchronized InputStream getBlockInputStream(Block b, long seekOffset) throws IOException {
+  public InputStream getBlockInputStream(Block b, long seekOffset) throws IOException {
 
     File blockFile = getBlockFile(b);
     RandomAccessFile blockInFile = new RandomAccessFile(blockFile, "r");
@@ -1154,7 +1177,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   /**
    * Returns handles to the block file and its metadata file
    */
-  public synchronized BlockInputStreams getTmpInputStreams(Block b, 
+  public BlockInputStreams getTmpInputStreams(Block b, 
                           long blkOffset, long ckoff) throws IOException {
 
     DatanodeBlockInfo info = volumeMap.get(b);
@@ -1195,11 +1218,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    * @return - true if the specified block was detached
    */
   public boolean detachBlock(Block block, int numLinks) throws IOException {
-    DatanodeBlockInfo info = null;
-
-    synchronized (this) {
-      info = volumeMap.get(block);
-    }
+    DatanodeBlockInfo info = volumeMap.get(block);
     return info.detachBlock(block, numLinks);
   }
 
@@ -1241,6 +1260,10 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       if (threads == null) {
         return;
       }
+      if (threads.isEmpty()) {
+        waitForFinalize(oldblock.getWithWildcardGS());
+        continue;
+      }
 
       interruptAndJoinThreads(threads);
     }
@@ -1268,6 +1291,23 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   
+  /**
+   * Wait for a finalizeBlock of the given block that is in progress.
+   */
+  private void waitForFinalize(Block block) {
+    FSVolume v = null;
+    synchronized (this) {
+      ActiveFile activefile = ongoingCreates.get(block);
+      DatanodeBlockInfo info = volumeMap.get(block);
+      if (activefile != null && activefile.finalizing && info != null) {
+        v = info.getVolume();
+      }
+    }
+    if (v != null) {
+      v.waitForFinalize();
+    }
+  }
+
   /**
    * Return a list of active writer threads for the given block.
    * @return null if there are no such threads or the file is
@@ -1297,12 +1337,18 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    * If there are ongoing create threads running for the old block,
    * the threads will be returned without updating the block. 
    * 
-   * @return ongoing create threads if there is any. Otherwise, return null.
+   * @return ongoing create threads if there is any, an empty list if the
+   * old block is being finalized. Otherwise, return null.
    */
   private synchronized List<Thread> tryUpdateBlock(
       Block oldblock, Block newblock) throws IOException {
     Block oldblockWildcardGS = oldblock.getWithWildcardGS();
 
+    ActiveFile activefile = ongoingCreates.get(oldblockWildcardGS);
+    if (activefile != null && activefile.finalizing) {
+      return Collections.<Thread>emptyList();
+    }
+
     //check ongoing create threads
     ArrayList<Thread> activeThreads = getActiveThreads(oldblockWildcardGS);
     if (activeThreads != null) {
@@ -1474,90 +1520,59 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     }
     long blockSize = b.getNumBytes();
 
-    //
-    // Serialize access to /tmp, and check if file already there.
-    //
     File f = null;
     List<Thread> threads = null;
-    synchronized (this) {
-      //
-      // Is it already in the create process?
-      //
-      ActiveFile activeFile = ongoingCreates.get(b);
-      if (activeFile != null) {
-        DataNode.LOG.debug("Interrupting current writers for ongoing create block: " + b);
-        f = activeFile.file;
-        threads = activeFile.threads;
-        
-        if (!isRecovery) {
-          throw new BlockAlreadyExistsException("Block " + b +
-                                  " has already been started (though not completed), and thus cannot be created.");
-        } else {
-          for (Thread thread:threads) {
-            thread.interrupt();
+    if (!isRecovery) {
+      // Create the temporary file without the dataset lock, so that a slow
+      // volume does not hold up writers to the other volumes
+      checkNotBeingCreated(b);
+      FSVolume v = volumes.getNextVolume(blockSize);
+      f = createTmpFile(v, b, replicationRequest);
+      boolean created = false;
+      try {
+        synchronized (this) {
+          checkNotBeingCreated(b);
+          if (ongoingCreates.containsKey(b.getWithWildcardGS())) {
+            DataNode.LOG.error("Unexpected: wildcard ongoingCreates exists for block " + b);
           }
+          addOngoingCreate(b, v, f, null, replicationRequest);
+          created = true;
         }
-        ongoingCreates.remove(b);
-      }
-      if (ongoingCreates.containsKey(b.getWithWildcardGS())) {
-        DataNode.LOG.error("Unexpected: wildcard ongoingCreates exists for block " + b);
-      }
-      FSVolume v = null;
-      if (!isRecovery) {
-        v = volumes.getNextVolume(blockSize);
-        // create temporary file to hold block in the designated volume
-        f = createTmpFile(v, b, replicationRequest);
-      } else if (f != null) {
-        DataNode.LOG.info("Reopen already-open Block for append " + b);
-        // create or reuse temporary file to hold block in the designated volume
-        v = volumeMap.get(b).getVolume();
-        volumeMap.put(b, new DatanodeBlockInfo(v, f));
-      } else {
-        // reopening block for appending to it.
-        DataNode.LOG.info("Reopen Block for append " + b);
-        v = volumeMap.get(b).getVolume();
-        f = createTmpFile(v, b, replicationRequest);
-        File blkfile = getBlockFile(b);
-        File oldmeta = getMetaFile(b);
-        File newmeta = getMetaFile(f, b);
-
-        // rename meta file to tmp directory
-        DataNode.LOG.debug("Renaming " + oldmeta + " to " + newmeta);
-        if (!oldmeta.renameTo(newmeta)) {
-          throw new IOException("Block " + b + " reopen failed. " +
-                                " Unable to move meta file  " + oldmeta +
-                                " to tmp dir " + newmeta);
+      } finally {
+        if (!created && !f.delete()) {
+          DataNode.LOG.warn("Unable to delete temporary file " + f);
         }
-
-        // rename block file to tmp directory
-        DataNode.LOG.debug("Renaming " + blkfile + " to " + f);
-        if (!blkfile.renameTo(f)) {
-          if (!f.delete()) {
-            throw new IOException("Block " + b + " reopen failed. " +
-                                  " Unable to remove file " + f);
+      }
+    } else {
+      boolean finalizing = false;
+      synchronized (this) {
+        //
+        // Is it already in the create process?
+        //
+        ActiveFile activeFile = ongoingCreates.get(b);
+        if (activeFile != null && activeFile.finalizing) {
+          finalizing = true;
+        } else {
+          if (activeFile != null) {
+            DataNode.LOG.debug("Interrupting current writers for ongoing create block: " + b);
+            f = activeFile.file;
+            threads = activeFile.threads;
+            for (Thread thread:threads) {
+              thread.interrupt();
+            }
+            ongoingCreates.remove(b);
           }
-          if (!blkfile.renameTo(f)) {
-            throw new IOException("Block " + b + " reopen failed. " +
-                                  " Unable to move block file " + blkfile +
-                                  " to tmp dir " + f);
+          if (ongoingCreates.containsKey(b.getWithWildcardGS())) {
+            DataNode.LOG.error("Unexpected: wildcard ongoingCreates exists for block " + b);
           }
+          f = reopenBlock(b, f, threads, replicationRequest);
         }
       }
-      if (f == null) {
-        DataNode.LOG.warn("Block " + b + " reopen failed " +
-                          " Unable to locate tmp file.");
-        throw new IOException("Block " + b + " reopen failed " +
-                              " Unable to locate tmp file.");
-      }
-      // If this is a replication request, then this is not a permanent
-      // block yet, it could get removed if the datanode restarts. If this
-      // is a write or append request, then it is a valid block.
-      if (replicationRequest) {
-        volumeMap.put(b, new DatanodeBlockInfo(v));
-      } else {
-        volumeMap.put(b, new DatanodeBlockInfo(v, f));
+      if (finalizing) {
+        // start over once the block is finalized
+        waitForFinalize(b);
+        return writeToBlock(b, isRecovery, replicationRequest);
       }
-      ongoingCreates.put(b, new ActiveFile(f, threads));
     }
 
     try {
@@ -1581,6 +1596,83 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     return createBlockWriteStreams( f , metafile);
   }
 
+  /**
+   * @throws BlockAlreadyExistsException if the block is being written
+   */
+  private void checkNotBeingCreated(Block b) throws IOException {
+    if (ongoingCreates.containsKey(b)) {
+      throw new BlockAlreadyExistsException("Block " + b +
+          " has already been started (though not completed), and thus cannot be created.");
+    }
+  }
+
+  /**
+   * Reopen a block for recovery or append, given the temporary file of
+   * its interrupted writers, if any.
+   * @return the temporary file to write to
+   */
+  private synchronized File reopenBlock(Block b, File f, List<Thread> threads,
+      boolean replicationRequest) throws IOException {
+    FSVolume v = null;
+    if (f != null) {
+      DataNode.LOG.info("Reopen already-open Block for append " + b);
+      // create or reuse temporary file to hold block in the designated volume
+      v = volumeMap.get(b).getVolume();
+      volumeMap.put(b, new DatanodeBlockInfo(v, f));
+    } else {
+      // reopening block for appending to it.
+      DataNode.LOG.info("Reopen Block for append " + b);
+      v = volumeMap.get(b).getVolume();
+      f = createTmpFile(v, b, replicationRequest);
+      File blkfile = getBlockFile(b);
+      File oldmeta = getMetaFile(b);
+      File newmeta = getMetaFile(f, b);
+
+      // rename meta file to tmp directory
+      DataNode.LOG.debug("Renaming " + oldmeta + " to " + newmeta);
+      if (!oldmeta.renameTo(newmeta)) {
+        throw new IOException("Block " + b + " reopen failed. " +
+                              " Unable to move meta file  " + oldmeta +
+                              " to tmp dir " + newmeta);
+      }
+
+      // rename block file to tmp directory
+      DataNode.LOG.debug("Renaming " + blkfile + " to " + f);
+      if (!blkfile.renameTo(f)) {
+        if (!f.delete()) {
+          throw new IOException("Block " + b + " reopen failed. " +
+                                " Unable to remove file " + f);
+        }
+        if (!blkfile.renameTo(f)) {
+          throw new IOException("Block " + b + " reopen failed. " +
+                                " Unable to move block file " + blkfile +
+                                " to tmp dir " + f);
+        }
+      }
+    }
+    if (f == null) {
+      DataNode.LOG.warn("Block " + b + " reopen failed " +
+                        " Unable to locate tmp file.");
+      throw new IOException("Block " + b + " reopen failed " +
+                            " Unable to locate tmp file.");
+    }
+    addOngoingCreate(b, v, f, threads, replicationRequest);
+    return f;
+  }
+
+  private synchronized void addOngoingCreate(Block b, FSVolume v, File f,
+      List<Thread> threads, boolean replicationRequest) {
+    // If this is a replication request, then this is not a permanent
+    // block yet, it could get removed if the datanode restarts. If this
+    // is a write or append request, then it is a valid block.
+    if (replicationRequest) {
+      volumeMap.put(b, new DatanodeBlockInfo(v));
+    } else {
+      volumeMap.put(b, new DatanodeBlockInfo(v, f));
+    }
+    ongoingCreates.put(b, new ActiveFile(f, threads));
+  }
+
   /**
    * Retrieves the offset in the block to which the
    * the next write will write data to.
@@ -1612,7 +1704,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     file.getChannel().position(ckOffset);
   }
 
-  synchronized File createTmpFile( FSVolume vol, Block blk,
+  File createTmpFile( FSVolume vol, Block blk,
                         boolean replicationRequest) throws IOException {
     if ( vol == null ) {
       vol = volumeMap.get( blk ).getVolume();
@@ -1645,31 +1737,61 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   /**
    * Complete the block write!
    */
-  private synchronized void finalizeBlockInternal(Block b, boolean reFinalizeOk) 
+  private void finalizeBlockInternal(Block b, boolean reFinalizeOk) 
     throws IOException {
-    ActiveFile activeFile = ongoingCreates.get(b);
-    if (activeFile == null) {
-      if (reFinalizeOk) {
-        return;
-      } else {
-        throw new IOException("Block " + b + " is already finalized.");
+    FSVolume v = null;
+    synchronized (this) {
+      DatanodeBlockInfo info = volumeMap.get(b);
+      if (info != null) {
+        v = info.getVolume();
       }
     }
-    File f = activeFile.file;
-    if (f == null || !f.exists()) {
-      throw new IOException("No temporary file " + f + " for block " + b);
-    }
-    FSVolume v = volumeMap.get(b).getVolume();
     if (v == null) {
-      throw new IOException("No volume for temporary file " + f + 
-                            " for block " + b);
+      if (!ongoingCreates.containsKey(b) && reFinalizeOk) {
+        return;
+      }
+      throw new IOException("No volume for temporary file of block " + b);
     }
-        
-    File dest = null;
-    dest = v.addBlock(b, f);
-    volumeMap.put(b, new DatanodeBlockInfo(v, dest));
-    if (ongoingCreates.remove(b) == null) {
-      DataNode.LOG.warn("Unexpected finalizing block " + b + " -- it wasn't in ongoingCreates");
+
+    // The block is moved holding only its volume's lock.  Meanwhile it
+    // stays in ongoingCreates, marked so that nothing else changes it.
+    synchronized (v) {
+      ActiveFile activeFile;
+      synchronized (this) {
+        activeFile = ongoingCreates.get(b);
+        if (activeFile == null) {
+          if (reFinalizeOk) {
+            return;
+          } else {
+            throw new IOException("Block " + b + " is already finalized.");
+          }
+        }
+        DatanodeBlockInfo info = volumeMap.get(b);
+        if (info == null || info.getVolume() != v) {
+          throw new IOException("Block " + b + " moved to another volume" +
+                                " while being finalized");
+        }
+        activeFile.finalizing = true;
+      }
+
+      File dest = null;
+      try {
+        File f = activeFile.file;
+        if (f == null || !f.exists()) {
+          throw new IOException("No temporary file " + f + " for block " + b);
+        }
+        dest = v.addBlock(b, f);
+      } finally {
+        synchronized (this) {
+          if (dest != null) {
+            volumeMap.put(b, new DatanodeBlockInfo(v, dest));
+            if (ongoingCreates.remove(b) == null) {
+              DataNode.LOG.warn("Unexpected finalizing block " + b + " -- it wasn't in ongoingCreates");
+            }
+          }
+          activeFile.finalizing = false;
+        }
+      }
     }
   }
 
@@ -1677,8 +1799,9 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    * is this block finalized? Returns true if the block is already
    * finalized, otherwise returns false.
    */
-  private synchronized boolean isFinalized(Block b) {
-    FSVolume v = volumeMap.get(b).getVolume();
+  private boolean isFinalized(Block b) {
+    DatanodeBlockInfo info = volumeMap.get(b);
+    FSVolume v = info == null ? null : info.getVolume();
     if (v == null) {
       DataNode.LOG.warn("No volume for block " + b);
       return false;             // block is not finalized
@@ -1698,13 +1821,28 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   /**
    * Remove the temporary block file (if any)
    */
-  public synchronized void unfinalizeBlock(Block b) throws IOException {
-    // remove the block from in-memory data structure
-    ActiveFile activefile = ongoingCreates.remove(b);
-    if (activefile == null) {
+  public void unfinalizeBlock(Block b) throws IOException {
+    ActiveFile activefile;
+    boolean finalizing = false;
+    synchronized (this) {
+      activefile = ongoingCreates.get(b);
+      if (activefile == null) {
+        return;
+      }
+      if (activefile.finalizing) {
+        finalizing = true;
+      } else {
+        // remove the block from in-memory data structure
+        ongoingCreates.remove(b);
+        volumeMap.remove(b);
+      }
+    }
+    if (finalizing) {
+      // the block is now either finalized or back to being written
+      waitForFinalize(b);
+      unfinalizeBlock(b);
       return;
     }
-    volumeMap.remove(b);
     
     // delete the on-disk temp file
     if (delBlockFromDisk(activefile.file, getMetaFile(activefile.file, b), b)) {
@@ -1783,19 +1921,20 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   private Block[] reconcileRoughBlockScan(Map<Block, File> seenOnDisk) {
-    Set<Block> blockReport;
-    synchronized (this) {
-      long st = System.currentTimeMillis();
-      // broken out to a static method to simplify testing
-      reconcileRoughBlockScan(seenOnDisk, volumeMap, ongoingCreates);
-      DataNode.LOG.info(
-          "Reconciled asynchronous block report against current state in " +
-          (System.currentTimeMillis() - st) + " ms");
-      
-      blockReport = seenOnDisk.keySet();
-    }
+    // The replica maps are concurrent, so this does not need the dataset
+    // lock, and does not stop writes while it checks the disk.  Blocks
+    // changing meanwhile are reported as in any rough scan.
+    long st = System.currentTimeMillis();
+    // broken out to a static method to simplify testing
+    reconcileRoughBlockScan(seenOnDisk, volumeMap, ongoingCreates);
+    DataNode.LOG.info(
+        "Reconciled asynchronous block report against current state in " +
+        (System.currentTimeMillis() - st) + " ms");
 
-    return blockReport.toArray(new Block[0]);
+    Set<Block> blockReport = seenOnDisk.keySet();
+    synchronized (seenOnDisk) {
+      return blockReport.toArray(new Block[0]);
+    }
   }
 
   /**
@@ -1804,10 +1943,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    * may be concurrent modifications to the disk structure.
    */
   Map<Block, File> roughBlockScan() throws InterruptedException {
-    int expectedNumBlocks;
-    synchronized (this) {
-      expectedNumBlocks = volumeMap.size();
-    }
+    int expectedNumBlocks = volumeMap.size();
     Map<Block, File> seenOnDisk = Collections.synchronizedMap(
         new HashMap<Block,File>(expectedNumBlocks, 1.1f));
     volumes.scanBlockFilesInconsistent(seenOnDisk);
@@ -1853,11 +1989,12 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         continue;
       }
       DatanodeBlockInfo info = entry.getValue();
-      if (!seenOnDisk.containsKey(b) && info.getFile().exists()) {
+      File file = info.getFile();
+      if (!seenOnDisk.containsKey(b) && file != null && file.exists()) {
         // add a copy, and use the length from disk instead of from memory
         Block toAdd =  new Block(
-            b.getBlockId(), info.getFile().length(), b.getGenerationStamp());
-        seenOnDisk.put(toAdd, info.getFile());
+            b.getBlockId(), file.length(), b.getGenerationStamp());
+        seenOnDisk.put(toAdd, file);
         numAddedAfterScan++;
       }
       // if the file is in memory but _not_ on disk, this is the situation
@@ -1897,6 +2034,17 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     if(f != null ) {
       if(f.exists())
         return f;
+
+      // the block may be in the middle of being finalized
+      ActiveFile activeFile = ongoingCreates.get(b);
+      if (activeFile != null && activeFile.finalizing &&
+          !Thread.holdsLock(this)) {
+        waitForFinalize(b);
+        f = getFile(b);
+        if (f != null && f.exists()) {
+          return f;
+        }
+      }
    
       // if file is not null, but doesn't exist - possibly disk failed
       DataNode datanode = DataNode.getDataNode();
@@ -1990,6 +2138,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     boolean error = false;
     for (int i = 0; i < invalidBlks.length; i++) {
       File f = null;
+      File parent;
       FSVolume v;
       synchronized (this) {
         f = getFile(invalidBlks[i]);
@@ -2018,7 +2167,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
           error = true;
           continue;
         }
-        File parent = f.getParentFile();
+        parent = f.getParentFile();
         if (parent == null) {
           DataNode.LOG.warn("Unexpected error trying to delete block "
                             + invalidBlks[i] + 
@@ -2026,9 +2175,9 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
           error = true;
           continue;
         }
-        v.clearPath(parent);
         volumeMap.remove(invalidBlks[i]);
       }
+      v.clearPath(parent);
       File metaFile = getMetaFile( f, invalidBlks[i] );
       long dfsBytes = f.length() + metaFile.length();
       
@@ -2043,7 +2192,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   /**
    * Turn the block identifier into a filename.
    */
-  public synchronized File getFile(Block b) {
+  public File getFile(Block b) {
     DatanodeBlockInfo info = volumeMap.get(b);
     if (info != null) {
       return info.getFile();
@@ -2212,29 +2361,27 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     }
   }  
   
-  synchronized Collection<VolumeInfo> getVolumeInfo() {
+  Collection<VolumeInfo> getVolumeInfo() {
     Collection<VolumeInfo> info = new ArrayList<VolumeInfo>();
-    synchronized(volumes.volumes) {
-      for (FSVolume volume : volumes.volumes) {
-        long used = 0;
-        try {
-          used = volume.getDfsUsed();
-        } catch (IOException e) {
-          DataNode.LOG.warn(e.getMessage());
-        }
-        
-        long free= 0;
-        try {
-          free = volume.getAvailable();
-        } catch (IOException e) {
-          DataNode.LOG.warn(e.getMessage());
-        }
-        
-        info.add(new VolumeInfo(volume.toString(), used, free, 
-            volume.getReserved()));
+    for (FSVolume volume : volumes.volumes) {
+      long used = 0;
+      try {
+        used = volume.getDfsUsed();
+      } catch (IOException e) {
+        DataNode.LOG.warn(e.getMessage());
       }
-      return info;
+      
+      long free= 0;
+      try {
+        free = volume.getAvailable();
+      } catch (IOException e) {
+        DataNode.LOG.warn(e.getMessage());
+      }
+      
+      info.add(new VolumeInfo(volume.toString(), used, free, 
+          volume.getReserved()));
     }
+    return info;
   }
   
   /**
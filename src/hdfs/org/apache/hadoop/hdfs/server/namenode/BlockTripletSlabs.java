@@ -0,0 +1,338 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.namenode.BlocksMap.BlockInfo;
+
+/**
+ * Off-heap storage for the triplets of {@link BlockInfo}.
+ * 
+ * The triplets of a block are kept in fixed size records allocated from
+ * direct memory slabs rather than in an {@code Object[]} per block.
+ * A record holds {@link #TRIPLETS_PER_RECORD} triplets of ints:
+ * the index of the datanode and the records of the previous and the next
+ * blocks in the list of blocks belonging to that datanode.
+ * The first int of a record links to an extension record, which is only
+ * used when the replication of a block is increased beyond the capacity
+ * of a single record.
+ * 
+ * References in the slabs are stored as index + 1 so that the zeroed
+ * memory of a new or freed record stands for null.
+ * 
+ * This class is not thread safe, it is guarded by the namesystem lock
+ * the same way {@link BlocksMap} is.
+ */
+class BlockTripletSlabs {
+  /** Number of triplets in a record */
+  static final int TRIPLETS_PER_RECORD = 3;
+  /** Size of a record in ints */
+  private static final int RECORD_INTS = 1 + 3*TRIPLETS_PER_RECORD;
+  /** Records per slab, as a power of two */
+  private static final int SLAB_SHIFT = 16;
+  private static final int SLAB_RECORDS = 1 << SLAB_SHIFT;
+  private static final int SLAB_MASK = SLAB_RECORDS - 1;
+
+  private static final int DATANODE = 0;
+  private static final int PREVIOUS = 1;
+  private static final int NEXT = 2;
+
+  /** The slabs, each holding {@link #SLAB_RECORDS} records */
+  private IntBuffer[] slabs = new IntBuffer[0];
+  /** The block owning each head record, for decoding previous and next */
+  private SlabBlockInfo[][] owners = new SlabBlockInfo[0][];
+  /** Number of records ever allocated */
+  private int numRecords = 0;
+  /** Head of the list of freed records, linked through their first int */
+  private int freeRecords = 0;
+
+  /** Datanodes referenced from the slabs */
+  private DatanodeDescriptor[] datanodes = new DatanodeDescriptor[16];
+  private final IdentityHashMap<DatanodeDescriptor, Integer> datanodeIndex =
+    new IdentityHashMap<DatanodeDescriptor, Integer>();
+
+  /**
+   * A {@link BlockInfo} whose triplets are kept in the slabs.
+   * Only a reference to the slabs and the index of the head record
+   * of the block remain on the heap.
+   */
+  class SlabBlockInfo extends BlockInfo {
+    /** The head record of this block, or -1 once it is freed */
+    private int record;
+
+    SlabBlockInfo(Block blk, int replication) {
+      super(blk);
+      this.record = allocate(this, (replication + TRIPLETS_PER_RECORD - 1)
+          / TRIPLETS_PER_RECORD);
+    }
+
+    /** @return the record holding the given triplet */
+    private int recordOf(int index) {
+      assert record >= 0 : "BlockInfo is freed";
+      int r = record;
+      for(int i = index / TRIPLETS_PER_RECORD; i > 0; i--) {
+        r = slab(r).get(offset(r)) - 1;
+        assert r >= 0 : "Index is out of bound";
+      }
+      return r;
+    }
+
+    private int get(int index, int field) {
+      int r = recordOf(index);
+      return slab(r).get(position(r, index, field));
+    }
+
+    private void set(int index, int field, int value) {
+      int r = recordOf(index);
+      slab(r).put(position(r, index, field), value);
+    }
+
+    @Override
+    DatanodeDescriptor getDatanode(int index) {
+      int dn = get(index, DATANODE);
+      return dn == 0 ? null : datanodes[dn - 1];
+    }
+
+    @Override
+    BlockInfo getPrevious(int index) {
+      return owner(get(index, PREVIOUS));
+    }
+
+    @Override
+    BlockInfo getNext(int index) {
+      return owner(get(index, NEXT));
+    }
+
+    @Override
+    void setDatanode(int index, DatanodeDescriptor node) {
+      set(index, DATANODE, node == null ? 0 : indexOf(node, true) + 1);
+    }
+
+    @Override
+    void setPrevious(int index, BlockInfo to) {
+      set(index, PREVIOUS, reference(to));
+    }
+
+    @Override
+    void setNext(int index, BlockInfo to) {
+      set(index, NEXT, reference(to));
+    }
+
+    @Override
+    int getCapacity() {
+      if (record < 0) {
+        return 0;
+      }
+      int capacity = TRIPLETS_PER_RECORD;
+      for(int r = record; (r = slab(r).get(offset(r)) - 1) >= 0; ) {
+        capacity += TRIPLETS_PER_RECORD;
+      }
+      return capacity;
+    }
+
+    @Override
+    int ensureCapacity(int num) {
+      if (record < 0) {
+        // the block was removed from the map but is still being updated
+        record = allocate(this, 1);
+      }
+      int last = numNodes();
+      int needed = last + num - getCapacity();
+      if (needed > 0) {
+        int r = record;
+        for(int ext; (ext = slab(r).get(offset(r)) - 1) >= 0; ) {
+          r = ext;
+        }
+        int ext = allocate(null,
+            (needed + TRIPLETS_PER_RECORD - 1) / TRIPLETS_PER_RECORD);
+        slab(r).put(offset(r), ext + 1);
+      }
+      return last;
+    }
+
+    @Override
+    int findDatanode(DatanodeDescriptor dn) {
+      if (record < 0) {
+        return -1;
+      }
+      int dnIndex = indexOf(dn, false) + 1;
+      if (dnIndex == 0) {
+        return -1;
+      }
+      // walk the records directly instead of resolving every triplet
+      int idx = 0;
+      for(int r = record; r >= 0; r = slab(r).get(offset(r)) - 1) {
+        IntBuffer slab = slab(r);
+        int pos = offset(r) + 1 + DATANODE;
+        for(int i = 0; i < TRIPLETS_PER_RECORD; i++, idx++, pos += 3) {
+          int cur = slab.get(pos);
+          if (cur == dnIndex) {
+            return idx;
+          }
+          if (cur == 0) {
+            return -1;
+          }
+        }
+      }
+      return -1;
+    }
+  }
+
+  /** Create a {@link BlockInfo} backed by the slabs */
+  BlockInfo newBlockInfo(Block blk, int replication) {
+    return new SlabBlockInfo(blk, replication);
+  }
+
+  /**
+   * Free the records of a block.
+   * The block must not be on the list of any datanode anymore.
+   */
+  void free(BlockInfo info) {
+    SlabBlockInfo b = (SlabBlockInfo)info;
+    if (b.record < 0) {
+      return;
+    }
+    int r = b.record;
+    b.record = -1;
+    owners[r >>> SLAB_SHIFT][r & SLAB_MASK] = null;
+    while (r >= 0) {
+      IntBuffer slab = slab(r);
+      int offset = offset(r);
+      int ext = slab.get(offset) - 1;
+      for(int i = 1; i < RECORD_INTS; i++) {
+        slab.put(offset + i, 0);
+      }
+      slab.put(offset, freeRecords);
+      freeRecords = r + 1;
+      r = ext;
+    }
+  }
+
+  /** @return the direct memory held by the slabs in bytes */
+  long getAllocatedBytes() {
+    return (long)slabs.length * SLAB_RECORDS * RECORD_INTS * 4;
+  }
+
+  /** Release the slabs, the direct memory goes with the last reference. */
+  void close() {
+    slabs = new IntBuffer[0];
+    owners = new SlabBlockInfo[0][];
+    numRecords = freeRecords = 0;
+    datanodes = new DatanodeDescriptor[0];
+    datanodeIndex.clear();
+  }
+
+  private IntBuffer slab(int r) {
+    return slabs[r >>> SLAB_SHIFT];
+  }
+
+  private static int offset(int r) {
+    return (r & SLAB_MASK) * RECORD_INTS;
+  }
+
+  /** @return the position of a field of a triplet in its record */
+  private static int position(int r, int index, int field) {
+    return offset(r) + 1 + 3*(index % TRIPLETS_PER_RECORD) + field;
+  }
+
+  /**
+   * Allocate a chain of records.
+   * @param owner the block owning the chain
+   * @param count number of records in the chain
+   * @return the head record of the chain
+   */
+  private int allocate(SlabBlockInfo owner, int count) {
+    int head = -1;
+    for(int i = 0; i < Math.max(count, 1); i++) {
+      int r = allocateRecord();
+      slab(r).put(offset(r), head + 1);
+      head = r;
+    }
+    if (owner != null) {
+      owners[head >>> SLAB_SHIFT][head & SLAB_MASK] = owner;
+    }
+    return head;
+  }
+
+  private int allocateRecord() {
+    if (freeRecords != 0) {
+      int r = freeRecords - 1;
+      freeRecords = slab(r).get(offset(r));
+      return r;
+    }
+    if (numRecords == slabs.length << SLAB_SHIFT) {
+      if (slabs.length == Integer.MAX_VALUE >>> SLAB_SHIFT) {
+        throw new IllegalStateException("Too many blocks: " + numRecords);
+      }
+      int n = slabs.length;
+      slabs = Arrays.copyOf(slabs, n + 1);
+      owners = Arrays.copyOf(owners, n + 1);
+      slabs[n] = ByteBuffer.allocateDirect(SLAB_RECORDS * RECORD_INTS * 4)
+          .order(ByteOrder.nativeOrder()).asIntBuffer();
+      owners[n] = new SlabBlockInfo[SLAB_RECORDS];
+    }
+    return numRecords++;
+  }
+
+  private BlockInfo owner(int reference) {
+    if (reference == 0) {
+      return null;
+    }
+    int r = reference - 1;
+    return owners[r >>> SLAB_SHIFT][r & SLAB_MASK];
+  }
+
+  private static int reference(BlockInfo to) {
+    if (to == null) {
+      return 0;
+    }
+    if (!(to instanceof SlabBlockInfo)) {
+      throw new IllegalArgumentException(
+          "Block " + to + " is not stored in the slabs");
+    }
+    assert ((SlabBlockInfo)to).record >= 0 : "BlockInfo is freed";
+    return ((SlabBlockInfo)to).record + 1;
+  }
+
+  /**
+   * @return the index of the datanode or -1 if it is not known
+   *         and add is false
+   */
+  private int indexOf(DatanodeDescriptor dn, boolean add) {
+    Integer index = datanodeIndex.get(dn);
+    if (index != null) {
+      return index;
+    }
+    if (!add) {
+      return -1;
+    }
+    int i = datanodeIndex.size();
+    if (i == datanodes.length) {
+      datanodes = Arrays.copyOf(datanodes, Math.max(16, 2*i));
+    }
+    datanodes[i] = dn;
+    datanodeIndex.put(dn, i);
+    return i;
+  }
+}
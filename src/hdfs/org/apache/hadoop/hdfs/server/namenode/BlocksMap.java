@@ -19,6 +19,8 @@ package org.apache.hadoop.hdfs.server.namenode;
 
 import java.util.Iterator;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.util.GSet;
 import org.apache.hadoop.hdfs.util.LightWeightGSet;
@@ -55,6 +57,16 @@ class BlocksMap {
       this.inode = null;
     }
 
+    /**
+     * Constructor for subclasses which keep the triplets elsewhere
+     * and override the methods accessing them.
+     */
+    BlockInfo(Block blk) {
+      super(blk);
+      this.triplets = null;
+      this.inode = null;
+    }
+
     INodeFile getINode() {
       return inode;
     }
@@ -107,7 +119,7 @@ class BlocksMap {
       triplets[index*3+2] = to;
     }
 
-    private int getCapacity() {
+    int getCapacity() {
       assert this.triplets != null : "BlockInfo is not initialized";
       assert triplets.length % 3 == 0 : "Malformed BlockInfo";
       return triplets.length / 3;
@@ -117,7 +129,7 @@ class BlocksMap {
      * Ensure that there is enough  space to include num more triplets.
      *      * @return first free triplet index.
      */
-    private int ensureCapacity(int num) {
+    int ensureCapacity(int num) {
       assert this.triplets != null : "BlockInfo is not initialized";
       int last = numNodes();
       if(triplets.length >= (last+num)*3)
@@ -310,9 +322,27 @@ class BlocksMap {
   
   private GSet<Block, BlockInfo> blocks;
 
+  /** Off-heap storage of the triplets, null if they are kept on the heap */
+  private final BlockTripletSlabs slabs;
+
   BlocksMap(int initialCapacity, float loadFactor) {
+    this(initialCapacity, loadFactor, false);
+  }
+
+  BlocksMap(int initialCapacity, float loadFactor, boolean offHeap) {
     this.capacity = computeCapacity();
     this.blocks = new LightWeightGSet<Block, BlockInfo>(capacity);
+    this.slabs = offHeap ? new BlockTripletSlabs() : null;
+    if (offHeap) {
+      LightWeightGSet.LOG.info("Block triplets are stored off-heap");
+    }
+  }
+
+  BlocksMap(Configuration conf) {
+    this(FSNamesystem.DEFAULT_INITIAL_MAP_CAPACITY,
+        FSNamesystem.DEFAULT_MAP_LOAD_FACTOR,
+        conf.getBoolean(DFSConfigKeys.DFS_NAMENODE_BLOCKSMAP_OFFHEAP_KEY,
+                        DFSConfigKeys.DFS_NAMENODE_BLOCKSMAP_OFFHEAP_DEFAULT));
   }
 
   /**
@@ -344,6 +374,37 @@ class BlocksMap {
 
   void close() {
     blocks = null;
+    if (slabs != null) {
+      slabs.close();
+    }
+  }
+
+  /**
+   * Create a {@link BlockInfo} with the storage of this map,
+   * without adding it to the map.
+   * It must be passed to {@link #free(BlockInfo)} when no longer used.
+   */
+  BlockInfo newBlockInfo(Block b, int replication) {
+    return slabs == null ? new BlockInfo(b, replication)
+                         : slabs.newBlockInfo(b, replication);
+  }
+
+  /**
+   * Release the storage of a {@link BlockInfo} which is not in the map
+   * and not on the list of any datanode.
+   */
+  void free(BlockInfo info) {
+    if (slabs != null) {
+      slabs.free(info);
+    }
+  }
+
+  /** Remove the block from the map and release its storage. */
+  private void remove(Block b) {
+    BlockInfo info = blocks.remove(b);
+    if (info != null) {
+      free(info);
+    }
   }
 
   /**
@@ -352,7 +413,7 @@ class BlocksMap {
   private BlockInfo checkBlockInfo(Block b, int replication) {
     BlockInfo info = blocks.get(b);
     if (info == null) {
-      info = new BlockInfo(b, replication);
+      info = newBlockInfo(b, replication);
       blocks.put(info);
     }
     return info;
@@ -382,7 +443,7 @@ class BlocksMap {
     if (info != null) {
       info.inode = null;
       if (info.getDatanode(0) == null) {  // no datanodes left
-        blocks.remove(b);  // remove block from the map
+        remove(b);  // remove block from the map
       }
     }
   }
@@ -400,7 +461,7 @@ class BlocksMap {
       DatanodeDescriptor dn = blockInfo.getDatanode(idx);
       dn.removeBlock(blockInfo); // remove from the list and wipe the location
     }
-    blocks.remove(blockInfo);  // remove block from the map
+    remove(blockInfo);  // remove block from the map
   }
 
   /** Returns the block object it it exists in the map. */
@@ -448,7 +509,7 @@ class BlocksMap {
 
     if (info.getDatanode(0) == null     // no datanodes left
               && info.inode == null) {  // does not belong to a file
-      blocks.remove(b);  // remove block from the map
+      remove(b);  // remove block from the map
     }
     return removed;
   }
@@ -481,6 +542,16 @@ class BlocksMap {
     return true;
   }
   
+  /** @return true if the triplets of the blocks are stored off-heap */
+  boolean isOffHeap() {
+    return slabs != null;
+  }
+
+  /** @return the direct memory held for the triplets in bytes */
+  long getOffHeapBytes() {
+    return slabs == null ? 0 : slabs.getAllocatedBytes();
+  }
+
   /** Get the capacity of the HashMap that stores blocks */
   public int getCapacity() {
     return capacity;
@@ -88,6 +88,8 @@ public class DatanodeDescriptor extends DatanodeInfo {
   }
 
   private volatile BlockInfo blockList = null;
+  /** The delimiter of the block report being processed, if any */
+  private BlockInfo reportDelimiter = null;
   // isAlive == heartbeats.contains(this)
   // This is an optimization, because contains takes O(n) time on Arraylist
   protected boolean isAlive = false;
@@ -217,6 +219,7 @@ public class DatanodeDescriptor extends DatanodeInfo {
     this.dfsUsed = 0;
     this.xceiverCount = 0;
     this.blockList = null;
+    this.reportDelimiter = null;
     this.invalidateBlocks.clear();
     this.volumeFailures = 0;
   }
@@ -373,24 +376,55 @@ public class DatanodeDescriptor extends DatanodeInfo {
     return blockarray;
   }
 
-  void reportDiff(BlocksMap blocksMap,
-                  BlockListAsLongs newReport,
-                  Collection<Block> toAdd,
-                  Collection<Block> toRemove,
-                  Collection<Block> toInvalidate) {
+  /**
+   * Start processing a block report from this node.
+   * A delimiter is placed in the list of blocks, which separates blocks
+   * that have been reported from those that have not. The report is then
+   * processed in chunks by {@link #reportDiff} and {@link #removeUnreported}
+   * and completed by {@link #finishReport}. The namesystem lock may be
+   * released in between.
+   * @return the delimiter, or null if a report from this node is already
+   *         being processed
+   */
+  BlockInfo startReport(BlocksMap blocksMap) {
+    if (reportDelimiter != null) {
+      return null;
+    }
     // place a deilimiter in the list which separates blocks 
     // that have been reported from those that have not
-    BlockInfo delimiter = new BlockInfo(new Block(), 1);
+    BlockInfo delimiter = blocksMap.newBlockInfo(new Block(), 1);
     boolean added = this.addBlock(delimiter);
     assert added : "Delimiting block cannot be present in the node";
-    if(newReport == null)
-      newReport = new BlockListAsLongs( new long[0]);
+    reportDelimiter = delimiter;
+    return delimiter;
+  }
+
+  /**
+   * @return true if the report with the given delimiter is still in
+   * progress, i.e. the blocks of the node have not been reset since.
+   */
+  boolean isReportInProgress(BlockInfo delimiter) {
+    return reportDelimiter == delimiter;
+  }
+
+  /**
+   * Compare a chunk of a block report with the blocks of this node.
+   * Known blocks which were reported are moved in front of the delimiter.
+   * @param newReport the block report
+   * @param from index of the first block of the chunk
+   * @param to index after the last block of the chunk
+   */
+  void reportDiff(BlocksMap blocksMap,
+                  BlockListAsLongs newReport,
+                  int from, int to,
+                  Collection<Block> toAdd,
+                  Collection<Block> toInvalidate) {
     // scan the report and collect newly reported blocks
     // Note we are taking special precaution to limit tmp blocks allocated
     // as part this block report - which why block list is stored as longs
     Block iblk = new Block(); // a fixed new'ed block to be reused with index i
     Block oblk = new Block(); // for fixing genstamps
-    for (int i = 0; i < newReport.getNumberOfBlocks(); ++i) {
+    for (int i = from; i < to; ++i) {
       iblk.set(newReport.getBlockId(i), newReport.getBlockLen(i), 
                newReport.getBlockGenStamp(i));
       BlockInfo storedBlock = blocksMap.getStoredBlock(iblk);
@@ -429,17 +463,39 @@ public class DatanodeDescriptor extends DatanodeInfo {
       // move block to the head of the list
       this.moveBlockToHead(storedBlock);
     }
-    // collect blocks that have not been reported
-    // all of them are next to the delimiter
-    Iterator<Block> it = new BlockIterator(delimiter.getNext(0), this);
-    while(it.hasNext()) {
-      BlockInfo storedBlock = (BlockInfo)it.next();
+  }
+
+  /**
+   * Collect up to max blocks which have not been reported, all of them are
+   * next to the delimiter. Blocks of files under construction are kept
+   * and moved in front of the delimiter.
+   * @return true if all the unreported blocks have been collected and
+   *         the report is complete
+   */
+  boolean removeUnreported(int max, Collection<Block> toRemove) {
+    BlockInfo next = reportDelimiter.getNext(0);
+    for (int i = 0; next != null && (max <= 0 || i < max); i++) {
+      BlockInfo storedBlock = next;
+      next = storedBlock.getNext(storedBlock.findDatanode(this));
       INodeFile file = storedBlock.getINode();
       if (file == null || !file.isUnderConstruction()) {
         toRemove.add(storedBlock);
+      } else {
+        this.moveBlockToHead(storedBlock);
       }
     }
-    this.removeBlock(delimiter);
+    return next == null;
+  }
+
+  /**
+   * Remove the delimiter of a report, whether it is complete or not.
+   */
+  void finishReport(BlocksMap blocksMap, BlockInfo delimiter) {
+    if (reportDelimiter == delimiter) {
+      this.removeBlock(delimiter);
+      reportDelimiter = null;
+    }
+    blocksMap.free(delimiter);
   }
 
   /** Serialization for FSEditLog */
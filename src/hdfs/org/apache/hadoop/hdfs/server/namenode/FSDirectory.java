@@ -19,6 +19,7 @@ package org.apache.hadoop.hdfs.server.namenode;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
@@ -35,6 +36,7 @@ import org.apache.hadoop.hdfs.protocol.DirectoryListing;
 import org.apache.hadoop.hdfs.protocol.QuotaExceededException;
 import org.apache.hadoop.hdfs.server.common.HdfsConstants.StartupOption;
 import org.apache.hadoop.hdfs.server.namenode.BlocksMap.BlockInfo;
+import org.apache.hadoop.hdfs.util.ByteArray;
 import org.mortbay.log.Log;
 
 /*************************************************
@@ -55,6 +57,28 @@ class FSDirectory implements FSConstants, Closeable {
   // Metrics record
   private MetricsRecord directoryMetrics = null;
   private final int lsLimit;  // max list limit
+  // protects the directory tree; taken after the FSNamesystem lock
+  private final ReentrantReadWriteLock dirLock =
+    new ReentrantReadWriteLock(true);
+
+  /** Shared copies of the names used by many inodes. */
+  private final NameCache<ByteArray> nameCache;
+
+  void readLock() {
+    dirLock.readLock().lock();
+  }
+
+  void readUnlock() {
+    dirLock.readLock().unlock();
+  }
+
+  void writeLock() {
+    dirLock.writeLock().lock();
+  }
+
+  void writeUnlock() {
+    dirLock.writeLock().unlock();
+  }
 
   /** Access an existing dfs name directory. */
   FSDirectory(FSNamesystem ns, Configuration conf) {
@@ -88,6 +112,13 @@ class FSDirectory implements FSConstants, Closeable {
     if (restore) {
       fsImage.setRestoreFailedStorage(true);
     }
+    fsImage.setImageParameters(conf);
+    int threshold = conf.getInt(
+        DFSConfigKeys.DFS_NAMENODE_NAME_CACHE_THRESHOLD_KEY,
+        DFSConfigKeys.DFS_NAMENODE_NAME_CACHE_THRESHOLD_DEFAULT);
+    NameNode.LOG.info("Caching file names occurring at least " + threshold
+        + " times ");
+    nameCache = new NameCache<ByteArray>(threshold);
     initialize(conf);
   }
     
@@ -119,6 +150,12 @@ class FSDirectory implements FSConstants, Closeable {
       fsImage.close();
       throw e;
     }
+    writeLock();
+    try {
+      nameCache.initialized();
+    } finally {
+      writeUnlock();
+    }
     synchronized (this) {
       this.ready = true;
       this.notifyAll();
@@ -177,8 +214,11 @@ class FSDirectory implements FSConstants, Closeable {
                                  permissions,replication,
                                  preferredBlockSize, modTime, clientName, 
                                  clientMachine, clientNode);
-    synchronized (rootDir) {
+    writeLock();
+    try {
       newNode = addNode(path, newNode, -1, false);
+    } finally {
+      writeUnlock();
     }
     if (newNode == null) {
       NameNode.stateChangeLog.info("DIR* FSDirectory.addFile: "
@@ -212,7 +252,8 @@ class FSDirectory implements FSConstants, Closeable {
                               modificationTime, atime, preferredBlockSize);
       diskspace = ((INodeFile)newNode).diskspaceConsumed(blocks);
     }
-    synchronized (rootDir) {
+    writeLock();
+    try {
       try {
         newNode = addNode(path, newNode, diskspace, false);
         if(newNode != null && blocks != null) {
@@ -227,6 +268,8 @@ class FSDirectory implements FSConstants, Closeable {
         return null;
       }
       return newNode;
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -242,27 +285,37 @@ class FSDirectory implements FSConstants, Closeable {
                               long preferredBlockSize) {
     // NOTE: This does not update space counts for parents
     // create new inode
-    INode newNode;
-    if (blocks == null) {
-      if (nsQuota >= 0 || dsQuota >= 0) {
-        newNode = new INodeDirectoryWithQuota(
-            permissions, modificationTime, nsQuota, dsQuota);
-      } else {
-        newNode = new INodeDirectory(permissions, modificationTime);
-      }
-    } else 
-      newNode = new INodeFile(permissions, blocks.length, replication,
-                              modificationTime, atime, preferredBlockSize);
+    INode newNode = newINode(permissions, blocks, replication,
+        modificationTime, atime, nsQuota, dsQuota, preferredBlockSize);
     // add new node to the parent
+    return addToParent(src, INode.getPathComponents(src), parentINode,
+                       newNode, blocks);
+  }
+
+  /**
+   * Add an inode loaded from the image to its parent.
+   * The path of the inode is already split into its components.
+   * 
+   * @return the parent inode or null if the inode could not be added
+   */
+  INodeDirectory addToParent(String src,
+                             byte[][] pathComponents,
+                             INodeDirectory parentINode,
+                             INode newNode,
+                             Block[] blocks) {
+    // NOTE: This does not update space counts for parents
     INodeDirectory newParent = null;
-    synchronized (rootDir) {
+    writeLock();
+    try {
       try {
-        newParent = rootDir.addToParent(src, newNode, parentINode, false);
+        newParent = rootDir.addToParent(src, pathComponents, newNode,
+                                        parentINode, false);
       } catch (FileNotFoundException e) {
         return null;
       }
       if(newParent == null)
         return null;
+      cacheName(newNode);
       if(blocks != null) {
         int nrBlocks = blocks.length;
         // Add file->block mapping
@@ -271,17 +324,43 @@ class FSDirectory implements FSConstants, Closeable {
           newF.setBlock(i, namesystem.blocksMap.addINode(blocks[i], newF));
         }
       }
+    } finally {
+      writeUnlock();
     }
     return newParent;
   }
 
+  /**
+   * Create an inode from the attributes stored in the image.
+   * A null block list stands for a directory.
+   */
+  static INode newINode(PermissionStatus permissions,
+                        Block[] blocks,
+                        short replication,
+                        long modificationTime,
+                        long atime,
+                        long nsQuota,
+                        long dsQuota,
+                        long preferredBlockSize) {
+    if (blocks == null) {
+      if (nsQuota >= 0 || dsQuota >= 0) {
+        return new INodeDirectoryWithQuota(
+            permissions, modificationTime, nsQuota, dsQuota);
+      }
+      return new INodeDirectory(permissions, modificationTime);
+    }
+    return new INodeFile(permissions, blocks.length, replication,
+                         modificationTime, atime, preferredBlockSize);
+  }
+
   /**
    * Add a block to the file. Returns a reference to the added block.
    */
   Block addBlock(String path, INode[] inodes, Block block) throws IOException {
     waitForReady();
 
-    synchronized (rootDir) {
+    writeLock();
+    try {
       INodeFile fileNode = (INodeFile) inodes[inodes.length-1];
 
       // check quota limits and updated space consumed
@@ -297,6 +376,8 @@ class FSDirectory implements FSConstants, Closeable {
                                     + path + " with " + block
                                     + " block is added to the in-memory "
                                     + "file system");
+    } finally {
+      writeUnlock();
     }
     return block;
   }
@@ -308,11 +389,14 @@ class FSDirectory implements FSConstants, Closeable {
                      throws IOException {
     waitForReady();
 
-    synchronized (rootDir) {
+    writeLock();
+    try {
       fsImage.getEditLog().logOpenFile(path, file);
       NameNode.stateChangeLog.debug("DIR* FSDirectory.persistBlocks: "
                                     +path+" with "+ file.getBlocks().length 
                                     +" blocks is persisted to the file system");
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -321,7 +405,8 @@ class FSDirectory implements FSConstants, Closeable {
    */
   void closeFile(String path, INodeFile file) throws IOException {
     waitForReady();
-    synchronized (rootDir) {
+    writeLock();
+    try {
       // file is closed
       fsImage.getEditLog().logCloseFile(path, file);
       if (NameNode.stateChangeLog.isDebugEnabled()) {
@@ -329,6 +414,8 @@ class FSDirectory implements FSConstants, Closeable {
                                     +path+" with "+ file.getBlocks().length 
                                     +" blocks is persisted to the file system");
       }
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -339,7 +426,8 @@ class FSDirectory implements FSConstants, Closeable {
                       Block block) throws IOException {
     waitForReady();
 
-    synchronized (rootDir) {
+    writeLock();
+    try {
       // modify file-> block and blocksMap
       fileNode.removeBlock(block);
       namesystem.blocksMap.removeINode(block);
@@ -351,6 +439,8 @@ class FSDirectory implements FSConstants, Closeable {
       NameNode.stateChangeLog.debug("DIR* FSDirectory.addFile: "
                                     +path+" with "+block
                                     +" block is added to the file system");
+    } finally {
+      writeUnlock();
     }
     return true;
   }
@@ -380,7 +470,8 @@ class FSDirectory implements FSConstants, Closeable {
    */
   boolean unprotectedRenameTo(String src, String dst, long timestamp) 
   throws QuotaExceededException {
-    synchronized (rootDir) {
+    writeLock();
+    try {
       INode[] srcInodes = rootDir.getExistingPathINodes(src);
 
       // check the validation of the source
@@ -471,6 +562,8 @@ class FSDirectory implements FSConstants, Closeable {
       NameNode.stateChangeLog.warn("DIR* FSDirectory.unprotectedRenameTo: "
           +"failed to rename "+src+" to "+dst);
       return false;
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -502,7 +595,8 @@ class FSDirectory implements FSConstants, Closeable {
       oldReplication = new int[1];
     oldReplication[0] = -1;
     Block[] fileBlocks = null;
-    synchronized(rootDir) {
+    writeLock();
+    try {
       INode[] inodes = rootDir.getExistingPathINodes(src);
       INode inode = inodes[inodes.length - 1];
       if (inode == null)
@@ -519,6 +613,8 @@ class FSDirectory implements FSConstants, Closeable {
 
       fileNode.setReplication(replication);
       fileBlocks = fileNode.getBlocks();
+    } finally {
+      writeUnlock();
     }
     return fileBlocks;
   }
@@ -530,7 +626,8 @@ class FSDirectory implements FSConstants, Closeable {
    * @throws IOException if it is a directory or does not exist.
    */
   long getPreferredBlockSize(String filename) throws IOException {
-    synchronized (rootDir) {
+    readLock();
+    try {
       INode fileNode = rootDir.getNode(filename);
       if (fileNode == null) {
         throw new IOException("Unknown file: " + filename);
@@ -540,17 +637,22 @@ class FSDirectory implements FSConstants, Closeable {
                               filename);
       }
       return ((INodeFile)fileNode).getPreferredBlockSize();
+    } finally {
+      readUnlock();
     }
   }
 
   boolean exists(String src) {
     src = normalizePath(src);
-    synchronized(rootDir) {
+    readLock();
+    try {
       INode inode = rootDir.getNode(src);
       if (inode == null) {
          return false;
       }
       return inode.isDirectory()? true: ((INodeFile)inode).getBlocks() != null;
+    } finally {
+      readUnlock();
     }
   }
 
@@ -561,11 +663,14 @@ class FSDirectory implements FSConstants, Closeable {
   }
 
   void unprotectedSetPermission(String src, FsPermission permissions) throws FileNotFoundException {
-    synchronized(rootDir) {
+    writeLock();
+    try {
         INode inode = rootDir.getNode(src);
         if(inode == null)
             throw new FileNotFoundException("File does not exist: " + src);
         inode.setPermission(permissions);
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -576,7 +681,8 @@ class FSDirectory implements FSConstants, Closeable {
   }
 
   void unprotectedSetOwner(String src, String username, String groupname) throws FileNotFoundException {
-    synchronized(rootDir) {
+    writeLock();
+    try {
       INode inode = rootDir.getNode(src);
       if(inode == null)
           throw new FileNotFoundException("File does not exist: " + src);
@@ -586,6 +692,8 @@ class FSDirectory implements FSConstants, Closeable {
       if (groupname != null) {
         inode.setGroup(groupname);
       }
+    } finally {
+      writeUnlock();
     }
   }
     
@@ -611,12 +719,15 @@ class FSDirectory implements FSConstants, Closeable {
     if (!isDir(src)) {
       return true;
     }
-    synchronized(rootDir) {
+    readLock();
+    try {
       INode targetNode = rootDir.getNode(src);
       assert targetNode != null : "should be taken care in isDir() above";
-      if (((INodeDirectory)targetNode).getChildren().size() != 0) {
+      if (((INodeDirectory)targetNode).getChildrenCount() != 0) {
         dirNotEmpty = false;
       }
+    } finally {
+      readUnlock();
     }
     return dirNotEmpty;
   }
@@ -632,7 +743,8 @@ class FSDirectory implements FSConstants, Closeable {
   INode unprotectedDelete(String src, long modificationTime) {
     src = normalizePath(src);
 
-    synchronized (rootDir) {
+    writeLock();
+    try {
       INode[] inodes =  rootDir.getExistingPathINodes(src);
       INode targetNode = inodes[inodes.length-1];
 
@@ -667,6 +779,8 @@ class FSDirectory implements FSConstants, Closeable {
           return null;
         }
       }
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -675,7 +789,8 @@ class FSDirectory implements FSConstants, Closeable {
    */
   void replaceNode(String path, INodeFile oldnode, INodeFile newnode)
       throws IOException {
-    synchronized (rootDir) {
+    writeLock();
+    try {
       //
       // Remove the node from the namespace 
       //
@@ -698,6 +813,8 @@ class FSDirectory implements FSConstants, Closeable {
         newnode.setBlock(index, info); // inode refers to the block in BlocksMap
         index++;
       }
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -711,7 +828,8 @@ class FSDirectory implements FSConstants, Closeable {
   DirectoryListing getListing(String src, byte[] startAfter) {
     String srcs = normalizePath(src);
 
-    synchronized (rootDir) {
+    readLock();
+    try {
       INode targetNode = rootDir.getNode(srcs);
       if (targetNode == null)
         return null;
@@ -732,6 +850,8 @@ class FSDirectory implements FSConstants, Closeable {
       }
       return new DirectoryListing(
           listing, totalNumChildren-startChild-numOfListing);
+    } finally {
+      readUnlock();
     }
   }
 
@@ -742,7 +862,8 @@ class FSDirectory implements FSConstants, Closeable {
    */
   HdfsFileStatus getFileInfo(String src) {
     String srcs = normalizePath(src);
-    synchronized (rootDir) {
+    readLock();
+    try {
       INode targetNode = rootDir.getNode(srcs);
       if (targetNode == null) {
         return null;
@@ -750,6 +871,8 @@ class FSDirectory implements FSConstants, Closeable {
       else {
         return createFileStatus(HdfsFileStatus.EMPTY_NAME, targetNode);
       }
+    } finally {
+      readUnlock();
     }
   }
 
@@ -758,13 +881,16 @@ class FSDirectory implements FSConstants, Closeable {
    */
   Block[] getFileBlocks(String src) {
     waitForReady();
-    synchronized (rootDir) {
+    readLock();
+    try {
       INode targetNode = rootDir.getNode(src);
       if (targetNode == null)
         return null;
       if(targetNode.isDirectory())
         return null;
       return ((INodeFile)targetNode).getBlocks();
+    } finally {
+      readUnlock();
     }
   }
 
@@ -772,11 +898,14 @@ class FSDirectory implements FSConstants, Closeable {
    * Get {@link INode} associated with the file.
    */
   INodeFile getFileINode(String src) {
-    synchronized (rootDir) {
+    readLock();
+    try {
       INode inode = rootDir.getNode(src);
       if (inode == null || inode.isDirectory())
         return null;
       return (INodeFile)inode;
+    } finally {
+      readUnlock();
     }
   }
 
@@ -793,8 +922,11 @@ class FSDirectory implements FSConstants, Closeable {
    * @see INodeDirectory#getExistingPathINodes(byte[][], INode[])
    */
   INode[] getExistingPathINodes(String path) {
-    synchronized (rootDir){
+    readLock();
+    try {
       return rootDir.getExistingPathINodes(path);
+    } finally {
+      readUnlock();
     }
   }
   
@@ -803,7 +935,8 @@ class FSDirectory implements FSConstants, Closeable {
    */
   boolean isValidToCreate(String src) {
     String srcs = normalizePath(src);
-    synchronized (rootDir) {
+    readLock();
+    try {
       if (srcs.startsWith("/") && 
           !srcs.endsWith("/") && 
           rootDir.getNode(srcs) == null) {
@@ -811,6 +944,8 @@ class FSDirectory implements FSConstants, Closeable {
       } else {
         return false;
       }
+    } finally {
+      readUnlock();
     }
   }
 
@@ -818,9 +953,12 @@ class FSDirectory implements FSConstants, Closeable {
    * Check whether the path specifies a directory
    */
   boolean isDir(String src) {
-    synchronized (rootDir) {
+    readLock();
+    try {
       INode node = rootDir.getNode(normalizePath(src));
       return node != null && node.isDirectory();
+    } finally {
+      readUnlock();
     }
   }
 
@@ -836,7 +974,8 @@ class FSDirectory implements FSConstants, Closeable {
   void updateSpaceConsumed(String path, long nsDelta, long dsDelta)
                                          throws QuotaExceededException,
                                                 FileNotFoundException {
-    synchronized (rootDir) {
+    writeLock();
+    try {
       INode[] inodes = rootDir.getExistingPathINodes(path);
       int len = inodes.length;
       if (inodes[len - 1] == null) {
@@ -844,6 +983,8 @@ class FSDirectory implements FSConstants, Closeable {
                                         " does not exist under rootDir.");
       }
       updateCount(inodes, len-1, nsDelta, dsDelta, true);
+    } finally {
+      writeUnlock();
     }
   }
   
@@ -939,7 +1080,8 @@ class FSDirectory implements FSConstants, Closeable {
     byte[][] components = INode.getPathComponents(names);
     INode[] inodes = new INode[components.length];
 
-    synchronized(rootDir) {
+    writeLock();
+    try {
       rootDir.getExistingPathINodes(components, inodes);
 
       // find the index of the first null in inodes[]
@@ -970,6 +1112,8 @@ class FSDirectory implements FSConstants, Closeable {
         NameNode.stateChangeLog.debug(
             "DIR* FSDirectory.mkdirs: created directory " + cur);
       }
+    } finally {
+      writeUnlock();
     }
     return true;
   }
@@ -980,11 +1124,14 @@ class FSDirectory implements FSConstants, Closeable {
                           long timestamp) throws QuotaExceededException {
     byte[][] components = INode.getPathComponents(src);
     INode[] inodes = new INode[components.length];
-    synchronized (rootDir) {
+    writeLock();
+    try {
       rootDir.getExistingPathINodes(components, inodes);
       unprotectedMkdir(inodes, inodes.length-1, components[inodes.length-1],
           permissions, false, timestamp);
       return inodes[inodes.length-1];
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -1009,10 +1156,13 @@ class FSDirectory implements FSConstants, Closeable {
     byte[][] components = INode.getPathComponents(src);
     child.setLocalName(components[components.length-1]);
     INode[] inodes = new INode[components.length];
-    synchronized (rootDir) {
+    writeLock();
+    try {
       rootDir.getExistingPathINodes(components, inodes);
       return addChild(inodes, inodes.length-1, child, childDiskspace,
                       inheritPermission);
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -1096,6 +1246,7 @@ class FSDirectory implements FSConstants, Closeable {
     }
     updateCount(pathComponents, pos, counts.getNsCount(), childDiskspace,
         checkQuota);
+    cacheName(child);
     T addedNode = ((INodeDirectory)pathComponents[pos-1]).addChild(
         child, inheritPermission);
     if (addedNode == null) {
@@ -1124,6 +1275,21 @@ class FSDirectory implements FSConstants, Closeable {
     return inode;
   }
   
+  /**
+   * Replace the name of the inode by the shared copy from the name cache,
+   * so that inodes with frequently used names do not carry their own copy.
+   */
+  void cacheName(INode inode) {
+    byte[] name = inode.getLocalNameBytes();
+    if (name == null || name.length == 0) {
+      return;
+    }
+    ByteArray cached = nameCache.put(new ByteArray(name));
+    if (cached != null) {
+      inode.setLocalName(cached.getBytes());
+    }
+  }
+
   /** Remove an inode at index pos from the namespace.
    * Its ancestors are stored at [0, pos-1].
    * Count of each ancestor with quota is also updated.
@@ -1152,7 +1318,8 @@ class FSDirectory implements FSConstants, Closeable {
 
   ContentSummary getContentSummary(String src) throws IOException {
     String srcs = normalizePath(src);
-    synchronized (rootDir) {
+    readLock();
+    try {
       INode targetNode = rootDir.getNode(srcs);
       if (targetNode == null) {
         throw new FileNotFoundException("File does not exist: " + srcs);
@@ -1160,6 +1327,8 @@ class FSDirectory implements FSConstants, Closeable {
       else {
         return targetNode.computeContentSummary();
       }
+    } finally {
+      readUnlock();
     }
   }
 
@@ -1310,18 +1479,24 @@ class FSDirectory implements FSConstants, Closeable {
    */
   void setQuota(String src, long nsQuota, long dsQuota) 
                 throws FileNotFoundException, QuotaExceededException {
-    synchronized (rootDir) {    
+    writeLock();
+    try {    
       INodeDirectory dir = unprotectedSetQuota(src, nsQuota, dsQuota);
       if (dir != null) {
         fsImage.getEditLog().logSetQuota(src, dir.getNsQuota(), 
                                          dir.getDsQuota());
       }
+    } finally {
+      writeUnlock();
     }
   }
   
   long totalInodes() {
-    synchronized (rootDir) {
+    readLock();
+    try {
       return rootDir.numItemsInTree();
+    } finally {
+      readUnlock();
     }
   }
 
@@ -50,6 +50,7 @@ import org.apache.hadoop.io.*;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.permission.*;
 import org.apache.hadoop.security.token.delegation.DelegationKey;
+import org.apache.hadoop.util.Daemon;
 
 import org.apache.hadoop.thirdparty.guava.common.annotations.VisibleForTesting;
 
@@ -99,10 +100,18 @@ public class FSEditLog {
   // is a sync currently running?
   private volatile boolean isSyncRunning;
 
+  // flush the edit streams from a dedicated thread rather than
+  // from the handler calling logSync()
+  private boolean useSyncThread = false;
+  private Daemon syncThread = null;
+  // the highest transactionId a handler is waiting for
+  private long requestedSyncTxId = 0;
+
   // these are statistics counters.
   private long numTransactions;        // number of transactions
   private long numTransactionsBatchedInSync;
   private long totalTimeTransactions;  // total time for all transactions
+  private long numSyncs;               // syncs since the log was created
   private NameNodeMetrics metrics;
 
   private static class TransactionId {
@@ -405,6 +414,7 @@ public class FSEditLog {
    * Shutdown the file store.
    */
   public synchronized void close() throws IOException {
+    stopSyncThread();
     waitForSyncToFinish();
     if (editStreams == null) {
       return;
@@ -424,6 +434,7 @@ public class FSEditLog {
       }
     }
     editStreams.clear();
+    synctxid = txid;   // everything logged so far is on disk now
   }
 
   void fatalExit(String msg) {
@@ -1074,9 +1085,14 @@ public class FSEditLog {
    * Because this step is unsynchronized, actions that need to avoid
    * concurrency with sync() should be synchronized and also call
    * waitForSyncToFinish() before assuming they are running alone.
+   *
+   * If the sync thread is enabled the three steps are performed by the
+   * {@link EditLogSyncer} instead, and logSync() only waits until the
+   * transaction of the calling thread is durable. All transactions logged
+   * while a sync is running are then committed by the next sync as one
+   * group, and no handler thread ever blocks in fsync itself.
    */
   public void logSync() throws IOException {
-    ArrayList<EditLogOutputStream> errorStreams = null;
     long syncStart = 0;
 
     // Fetch the transactionId of this thread. 
@@ -1084,6 +1100,11 @@ public class FSEditLog {
 
     final int numEditStreams;
     synchronized (this) {
+      if (useSyncThread) {
+        waitForSyncThread(mytxid);
+        return;
+      }
+
       // if somebody is already syncing, then wait
       while (mytxid > synctxid && isSyncRunning) {
         try {
@@ -1116,6 +1137,17 @@ public class FSEditLog {
       }
     }
 
+    flushEditStreams(syncStart, numEditStreams);
+  }
+
+  /**
+   * Flush the ready buffers of the first numEditStreams streams and
+   * mark all transactions up to syncStart as synced.
+   * Must be called by the thread that has set isSyncRunning.
+   */
+  private void flushEditStreams(long syncStart, int numEditStreams) {
+    ArrayList<EditLogOutputStream> errorStreams = null;
+
     // do the sync
     long start = FSNamesystem.now();
     for (int idx = 0; idx < numEditStreams; idx++) {
@@ -1140,6 +1172,7 @@ public class FSEditLog {
        exitIfNoStreams();
        synctxid = syncStart;
        isSyncRunning = false;
+       numSyncs++;
        this.notifyAll();
     }
 
@@ -1147,6 +1180,107 @@ public class FSEditLog {
       metrics.syncs.inc(elapsed);
   }
 
+  /**
+   * Wait until the sync thread has made the given transaction durable.
+   * Starts the sync thread if it is not running.
+   */
+  private synchronized void waitForSyncThread(long mytxid) {
+    // a thread that has not logged anything yet syncs all edits
+    mytxid = Math.min(mytxid, txid);
+    printStatistics(false);
+    if (mytxid <= synctxid) {
+      numTransactionsBatchedInSync++;
+      if (metrics != null) // Metrics is non-null only when used inside name node
+        metrics.transactionsBatchedInSync.inc();
+      return;
+    }
+    if (mytxid > requestedSyncTxId) {
+      requestedSyncTxId = mytxid;
+      notifyAll(); // wake up the sync thread
+    }
+    while (mytxid > synctxid) {
+      if (syncThread == null) {
+        // not started yet, or stopped by close() while we were waiting
+        syncThread = new Daemon(new EditLogSyncer());
+        syncThread.setName("EditLogSyncer");
+        syncThread.start();
+      }
+      try {
+        wait(1000);
+      } catch (InterruptedException ie) {
+      }
+    }
+  }
+
+  /**
+   * Ask the sync thread to exit. Edits that are not synced yet
+   * are written by the caller, see {@link #close()}.
+   */
+  private synchronized void stopSyncThread() {
+    syncThread = null;
+    notifyAll();
+  }
+
+  /**
+   * Enable or disable flushing of the edit streams by a dedicated thread.
+   */
+  synchronized void setSyncThreadEnabled(boolean enabled) {
+    useSyncThread = enabled;
+    if (!enabled) {
+      stopSyncThread();
+    }
+  }
+
+  /**
+   * Flushes the edit streams whenever a handler waits for a transaction
+   * that is not synced yet. Every flush commits all transactions logged
+   * up to that point, so transactions logged while a flush is in progress
+   * are committed together by the following flush.
+   */
+  private class EditLogSyncer implements Runnable {
+    public void run() {
+      Thread self = Thread.currentThread();
+      try {
+        while (true) {
+          long syncStart;
+          int numEditStreams;
+          synchronized (FSEditLog.this) {
+            // a syncer stopped by close() may still be flushing
+            while (syncThread == self && (requestedSyncTxId <= synctxid
+                   || isSyncRunning
+                   || editStreams == null || editStreams.isEmpty())) {
+              try {
+                FSEditLog.this.wait(1000);
+              } catch (InterruptedException ie) {
+              }
+            }
+            if (syncThread != self) {
+              return;
+            }
+            numEditStreams = editStreams.size();
+            syncStart = txid;
+            isSyncRunning = true;
+            // swap buffers
+            for (int idx = 0; idx < numEditStreams; idx++) {
+              editStreams.get(idx).setReadyToFlush();
+            }
+          }
+          flushEditStreams(syncStart, numEditStreams);
+        }
+      } catch (Throwable t) {
+        FSNamesystem.LOG.error("Edit log sync thread failed", t);
+      } finally {
+        synchronized (FSEditLog.this) {
+          if (syncThread == self) {
+            syncThread = null;
+            isSyncRunning = false;
+          }
+          FSEditLog.this.notifyAll();
+        }
+      }
+    }
+  }
+
   //
   // print statistics every 1 minute.
   //
@@ -1482,6 +1616,20 @@ public class FSEditLog {
     return synctxid;
   }
 
+  /**
+   * Return the number of transactions logged since the log was opened.
+   */
+  synchronized long getNumTransactions() {
+    return numTransactions;
+  }
+
+  /**
+   * Return the number of syncs performed since the log was created.
+   */
+  synchronized long getNumSyncs() {
+    return numSyncs;
+  }
+
   // sets the initial capacity of the flush buffer.
   static void setBufferCapacity(int size) {
     sizeFlushBuffer = size;
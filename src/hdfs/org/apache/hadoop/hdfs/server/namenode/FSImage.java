@@ -19,6 +19,7 @@ package org.apache.hadoop.hdfs.server.namenode;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
@@ -27,12 +28,16 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
 import java.util.Random;
@@ -40,19 +45,31 @@ import java.util.Map;
 import java.util.HashMap;
 import java.lang.Math;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.permission.PermissionStatus;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.DFSUtil;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.protocol.DatanodeID;
 import org.apache.hadoop.hdfs.protocol.FSConstants;
 import org.apache.hadoop.hdfs.server.common.HdfsConstants.NodeType;
 import org.apache.hadoop.hdfs.server.common.HdfsConstants.StartupOption;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.UTF8;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
 import org.apache.hadoop.hdfs.server.namenode.NameNode;
 import org.apache.hadoop.hdfs.server.namenode.BlocksMap.BlockInfo;
 import org.apache.hadoop.hdfs.server.namenode.FSEditLog.EditLogFileInputStream;
@@ -61,6 +78,7 @@ import org.apache.hadoop.hdfs.server.common.Storage;
 import org.apache.hadoop.hdfs.server.common.StorageInfo;
 import org.apache.hadoop.hdfs.server.common.UpgradeManager;
 import org.apache.hadoop.hdfs.util.AtomicFileOutputStream;
+import org.apache.hadoop.util.ReflectionUtils;
 
 /**
  * FSImage handles checkpointing and logging of the namespace edits.
@@ -71,6 +89,14 @@ public class FSImage extends Storage {
   private static final SimpleDateFormat DATE_FORM =
     new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
+  /**
+   * Version written at the head of an image whose inodes are stored in
+   * sections. It only describes the image file: the namenode and datanode
+   * storage keep {@link FSConstants#LAYOUT_VERSION}, so switching to the
+   * sectioned image does not require an upgrade.
+   */
+  static final int SECTIONED_IMAGE_VERSION = -20;
+
   //
   // The filenames used for storing the images
   //
@@ -125,6 +151,27 @@ public class FSImage extends Storage {
   public boolean getRestoreFailedStorage() {
     return restoreFailedStorage;
   }
+
+  /**
+   * Set how the inodes of the image are split into sections and
+   * compressed when the image is saved, and how many threads
+   * encode and decode the sections.
+   */
+  void setImageParameters(Configuration conf) {
+    imageConf = conf;
+    imageCodecName = null;
+    if (conf.getBoolean(DFSConfigKeys.DFS_IMAGE_COMPRESS_KEY,
+                        DFSConfigKeys.DFS_IMAGE_COMPRESS_DEFAULT)) {
+      imageCodecName = conf.get(DFSConfigKeys.DFS_IMAGE_COMPRESSION_CODEC_KEY,
+          DFSConfigKeys.DFS_IMAGE_COMPRESSION_CODEC_DEFAULT);
+    }
+    imageThreads = Math.max(1, conf.getInt(
+        DFSConfigKeys.DFS_IMAGE_PARALLEL_THREADS_KEY,
+        DFSConfigKeys.DFS_IMAGE_PARALLEL_THREADS_DEFAULT));
+    imageSectionINodes = Math.max(1, conf.getLong(
+        DFSConfigKeys.DFS_IMAGE_SECTION_INODES_KEY,
+        DFSConfigKeys.DFS_IMAGE_SECTION_INODES_DEFAULT));
+  }
   
   /**
    * List of failed (and thus removed) storages
@@ -146,9 +193,17 @@ public class FSImage extends Storage {
   /**
    * Used for saving the image to disk
    */
-  static private final FsPermission FILE_PERM = new FsPermission((short)0);
   static private final byte[] PATH_SEPARATOR = DFSUtil.string2Bytes(Path.SEPARATOR);
 
+  /**
+   * Layout of the image sections, see {@link #setImageParameters}.
+   */
+  private Configuration imageConf = null;
+  private String imageCodecName = null;
+  private int imageThreads = DFSConfigKeys.DFS_IMAGE_PARALLEL_THREADS_DEFAULT;
+  private long imageSectionINodes =
+    DFSConfigKeys.DFS_IMAGE_SECTION_INODES_DEFAULT;
+
   /**
    */
   FSImage() {
@@ -904,102 +959,24 @@ public class FSImage extends Storage {
         numFiles = in.readInt();
       }
 
-      this.layoutVersion = imgVersion;
+      this.layoutVersion = (imgVersion == SECTIONED_IMAGE_VERSION)
+                           ? FSConstants.LAYOUT_VERSION : imgVersion;
       // read in the last generation stamp.
       if (imgVersion <= -12) {
         long genstamp = in.readLong();
         fsNamesys.setGenerationStamp(genstamp); 
       }
 
-      needToSave = (imgVersion != FSConstants.LAYOUT_VERSION);
-
-      // read file info
-      short replication = FSNamesystem.getFSNamesystem().getDefaultReplication();
+      needToSave = (imgVersion != SECTIONED_IMAGE_VERSION);
 
       LOG.info("Number of files = " + numFiles);
 
-      String path;
-      String parentPath = "";
-      INodeDirectory parentINode = fsDir.rootDir;
-      for (long i = 0; i < numFiles; i++) {
-        long modificationTime = 0;
-        long atime = 0;
-        long blockSize = 0;
-        path = readString(in);
-        replication = in.readShort();
-        replication = FSEditLog.adjustReplication(replication);
-        modificationTime = in.readLong();
-        if (imgVersion <= -17) {
-          atime = in.readLong();
-        }
-        if (imgVersion <= -8) {
-          blockSize = in.readLong();
-        }
-        int numBlocks = in.readInt();
-        Block blocks[] = null;
-
-        // for older versions, a blocklist of size 0
-        // indicates a directory.
-        if ((-9 <= imgVersion && numBlocks > 0) ||
-            (imgVersion < -9 && numBlocks >= 0)) {
-          blocks = new Block[numBlocks];
-          for (int j = 0; j < numBlocks; j++) {
-            blocks[j] = new Block();
-            if (-14 < imgVersion) {
-              blocks[j].set(in.readLong(), in.readLong(), 
-                            Block.GRANDFATHER_GENERATION_STAMP);
-            } else {
-              blocks[j].readFields(in);
-            }
-          }
-        }
-        // Older versions of HDFS does not store the block size in inode.
-        // If the file has more than one block, use the size of the 
-        // first block as the blocksize. Otherwise use the default block size.
-        //
-        if (-8 <= imgVersion && blockSize == 0) {
-          if (numBlocks > 1) {
-            blockSize = blocks[0].getNumBytes();
-          } else {
-            long first = ((numBlocks == 1) ? blocks[0].getNumBytes(): 0);
-            blockSize = Math.max(fsNamesys.getDefaultBlockSize(), first);
-          }
-        }
-        
-        // get quota only when the node is a directory
-        long nsQuota = -1L;
-        if (imgVersion <= -16 && blocks == null) {
-          nsQuota = in.readLong();
-        }
-        long dsQuota = -1L;
-        if (imgVersion <= -18 && blocks == null) {
-          dsQuota = in.readLong();
-        }
-        
-        PermissionStatus permissions = fsNamesys.getUpgradePermission();
-        if (imgVersion <= -11) {
-          permissions = PermissionStatus.read(in);
-        }
-        if (path.length() == 0) { // it is the root
-          // update the root's attributes
-          if (nsQuota != -1 || dsQuota != -1) {
-            fsDir.rootDir.setQuota(nsQuota, dsQuota);
-          }
-          fsDir.rootDir.setModificationTime(modificationTime);
-          fsDir.rootDir.setPermissionStatus(permissions);
-          continue;
-        }
-        // check if the new inode belongs to the same parent
-        if(!isParent(path, parentPath)) {
-          parentINode = null;
-          parentPath = getParent(path);
-        }
-        // add new inode
-        parentINode = fsDir.addToParent(path, parentINode, permissions,
-                                        blocks, replication, modificationTime, 
-                                        atime, nsQuota, dsQuota, blockSize);
+      if (imgVersion <= SECTIONED_IMAGE_VERSION) {
+        loadImageSections(in, numFiles, fsDir);
+      } else {
+        loadINodes(imgVersion, in, numFiles, fsNamesys);
       }
-      
+
       // load datanode info
       this.loadDatanodes(imgVersion, in);
 
@@ -1015,6 +992,99 @@ public class FSImage extends Storage {
     return needToSave;
   }
 
+  /**
+   * Load the inodes of an image written before the inodes were
+   * split into sections.
+   */
+  private void loadINodes(int imgVersion, DataInputStream in, long numFiles,
+                          FSNamesystem fsNamesys) throws IOException {
+    FSDirectory fsDir = fsNamesys.dir;
+    // read file info
+    short replication = FSNamesystem.getFSNamesystem().getDefaultReplication();
+
+    String path;
+    String parentPath = "";
+    INodeDirectory parentINode = fsDir.rootDir;
+    for (long i = 0; i < numFiles; i++) {
+      long modificationTime = 0;
+      long atime = 0;
+      long blockSize = 0;
+      path = readString(in);
+      replication = in.readShort();
+      replication = FSEditLog.adjustReplication(replication);
+      modificationTime = in.readLong();
+      if (imgVersion <= -17) {
+        atime = in.readLong();
+      }
+      if (imgVersion <= -8) {
+        blockSize = in.readLong();
+      }
+      int numBlocks = in.readInt();
+      Block blocks[] = null;
+
+      // for older versions, a blocklist of size 0
+      // indicates a directory.
+      if ((-9 <= imgVersion && numBlocks > 0) ||
+          (imgVersion < -9 && numBlocks >= 0)) {
+        blocks = new Block[numBlocks];
+        for (int j = 0; j < numBlocks; j++) {
+          blocks[j] = new Block();
+          if (-14 < imgVersion) {
+            blocks[j].set(in.readLong(), in.readLong(), 
+                          Block.GRANDFATHER_GENERATION_STAMP);
+          } else {
+            blocks[j].readFields(in);
+          }
+        }
+      }
+      // Older versions of HDFS does not store the block size in inode.
+      // If the file has more than one block, use the size of the 
+      // first block as the blocksize. Otherwise use the default block size.
+      //
+      if (-8 <= imgVersion && blockSize == 0) {
+        if (numBlocks > 1) {
+          blockSize = blocks[0].getNumBytes();
+        } else {
+          long first = ((numBlocks == 1) ? blocks[0].getNumBytes(): 0);
+          blockSize = Math.max(fsNamesys.getDefaultBlockSize(), first);
+        }
+      }
+      
+      // get quota only when the node is a directory
+      long nsQuota = -1L;
+      if (imgVersion <= -16 && blocks == null) {
+        nsQuota = in.readLong();
+      }
+      long dsQuota = -1L;
+      if (imgVersion <= -18 && blocks == null) {
+        dsQuota = in.readLong();
+      }
+      
+      PermissionStatus permissions = fsNamesys.getUpgradePermission();
+      if (imgVersion <= -11) {
+        permissions = PermissionStatus.read(in);
+      }
+      if (path.length() == 0) { // it is the root
+        // update the root's attributes
+        if (nsQuota != -1 || dsQuota != -1) {
+          fsDir.rootDir.setQuota(nsQuota, dsQuota);
+        }
+        fsDir.rootDir.setModificationTime(modificationTime);
+        fsDir.rootDir.setPermissionStatus(permissions);
+        continue;
+      }
+      // check if the new inode belongs to the same parent
+      if(!isParent(path, parentPath)) {
+        parentINode = null;
+        parentPath = getParent(path);
+      }
+      // add new inode
+      parentINode = fsDir.addToParent(path, parentINode, permissions,
+                                      blocks, replication, modificationTime, 
+                                      atime, nsQuota, dsQuota, blockSize);
+    }
+  }
+
   /**
    * Return string representing the parent of the given path.
    */
@@ -1028,6 +1098,418 @@ public class FSImage extends Storage {
           && path.lastIndexOf(Path.SEPARATOR) == parent.length();
   }
 
+  /**
+   * An inode decoded from an image section, not yet linked to its parent.
+   */
+  private static class LoadedINode {
+    final String path;
+    final byte[][] pathComponents;
+    final INode node;
+    final Block[] blocks;
+
+    LoadedINode(String path, INode node, Block[] blocks) {
+      this.path = path;
+      this.pathComponents = path.length() == 0 ? null // the root
+                                              : INode.getPathComponents(path);
+      this.node = node;
+      this.blocks = blocks;
+    }
+  }
+
+  /**
+   * Load the inodes of the image, which are stored in sections.
+   * Each section is an independently decodable, optionally compressed,
+   * run of inodes in the order they are linked into the namespace tree.
+   * The sections are read sequentially and decoded by a pool of threads,
+   * while this thread links the decoded inodes to their parents
+   * in the order of the sections.
+   */
+  private void loadImageSections(DataInputStream in, long numFiles,
+                                 FSDirectory fsDir) throws IOException {
+    final CompressionCodec codec = in.readBoolean() ?
+        getImageCodec(Text.readString(in), getImageConf()) : null;
+    int numSections = in.readInt();
+    LOG.info("Loading " + numSections + " image sections" +
+             (codec == null ? "" : " compressed with " +
+              codec.getClass().getSimpleName()));
+
+    ExecutorService pool = newImageThreadPool(numSections);
+    LinkedList<Future<LoadedINode[]>> pending =
+      new LinkedList<Future<LoadedINode[]>>();
+    long numLoaded = 0;
+    String parentPath = "";
+    INodeDirectory parentINode = fsDir.rootDir;
+    try {
+      for (int i = 0; i <= numSections; i++) {
+        if (i < numSections) {
+          final long numINodes = in.readLong();
+          final byte[] data = new byte[in.readInt()];
+          in.readFully(data);
+          pending.add(submitImageTask(pool, new Callable<LoadedINode[]>() {
+            public LoadedINode[] call() throws IOException {
+              return loadImageSection(data, numINodes, codec);
+            }
+          }));
+          // bound the number of decoded sections held in memory
+          if (pending.size() < 2 * imageThreads)
+            continue;
+        }
+        while (!pending.isEmpty()) {
+          for (LoadedINode inode : getImageTaskResult(pending.removeFirst())) {
+            numLoaded++;
+            if (inode.path.length() == 0) { // it is the root
+              // update the root's attributes
+              INode root = inode.node;
+              if (root.getNsQuota() != -1 || root.getDsQuota() != -1) {
+                fsDir.rootDir.setQuota(root.getNsQuota(), root.getDsQuota());
+              }
+              fsDir.rootDir.setModificationTime(root.getModificationTime());
+              fsDir.rootDir.setPermissionStatus(root.getPermissionStatus());
+              continue;
+            }
+            // check if the new inode belongs to the same parent
+            if(!isParent(inode.path, parentPath)) {
+              parentINode = null;
+              parentPath = getParent(inode.path);
+            }
+            // add new inode
+            parentINode = fsDir.addToParent(inode.path, inode.pathComponents,
+                parentINode, inode.node, inode.blocks);
+          }
+          if (i < numSections)
+            break;
+        }
+      }
+    } finally {
+      if (pool != null) {
+        pool.shutdownNow();
+      }
+    }
+    if (numLoaded != numFiles) {
+      throw new IOException("Image sections contain " + numLoaded +
+                            " inodes, expected " + numFiles);
+    }
+  }
+
+  /**
+   * Decode the inodes of one image section.
+   * Safe to call from several threads at once.
+   */
+  private static LoadedINode[] loadImageSection(byte[] data, long numINodes,
+                                                CompressionCodec codec
+                                                ) throws IOException {
+    if (numINodes < 0 || numINodes > Integer.MAX_VALUE) {
+      throw new IOException("Invalid number of inodes in image section: "
+                            + numINodes);
+    }
+    InputStream sectionIn = new ByteArrayInputStream(data);
+    if (codec != null) {
+      sectionIn = new BufferedInputStream(codec.createInputStream(sectionIn));
+    }
+    DataInputStream in = new DataInputStream(sectionIn);
+    try {
+      UTF8 pathBuf = new UTF8();
+      LoadedINode[] inodes = new LoadedINode[(int)numINodes];
+      for (int i = 0; i < inodes.length; i++) {
+        pathBuf.readFields(in);
+        String path = pathBuf.toString();
+        short replication = FSEditLog.adjustReplication(in.readShort());
+        long modificationTime = in.readLong();
+        long atime = in.readLong();
+        long blockSize = in.readLong();
+        int numBlocks = in.readInt();
+        Block blocks[] = null;
+        if (numBlocks >= 0) {
+          blocks = new Block[numBlocks];
+          for (int j = 0; j < numBlocks; j++) {
+            blocks[j] = new Block();
+            blocks[j].readFields(in);
+          }
+        }
+        // get quota only when the node is a directory
+        long nsQuota = -1L;
+        long dsQuota = -1L;
+        if (blocks == null) {
+          nsQuota = in.readLong();
+          dsQuota = in.readLong();
+        }
+        PermissionStatus permissions = PermissionStatus.read(in);
+        INode node = FSDirectory.newINode(permissions, blocks, replication,
+            modificationTime, atime, nsQuota, dsQuota, blockSize);
+        inodes[i] = new LoadedINode(path, node, blocks);
+      }
+      if (in.read() != -1) {
+        throw new IOException("Image section has data after its last inode");
+      }
+      return inodes;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Save the inodes of the namespace as a sequence of sections.
+   * The sections split the inodes in the order
+   * {@link #saveImage(ByteBuffer, int, INodeDirectory, DataOutputStream,
+   * FsPermission)} writes them, so every inode is stored after its parent.
+   * Sections are encoded and compressed by a pool of threads
+   * and written in order.
+   */
+  private void saveImageSections(INodeDirectory root, long numINodes,
+                                 DataOutputStream out) throws IOException {
+    final CompressionCodec codec = imageCodecName == null ? null :
+      getImageCodec(imageCodecName, getImageConf());
+    out.writeBoolean(codec != null);
+    if (codec != null) {
+      Text.writeString(out, codec.getClass().getName());
+    }
+
+    List<List<SaveUnit>> sections = planImageSections(root, numINodes);
+    out.writeInt(sections.size());
+    LOG.info("Saving " + numINodes + " inodes in " + sections.size() +
+             " image sections" + (codec == null ? "" : " compressed with " +
+             codec.getClass().getSimpleName()));
+
+    ExecutorService pool = newImageThreadPool(sections.size());
+    LinkedList<Future<DataOutputBuffer>> pending =
+      new LinkedList<Future<DataOutputBuffer>>();
+    LinkedList<Long> pendingINodes = new LinkedList<Long>();
+    try {
+      for (int i = 0; i <= sections.size(); i++) {
+        if (i < sections.size()) {
+          final List<SaveUnit> units = sections.get(i);
+          final boolean withRoot = (i == 0);
+          long sectionINodes = withRoot ? 1 : 0;
+          for (SaveUnit unit : units) {
+            sectionINodes += unit.numINodes;
+          }
+          pendingINodes.add(sectionINodes);
+          pending.add(submitImageTask(pool, new Callable<DataOutputBuffer>() {
+            public DataOutputBuffer call() throws IOException {
+              return saveImageSection(units, withRoot, codec);
+            }
+          }));
+          // bound the number of encoded sections held in memory
+          if (pending.size() < 2 * imageThreads)
+            continue;
+        }
+        while (!pending.isEmpty()) {
+          DataOutputBuffer section = getImageTaskResult(pending.removeFirst());
+          out.writeLong(pendingINodes.removeFirst());
+          out.writeInt(section.getLength());
+          out.write(section.getData(), 0, section.getLength());
+          if (i < sections.size())
+            break;
+        }
+      }
+    } finally {
+      if (pool != null) {
+        pool.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Encode one image section.
+   * Safe to call from several threads at once.
+   */
+  private static DataOutputBuffer saveImageSection(List<SaveUnit> units,
+                                                   boolean withRoot,
+                                                   CompressionCodec codec
+                                                   ) throws IOException {
+    DataOutputBuffer buf = new DataOutputBuffer();
+    DataOutputStream out = buf;
+    CompressionOutputStream compressedOut = null;
+    if (codec != null) {
+      compressedOut = codec.createOutputStream(buf);
+      out = new DataOutputStream(new BufferedOutputStream(compressedOut));
+    }
+    byte[] byteStore = new byte[4*FSConstants.MAX_PATH_LENGTH];
+    ByteBuffer strbuf = ByteBuffer.wrap(byteStore);
+    FsPermission perm = new FsPermission((short)0);
+    if (withRoot) {
+      saveINode2Image(strbuf, units.get(0).dir, out, perm);
+    }
+    for (SaveUnit unit : units) {
+      strbuf.clear();
+      strbuf.put(unit.path);
+      if (unit.recursive) {
+        saveImage(strbuf, unit.path.length, unit.dir, out, perm);
+      } else {
+        saveChildren(strbuf, unit.path.length, unit.dir, out, perm);
+      }
+    }
+    out.flush();
+    if (compressedOut != null) {
+      compressedOut.finish();
+      out.close();
+    }
+    return buf;
+  }
+
+  /**
+   * The children of a directory, either alone or followed by
+   * the whole subtree below them.
+   * The inodes of an image section are a sequence of these.
+   */
+  private static class SaveUnit {
+    final byte[] path;
+    final INodeDirectory dir;
+    final boolean recursive;
+    final long numINodes;
+
+    SaveUnit(byte[] path, INodeDirectory dir, boolean recursive,
+             long numINodes) {
+      this.path = path;
+      this.dir = dir;
+      this.recursive = recursive;
+      this.numINodes = numINodes;
+    }
+  }
+
+  /**
+   * Split the namespace into sections of about
+   * {@link DFSConfigKeys#DFS_IMAGE_SECTION_INODES_KEY} inodes each.
+   * The first section starts with the root.
+   */
+  private List<List<SaveUnit>> planImageSections(INodeDirectory root,
+                                                 long numINodes) {
+    List<SaveUnit> units = new ArrayList<SaveUnit>();
+    if (numINodes <= imageSectionINodes) {
+      units.add(new SaveUnit(new byte[0], root, true, numINodes - 1));
+    } else {
+      byte[] byteStore = new byte[4*FSConstants.MAX_PATH_LENGTH];
+      planSaveUnits(ByteBuffer.wrap(byteStore), root, units);
+    }
+    List<List<SaveUnit>> sections = new ArrayList<List<SaveUnit>>();
+    List<SaveUnit> section = null;
+    long sectionINodes = 0;
+    for (SaveUnit unit : units) {
+      if (section == null) {
+        section = new ArrayList<SaveUnit>();
+        sections.add(section);
+      }
+      section.add(unit);
+      sectionINodes += unit.numINodes;
+      if (sectionINodes >= imageSectionINodes) {
+        section = null;
+        sectionINodes = 0;
+      }
+    }
+    return sections;
+  }
+
+  /**
+   * Split the subtree below a directory into save units of at most
+   * {@link #imageSectionINodes} inodes, unless a single directory has
+   * more children than that.
+   * 
+   * @return the number of inodes below the directory
+   */
+  private long planSaveUnits(ByteBuffer prefix, INodeDirectory dir,
+                             List<SaveUnit> units) {
+    int prefixLength = prefix.position();
+    int first = units.size();
+    List<INode> children = dir.getChildren();
+    byte[] path = Arrays.copyOf(prefix.array(), prefixLength);
+    units.add(new SaveUnit(path, dir, false, children.size()));
+    long numINodes = children.size();
+    for (INode child : children) {
+      if (!child.isDirectory())
+        continue;
+      prefix.position(prefixLength);
+      prefix.put(PATH_SEPARATOR).put(child.getLocalNameBytes());
+      numINodes += planSaveUnits(prefix, (INodeDirectory)child, units);
+    }
+    prefix.position(prefixLength);
+    if (numINodes <= imageSectionINodes) {
+      // the whole subtree fits into one unit
+      units.subList(first + 1, units.size()).clear();
+      units.set(first, new SaveUnit(path, dir, true, numINodes));
+    }
+    return numINodes;
+  }
+
+  /**
+   * Create the pool of threads encoding or decoding image sections,
+   * or null if the sections should be handled by the calling thread.
+   */
+  private ExecutorService newImageThreadPool(int numSections) {
+    int numThreads = Math.min(imageThreads, numSections);
+    if (numThreads <= 1) {
+      return null;
+    }
+    return Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+      int counter = 0;
+
+      @Override
+      public Thread newThread(Runnable r) {
+        int thisIndex;
+        synchronized (this) {
+          thisIndex = counter++;
+        }
+        Thread t = new Thread(r, "Image section worker #" + thisIndex);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Run the task in the pool, or right away if there is no pool.
+   */
+  private static <T> Future<T> submitImageTask(ExecutorService pool,
+                                               Callable<T> task) {
+    if (pool != null) {
+      return pool.submit(task);
+    }
+    FutureTask<T> future = new FutureTask<T>(task);
+    future.run();
+    return future;
+  }
+
+  private static <T> T getImageTaskResult(Future<T> future)
+      throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw (InterruptedIOException)new InterruptedIOException(
+          "Interrupted while waiting for an image section").initCause(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      }
+      throw (IOException)new IOException(
+          "Failed to process an image section").initCause(cause);
+    }
+  }
+
+  private Configuration getImageConf() {
+    return imageConf != null ? imageConf : new Configuration();
+  }
+
+  /**
+   * Instantiate the codec the image sections are compressed with.
+   */
+  // This should be reverted to package private once the ImageLoader
+  // code is moved into this package. This method should not be called
+  // by other code.
+  public static CompressionCodec getImageCodec(String codecClassName,
+      Configuration conf) throws IOException {
+    try {
+      Class<?> codecClass = conf.getClassByName(codecClassName);
+      if (!CompressionCodec.class.isAssignableFrom(codecClass)) {
+        throw new IOException(codecClassName + " is not a compression codec");
+      }
+      return (CompressionCodec)ReflectionUtils.newInstance(codecClass, conf);
+    } catch (ClassNotFoundException e) {
+      throw (IOException)new IOException(
+          "Image compression codec " + codecClassName + " not found"
+          ).initCause(e);
+    }
+  }
+
   /**
    * Load and merge edits from two edits files
    * 
@@ -1067,19 +1549,15 @@ public class FSImage extends Storage {
     DataOutputStream out = new DataOutputStream(
       new BufferedOutputStream(fos));
     try {
-      out.writeInt(FSConstants.LAYOUT_VERSION);
+      out.writeInt(SECTIONED_IMAGE_VERSION);
       out.writeInt(namespaceID);
-      out.writeLong(fsDir.rootDir.numItemsInTree());
+      long numINodes = fsDir.rootDir.numItemsInTree();
+      out.writeLong(numINodes);
       out.writeLong(fsNamesys.getGenerationStamp());
-      byte[] byteStore = new byte[4*FSConstants.MAX_PATH_LENGTH];
-      ByteBuffer strbuf = ByteBuffer.wrap(byteStore);
-      // save the root
-      saveINode2Image(strbuf, fsDir.rootDir, out);
-      // save the rest of the nodes
-      saveImage(strbuf, 0, fsDir.rootDir, out);
+      // save the root and the rest of the nodes
+      saveImageSections(fsDir.rootDir, numINodes, out);
       fsNamesys.saveFilesUnderConstruction(out);
       fsNamesys.saveSecretManagerState(out);
-      strbuf = null;
 
       out.flush();
       fos.getChannel().force(true);
@@ -1283,7 +1761,8 @@ public class FSImage extends Storage {
    */
   private static void saveINode2Image(ByteBuffer name,
                                       INode node,
-                                      DataOutputStream out) throws IOException {
+                                      DataOutputStream out,
+                                      FsPermission perm) throws IOException {
     int nameLen = name.position();
     out.writeShort(nameLen);
     out.write(name.array(), name.arrayOffset(), nameLen);
@@ -1297,10 +1776,10 @@ public class FSImage extends Storage {
       out.writeInt(blocks.length);
       for (Block blk : blocks)
         blk.write(out);
-      FILE_PERM.fromShort(fileINode.getFsPermissionShort());
+      perm.fromShort(fileINode.getFsPermissionShort());
       PermissionStatus.write(out, fileINode.getUserName(),
                              fileINode.getGroupName(),
-                             FILE_PERM);
+                             perm);
     } else {   // write directory inode
       out.writeShort(0);  // replication
       out.writeLong(node.getModificationTime());
@@ -1309,10 +1788,10 @@ public class FSImage extends Storage {
       out.writeInt(-1);    // # of blocks
       out.writeLong(node.getNsQuota());
       out.writeLong(node.getDsQuota());
-      FILE_PERM.fromShort(node.getFsPermissionShort());
+      perm.fromShort(node.getFsPermissionShort());
       PermissionStatus.write(out, node.getUserName(),
                              node.getGroupName(),
-                             FILE_PERM);
+                             perm);
     }
   }
   /**
@@ -1323,23 +1802,39 @@ public class FSImage extends Storage {
   private static void saveImage(ByteBuffer parentPrefix,
                                 int prefixLength,
                                 INodeDirectory current,
-                                DataOutputStream out) throws IOException {
+                                DataOutputStream out,
+                                FsPermission perm) throws IOException {
     int newPrefixLength = prefixLength;
     if (current.getChildrenRaw() == null)
       return;
+    // print all children first
+    saveChildren(parentPrefix, prefixLength, current, out, perm);
     for(INode child : current.getChildren()) {
-      // print all children first
+      if(!child.isDirectory())
+        continue;
       parentPrefix.position(prefixLength);
       parentPrefix.put(PATH_SEPARATOR).put(child.getLocalNameBytes());
-      saveINode2Image(parentPrefix, child, out);
+      newPrefixLength = parentPrefix.position();
+      saveImage(parentPrefix, newPrefixLength, (INodeDirectory)child, out,
+                perm);
     }
+    parentPrefix.position(prefixLength);
+  }
+
+  /**
+   * Save the children of a directory, but not the subtrees below them.
+   */
+  private static void saveChildren(ByteBuffer parentPrefix,
+                                   int prefixLength,
+                                   INodeDirectory current,
+                                   DataOutputStream out,
+                                   FsPermission perm) throws IOException {
+    if (current.getChildrenRaw() == null)
+      return;
     for(INode child : current.getChildren()) {
-      if(!child.isDirectory())
-        continue;
       parentPrefix.position(prefixLength);
       parentPrefix.put(PATH_SEPARATOR).put(child.getLocalNameBytes());
-      newPrefixLength = parentPrefix.position();
-      saveImage(parentPrefix, newPrefixLength, (INodeDirectory)child, out);
+      saveINode2Image(parentPrefix, child, out, perm);
     }
     parentPrefix.position(prefixLength);
   }
@@ -89,6 +89,8 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.Map.Entry;
 
 import javax.management.NotCompliantMBeanException;
@@ -179,8 +181,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
   // Mapping: Block -> { INode, datanodes, self ref } 
   // Updated only in response to client-sent information.
   //
-  final BlocksMap blocksMap = new BlocksMap(DEFAULT_INITIAL_MAP_CAPACITY, 
-                                            DEFAULT_MAP_LOAD_FACTOR);
+  BlocksMap blocksMap;
 
   //
   // Store blocks-->datanodedescriptor(s) map of corrupt replicas
@@ -274,6 +275,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
   private int defaultReplication;
   // Variable to stall new replication checks for testing purposes
   private volatile boolean stallReplicationWork = false;
+  // Variable to stall sending deletions to datanodes for testing purposes
+  private volatile boolean stallInvalidateWork = false;
   // heartbeatRecheckInterval is how often namenode checks for expired datanodes
   private long heartbeatRecheckInterval;
   // heartbeatExpireInterval is how long namenode waits for datanode to report
@@ -322,10 +325,37 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
 
   // Ask Datanode only up to this many blocks to delete.
   private int blockInvalidateLimit = DFSConfigKeys.DFS_BLOCK_INVALIDATE_LIMIT_DEFAULT;
+  /** Number of blocks of a block report processed under one lock hold */
+  private int blockReportChunkSize;
 
   // precision of access times.
   private long accessTimePrecision = 0;
   private String nameNodeHostName;
+
+  /**
+   * The namespace lock.  Operations that only read the namespace, the
+   * blocks map or the datanode map hold the read lock and may run in
+   * parallel; operations that modify them hold the write lock.
+   * The lock must be acquired before {@link FSDirectory}'s own lock,
+   * {@link #heartbeats} and {@link #datanodeMap}.
+   */
+  private ReentrantReadWriteLock fsLock;
+  // namespace lock statistics, published through FSNamesystemMBean
+  private final AtomicLong readLockCount = new AtomicLong();
+  private final AtomicLong readLockWaitNanos = new AtomicLong();
+  private final AtomicLong readLockHoldNanos = new AtomicLong();
+  private final AtomicLong writeLockCount = new AtomicLong();
+  private final AtomicLong writeLockWaitNanos = new AtomicLong();
+  private final AtomicLong writeLockHoldNanos = new AtomicLong();
+  // time the outermost write lock was taken; only touched by the writer
+  private long writeLockHeldSince;
+  // time the calling thread took its outermost read lock
+  private final ThreadLocal<long[]> readLockHeldSince =
+    new ThreadLocal<long[]>() {
+      protected long[] initialValue() {
+        return new long[1];
+      }
+  };
   
   /**
    * FSNamesystem constructor.
@@ -371,6 +401,9 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
     StartupOption startOpt = NameNode.getStartupOption(conf);
     this.dir.loadFSImage(getNamespaceDirs(conf),
                          getNamespaceEditsDirs(conf), startOpt);
+    getEditLog().setSyncThreadEnabled(conf.getBoolean(
+        DFSConfigKeys.DFS_NAMENODE_EDITS_SYNC_THREAD_KEY,
+        DFSConfigKeys.DFS_NAMENODE_EDITS_SYNC_THREAD_DEFAULT));
     long timeTakenToLoadFSImage = now() - systemStart;
     LOG.info("Finished loading FSImage in " + timeTakenToLoadFSImage + " msecs");
     NameNode.getNameNodeMetrics().fsImageLoadTime.set(
@@ -456,6 +489,10 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    */
   private void setConfigurationParameters(Configuration conf) 
                                           throws IOException {
+    this.fsLock = new ReentrantReadWriteLock(conf.getBoolean(
+        DFSConfigKeys.DFS_NAMENODE_FSLOCK_FAIR_KEY,
+        DFSConfigKeys.DFS_NAMENODE_FSLOCK_FAIR_DEFAULT));
+    this.blocksMap = new BlocksMap(conf);
     fsNamesystemObject = this;
     fsOwner = UserGroupInformation.getCurrentUser();
     LOG.info("fsOwner=" + fsOwner);
@@ -509,6 +546,9 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
     this.blockInvalidateLimit = conf.getInt(
         DFSConfigKeys.DFS_BLOCK_INVALIDATE_LIMIT_KEY, this.blockInvalidateLimit);
     LOG.info(DFSConfigKeys.DFS_BLOCK_INVALIDATE_LIMIT_KEY + "=" + this.blockInvalidateLimit);
+    this.blockReportChunkSize = conf.getInt(
+        DFSConfigKeys.DFS_NAMENODE_BLOCKREPORT_CHUNK_SIZE_KEY,
+        DFSConfigKeys.DFS_NAMENODE_BLOCKREPORT_CHUNK_SIZE_DEFAULT);
 
     this.accessTimePrecision = conf.getLong("dfs.access.time.precision", 0);
     this.allowBrokenAppend = conf.getBoolean("dfs.support.broken.append", false);
@@ -546,10 +586,66 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
     return fsNamesystemObject;
   } 
 
-  synchronized NamespaceInfo getNamespaceInfo() {
-    return new NamespaceInfo(dir.fsImage.getNamespaceID(),
-                             dir.fsImage.getCTime(),
-                             getDistributedUpgradeVersion());
+  /** Acquire the namespace read lock. */
+  void readLock() {
+    long start = System.nanoTime();
+    fsLock.readLock().lock();
+    if (fsLock.getReadHoldCount() == 1) {
+      long now = System.nanoTime();
+      readLockCount.incrementAndGet();
+      readLockWaitNanos.addAndGet(now - start);
+      readLockHeldSince.get()[0] = now;
+    }
+  }
+
+  /** Release the namespace read lock. */
+  void readUnlock() {
+    if (fsLock.getReadHoldCount() == 1) {
+      readLockHoldNanos.addAndGet(
+          System.nanoTime() - readLockHeldSince.get()[0]);
+    }
+    fsLock.readLock().unlock();
+  }
+
+  /** Acquire the namespace write lock. */
+  void writeLock() {
+    long start = System.nanoTime();
+    fsLock.writeLock().lock();
+    if (fsLock.getWriteHoldCount() == 1) {
+      long now = System.nanoTime();
+      writeLockCount.incrementAndGet();
+      writeLockWaitNanos.addAndGet(now - start);
+      writeLockHeldSince = now;
+    }
+  }
+
+  /** Release the namespace write lock. */
+  void writeUnlock() {
+    if (fsLock.getWriteHoldCount() == 1) {
+      writeLockHoldNanos.addAndGet(System.nanoTime() - writeLockHeldSince);
+    }
+    fsLock.writeLock().unlock();
+  }
+
+  /** @return true if the calling thread holds the namespace write lock */
+  boolean hasWriteLock() {
+    return fsLock.isWriteLockedByCurrentThread();
+  }
+
+  /** @return true if the calling thread holds the namespace lock */
+  boolean hasReadOrWriteLock() {
+    return fsLock.getReadHoldCount() > 0 || hasWriteLock();
+  }
+
+  NamespaceInfo getNamespaceInfo() {
+    readLock();
+    try {
+      return new NamespaceInfo(dir.fsImage.getNamespaceID(),
+                               dir.fsImage.getCTime(),
+                               getDistributedUpgradeVersion());
+    } finally {
+      readUnlock();
+    }
   }
 
   /**
@@ -579,7 +675,9 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
         if (dir != null) {
           dir.close();
         }
-        blocksMap.close();
+        if (blocksMap != null) {
+          blocksMap.close();
+        }
       } catch (InterruptedException ie) {
       } catch (IOException ie) {
         LOG.error("Error closing FSDirectory", ie);
@@ -596,95 +694,100 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
   /**
    * Dump all metadata into specified file
    */
-  synchronized void metaSave(String filename) throws IOException {
-    checkSuperuserPrivilege();
-    File file = new File(System.getProperty("hadoop.log.dir"), 
-                         filename);
-    PrintWriter out = new PrintWriter(new BufferedWriter(
-                                                         new FileWriter(file, true)));
+  void metaSave(String filename) throws IOException {
+    writeLock();
+    try {
+      checkSuperuserPrivilege();
+      File file = new File(System.getProperty("hadoop.log.dir"), 
+                           filename);
+      PrintWriter out = new PrintWriter(new BufferedWriter(
+                                                           new FileWriter(file, true)));
  
-    long totalInodes = this.dir.totalInodes();
-    long totalBlocks = this.getBlocksTotal();
+      long totalInodes = this.dir.totalInodes();
+      long totalBlocks = this.getBlocksTotal();
 
-    ArrayList<DatanodeDescriptor> live = new ArrayList<DatanodeDescriptor>();
-    ArrayList<DatanodeDescriptor> dead = new ArrayList<DatanodeDescriptor>();
-    this.DFSNodesStatus(live, dead);
+      ArrayList<DatanodeDescriptor> live = new ArrayList<DatanodeDescriptor>();
+      ArrayList<DatanodeDescriptor> dead = new ArrayList<DatanodeDescriptor>();
+      this.DFSNodesStatus(live, dead);
     
-    String str = totalInodes + " files and directories, " + totalBlocks
-        + " blocks = " + (totalInodes + totalBlocks) + " total";
-    out.println(str);
-    out.println("Live Datanodes: "+live.size());
-    out.println("Dead Datanodes: "+dead.size());
+      String str = totalInodes + " files and directories, " + totalBlocks
+          + " blocks = " + (totalInodes + totalBlocks) + " total";
+      out.println(str);
+      out.println("Live Datanodes: "+live.size());
+      out.println("Dead Datanodes: "+dead.size());
 
-    //
-    // Dump contents of neededReplication
-    //
-    synchronized (neededReplications) {
-      out.println("Metasave: Blocks waiting for replication: " + 
-                  neededReplications.size());
-      for (Block block : neededReplications) {
-        List<DatanodeDescriptor> containingNodes =
-                                          new ArrayList<DatanodeDescriptor>();
-        List<DatanodeDescriptor> containingLiveReplicaNodes =
-          new ArrayList<DatanodeDescriptor>();
-        NumberReplicas numReplicas = new NumberReplicas();
-        // source node returned is not used
-        chooseSourceDatanode(block, containingNodes,
-            containingLiveReplicaNodes, numReplicas);
-        assert containingLiveReplicaNodes.size() == numReplicas.liveReplicas();
-        int usableReplicas = numReplicas.liveReplicas() + 
-                             numReplicas.decommissionedReplicas(); 
-
-        if (block instanceof BlockInfo) {
-          String fileName = FSDirectory.getFullPathName(((BlockInfo) block)
-              .getINode());
-          out.print(fileName + ": ");
-        }
+      //
+      // Dump contents of neededReplication
+      //
+      synchronized (neededReplications) {
+        out.println("Metasave: Blocks waiting for replication: " + 
+                    neededReplications.size());
+        for (Block block : neededReplications) {
+          List<DatanodeDescriptor> containingNodes =
+                                            new ArrayList<DatanodeDescriptor>();
+          List<DatanodeDescriptor> containingLiveReplicaNodes =
+            new ArrayList<DatanodeDescriptor>();
+          NumberReplicas numReplicas = new NumberReplicas();
+          // source node returned is not used
+          chooseSourceDatanode(block, containingNodes,
+              containingLiveReplicaNodes, numReplicas);
+          assert containingLiveReplicaNodes.size() == numReplicas.liveReplicas();
+          int usableReplicas = numReplicas.liveReplicas() + 
+                               numReplicas.decommissionedReplicas(); 
+
+          if (block instanceof BlockInfo) {
+            String fileName = FSDirectory.getFullPathName(((BlockInfo) block)
+                .getINode());
+            out.print(fileName + ": ");
+          }
 
-        // l: == live:, d: == decommissioned c: == corrupt e: == excess
-        out.print(block + ((usableReplicas > 0)? "" : " MISSING") +
-                  " (replicas:" +
-                  " l: " + numReplicas.liveReplicas() + 
-                  " d: " + numReplicas.decommissionedReplicas() + 
-                  " c: " + numReplicas.corruptReplicas() + 
-                  " e: " + numReplicas.excessReplicas() + ") ");
-
-        Collection<DatanodeDescriptor> corruptNodes =
-                                       corruptReplicas.getNodes(block);
-
-        for (Iterator<DatanodeDescriptor> jt = blocksMap.nodeIterator(block);
-             jt.hasNext();) {
-          DatanodeDescriptor node = jt.next();
-          String state = "";
-          if (corruptNodes != null && corruptNodes.contains(node)) {
-            state = "(corrupt)";
-          } else if (node.isDecommissioned() ||
-                     node.isDecommissionInProgress()) {
-            state = "(decommissioned)";
+          // l: == live:, d: == decommissioned c: == corrupt e: == excess
+          out.print(block + ((usableReplicas > 0)? "" : " MISSING") +
+                    " (replicas:" +
+                    " l: " + numReplicas.liveReplicas() + 
+                    " d: " + numReplicas.decommissionedReplicas() + 
+                    " c: " + numReplicas.corruptReplicas() + 
+                    " e: " + numReplicas.excessReplicas() + ") ");
+
+          Collection<DatanodeDescriptor> corruptNodes =
+                                         corruptReplicas.getNodes(block);
+
+          for (Iterator<DatanodeDescriptor> jt = blocksMap.nodeIterator(block);
+               jt.hasNext();) {
+            DatanodeDescriptor node = jt.next();
+            String state = "";
+            if (corruptNodes != null && corruptNodes.contains(node)) {
+              state = "(corrupt)";
+            } else if (node.isDecommissioned() ||
+                       node.isDecommissionInProgress()) {
+              state = "(decommissioned)";
+            }
+            out.print(" " + node + state + " : ");
           }
-          out.print(" " + node + state + " : ");
+          out.println("");
         }
-        out.println("");
       }
-    }
 
-    //
-    // Dump blocks from pendingReplication
-    //
-    pendingReplications.metaSave(out);
+      //
+      // Dump blocks from pendingReplication
+      //
+      pendingReplications.metaSave(out);
 
-    //
-    // Dump blocks that are waiting to be deleted
-    //
-    dumpRecentInvalidateSets(out);
+      //
+      // Dump blocks that are waiting to be deleted
+      //
+      dumpRecentInvalidateSets(out);
 
-    //
-    // Dump all datanodes
-    //
-    datanodeDump(out);
+      //
+      // Dump all datanodes
+      //
+      datanodeDump(out);
 
-    out.flush();
-    out.close();
+      out.flush();
+      out.close();
+    } finally {
+      writeUnlock();
+    }
   }
 
   long getDefaultBlockSize() {
@@ -710,15 +813,20 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
   }
 
   /* updates a block in under replication queue */
-  synchronized void updateNeededReplications(Block block,
+  void updateNeededReplications(Block block,
                         int curReplicasDelta, int expectedReplicasDelta) {
-    NumberReplicas repl = countNodes(block);
-    int curExpectedReplicas = getReplication(block);
-    neededReplications.update(block, 
-                              repl.liveReplicas(), 
-                              repl.decommissionedReplicas(),
-                              curExpectedReplicas,
-                              curReplicasDelta, expectedReplicasDelta);
+    writeLock();
+    try {
+      NumberReplicas repl = countNodes(block);
+      int curExpectedReplicas = getReplication(block);
+      neededReplications.update(block, 
+                                repl.liveReplicas(), 
+                                repl.decommissionedReplicas(),
+                                curExpectedReplicas,
+                                curReplicasDelta, expectedReplicasDelta);
+    } finally {
+      writeUnlock();
+    }
   }
 
   /////////////////////////////////////////////////////////
@@ -733,43 +841,48 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    * @param datanode on which blocks are located
    * @param size total size of blocks
    */
-  synchronized BlocksWithLocations getBlocks(DatanodeID datanode, long size)
+  BlocksWithLocations getBlocks(DatanodeID datanode, long size)
       throws IOException {
-    checkSuperuserPrivilege();
+    readLock();
+    try {
+      checkSuperuserPrivilege();
 
-    DatanodeDescriptor node = getDatanode(datanode);
-    if (node == null) {
-      NameNode.stateChangeLog.warn("BLOCK* NameSystem.getBlocks: "
-          + "Asking for blocks from an unrecorded node " + datanode.getName());
-      throw new IllegalArgumentException(
-          "Unexpected exception.  Got getBlocks message for datanode " + 
-          datanode.getName() + ", but there is no info for it");
-    }
-
-    int numBlocks = node.numBlocks();
-    if(numBlocks == 0) {
-      return new BlocksWithLocations(new BlockWithLocations[0]);
-    }
-    Iterator<Block> iter = node.getBlockIterator();
-    int startBlock = r.nextInt(numBlocks); // starting from a random block
-    // skip blocks
-    for(int i=0; i<startBlock; i++) {
-      iter.next();
-    }
-    List<BlockWithLocations> results = new ArrayList<BlockWithLocations>();
-    long totalSize = 0;
-    while(totalSize<size && iter.hasNext()) {
-      totalSize += addBlock(iter.next(), results);
-    }
-    if(totalSize<size) {
-      iter = node.getBlockIterator(); // start from the beginning
-      for(int i=0; i<startBlock&&totalSize<size; i++) {
+      DatanodeDescriptor node = getDatanode(datanode);
+      if (node == null) {
+        NameNode.stateChangeLog.warn("BLOCK* NameSystem.getBlocks: "
+            + "Asking for blocks from an unrecorded node " + datanode.getName());
+        throw new IllegalArgumentException(
+            "Unexpected exception.  Got getBlocks message for datanode " + 
+            datanode.getName() + ", but there is no info for it");
+      }
+
+      int numBlocks = node.numBlocks();
+      if(numBlocks == 0) {
+        return new BlocksWithLocations(new BlockWithLocations[0]);
+      }
+      Iterator<Block> iter = node.getBlockIterator();
+      int startBlock = r.nextInt(numBlocks); // starting from a random block
+      // skip blocks
+      for(int i=0; i<startBlock; i++) {
+        iter.next();
+      }
+      List<BlockWithLocations> results = new ArrayList<BlockWithLocations>();
+      long totalSize = 0;
+      while(totalSize<size && iter.hasNext()) {
         totalSize += addBlock(iter.next(), results);
       }
-    }
+      if(totalSize<size) {
+        iter = node.getBlockIterator(); // start from the beginning
+        for(int i=0; i<startBlock&&totalSize<size; i++) {
+          totalSize += addBlock(iter.next(), results);
+        }
+      }
     
-    return new BlocksWithLocations(
-        results.toArray(new BlockWithLocations[results.size()]));
+      return new BlocksWithLocations(
+          results.toArray(new BlockWithLocations[results.size()]));
+    } finally {
+      readUnlock();
+    }
   }
   
   /**
@@ -818,11 +931,14 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    */
   public void setPermission(String src, FsPermission permission
       ) throws IOException {
-    synchronized (this) {
+    writeLock();
+    try {
       if (isInSafeMode())
          throw new SafeModeException("Cannot set permission for " + src, safeMode);
       checkOwner(src);
       dir.setPermission(src, permission);
+    } finally {
+      writeUnlock();
     }
     getEditLog().logSync();
     if (auditLog.isInfoEnabled() && isExternalInvocation()) {
@@ -839,7 +955,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    */
   public void setOwner(String src, String username, String group
       ) throws IOException {
-    synchronized (this) {
+    writeLock();
+    try {
       if (isInSafeMode())
          throw new SafeModeException("Cannot set owner for " + src, safeMode);
       FSPermissionChecker pc = checkOwner(src);
@@ -853,6 +970,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
         }
       }
       dir.setOwner(src, username, group);
+    } finally {
+      writeUnlock();
     }
     getEditLog().logSync();
     if (auditLog.isInfoEnabled() && isExternalInvocation()) {
@@ -917,20 +1036,59 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
     return ret;
   }
 
-  private synchronized LocatedBlocks getBlockLocationsInternal(String src,
+  /**
+   * Block locations are normally served under the read lock. Only when the
+   * access time of the file has to be persisted is the lookup repeated
+   * under the write lock.
+   */
+  private LocatedBlocks getBlockLocationsInternal(String src,
                                                        long offset, 
                                                        long length,
                                                        int nrBlocksToReturn,
                                                        boolean doAccessTime, 
                                                        boolean needBlockToken)
                                                        throws IOException {
-    INodeFile inode = dir.getFileINode(src);
-    if(inode == null) {
-      return null;
-    }
-    if (doAccessTime && isAccessTimeSupported()) {
-      dir.setTimes(src, inode, -1, now(), false);
+    for (int attempt = 0; attempt < 2; attempt++) {
+      boolean isReadOp = (attempt == 0);
+      if (isReadOp) {
+        readLock();
+      } else {
+        writeLock();
+      }
+      try {
+        long now = now();
+        INodeFile inode = dir.getFileINode(src);
+        if (inode == null) {
+          return null;
+        }
+        if (doAccessTime && isAccessTimeSupported()
+            && now > inode.getAccessTime() + getAccessTimePrecision()) {
+          if (isReadOp) {
+            // access time needs an update, retry with the write lock
+            continue;
+          }
+          dir.setTimes(src, inode, -1, now, false);
+        }
+        return getBlockLocationsInternal(inode, offset, length,
+                                         nrBlocksToReturn, needBlockToken);
+      } finally {
+        if (isReadOp) {
+          readUnlock();
+        } else {
+          writeUnlock();
+        }
+      }
     }
+    return null; // can not happen
+  }
+
+  private LocatedBlocks getBlockLocationsInternal(INodeFile inode,
+                                                  long offset,
+                                                  long length,
+                                                  int nrBlocksToReturn,
+                                                  boolean needBlockToken)
+                                                  throws IOException {
+    assert hasReadOrWriteLock();
     Block[] blocks = inode.getBlocks();
     if (blocks == null) {
       return null;
@@ -1014,30 +1172,35 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    * The access time is precise upto an hour. The transaction, if needed, is
    * written to the edits log but is not flushed.
    */
-  public synchronized void setTimes(String src, long mtime, long atime) throws IOException {
-    if (!isAccessTimeSupported() && atime != -1) {
-      throw new IOException("Access time for hdfs is not configured. " +
-                            " Please set dfs.support.accessTime configuration parameter.");
-    }
-    if (isInSafeMode()) {
-      throw new SafeModeException("Cannot set accesstimes  for " + src, safeMode);
-    }
-    //
-    // The caller needs to have write access to set access & modification times.
-    if (isPermissionEnabled) {
-      checkPathAccess(src, FsAction.WRITE);
-    }
-    INodeFile inode = dir.getFileINode(src);
-    if (inode != null) {
-      dir.setTimes(src, inode, mtime, atime, true);
-      if (auditLog.isInfoEnabled() && isExternalInvocation()) {
-        final HdfsFileStatus stat = dir.getFileInfo(src);
-        logAuditEvent(UserGroupInformation.getCurrentUser(),
-                      Server.getRemoteIp(),
-                      "setTimes", src, null, stat);
+  public void setTimes(String src, long mtime, long atime) throws IOException {
+    writeLock();
+    try {
+      if (!isAccessTimeSupported() && atime != -1) {
+        throw new IOException("Access time for hdfs is not configured. " +
+                              " Please set dfs.support.accessTime configuration parameter.");
       }
-    } else {
-      throw new FileNotFoundException("File " + src + " does not exist.");
+      if (isInSafeMode()) {
+        throw new SafeModeException("Cannot set accesstimes  for " + src, safeMode);
+      }
+      //
+      // The caller needs to have write access to set access & modification times.
+      if (isPermissionEnabled) {
+        checkPathAccess(src, FsAction.WRITE);
+      }
+      INodeFile inode = dir.getFileINode(src);
+      if (inode != null) {
+        dir.setTimes(src, inode, mtime, atime, true);
+        if (auditLog.isInfoEnabled() && isExternalInvocation()) {
+          final HdfsFileStatus stat = dir.getFileInfo(src);
+          logAuditEvent(UserGroupInformation.getCurrentUser(),
+                        Server.getRemoteIp(),
+                        "setTimes", src, null, stat);
+        }
+      } else {
+        throw new FileNotFoundException("File " + src + " does not exist.");
+      }
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -1066,47 +1229,57 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
     return status;
   }
 
-  private synchronized boolean setReplicationInternal(String src, 
+  private boolean setReplicationInternal(String src, 
                                              short replication
                                              ) throws IOException {
-    if (isInSafeMode())
-      throw new SafeModeException("Cannot set replication for " + src, safeMode);
-    verifyReplication(src, replication, null);
-    if (isPermissionEnabled) {
-      checkPathAccess(src, FsAction.WRITE);
-    }
+    writeLock();
+    try {
+      if (isInSafeMode())
+        throw new SafeModeException("Cannot set replication for " + src, safeMode);
+      verifyReplication(src, replication, null);
+      if (isPermissionEnabled) {
+        checkPathAccess(src, FsAction.WRITE);
+      }
 
-    int[] oldReplication = new int[1];
-    Block[] fileBlocks;
-    fileBlocks = dir.setReplication(src, replication, oldReplication);
-    if (fileBlocks == null)  // file not found or is a directory
-      return false;
-    int oldRepl = oldReplication[0];
-    if (oldRepl == replication) // the same replication
-      return true;
+      int[] oldReplication = new int[1];
+      Block[] fileBlocks;
+      fileBlocks = dir.setReplication(src, replication, oldReplication);
+      if (fileBlocks == null)  // file not found or is a directory
+        return false;
+      int oldRepl = oldReplication[0];
+      if (oldRepl == replication) // the same replication
+        return true;
 
-    // update needReplication priority queues
-    for(int idx = 0; idx < fileBlocks.length; idx++)
-      updateNeededReplications(fileBlocks[idx], 0, replication-oldRepl);
-      
-    if (oldRepl > replication) {  
-      // old replication > the new one; need to remove copies
-      LOG.info("Reducing replication for file " + src 
-               + ". New replication is " + replication);
+      // update needReplication priority queues
       for(int idx = 0; idx < fileBlocks.length; idx++)
-        processOverReplicatedBlock(fileBlocks[idx], replication, null, null);
-    } else { // replication factor is increased
-      LOG.info("Increasing replication for file " + src 
-          + ". New replication is " + replication);
+        updateNeededReplications(fileBlocks[idx], 0, replication-oldRepl);
+      
+      if (oldRepl > replication) {  
+        // old replication > the new one; need to remove copies
+        LOG.info("Reducing replication for file " + src 
+                 + ". New replication is " + replication);
+        for(int idx = 0; idx < fileBlocks.length; idx++)
+          processOverReplicatedBlock(fileBlocks[idx], replication, null, null);
+      } else { // replication factor is increased
+        LOG.info("Increasing replication for file " + src 
+            + ". New replication is " + replication);
+      }
+      return true;
+    } finally {
+      writeUnlock();
     }
-    return true;
   }
     
   long getPreferredBlockSize(String filename) throws IOException {
-    if (isPermissionEnabled) {
-      checkTraverse(filename);
+    readLock();
+    try {
+      if (isPermissionEnabled) {
+        checkTraverse(filename);
+      }
+      return dir.getPreferredBlockSize(filename);
+    } finally {
+      readUnlock();
     }
-    return dir.getPreferredBlockSize(filename);
   }
     
   /**
@@ -1171,7 +1344,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
     }
   }
 
-  private synchronized void startFileInternal(String src,
+  private void startFileInternal(String src,
                                               PermissionStatus permissions,
                                               String holder, 
                                               String clientMachine, 
@@ -1181,114 +1354,119 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
                                               short replication,
                                               long blockSize
                                               ) throws IOException {
-    if (NameNode.stateChangeLog.isDebugEnabled()) {
-      NameNode.stateChangeLog.debug("DIR* NameSystem.startFile: src=" + src
-          + ", holder=" + holder
-          + ", clientMachine=" + clientMachine
-          + ", createParent=" + createParent
-          + ", replication=" + replication
-          + ", overwrite=" + overwrite
-          + ", append=" + append);
-    }
-
-    if (isInSafeMode())
-      throw new SafeModeException("Cannot create file" + src, safeMode);
-    if (!DFSUtil.isValidName(src)) {
-      throw new IOException("Invalid file name: " + src);
-    }
-
-    // Verify that the destination does not exist as a directory already.
-    boolean pathExists = dir.exists(src);
-    if (pathExists && dir.isDir(src)) {
-      throw new IOException("Cannot create file "+ src + "; already exists as a directory.");
-    }
+    writeLock();
+    try {
+      if (NameNode.stateChangeLog.isDebugEnabled()) {
+        NameNode.stateChangeLog.debug("DIR* NameSystem.startFile: src=" + src
+            + ", holder=" + holder
+            + ", clientMachine=" + clientMachine
+            + ", createParent=" + createParent
+            + ", replication=" + replication
+            + ", overwrite=" + overwrite
+            + ", append=" + append);
+      }
 
-    if (isPermissionEnabled) {
-      if (append || (overwrite && pathExists)) {
-        checkPathAccess(src, FsAction.WRITE);
+      if (isInSafeMode())
+        throw new SafeModeException("Cannot create file" + src, safeMode);
+      if (!DFSUtil.isValidName(src)) {
+        throw new IOException("Invalid file name: " + src);
       }
-      else {
-        checkAncestorAccess(src, FsAction.WRITE);
+
+      // Verify that the destination does not exist as a directory already.
+      boolean pathExists = dir.exists(src);
+      if (pathExists && dir.isDir(src)) {
+        throw new IOException("Cannot create file "+ src + "; already exists as a directory.");
       }
-    }
 
-    if (!createParent) {
-      verifyParentDir(src);
-    }
+      if (isPermissionEnabled) {
+        if (append || (overwrite && pathExists)) {
+          checkPathAccess(src, FsAction.WRITE);
+        }
+        else {
+          checkAncestorAccess(src, FsAction.WRITE);
+        }
+      }
 
-    try {
-      INode myFile = dir.getFileINode(src);
-      recoverLeaseInternal(myFile, src, holder, clientMachine, false);
+      if (!createParent) {
+        verifyParentDir(src);
+      }
 
       try {
-        verifyReplication(src, replication, clientMachine);
-      } catch(IOException e) {
-        throw new IOException("failed to create "+e.getMessage());
-      }
-      if (append) {
-        if (myFile == null) {
-          throw new FileNotFoundException("failed to append to non-existent file "
-              + src + " on client " + clientMachine);
-        } else if (myFile.isDirectory()) {
-          throw new IOException("failed to append to directory " + src 
-                                +" on client " + clientMachine);
+        INode myFile = dir.getFileINode(src);
+        recoverLeaseInternal(myFile, src, holder, clientMachine, false);
+
+        try {
+          verifyReplication(src, replication, clientMachine);
+        } catch(IOException e) {
+          throw new IOException("failed to create "+e.getMessage());
         }
-      } else if (!dir.isValidToCreate(src)) {
-        if (overwrite) {
-          delete(src, true);
-        } else {
-          throw new IOException("failed to create file " + src 
-                                +" on client " + clientMachine
-                                +" either because the filename is invalid or the file exists");
+        if (append) {
+          if (myFile == null) {
+            throw new FileNotFoundException("failed to append to non-existent file "
+                + src + " on client " + clientMachine);
+          } else if (myFile.isDirectory()) {
+            throw new IOException("failed to append to directory " + src 
+                                  +" on client " + clientMachine);
+          }
+        } else if (!dir.isValidToCreate(src)) {
+          if (overwrite) {
+            delete(src, true);
+          } else {
+            throw new IOException("failed to create file " + src 
+                                  +" on client " + clientMachine
+                                  +" either because the filename is invalid or the file exists");
+          }
         }
-      }
 
-      DatanodeDescriptor clientNode = 
-        host2DataNodeMap.getDatanodeByHost(clientMachine);
+        DatanodeDescriptor clientNode = 
+          host2DataNodeMap.getDatanodeByHost(clientMachine);
 
-      if (append) {
-        //
-        // Replace current node with a INodeUnderConstruction.
-        // Recreate in-memory lease record.
-        //
-        INodeFile node = (INodeFile) myFile;
-        INodeFileUnderConstruction cons = new INodeFileUnderConstruction(
-                                        node.getLocalNameBytes(),
-                                        node.getReplication(),
-                                        node.getModificationTime(),
-                                        node.getPreferredBlockSize(),
-                                        node.getBlocks(),
-                                        node.getPermissionStatus(),
-                                        holder,
-                                        clientMachine,
-                                        clientNode);
-        dir.replaceNode(src, node, cons);
-        leaseManager.addLease(cons.clientName, src);
+        if (append) {
+          //
+          // Replace current node with a INodeUnderConstruction.
+          // Recreate in-memory lease record.
+          //
+          INodeFile node = (INodeFile) myFile;
+          INodeFileUnderConstruction cons = new INodeFileUnderConstruction(
+                                          node.getLocalNameBytes(),
+                                          node.getReplication(),
+                                          node.getModificationTime(),
+                                          node.getPreferredBlockSize(),
+                                          node.getBlocks(),
+                                          node.getPermissionStatus(),
+                                          holder,
+                                          clientMachine,
+                                          clientNode);
+          dir.replaceNode(src, node, cons);
+          leaseManager.addLease(cons.clientName, src);
 
-      } else {
-       // Now we can add the name to the filesystem. This file has no
-       // blocks associated with it.
-       //
-       checkFsObjectLimit();
-
-        // increment global generation stamp
-        long genstamp = nextGenerationStamp();
-        INodeFileUnderConstruction newNode = dir.addFile(src, permissions,
-            replication, blockSize, holder, clientMachine, clientNode, genstamp);
-        if (newNode == null) {
-          throw new IOException("DIR* NameSystem.startFile: " +
-                                "Unable to add file to namespace.");
-        }
-        leaseManager.addLease(newNode.clientName, src);
-        if (NameNode.stateChangeLog.isDebugEnabled()) {
-          NameNode.stateChangeLog.debug("DIR* NameSystem.startFile: "
-                                     +"add "+src+" to namespace for "+holder);
+        } else {
+         // Now we can add the name to the filesystem. This file has no
+         // blocks associated with it.
+         //
+         checkFsObjectLimit();
+
+          // increment global generation stamp
+          long genstamp = nextGenerationStamp();
+          INodeFileUnderConstruction newNode = dir.addFile(src, permissions,
+              replication, blockSize, holder, clientMachine, clientNode, genstamp);
+          if (newNode == null) {
+            throw new IOException("DIR* NameSystem.startFile: " +
+                                  "Unable to add file to namespace.");
+          }
+          leaseManager.addLease(newNode.clientName, src);
+          if (NameNode.stateChangeLog.isDebugEnabled()) {
+            NameNode.stateChangeLog.debug("DIR* NameSystem.startFile: "
+                                       +"add "+src+" to namespace for "+holder);
+          }
         }
+      } catch (IOException ie) {
+        NameNode.stateChangeLog.warn("DIR* NameSystem.startFile: "
+                                     +ie.getMessage());
+        throw ie;
       }
-    } catch (IOException ie) {
-      NameNode.stateChangeLog.warn("DIR* NameSystem.startFile: "
-                                   +ie.getMessage());
-      throw ie;
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -1303,30 +1481,35 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    * @return true if the file is already closed
    * @throws IOException
    */
-  synchronized boolean recoverLease(String src, String holder, String clientMachine)
+  boolean recoverLease(String src, String holder, String clientMachine)
   throws IOException {
-    if (isInSafeMode()) {
-      throw new SafeModeException(
-          "Cannot recover the lease of " + src, safeMode);
-    }
-    if (!DFSUtil.isValidName(src)) {
-      throw new IOException("Invalid file name: " + src);
-    }
+    writeLock();
+    try {
+      if (isInSafeMode()) {
+        throw new SafeModeException(
+            "Cannot recover the lease of " + src, safeMode);
+      }
+      if (!DFSUtil.isValidName(src)) {
+        throw new IOException("Invalid file name: " + src);
+      }
 
-    INode inode = dir.getFileINode(src);
-    if (inode == null) {
-      throw new FileNotFoundException("File not found " + src);
-    }
+      INode inode = dir.getFileINode(src);
+      if (inode == null) {
+        throw new FileNotFoundException("File not found " + src);
+      }
 
-    if (!inode.isUnderConstruction()) {
-      return true;
-    }
-    if (isPermissionEnabled) {
-      checkPathAccess(src, FsAction.WRITE);
-    }
+      if (!inode.isUnderConstruction()) {
+        return true;
+      }
+      if (isPermissionEnabled) {
+        checkPathAccess(src, FsAction.WRITE);
+      }
 
-    recoverLeaseInternal(inode, src, holder, clientMachine, true);
-    return false;
+      recoverLeaseInternal(inode, src, holder, clientMachine, true);
+      return false;
+    } finally {
+      writeUnlock();
+    }
   }
 
   private void recoverLeaseInternal(INode fileInode,
@@ -1407,7 +1590,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
     // have a partial block at the end.
     //
     LocatedBlock lb = null;
-    synchronized (this) {
+    writeLock();
+    try {
       // Need to re-check existence here, since the file may have been deleted
       // in between the synchronized blocks
       INodeFileUnderConstruction file = checkLease(src, holder);
@@ -1456,6 +1640,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
           }
         }
       }
+    } finally {
+      writeUnlock();
     }
     if (lb != null) {
       if (NameNode.stateChangeLog.isDebugEnabled()) {
@@ -1506,7 +1692,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
     NameNode.stateChangeLog.debug("BLOCK* NameSystem.getAdditionalBlock: file "
                                   +src+" for "+clientName);
 
-    synchronized (this) {
+    writeLock();
+    try {
       // have we exceeded the configured limit of fs objects.
       checkFsObjectLimit();
 
@@ -1522,6 +1709,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
       blockSize = pendingFile.getPreferredBlockSize();
       clientNode = pendingFile.getClientNode();
       replication = (int)pendingFile.getReplication();
+    } finally {
+      writeUnlock();
     }
 
     // choose targets for the new block tobe allocated.
@@ -1536,7 +1725,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
     }
 
     // Allocate a new block and record it in the INode. 
-    synchronized (this) {
+    writeLock();
+    try {
       if (isInSafeMode()) {
         throw new SafeModeException("Cannot add block to " + src, safeMode);
       }
@@ -1557,6 +1747,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
       for (DatanodeDescriptor dn : targets) {
         dn.incBlocksScheduled();
       }      
+    } finally {
+      writeUnlock();
     }
         
     // Create next block
@@ -1571,23 +1763,28 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
   /**
    * The client would like to let go of the given block
    */
-  public synchronized boolean abandonBlock(Block b, String src, String holder
+  public boolean abandonBlock(Block b, String src, String holder
       ) throws IOException {
-    //
-    // Remove the block from the pending creates list
-    //
-    NameNode.stateChangeLog.debug("BLOCK* NameSystem.abandonBlock: "
-                                  +b+"of file "+src);
-    if (isInSafeMode()) {
-      throw new SafeModeException("Cannot abandon block " + b +
-                                  " for fle" + src, safeMode);
-    }
-    INodeFileUnderConstruction file = checkLease(src, holder);
-    dir.removeBlock(src, file, b);
-    NameNode.stateChangeLog.debug("BLOCK* NameSystem.abandonBlock: "
-                                    + b
-                                    + " is removed from pendingCreates");
-    return true;
+    writeLock();
+    try {
+      //
+      // Remove the block from the pending creates list
+      //
+      NameNode.stateChangeLog.debug("BLOCK* NameSystem.abandonBlock: "
+                                    +b+"of file "+src);
+      if (isInSafeMode()) {
+        throw new SafeModeException("Cannot abandon block " + b +
+                                    " for fle" + src, safeMode);
+      }
+      INodeFileUnderConstruction file = checkLease(src, holder);
+      dir.removeBlock(src, file, b);
+      NameNode.stateChangeLog.debug("BLOCK* NameSystem.abandonBlock: "
+                                      + b
+                                      + " is removed from pendingCreates");
+      return true;
+    } finally {
+      writeUnlock();
+    }
   }
   
   // make sure that we still have the lease on this file.
@@ -1643,32 +1840,37 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
   }
 
 
-  private synchronized CompleteFileStatus completeFileInternal(String src, 
+  private CompleteFileStatus completeFileInternal(String src, 
                                                 String holder) throws IOException {
-    NameNode.stateChangeLog.debug("DIR* NameSystem.completeFile: " + src + " for " + holder);
-    if (isInSafeMode())
-      throw new SafeModeException("Cannot complete file " + src, safeMode);
+    writeLock();
+    try {
+      NameNode.stateChangeLog.debug("DIR* NameSystem.completeFile: " + src + " for " + holder);
+      if (isInSafeMode())
+        throw new SafeModeException("Cannot complete file " + src, safeMode);
 
-    INodeFileUnderConstruction pendingFile  = checkLease(src, holder);
-    Block[] fileBlocks =  dir.getFileBlocks(src);
+      INodeFileUnderConstruction pendingFile  = checkLease(src, holder);
+      Block[] fileBlocks =  dir.getFileBlocks(src);
 
-    if (fileBlocks == null ) {
-      NameNode.stateChangeLog.warn("DIR* NameSystem.completeFile: "
-                                   + "failed to complete " + src
-                                   + " because dir.getFileBlocks() is null,"
-                                   + " pending from " + pendingFile.getClientMachine());
-      return CompleteFileStatus.OPERATION_FAILED;
-    }
+      if (fileBlocks == null ) {
+        NameNode.stateChangeLog.warn("DIR* NameSystem.completeFile: "
+                                     + "failed to complete " + src
+                                     + " because dir.getFileBlocks() is null,"
+                                     + " pending from " + pendingFile.getClientMachine());
+        return CompleteFileStatus.OPERATION_FAILED;
+      }
 
-    if (!checkFileProgress(pendingFile, true)) {
-      return CompleteFileStatus.STILL_WAITING;
-    }
+      if (!checkFileProgress(pendingFile, true)) {
+        return CompleteFileStatus.STILL_WAITING;
+      }
 
-    finalizeINodeFileUnderConstruction(src, pendingFile);
+      finalizeINodeFileUnderConstruction(src, pendingFile);
 
-    NameNode.stateChangeLog.info("DIR* NameSystem.completeFile: file " + src
-                                  + " is closed by " + holder);
-    return CompleteFileStatus.COMPLETE_SUCCESS;
+      NameNode.stateChangeLog.info("DIR* NameSystem.completeFile: file " + src
+                                    + " is closed by " + holder);
+      return CompleteFileStatus.COMPLETE_SUCCESS;
+    } finally {
+      writeUnlock();
+    }
   }
 
   /** 
@@ -1717,28 +1919,33 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    * replicated.  If not, return false. If checkall is true, then check
    * all blocks, otherwise check only penultimate block.
    */
-  synchronized boolean checkFileProgress(INodeFile v, boolean checkall) {
-    if (checkall) {
-      //
-      // check all blocks of the file.
-      //
-      for (Block block: v.getBlocks()) {
-        if (blocksMap.numNodes(block) < this.minReplication) {
-          return false;
+  boolean checkFileProgress(INodeFile v, boolean checkall) {
+    readLock();
+    try {
+      if (checkall) {
+        //
+        // check all blocks of the file.
+        //
+        for (Block block: v.getBlocks()) {
+          if (blocksMap.numNodes(block) < this.minReplication) {
+            return false;
+          }
         }
-      }
-    } else {
-      //
-      // check the penultimate block of this file
-      //
-      Block b = v.getPenultimateBlock();
-      if (b != null) {
-        if (blocksMap.numNodes(b) < this.minReplication) {
-          return false;
+      } else {
+        //
+        // check the penultimate block of this file
+        //
+        Block b = v.getPenultimateBlock();
+        if (b != null) {
+          if (blocksMap.numNodes(b) < this.minReplication) {
+            return false;
+          }
         }
       }
+      return true;
+    } finally {
+      readUnlock();
     }
-    return true;
   }
 
   /**
@@ -1796,18 +2003,23 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
   /**
    * dumps the contents of recentInvalidateSets
    */
-  private synchronized void dumpRecentInvalidateSets(PrintWriter out) {
-    int size = recentInvalidateSets.values().size();
-    out.println("Metasave: Blocks " + pendingDeletionBlocksCount 
-        + " waiting deletion from " + size + " datanodes.");
-    if (size == 0) {
-      return;
-    }
-    for(Map.Entry<String,Collection<Block>> entry : recentInvalidateSets.entrySet()) {
-      Collection<Block> blocks = entry.getValue();
-      if (blocks.size() > 0) {
-        out.println(datanodeMap.get(entry.getKey()).getName() + blocks);
+  private void dumpRecentInvalidateSets(PrintWriter out) {
+    writeLock();
+    try {
+      int size = recentInvalidateSets.values().size();
+      out.println("Metasave: Blocks " + pendingDeletionBlocksCount 
+          + " waiting deletion from " + size + " datanodes.");
+      if (size == 0) {
+        return;
+      }
+      for(Map.Entry<String,Collection<Block>> entry : recentInvalidateSets.entrySet()) {
+        Collection<Block> blocks = entry.getValue();
+        if (blocks.size() > 0) {
+          out.println(datanodeMap.get(entry.getKey()).getName() + blocks);
+        }
       }
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -1816,75 +2028,85 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    * @param blk Block to be marked as corrupt
    * @param dn Datanode which holds the corrupt replica
    */
-  public synchronized void markBlockAsCorrupt(Block blk, DatanodeInfo dn)
+  public void markBlockAsCorrupt(Block blk, DatanodeInfo dn)
     throws IOException {
-    DatanodeDescriptor node = getDatanode(dn);
-    if (node == null) {
-      throw new IOException("Cannot mark block" + blk.getBlockName() +
-                            " as corrupt because datanode " + dn.getName() +
-                            " does not exist. ");
-    }
+    writeLock();
+    try {
+      DatanodeDescriptor node = getDatanode(dn);
+      if (node == null) {
+        throw new IOException("Cannot mark block" + blk.getBlockName() +
+                              " as corrupt because datanode " + dn.getName() +
+                              " does not exist. ");
+      }
     
-    final BlockInfo storedBlockInfo = blocksMap.getStoredBlock(blk);
-    if (storedBlockInfo == null) {
-      // Check if the replica is in the blockMap, if not 
-      // ignore the request for now. This could happen when BlockScanner
-      // thread of Datanode reports bad block before Block reports are sent
-      // by the Datanode on startup
-      NameNode.stateChangeLog.info("BLOCK NameSystem.markBlockAsCorrupt: " +
-                                   "block " + blk + " could not be marked " +
-                                   "as corrupt as it does not exists in " +
-                                   "blocksMap");
-    } else {
-      INodeFile inode = storedBlockInfo.getINode();
-      if (inode == null) {
+      final BlockInfo storedBlockInfo = blocksMap.getStoredBlock(blk);
+      if (storedBlockInfo == null) {
+        // Check if the replica is in the blockMap, if not 
+        // ignore the request for now. This could happen when BlockScanner
+        // thread of Datanode reports bad block before Block reports are sent
+        // by the Datanode on startup
         NameNode.stateChangeLog.info("BLOCK NameSystem.markBlockAsCorrupt: " +
                                      "block " + blk + " could not be marked " +
-                                     "as corrupt as it does not belong to " +
-                                     "any file");
-        addToInvalidates(storedBlockInfo, node);
-        return;
-      } 
-      // Add this replica to corruptReplicas Map 
-      corruptReplicas.addToCorruptReplicasMap(storedBlockInfo, node);
-      if (countNodes(storedBlockInfo).liveReplicas()>inode.getReplication()) {
-        // the block is over-replicated so invalidate the replicas immediately
-        invalidateBlock(storedBlockInfo, node);
+                                     "as corrupt as it does not exists in " +
+                                     "blocksMap");
       } else {
-        // add the block to neededReplication 
-        updateNeededReplications(storedBlockInfo, -1, 0);
+        INodeFile inode = storedBlockInfo.getINode();
+        if (inode == null) {
+          NameNode.stateChangeLog.info("BLOCK NameSystem.markBlockAsCorrupt: " +
+                                       "block " + blk + " could not be marked " +
+                                       "as corrupt as it does not belong to " +
+                                       "any file");
+          addToInvalidates(storedBlockInfo, node);
+          return;
+        } 
+        // Add this replica to corruptReplicas Map 
+        corruptReplicas.addToCorruptReplicasMap(storedBlockInfo, node);
+        if (countNodes(storedBlockInfo).liveReplicas()>inode.getReplication()) {
+          // the block is over-replicated so invalidate the replicas immediately
+          invalidateBlock(storedBlockInfo, node);
+        } else {
+          // add the block to neededReplication 
+          updateNeededReplications(storedBlockInfo, -1, 0);
+        }
       }
+    } finally {
+      writeUnlock();
     }
   }
 
   /**
    * Invalidates the given block on the given datanode.
    */
-  private synchronized void invalidateBlock(Block blk, DatanodeInfo dn)
+  private void invalidateBlock(Block blk, DatanodeInfo dn)
     throws IOException {
-    NameNode.stateChangeLog.info("DIR* NameSystem.invalidateBlock: " 
-                                 + blk + " on " 
-                                 + dn.getName());
-    DatanodeDescriptor node = getDatanode(dn);
-    if (node == null) {
-      throw new IOException("Cannot invalidate block " + blk +
-                            " because datanode " + dn.getName() +
-                            " does not exist.");
-    }
-
-    // Check how many copies we have of the block.  If we have at least one
-    // copy on a live node, then we can delete it. 
-    int count = countNodes(blk).liveReplicas();
-    if (count > 1) {
-      addToInvalidates(blk, dn);
-      removeStoredBlock(blk, node);
-      NameNode.stateChangeLog.debug("BLOCK* NameSystem.invalidateBlocks: "
-                                   + blk + " on " 
-                                   + dn.getName() + " listed for deletion.");
-    } else {
-      NameNode.stateChangeLog.info("BLOCK* NameSystem.invalidateBlocks: "
+    writeLock();
+    try {
+      NameNode.stateChangeLog.info("DIR* NameSystem.invalidateBlock: " 
                                    + blk + " on " 
-                                   + dn.getName() + " is the only copy and was not deleted.");
+                                   + dn.getName());
+      DatanodeDescriptor node = getDatanode(dn);
+      if (node == null) {
+        throw new IOException("Cannot invalidate block " + blk +
+                              " because datanode " + dn.getName() +
+                              " does not exist.");
+      }
+
+      // Check how many copies we have of the block.  If we have at least one
+      // copy on a live node, then we can delete it. 
+      int count = countNodes(blk).liveReplicas();
+      if (count > 1) {
+        addToInvalidates(blk, dn);
+        removeStoredBlock(blk, node);
+        NameNode.stateChangeLog.debug("BLOCK* NameSystem.invalidateBlocks: "
+                                     + blk + " on " 
+                                     + dn.getName() + " listed for deletion.");
+      } else {
+        NameNode.stateChangeLog.info("BLOCK* NameSystem.invalidateBlocks: "
+                                     + blk + " on " 
+                                     + dn.getName() + " is the only copy and was not deleted.");
+      }
+    } finally {
+      writeUnlock();
     }
   }
 
@@ -1912,30 +2134,35 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
     return status;
   }
 
-  private synchronized boolean renameToInternal(String src, String dst
+  private boolean renameToInternal(String src, String dst
       ) throws IOException {
-    NameNode.stateChangeLog.debug("DIR* NameSystem.renameTo: " + src + " to " + dst);
-    if (isInSafeMode())
-      throw new SafeModeException("Cannot rename " + src, safeMode);
-    if (!DFSUtil.isValidName(dst)) {
-      throw new IOException("Invalid name: " + dst);
-    }
+    writeLock();
+    try {
+      NameNode.stateChangeLog.debug("DIR* NameSystem.renameTo: " + src + " to " + dst);
+      if (isInSafeMode())
+        throw new SafeModeException("Cannot rename " + src, safeMode);
+      if (!DFSUtil.isValidName(dst)) {
+        throw new IOException("Invalid name: " + dst);
+      }
 
-    if (isPermissionEnabled) {
-      //We should not be doing this.  This is move() not renameTo().
-      //but for now,
-      String actualdst = dir.isDir(dst)?
-          dst + Path.SEPARATOR + new Path(src).getName(): dst;
-      checkParentAccess(src, FsAction.WRITE);
-      checkAncestorAccess(actualdst, FsAction.WRITE);
-    }
+      if (isPermissionEnabled) {
+        //We should not be doing this.  This is move() not renameTo().
+        //but for now,
+        String actualdst = dir.isDir(dst)?
+            dst + Path.SEPARATOR + new Path(src).getName(): dst;
+        checkParentAccess(src, FsAction.WRITE);
+        checkAncestorAccess(actualdst, FsAction.WRITE);
+      }
 
-    HdfsFileStatus dinfo = dir.getFileInfo(dst);
-    if (dir.renameTo(src, dst)) {
-      changeLease(src, dst, dinfo);     // update lease with new filename
-      return true;
+      HdfsFileStatus dinfo = dir.getFileInfo(dst);
+      if (dir.renameTo(src, dst)) {
+        changeLease(src, dst, dinfo);     // update lease with new filename
+        return true;
+      }
+      return false;
+    } finally {
+      writeUnlock();
     }
-    return false;
   }
 
   /**
@@ -1960,18 +2187,23 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    * Remove the indicated filename from the namespace.  This may
    * invalidate some blocks that make up the file.
    */
-  synchronized boolean deleteInternal(String src, 
+  boolean deleteInternal(String src, 
       boolean enforcePermission) throws IOException {
-    if (NameNode.stateChangeLog.isDebugEnabled()) {
-      NameNode.stateChangeLog.debug("DIR* NameSystem.delete: " + src);
-    }
-    if (isInSafeMode())
-      throw new SafeModeException("Cannot delete " + src, safeMode);
-    if (enforcePermission && isPermissionEnabled) {
-      checkPermission(src, false, null, FsAction.WRITE, null, FsAction.ALL);
-    }
+    writeLock();
+    try {
+      if (NameNode.stateChangeLog.isDebugEnabled()) {
+        NameNode.stateChangeLog.debug("DIR* NameSystem.delete: " + src);
+      }
+      if (isInSafeMode())
+        throw new SafeModeException("Cannot delete " + src, safeMode);
+      if (enforcePermission && isPermissionEnabled) {
+        checkPermission(src, false, null, FsAction.WRITE, null, FsAction.ALL);
+      }
 
-    return dir.delete(src) != null;
+      return dir.delete(src) != null;
+    } finally {
+      writeUnlock();
+    }
   }
 
   void removePathAndBlocks(String src, List<Block> blocks) throws IOException {
@@ -1990,10 +2222,15 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    *         or null if file not found
    */
   HdfsFileStatus getFileInfo(String src) throws IOException {
-    if (isPermissionEnabled) {
-      checkTraverse(src);
+    readLock();
+    try {
+      if (isPermissionEnabled) {
+        checkTraverse(src);
+      }
+      return dir.getFileInfo(src);
+    } finally {
+      readUnlock();
     }
-    return dir.getFileInfo(src);
   }
 
   /**
@@ -2015,42 +2252,52 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
   /**
    * Create all the necessary directories
    */
-  private synchronized boolean mkdirsInternal(String src,
+  private boolean mkdirsInternal(String src,
       PermissionStatus permissions) throws IOException {
-    NameNode.stateChangeLog.debug("DIR* NameSystem.mkdirs: " + src);
-    if (isPermissionEnabled) {
-      checkTraverse(src);
-    }
-    if (dir.isDir(src)) {
-      // all the users of mkdirs() are used to expect 'true' even if
-      // a new directory is not created.
-      return true;
-    }
-    if (isInSafeMode())
-      throw new SafeModeException("Cannot create directory " + src, safeMode);
-    if (!DFSUtil.isValidName(src)) {
-      throw new IOException("Invalid directory name: " + src);
-    }
-    if (isPermissionEnabled) {
-      checkAncestorAccess(src, FsAction.WRITE);
-    }
+    writeLock();
+    try {
+      NameNode.stateChangeLog.debug("DIR* NameSystem.mkdirs: " + src);
+      if (isPermissionEnabled) {
+        checkTraverse(src);
+      }
+      if (dir.isDir(src)) {
+        // all the users of mkdirs() are used to expect 'true' even if
+        // a new directory is not created.
+        return true;
+      }
+      if (isInSafeMode())
+        throw new SafeModeException("Cannot create directory " + src, safeMode);
+      if (!DFSUtil.isValidName(src)) {
+        throw new IOException("Invalid directory name: " + src);
+      }
+      if (isPermissionEnabled) {
+        checkAncestorAccess(src, FsAction.WRITE);
+      }
 
-    // validate that we have enough inodes. This is, at best, a 
-    // heuristic because the mkdirs() operation migth need to 
-    // create multiple inodes.
-    checkFsObjectLimit();
+      // validate that we have enough inodes. This is, at best, a 
+      // heuristic because the mkdirs() operation migth need to 
+      // create multiple inodes.
+      checkFsObjectLimit();
 
-    if (!dir.mkdirs(src, permissions, false, now())) {
-      throw new IOException("Invalid directory name: " + src);
+      if (!dir.mkdirs(src, permissions, false, now())) {
+        throw new IOException("Invalid directory name: " + src);
+      }
+      return true;
+    } finally {
+      writeUnlock();
     }
-    return true;
   }
 
   ContentSummary getContentSummary(String src) throws IOException {
-    if (isPermissionEnabled) {
-      checkPermission(src, false, null, null, null, FsAction.READ_EXECUTE);
+    readLock();
+    try {
+      if (isPermissionEnabled) {
+        checkPermission(src, false, null, null, null, FsAction.READ_EXECUTE);
+      }
+      return dir.getContentSummary(src);
+    } finally {
+      readUnlock();
     }
-    return dir.getContentSummary(src);
   }
 
   /**
@@ -2059,14 +2306,17 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    * contract.
    */
   void setQuota(String path, long nsQuota, long dsQuota) throws IOException {
-   synchronized (this) {
-     if (isInSafeMode())
+    writeLock();
+    try {
+      if (isInSafeMode())
         throw new SafeModeException("Cannot set quota on " + path, safeMode); 
-     if (isPermissionEnabled) {
+      if (isPermissionEnabled) {
         checkSuperuserPrivilege();
       }
     
       dir.setQuota(path, nsQuota, dsQuota);
+    } finally {
+      writeUnlock();
     }
     getEditLog().logSync();
   }
@@ -2080,12 +2330,15 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
 
     NameNode.stateChangeLog.info("BLOCK* NameSystem.fsync: file "
                                   + src + " for " + clientName);
-    synchronized (this) {
+    writeLock();
+    try {
       if (isInSafeMode()) {
         throw new SafeModeException("Cannot fsync file " + src, safeMode);
       }
       INodeFileUnderConstruction pendingFile  = checkLease(src, clientName);
       dir.persistBlocks(src, pendingFile);
+    } finally {
+      writeUnlock();
     }
     getEditLog().logSync();
   }
@@ -2115,7 +2368,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    * @param lease The lease for the client creating the file
    */
   void internalReleaseLeaseOne(Lease lease, String src) throws IOException {
-    assert Thread.holdsLock(this);
+    assert hasWriteLock();
 
     LOG.info("Recovering lease=" + lease + ", src=" + src);
 
@@ -2205,7 +2458,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
           + ", deleteBlock=" + deleteblock
           + ")");
     String src = null;
-    synchronized (this) {
+    writeLock();
+    try {
     if (isInSafeMode()) {
       throw new SafeModeException("Cannot commitBlockSynchronization " 
                                   + lastblock, safeMode);
@@ -2280,6 +2534,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
     
     //remove lease, close file
     finalizeINodeFileUnderConstruction(src, pendingFile);
+    } finally {
+      writeUnlock();
     } // end of synchronized section
 
     getEditLog().logSync();
@@ -2294,10 +2550,15 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
   /**
    * Renew the lease(s) held by the given client
    */
-  synchronized void renewLease(String holder) throws IOException {
-    if (isInSafeMode())
-      throw new SafeModeException("Cannot renew lease for " + holder, safeMode);
-    leaseManager.renewLease(holder);
+  void renewLease(String holder) throws IOException {
+    writeLock();
+    try {
+      if (isInSafeMode())
+        throw new SafeModeException("Cannot renew lease for " + holder, safeMode);
+      leaseManager.renewLease(holder);
+    } finally {
+      writeUnlock();
+    }
   }
 
   /**
@@ -2309,20 +2570,27 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    */
   public DirectoryListing getListing(String src, byte[] startAfter)
   throws IOException {
-    if (isPermissionEnabled) {
-      if (dir.isDir(src)) {
-        checkPathAccess(src, FsAction.READ_EXECUTE);
-      }
-      else {
-        checkTraverse(src);
+    DirectoryListing listing;
+    readLock();
+    try {
+      if (isPermissionEnabled) {
+        if (dir.isDir(src)) {
+          checkPathAccess(src, FsAction.READ_EXECUTE);
+        }
+        else {
+          checkTraverse(src);
+        }
       }
+      listing = dir.getListing(src, startAfter);
+    } finally {
+      readUnlock();
     }
     if (auditLog.isInfoEnabled() && isExternalInvocation()) {
       logAuditEvent(UserGroupInformation.getCurrentUser(),
                     Server.getRemoteIp(),
                     "listStatus", src, null, null);
     }
-    return dir.getListing(src, startAfter);
+    return listing;
   }
 
   /////////////////////////////////////////////////////////
@@ -2353,114 +2621,119 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    * 
    * @see org.apache.hadoop.hdfs.server.datanode.DataNode#register()
    */
-  public synchronized void registerDatanode(DatanodeRegistration nodeReg
+  public void registerDatanode(DatanodeRegistration nodeReg
                                             ) throws IOException {
-    String dnAddress = Server.getRemoteAddress();
-    if (dnAddress == null) {
-      // Mostly called inside an RPC.
-      // But if not, use address passed by the data-node.
-      dnAddress = nodeReg.getHost();
-    }      
+    writeLock();
+    try {
+      String dnAddress = Server.getRemoteAddress();
+      if (dnAddress == null) {
+        // Mostly called inside an RPC.
+        // But if not, use address passed by the data-node.
+        dnAddress = nodeReg.getHost();
+      }      
 
-    // check if the datanode is allowed to be connect to the namenode
-    if (!verifyNodeRegistration(nodeReg, dnAddress)) {
-      throw new DisallowedDatanodeException(nodeReg);
-    }
+      // check if the datanode is allowed to be connect to the namenode
+      if (!verifyNodeRegistration(nodeReg, dnAddress)) {
+        throw new DisallowedDatanodeException(nodeReg);
+      }
 
-    String hostName = nodeReg.getHost();
+      String hostName = nodeReg.getHost();
       
-    // update the datanode's name with ip:port
-    DatanodeID dnReg = new DatanodeID(dnAddress + ":" + nodeReg.getPort(),
-                                      nodeReg.getStorageID(),
-                                      nodeReg.getInfoPort(),
-                                      nodeReg.getIpcPort());
-    nodeReg.updateRegInfo(dnReg);
-    nodeReg.exportedKeys = getBlockKeys();
+      // update the datanode's name with ip:port
+      DatanodeID dnReg = new DatanodeID(dnAddress + ":" + nodeReg.getPort(),
+                                        nodeReg.getStorageID(),
+                                        nodeReg.getInfoPort(),
+                                        nodeReg.getIpcPort());
+      nodeReg.updateRegInfo(dnReg);
+      nodeReg.exportedKeys = getBlockKeys();
       
-    NameNode.stateChangeLog.info(
-                                 "BLOCK* NameSystem.registerDatanode: "
-                                 + "node registration from " + nodeReg.getName()
-                                 + " storage " + nodeReg.getStorageID());
+      NameNode.stateChangeLog.info(
+                                   "BLOCK* NameSystem.registerDatanode: "
+                                   + "node registration from " + nodeReg.getName()
+                                   + " storage " + nodeReg.getStorageID());
 
-    DatanodeDescriptor nodeS = datanodeMap.get(nodeReg.getStorageID());
-    DatanodeDescriptor nodeN = host2DataNodeMap.getDatanodeByName(nodeReg.getName());
+      DatanodeDescriptor nodeS = datanodeMap.get(nodeReg.getStorageID());
+      DatanodeDescriptor nodeN = host2DataNodeMap.getDatanodeByName(nodeReg.getName());
       
-    if (nodeN != null && nodeN != nodeS) {
-      NameNode.LOG.info("BLOCK* NameSystem.registerDatanode: "
-                        + "node from name: " + nodeN.getName());
-      // nodeN previously served a different data storage, 
-      // which is not served by anybody anymore.
-      removeDatanode(nodeN);
-      // physically remove node from datanodeMap
-      wipeDatanode(nodeN);
-      nodeN = null;
-    }
-
-    if (nodeS != null) {
-      if (nodeN == nodeS) {
-        // The same datanode has been just restarted to serve the same data 
-        // storage. We do not need to remove old data blocks, the delta will
-        // be calculated on the next block report from the datanode
-        NameNode.stateChangeLog.debug("BLOCK* NameSystem.registerDatanode: "
-                                      + "node restarted.");
-      } else {
-        // nodeS is found
-        /* The registering datanode is a replacement node for the existing 
-          data storage, which from now on will be served by a new node.
-          If this message repeats, both nodes might have same storageID 
-          by (insanely rare) random chance. User needs to restart one of the
-          nodes with its data cleared (or user can just remove the StorageID
-          value in "VERSION" file under the data directory of the datanode,
-          but this is might not work if VERSION file format has changed 
-       */        
-        NameNode.stateChangeLog.info( "BLOCK* NameSystem.registerDatanode: "
-                                      + "node " + nodeS.getName()
-                                      + " is replaced by " + nodeReg.getName() + 
-                                      " with the same storageID " +
-                                      nodeReg.getStorageID());
-      }
-      // update cluster map
-      clusterMap.remove(nodeS);
-      nodeS.updateRegInfo(nodeReg);
-      nodeS.setHostName(hostName);
+      if (nodeN != null && nodeN != nodeS) {
+        NameNode.LOG.info("BLOCK* NameSystem.registerDatanode: "
+                          + "node from name: " + nodeN.getName());
+        // nodeN previously served a different data storage, 
+        // which is not served by anybody anymore.
+        removeDatanode(nodeN);
+        // physically remove node from datanodeMap
+        wipeDatanode(nodeN);
+        nodeN = null;
+      }
+
+      if (nodeS != null) {
+        if (nodeN == nodeS) {
+          // The same datanode has been just restarted to serve the same data 
+          // storage. We do not need to remove old data blocks, the delta will
+          // be calculated on the next block report from the datanode
+          NameNode.stateChangeLog.debug("BLOCK* NameSystem.registerDatanode: "
+                                        + "node restarted.");
+        } else {
+          // nodeS is found
+          /* The registering datanode is a replacement node for the existing 
+            data storage, which from now on will be served by a new node.
+            If this message repeats, both nodes might have same storageID 
+            by (insanely rare) random chance. User needs to restart one of the
+            nodes with its data cleared (or user can just remove the StorageID
+            value in "VERSION" file under the data directory of the datanode,
+            but this is might not work if VERSION file format has changed 
+         */        
+          NameNode.stateChangeLog.info( "BLOCK* NameSystem.registerDatanode: "
+                                        + "node " + nodeS.getName()
+                                        + " is replaced by " + nodeReg.getName() + 
+                                        " with the same storageID " +
+                                        nodeReg.getStorageID());
+        }
+        // update cluster map
+        clusterMap.remove(nodeS);
+        nodeS.updateRegInfo(nodeReg);
+        nodeS.setHostName(hostName);
       
-      // resolve network location
-      resolveNetworkLocation(nodeS);
-      clusterMap.add(nodeS);
+        // resolve network location
+        resolveNetworkLocation(nodeS);
+        clusterMap.add(nodeS);
         
-      // also treat the registration message as a heartbeat
-      synchronized(heartbeats) {
-        if( !heartbeats.contains(nodeS)) {
-          heartbeats.add(nodeS);
-          //update its timestamp
-          nodeS.updateHeartbeat(0L, 0L, 0L, 0, 0);
-          nodeS.isAlive = true;
+        // also treat the registration message as a heartbeat
+        synchronized(heartbeats) {
+          if( !heartbeats.contains(nodeS)) {
+            heartbeats.add(nodeS);
+            //update its timestamp
+            nodeS.updateHeartbeat(0L, 0L, 0L, 0, 0);
+            nodeS.isAlive = true;
+          }
         }
-      }
-      return;
-    } 
-
-    // this is a new datanode serving a new data storage
-    if (nodeReg.getStorageID().equals("")) {
-      // this data storage has never been registered
-      // it is either empty or was created by pre-storageID version of DFS
-      nodeReg.storageID = newStorageID();
-      NameNode.stateChangeLog.debug(
-                                    "BLOCK* NameSystem.registerDatanode: "
-                                    + "new storageID " + nodeReg.getStorageID() + " assigned.");
-    }
-    // register new datanode
-    DatanodeDescriptor nodeDescr 
-      = new DatanodeDescriptor(nodeReg, NetworkTopology.DEFAULT_RACK, hostName);
-    resolveNetworkLocation(nodeDescr);
-    unprotectedAddDatanode(nodeDescr);
-    clusterMap.add(nodeDescr);
+        return;
+      } 
 
-    if (safeMode != null) {
-      safeMode.checkMode();
-    }
+      // this is a new datanode serving a new data storage
+      if (nodeReg.getStorageID().equals("")) {
+        // this data storage has never been registered
+        // it is either empty or was created by pre-storageID version of DFS
+        nodeReg.storageID = newStorageID();
+        NameNode.stateChangeLog.debug(
+                                      "BLOCK* NameSystem.registerDatanode: "
+                                      + "new storageID " + nodeReg.getStorageID() + " assigned.");
+      }
+      // register new datanode
+      DatanodeDescriptor nodeDescr 
+        = new DatanodeDescriptor(nodeReg, NetworkTopology.DEFAULT_RACK, hostName);
+      resolveNetworkLocation(nodeDescr);
+      unprotectedAddDatanode(nodeDescr);
+      clusterMap.add(nodeDescr);
+
+      if (safeMode != null) {
+        safeMode.checkMode();
+      }
     
-    unprotectedRegisterInHeartbeatMap(nodeDescr);
+      unprotectedRegisterInHeartbeatMap(nodeDescr);
+    } finally {
+      writeUnlock();
+    }
   }
     
   void unprotectedRegisterInHeartbeatMap(DatanodeDescriptor nodeDescr) {
@@ -2783,11 +3056,14 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
     workFound = computeReplicationWork(blocksToProcess); 
     
     // Update FSNamesystemMetrics counters
-    synchronized (this) {
+    writeLock();
+    try {
       pendingReplicationBlocksCount = pendingReplications.size();
       underReplicatedBlocksCount = neededReplications.size();
       scheduledReplicationBlocksCount = workFound;
       corruptReplicaBlocksCount = corruptReplicas.size();
+    } finally {
+      writeUnlock();
     }
     
     workFound += computeInvalidateWork(nodesToProcess);
@@ -2795,6 +3071,10 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
   }
 
   private int computeInvalidateWork(int nodesToProcess) {
+    if (stallInvalidateWork) {
+      return 0;
+    }
+    
     int blockCnt = 0;
     for(int nodeCnt = 0; nodeCnt < nodesToProcess; nodeCnt++ ) {
       int work = invalidateWorkForOneNode();
@@ -2844,55 +3124,60 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    * @return Return a list of block lists to be replicated. 
    *         The block list index represents its replication priority.
    */
-  synchronized List<List<Block>> chooseUnderReplicatedBlocks(int blocksToProcess) {
-    // initialize data structure for the return value
-    List<List<Block>> blocksToReplicate = 
-      new ArrayList<List<Block>>(UnderReplicatedBlocks.LEVEL);
-    for (int i=0; i<UnderReplicatedBlocks.LEVEL; i++) {
-      blocksToReplicate.add(new ArrayList<Block>());
-    }
-    
-    synchronized(neededReplications) {
-      if (neededReplications.size() == 0) {
-        missingBlocksInCurIter = 0;
-        missingBlocksInPrevIter = 0;
-        return blocksToReplicate;
+  List<List<Block>> chooseUnderReplicatedBlocks(int blocksToProcess) {
+    writeLock();
+    try {
+      // initialize data structure for the return value
+      List<List<Block>> blocksToReplicate = 
+        new ArrayList<List<Block>>(UnderReplicatedBlocks.LEVEL);
+      for (int i=0; i<UnderReplicatedBlocks.LEVEL; i++) {
+        blocksToReplicate.add(new ArrayList<Block>());
       }
-      
-      // Go through all blocks that need replications.
-      BlockIterator neededReplicationsIterator = neededReplications.iterator();
-      // skip to the first unprocessed block, which is at replIndex 
-      for(int i=0; i < replIndex && neededReplicationsIterator.hasNext(); i++) {
-        neededReplicationsIterator.next();
-      }
-      // # of blocks to process equals either twice the number of live 
-      // data-nodes or the number of under-replicated blocks whichever is less
-      blocksToProcess = Math.min(blocksToProcess, neededReplications.size());
-
-      for (int blkCnt = 0; blkCnt < blocksToProcess; blkCnt++, replIndex++) {
-        if( ! neededReplicationsIterator.hasNext()) {
-          // start from the beginning
-          replIndex = 0;
-          missingBlocksInPrevIter = missingBlocksInCurIter;
+    
+      synchronized(neededReplications) {
+        if (neededReplications.size() == 0) {
           missingBlocksInCurIter = 0;
-          blocksToProcess = Math.min(blocksToProcess, neededReplications.size());
-          if(blkCnt >= blocksToProcess)
-            break;
-          neededReplicationsIterator = neededReplications.iterator();
-          assert neededReplicationsIterator.hasNext() : 
-                                  "neededReplications should not be empty.";
+          missingBlocksInPrevIter = 0;
+          return blocksToReplicate;
         }
-
-        Block block = neededReplicationsIterator.next();
-        int priority = neededReplicationsIterator.getPriority();
-        if (priority < 0 || priority >= blocksToReplicate.size()) {
-          LOG.warn("Unexpected replication priority: " + priority + " " + block);
-        } else {
-          blocksToReplicate.get(priority).add(block);
+      
+        // Go through all blocks that need replications.
+        BlockIterator neededReplicationsIterator = neededReplications.iterator();
+        // skip to the first unprocessed block, which is at replIndex 
+        for(int i=0; i < replIndex && neededReplicationsIterator.hasNext(); i++) {
+          neededReplicationsIterator.next();
         }
-      } // end for
-    } // end synchronized
-    return blocksToReplicate;
+        // # of blocks to process equals either twice the number of live 
+        // data-nodes or the number of under-replicated blocks whichever is less
+        blocksToProcess = Math.min(blocksToProcess, neededReplications.size());
+
+        for (int blkCnt = 0; blkCnt < blocksToProcess; blkCnt++, replIndex++) {
+          if( ! neededReplicationsIterator.hasNext()) {
+            // start from the beginning
+            replIndex = 0;
+            missingBlocksInPrevIter = missingBlocksInCurIter;
+            missingBlocksInCurIter = 0;
+            blocksToProcess = Math.min(blocksToProcess, neededReplications.size());
+            if(blkCnt >= blocksToProcess)
+              break;
+            neededReplicationsIterator = neededReplications.iterator();
+            assert neededReplicationsIterator.hasNext() : 
+                                    "neededReplications should not be empty.";
+          }
+
+          Block block = neededReplicationsIterator.next();
+          int priority = neededReplicationsIterator.getPriority();
+          if (priority < 0 || priority >= blocksToReplicate.size()) {
+            LOG.warn("Unexpected replication priority: " + priority + " " + block);
+          } else {
+            blocksToReplicate.get(priority).add(block);
+          }
+        } // end for
+      } // end synchronized
+      return blocksToReplicate;
+    } finally {
+      writeUnlock();
+    }
  }
   
   /** Replicate a block
@@ -2906,7 +3191,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
     List<DatanodeDescriptor> containingNodes, containingLiveReplicasNodes;
     DatanodeDescriptor srcNode;
     
-    synchronized (this) {
+    writeLock();
+    try {
       synchronized (neededReplications) {
         // block should belong to a file
         INodeFile fileINode = blocksMap.getINode(block);
@@ -2945,6 +3231,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
           return false;
         }
       }
+    } finally {
+      writeUnlock();
     }
     
     // Exclude any nodes that have non-live replicas from the placement.
@@ -2964,7 +3252,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
     if(targets.length == 0)
       return false;
 
-    synchronized (this) {
+    writeLock();
+    try {
       synchronized (neededReplications) {
         // Recheck since global lock was released
         // block should belong to a file
@@ -3025,6 +3314,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
                     + " pendingReplications = " + pendingReplications.size());
         }
       }
+    } finally {
+      writeUnlock();
     }
     
     return true;
@@ -3108,54 +3399,59 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    * 
    * @return number of blocks scheduled for removal during this iteration.
    */
-  private synchronized int invalidateWorkForOneNode() {
-    // blocks should not be replicated or removed if safe mode is on
-    if (isInSafeMode())
-      return 0;
-    if(recentInvalidateSets.isEmpty())
-      return 0;
-    // get blocks to invalidate for the first node
-    String firstNodeId = recentInvalidateSets.keySet().iterator().next();
-    assert firstNodeId != null;
-    DatanodeDescriptor dn = datanodeMap.get(firstNodeId);
-    if (dn == null) {
-       removeFromInvalidates(firstNodeId);
-       return 0;
-    }
+  private int invalidateWorkForOneNode() {
+    writeLock();
+    try {
+      // blocks should not be replicated or removed if safe mode is on
+      if (isInSafeMode())
+        return 0;
+      if(recentInvalidateSets.isEmpty())
+        return 0;
+      // get blocks to invalidate for the first node
+      String firstNodeId = recentInvalidateSets.keySet().iterator().next();
+      assert firstNodeId != null;
+      DatanodeDescriptor dn = datanodeMap.get(firstNodeId);
+      if (dn == null) {
+         removeFromInvalidates(firstNodeId);
+         return 0;
+      }
 
-    Collection<Block> invalidateSet = recentInvalidateSets.get(firstNodeId);
-    if(invalidateSet == null)
-      return 0;
+      Collection<Block> invalidateSet = recentInvalidateSets.get(firstNodeId);
+      if(invalidateSet == null)
+        return 0;
 
-    ArrayList<Block> blocksToInvalidate = 
-      new ArrayList<Block>(blockInvalidateLimit);
+      ArrayList<Block> blocksToInvalidate = 
+        new ArrayList<Block>(blockInvalidateLimit);
 
-    // # blocks that can be sent in one message is limited
-    Iterator<Block> it = invalidateSet.iterator();
-    for(int blkCount = 0; blkCount < blockInvalidateLimit && it.hasNext();
-                                                                blkCount++) {
-      blocksToInvalidate.add(it.next());
-      it.remove();
-    }
+      // # blocks that can be sent in one message is limited
+      Iterator<Block> it = invalidateSet.iterator();
+      for(int blkCount = 0; blkCount < blockInvalidateLimit && it.hasNext();
+                                                                  blkCount++) {
+        blocksToInvalidate.add(it.next());
+        it.remove();
+      }
 
-    // If we send everything in this message, remove this node entry
-    if (!it.hasNext()) {
-      removeFromInvalidates(firstNodeId);
-    }
+      // If we send everything in this message, remove this node entry
+      if (!it.hasNext()) {
+        removeFromInvalidates(firstNodeId);
+      }
 
-    dn.addBlocksToBeInvalidated(blocksToInvalidate);
+      dn.addBlocksToBeInvalidated(blocksToInvalidate);
 
-    if(NameNode.stateChangeLog.isInfoEnabled()) {
-      StringBuffer blockList = new StringBuffer();
-      for(Block blk : blocksToInvalidate) {
-        blockList.append(' ');
-        blockList.append(blk);
+      if(NameNode.stateChangeLog.isInfoEnabled()) {
+        StringBuffer blockList = new StringBuffer();
+        for(Block blk : blocksToInvalidate) {
+          blockList.append(' ');
+          blockList.append(blk);
+        }
+        NameNode.stateChangeLog.info("BLOCK* ask "
+            + dn.getName() + " to delete " + blockList);
       }
-      NameNode.stateChangeLog.info("BLOCK* ask "
-          + dn.getName() + " to delete " + blockList);
+      pendingDeletionBlocksCount -= blocksToInvalidate.size();
+      return blocksToInvalidate.size();
+    } finally {
+      writeUnlock();
     }
-    pendingDeletionBlocksCount -= blocksToInvalidate.size();
-    return blocksToInvalidate.size();
   }
 
   public void setNodeReplicationLimit(int limit) {
@@ -3169,7 +3465,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
   void processPendingReplications() {
     Block[] timedOutItems = pendingReplications.getTimedOutBlocks();
     if (timedOutItems != null) {
-      synchronized (this) {
+      writeLock();
+      try {
         for (int i = 0; i < timedOutItems.length; i++) {
           NumberReplicas num = countNodes(timedOutItems[i]);
           neededReplications.add(timedOutItems[i], 
@@ -3177,6 +3474,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
                                  num.decommissionedReplicas(),
                                  getReplication(timedOutItems[i]));
         }
+      } finally {
+        writeUnlock();
       }
       /* If we know the target datanodes where the replication timedout,
        * we could invoke decBlocksScheduled() on it. Its ok for now.
@@ -3189,14 +3488,19 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    * @param nodeID datanode ID.
    * @throws IOException
    */
-  synchronized public void removeDatanode(DatanodeID nodeID) 
+  public void removeDatanode(DatanodeID nodeID) 
     throws IOException {
-    DatanodeDescriptor nodeInfo = getDatanode(nodeID);
-    if (nodeInfo != null) {
-      removeDatanode(nodeInfo);
-    } else {
-      NameNode.stateChangeLog.warn("BLOCK* NameSystem.removeDatanode: "
-                                   + nodeID.getName() + " does not exist");
+    writeLock();
+    try {
+      DatanodeDescriptor nodeInfo = getDatanode(nodeID);
+      if (nodeInfo != null) {
+        removeDatanode(nodeInfo);
+      } else {
+        NameNode.stateChangeLog.warn("BLOCK* NameSystem.removeDatanode: "
+                                     + nodeID.getName() + " does not exist");
+      }
+    } finally {
+      writeUnlock();
     }
   }
   
@@ -3297,7 +3601,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
 
       // acquire the fsnamesystem lock, and then remove the dead node.
       if (foundDead) {
-        synchronized (this) {
+        writeLock();
+        try {
           synchronized(heartbeats) {
             synchronized (datanodeMap) {
               DatanodeDescriptor nodeInfo = null;
@@ -3313,6 +3618,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
               }
             }
           }
+        } finally {
+          writeUnlock();
         }
       }
       allAlive = !foundDead;
@@ -3328,78 +3635,163 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    *          - list of blocks which are still inprogress.
    * @throws IOException
    */
-  public synchronized void processBlocksBeingWrittenReport(DatanodeID nodeID,
+  public void processBlocksBeingWrittenReport(DatanodeID nodeID,
       BlockListAsLongs blocksBeingWritten) throws IOException {
-    DatanodeDescriptor dataNode = getDatanode(nodeID);
-    if (dataNode == null) {
-      throw new IOException("ProcessReport from unregistered node: "
-          + nodeID.getName());
-    }
+    writeLock();
+    try {
+      DatanodeDescriptor dataNode = getDatanode(nodeID);
+      if (dataNode == null) {
+        throw new IOException("ProcessReport from unregistered node: "
+            + nodeID.getName());
+      }
 
-    // Check if this datanode should actually be shutdown instead.
-    if (shouldNodeShutdown(dataNode)) {
-      setDatanodeDead(dataNode);
-      throw new DisallowedDatanodeException(dataNode);
-    }
+      // Check if this datanode should actually be shutdown instead.
+      if (shouldNodeShutdown(dataNode)) {
+        setDatanodeDead(dataNode);
+        throw new DisallowedDatanodeException(dataNode);
+      }
 
-    Block block = new Block();
+      Block block = new Block();
 
-    for (int i = 0; i < blocksBeingWritten.getNumberOfBlocks(); i++) {
-      block.set(blocksBeingWritten.getBlockId(i), blocksBeingWritten
-          .getBlockLen(i), blocksBeingWritten.getBlockGenStamp(i));
+      for (int i = 0; i < blocksBeingWritten.getNumberOfBlocks(); i++) {
+        block.set(blocksBeingWritten.getBlockId(i), blocksBeingWritten
+            .getBlockLen(i), blocksBeingWritten.getBlockGenStamp(i));
 
-      BlockInfo storedBlock = blocksMap.getStoredBlockWithoutMatchingGS(block);
+        BlockInfo storedBlock = blocksMap.getStoredBlockWithoutMatchingGS(block);
 
-      if (storedBlock == null) {
-        rejectAddStoredBlock(new Block(block), dataNode,
-            "Block not in blockMap with any generation stamp");
-        continue;
-      }
+        if (storedBlock == null) {
+          rejectAddStoredBlock(new Block(block), dataNode,
+              "Block not in blockMap with any generation stamp");
+          continue;
+        }
 
-      INodeFile inode = storedBlock.getINode();
-      if (inode == null) {
-        rejectAddStoredBlock(new Block(block), dataNode,
-            "Block does not correspond to any file");
-        continue;
-      }
+        INodeFile inode = storedBlock.getINode();
+        if (inode == null) {
+          rejectAddStoredBlock(new Block(block), dataNode,
+              "Block does not correspond to any file");
+          continue;
+        }
 
-      boolean underConstruction = inode.isUnderConstruction();
-      boolean isLastBlock = inode.getLastBlock() != null
-          && inode.getLastBlock().getBlockId() == block.getBlockId();
+        boolean underConstruction = inode.isUnderConstruction();
+        boolean isLastBlock = inode.getLastBlock() != null
+            && inode.getLastBlock().getBlockId() == block.getBlockId();
 
-      // Must be the last block of a file under construction,
-      if (!underConstruction) {
-        rejectAddStoredBlock(new Block(block), dataNode,
-            "Reported as block being written but is a block of closed file.");
-        continue;
-      }
+        // Must be the last block of a file under construction,
+        if (!underConstruction) {
+          rejectAddStoredBlock(new Block(block), dataNode,
+              "Reported as block being written but is a block of closed file.");
+          continue;
+        }
 
-      if (!isLastBlock) {
-        rejectAddStoredBlock(new Block(block), dataNode,
-            "Reported as block being written but not the last block of "
-                + "an under-construction file.");
-        continue;
-      }
+        if (!isLastBlock) {
+          rejectAddStoredBlock(new Block(block), dataNode,
+              "Reported as block being written but not the last block of "
+                  + "an under-construction file.");
+          continue;
+        }
 
-      INodeFileUnderConstruction pendingFile = (INodeFileUnderConstruction) inode;
-      pendingFile.addTarget(dataNode);
-      incrementSafeBlockCount(pendingFile.getTargets().length);
+        INodeFileUnderConstruction pendingFile = (INodeFileUnderConstruction) inode;
+        pendingFile.addTarget(dataNode);
+        incrementSafeBlockCount(pendingFile.getTargets().length);
+      }
+    } finally {
+      writeUnlock();
     }
   }
   
   /**
    * The given node is reporting all its blocks.  Use this info to 
    * update the (machine-->blocklist) and (block-->machinelist) tables.
+   * 
+   * The report is processed in chunks of {@link #blockReportChunkSize}
+   * blocks and the namesystem lock is released between chunks, so that
+   * a large report does not stall other operations.
    */
-  public synchronized void processReport(DatanodeID nodeID, 
+  public void processReport(DatanodeID nodeID, 
                                          BlockListAsLongs newReport
                                         ) throws IOException {
     long startTime = now();
+    int numBlocks = newReport.getNumberOfBlocks();
     if (NameNode.stateChangeLog.isDebugEnabled()) {
       NameNode.stateChangeLog.debug("BLOCK* NameSystem.processReport: "
                              + "from " + nodeID.getName()+" " + 
-                             newReport.getNumberOfBlocks()+" blocks");
+                             numBlocks +" blocks");
+    }
+    DatanodeDescriptor node;
+    BlockInfo delimiter;
+    writeLock();
+    try {
+      node = getReportingDatanode(nodeID);
+      delimiter = node.startReport(blocksMap);
+      if (delimiter == null) {
+        throw new IOException("ProcessReport from " + nodeID.getName()
+            + ": a block report from this node is already being processed");
+      }
+    } finally {
+      writeUnlock();
     }
+
+    boolean complete = false;
+    try {
+      //
+      // Modify the (block-->datanode) map, according to the difference
+      // between the old and new block report.
+      //
+      int chunk = blockReportChunkSize > 0 ? blockReportChunkSize : numBlocks;
+      for (int from = 0; from < numBlocks; from += chunk) {
+        writeLock();
+        try {
+          checkReportInProgress(nodeID, node, delimiter);
+          Collection<Block> toAdd = new LinkedList<Block>();
+          Collection<Block> toInvalidate = new LinkedList<Block>();
+          node.reportDiff(blocksMap, newReport, from,
+              (int)Math.min((long)from + chunk, numBlocks), toAdd, toInvalidate);
+          for (Block b : toAdd) {
+            addStoredBlock(b, node, null);
+          }
+          for (Block b : toInvalidate) {
+            NameNode.stateChangeLog.info("BLOCK* NameSystem.processReport: block " 
+                + b + " on " + node.getName() + " size " + b.getNumBytes()
+                + " does not belong to any file.");
+            addToInvalidates(b, node);
+          }
+        } finally {
+          writeUnlock();
+        }
+      }
+
+      // remove the blocks which have not been reported,
+      // all of them are next to the delimiter
+      while (!complete) {
+        writeLock();
+        try {
+          checkReportInProgress(nodeID, node, delimiter);
+          Collection<Block> toRemove = new LinkedList<Block>();
+          complete = node.removeUnreported(blockReportChunkSize, toRemove);
+          for (Block b : toRemove) {
+            removeStoredBlock(b, node);
+          }
+        } finally {
+          writeUnlock();
+        }
+      }
+    } finally {
+      writeLock();
+      try {
+        node.finishReport(blocksMap, delimiter);
+      } finally {
+        writeUnlock();
+      }
+    }
+    NameNode.getNameNodeMetrics().blockReport.inc((int) (now() - startTime));
+  }
+
+  /**
+   * @return the descriptor of a datanode sending a block report
+   * @throws IOException if the node is not registered or must be shutdown
+   */
+  private DatanodeDescriptor getReportingDatanode(DatanodeID nodeID)
+      throws IOException {
     DatanodeDescriptor node = getDatanode(nodeID);
     if (node == null || !node.isAlive) {
       throw new IOException("ProcessReport from dead or unregisterted node: "
@@ -3411,29 +3803,47 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
       setDatanodeDead(node);
       throw new DisallowedDatanodeException(node);
     }
-    
-    //
-    // Modify the (block-->datanode) map, according to the difference
-    // between the old and new block report.
-    //
-    Collection<Block> toAdd = new LinkedList<Block>();
-    Collection<Block> toRemove = new LinkedList<Block>();
-    Collection<Block> toInvalidate = new LinkedList<Block>();
-    node.reportDiff(blocksMap, newReport, toAdd, toRemove, toInvalidate);
-        
-    for (Block b : toRemove) {
-      removeStoredBlock(b, node);
-    }
-    for (Block b : toAdd) {
-      addStoredBlock(b, node, null);
+    return node;
+  }
+
+  /**
+   * Make sure that the node did not go away since the processing of its
+   * block report started, while the lock was released.
+   */
+  private void checkReportInProgress(DatanodeID nodeID,
+      DatanodeDescriptor node, BlockInfo delimiter) throws IOException {
+    if (getReportingDatanode(nodeID) != node
+        || !node.isReportInProgress(delimiter)) {
+      throw new IOException("ProcessReport from " + nodeID.getName()
+          + ": the node was removed while its report was processed");
     }
-    for (Block b : toInvalidate) {
-      NameNode.stateChangeLog.info("BLOCK* NameSystem.processReport: block " 
-          + b + " on " + node.getName() + " size " + b.getNumBytes()
-          + " does not belong to any file.");
-      addToInvalidates(b, node);
+  }
+
+  /**
+   * The given node is reporting that it deleted the given blocks.
+   * Remove them from the (block-->datanode) map right away
+   * instead of waiting for the next full block report.
+   */
+  public void blocksDeleted(DatanodeID nodeID, Block[] blocks
+                            ) throws IOException {
+    writeLock();
+    try {
+      DatanodeDescriptor node = getDatanode(nodeID);
+      if (node == null || !node.isAlive) {
+        throw new IOException(
+            "Got blocksDeleted message from unregistered or dead node "
+            + nodeID.getName());
+      }
+      for (Block b : blocks) {
+        if (NameNode.stateChangeLog.isDebugEnabled()) {
+          NameNode.stateChangeLog.debug("BLOCK* NameSystem.blocksDeleted: "
+              + b + " is deleted from " + nodeID.getName());
+        }
+        removeStoredBlock(b, node);
+      }
+    } finally {
+      writeUnlock();
     }
-    NameNode.getNameNodeMetrics().blockReport.inc((int) (now() - startTime));
   }
 
   /**
@@ -3441,230 +3851,235 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    * needed replications if this takes care of the problem.
    * @return the block that is stored in blockMap.
    */
-  synchronized Block addStoredBlock(Block block, 
+  Block addStoredBlock(Block block, 
                                     DatanodeDescriptor node,
                                     DatanodeDescriptor delNodeHint) {
-    BlockInfo storedBlock = blocksMap.getStoredBlock(block);
-    if (storedBlock == null) {
-      // If we have a block in the block map with the same ID, but a different
-      // generation stamp, and the corresponding file is under construction,
-      // then we need to do some special processing.
-      storedBlock = blocksMap.getStoredBlockWithoutMatchingGS(block);
+    writeLock();
+    try {
+      BlockInfo storedBlock = blocksMap.getStoredBlock(block);
+      if (storedBlock == null) {
+        // If we have a block in the block map with the same ID, but a different
+        // generation stamp, and the corresponding file is under construction,
+        // then we need to do some special processing.
+        storedBlock = blocksMap.getStoredBlockWithoutMatchingGS(block);
+
+        if (storedBlock == null) {
+          return rejectAddStoredBlock(
+            block, node,
+            "Block not in blockMap with any generation stamp");
+        }
+
+        INodeFile inode = storedBlock.getINode();
+        if (inode == null) {
+          return rejectAddStoredBlock(
+            block, node,
+            "Block does not correspond to any file");
+        }
+
+        boolean reportedOldGS = block.getGenerationStamp() < storedBlock.getGenerationStamp();
+        boolean reportedNewGS = block.getGenerationStamp() > storedBlock.getGenerationStamp();
+        boolean underConstruction = inode.isUnderConstruction();
+        boolean isLastBlock = inode.getLastBlock() != null &&
+          inode.getLastBlock().getBlockId() == block.getBlockId();
+
+        // We can report a stale generation stamp for the last block under construction,
+        // we just need to make sure it ends up in targets.
+        if (reportedOldGS && !(underConstruction && isLastBlock)) {
+          return rejectAddStoredBlock(
+            block, node,
+            "Reported block has old generation stamp but is not the last block of " +
+            "an under-construction file. (current generation is " +
+            storedBlock.getGenerationStamp() + ")");
+        }
 
-      if (storedBlock == null) {
-        return rejectAddStoredBlock(
-          block, node,
-          "Block not in blockMap with any generation stamp");
+        // Don't add blocks to the DN when they're part of the in-progress last block
+        // and have an inconsistent generation stamp. Instead just add them to targets
+        // for recovery purposes. They will get added to the node when
+        // commitBlockSynchronization runs
+        if (underConstruction && isLastBlock && (reportedOldGS || reportedNewGS)) {
+          NameNode.stateChangeLog.info(
+            "BLOCK* NameSystem.addStoredBlock: "
+            + "Targets updated: block " + block + " on " + node.getName() +
+            " is added as a target for block " + storedBlock + " with size " +
+            block.getNumBytes());
+          ((INodeFileUnderConstruction)inode).addTarget(node);
+          return block;
+        }
       }
 
-      INodeFile inode = storedBlock.getINode();
-      if (inode == null) {
+      INodeFile fileINode = storedBlock.getINode();
+      if (fileINode == null) {
         return rejectAddStoredBlock(
           block, node,
           "Block does not correspond to any file");
       }
-
-      boolean reportedOldGS = block.getGenerationStamp() < storedBlock.getGenerationStamp();
-      boolean reportedNewGS = block.getGenerationStamp() > storedBlock.getGenerationStamp();
-      boolean underConstruction = inode.isUnderConstruction();
-      boolean isLastBlock = inode.getLastBlock() != null &&
-        inode.getLastBlock().getBlockId() == block.getBlockId();
-
-      // We can report a stale generation stamp for the last block under construction,
-      // we just need to make sure it ends up in targets.
-      if (reportedOldGS && !(underConstruction && isLastBlock)) {
-        return rejectAddStoredBlock(
-          block, node,
-          "Reported block has old generation stamp but is not the last block of " +
-          "an under-construction file. (current generation is " +
-          storedBlock.getGenerationStamp() + ")");
-      }
-
-      // Don't add blocks to the DN when they're part of the in-progress last block
-      // and have an inconsistent generation stamp. Instead just add them to targets
-      // for recovery purposes. They will get added to the node when
-      // commitBlockSynchronization runs
-      if (underConstruction && isLastBlock && (reportedOldGS || reportedNewGS)) {
-        NameNode.stateChangeLog.info(
-          "BLOCK* NameSystem.addStoredBlock: "
-          + "Targets updated: block " + block + " on " + node.getName() +
-          " is added as a target for block " + storedBlock + " with size " +
-          block.getNumBytes());
-        ((INodeFileUnderConstruction)inode).addTarget(node);
-        return block;
+      assert storedBlock != null : "Block must be stored by now";
+
+      // add block to the data-node
+      boolean added = node.addBlock(storedBlock);    
+
+
+      // Is the block being reported the last block of an underconstruction file?
+      boolean blockUnderConstruction = false;
+      if (fileINode.isUnderConstruction()) {
+        INodeFileUnderConstruction cons = (INodeFileUnderConstruction) fileINode;
+        Block last = fileINode.getLastBlock();
+        if (last == null) {
+          // This should never happen, but better to handle it properly than to throw
+          // an NPE below.
+          LOG.error("Null blocks for reported block=" + block + " stored=" + storedBlock +
+            " inode=" + fileINode);
+          return block;
+        }
+        blockUnderConstruction = last.equals(storedBlock);
       }
-    }
-
-    INodeFile fileINode = storedBlock.getINode();
-    if (fileINode == null) {
-      return rejectAddStoredBlock(
-        block, node,
-        "Block does not correspond to any file");
-    }
-    assert storedBlock != null : "Block must be stored by now";
-
-    // add block to the data-node
-    boolean added = node.addBlock(storedBlock);    
 
-
-    // Is the block being reported the last block of an underconstruction file?
-    boolean blockUnderConstruction = false;
-    if (fileINode.isUnderConstruction()) {
-      INodeFileUnderConstruction cons = (INodeFileUnderConstruction) fileINode;
-      Block last = fileINode.getLastBlock();
-      if (last == null) {
-        // This should never happen, but better to handle it properly than to throw
-        // an NPE below.
-        LOG.error("Null blocks for reported block=" + block + " stored=" + storedBlock +
-          " inode=" + fileINode);
-        return block;
-      }
-      blockUnderConstruction = last.equals(storedBlock);
-    }
-
-    // block == storedBlock when this addStoredBlock is the result of a block report
-    if (block != storedBlock) {
-      if (block.getNumBytes() >= 0) {
-        long cursize = storedBlock.getNumBytes();
-        INodeFile file = storedBlock.getINode();
-        if (cursize == 0) {
-          storedBlock.setNumBytes(block.getNumBytes());
-        } else if (cursize != block.getNumBytes()) {
-          String logMsg = "Inconsistent size for block " + block + 
-                   " reported from " + node.getName() + 
-                   " current size is " + cursize +
-                   " reported size is " + block.getNumBytes();
-          // If the block is still under construction this isn't likely
-          // to be a problem, so just log at INFO level.
-          if (blockUnderConstruction) {
-            LOG.info(logMsg);
-          } else {
-            LOG.warn(logMsg);
-          }
-          
-          try {
-            if (cursize > block.getNumBytes() && !blockUnderConstruction) {
-              // new replica is smaller in size than existing block.
-              // Mark the new replica as corrupt.
-              LOG.warn("Mark new replica " + block + " from " + node.getName() + 
-                "as corrupt because its length is shorter than existing ones");
-                markBlockAsCorrupt(block, node);
+      // block == storedBlock when this addStoredBlock is the result of a block report
+      if (block != storedBlock) {
+        if (block.getNumBytes() >= 0) {
+          long cursize = storedBlock.getNumBytes();
+          INodeFile file = storedBlock.getINode();
+          if (cursize == 0) {
+            storedBlock.setNumBytes(block.getNumBytes());
+          } else if (cursize != block.getNumBytes()) {
+            String logMsg = "Inconsistent size for block " + block + 
+                     " reported from " + node.getName() + 
+                     " current size is " + cursize +
+                     " reported size is " + block.getNumBytes();
+            // If the block is still under construction this isn't likely
+            // to be a problem, so just log at INFO level.
+            if (blockUnderConstruction) {
+              LOG.info(logMsg);
             } else {
-              // new replica is larger in size than existing block.
-              if (!blockUnderConstruction) {
-                // Mark pre-existing replicas as corrupt.
-                int numNodes = blocksMap.numNodes(block);
-                int count = 0;
-                DatanodeDescriptor nodes[] = new DatanodeDescriptor[numNodes];
-                Iterator<DatanodeDescriptor> it = blocksMap.nodeIterator(block);
-                for (; it != null && it.hasNext(); ) {
-                  DatanodeDescriptor dd = it.next();
-                  if (!dd.equals(node)) {
-                    nodes[count++] = dd;
+              LOG.warn(logMsg);
+            }
+          
+            try {
+              if (cursize > block.getNumBytes() && !blockUnderConstruction) {
+                // new replica is smaller in size than existing block.
+                // Mark the new replica as corrupt.
+                LOG.warn("Mark new replica " + block + " from " + node.getName() + 
+                  "as corrupt because its length is shorter than existing ones");
+                  markBlockAsCorrupt(block, node);
+              } else {
+                // new replica is larger in size than existing block.
+                if (!blockUnderConstruction) {
+                  // Mark pre-existing replicas as corrupt.
+                  int numNodes = blocksMap.numNodes(block);
+                  int count = 0;
+                  DatanodeDescriptor nodes[] = new DatanodeDescriptor[numNodes];
+                  Iterator<DatanodeDescriptor> it = blocksMap.nodeIterator(block);
+                  for (; it != null && it.hasNext(); ) {
+                    DatanodeDescriptor dd = it.next();
+                    if (!dd.equals(node)) {
+                      nodes[count++] = dd;
+                    }
+                  }
+                  for (int j = 0; j < count; j++) {
+                    LOG.warn("Mark existing replica " + block + " from " + node.getName() + 
+                    " as corrupt because its length is shorter than the new one");
+                    markBlockAsCorrupt(block, nodes[j]);
                   }
                 }
-                for (int j = 0; j < count; j++) {
-                  LOG.warn("Mark existing replica " + block + " from " + node.getName() + 
-                  " as corrupt because its length is shorter than the new one");
-                  markBlockAsCorrupt(block, nodes[j]);
-                }
+                //
+                // change the size of block in blocksMap
+                //
+                storedBlock.setNumBytes(block.getNumBytes());
               }
-              //
-              // change the size of block in blocksMap
-              //
-              storedBlock.setNumBytes(block.getNumBytes());
+            } catch (IOException e) {
+              LOG.warn("Error in deleting bad block " + block + e);
             }
-          } catch (IOException e) {
-            LOG.warn("Error in deleting bad block " + block + e);
           }
-        }
         
-        //Updated space consumed if required.
-        long diff = (file == null) ? 0 :
-                    (file.getPreferredBlockSize() - storedBlock.getNumBytes());
+          //Updated space consumed if required.
+          long diff = (file == null) ? 0 :
+                      (file.getPreferredBlockSize() - storedBlock.getNumBytes());
         
-        if (diff > 0 && file.isUnderConstruction() &&
-            cursize < storedBlock.getNumBytes()) {
-          try {
-            String path = /* For finding parents */ 
-              leaseManager.findPath((INodeFileUnderConstruction)file);
-            dir.updateSpaceConsumed(path, 0, -diff*file.getReplication());
-          } catch (IOException e) {
-            LOG.warn("Unexpected exception while updating disk space : " +
-                     e.getMessage());
+          if (diff > 0 && file.isUnderConstruction() &&
+              cursize < storedBlock.getNumBytes()) {
+            try {
+              String path = /* For finding parents */ 
+                leaseManager.findPath((INodeFileUnderConstruction)file);
+              dir.updateSpaceConsumed(path, 0, -diff*file.getReplication());
+            } catch (IOException e) {
+              LOG.warn("Unexpected exception while updating disk space : " +
+                       e.getMessage());
+            }
           }
         }
+        block = storedBlock;
       }
-      block = storedBlock;
-    }
-    assert storedBlock == block : "Block must be stored by now";
+      assert storedBlock == block : "Block must be stored by now";
         
-    int curReplicaDelta = 0;
+      int curReplicaDelta = 0;
         
-    if (added) {
-      curReplicaDelta = 1;
-      // 
-      // At startup time, because too many new blocks come in
-      // they take up lots of space in the log file. 
-      // So, we log only when namenode is out of safemode.
-      //
-      if (!isInSafeMode()) {
+      if (added) {
+        curReplicaDelta = 1;
+        // 
+        // At startup time, because too many new blocks come in
+        // they take up lots of space in the log file. 
+        // So, we log only when namenode is out of safemode.
+        //
+        if (!isInSafeMode()) {
+          NameNode.stateChangeLog.info("BLOCK* NameSystem.addStoredBlock: "
+                                        +"blockMap updated: "+node.getName()+" is added to "+block+" size "+block.getNumBytes());
+        }
+      } else {
         NameNode.stateChangeLog.info("BLOCK* NameSystem.addStoredBlock: "
-                                      +"blockMap updated: "+node.getName()+" is added to "+block+" size "+block.getNumBytes());
+                                     + "Redundant addStoredBlock request received for " 
+                                     + block + " on " + node.getName()
+                                     + " size " + block.getNumBytes());
       }
-    } else {
-      NameNode.stateChangeLog.info("BLOCK* NameSystem.addStoredBlock: "
-                                   + "Redundant addStoredBlock request received for " 
-                                   + block + " on " + node.getName()
-                                   + " size " + block.getNumBytes());
-    }
 
-    // filter out containingNodes that are marked for decommission.
-    NumberReplicas num = countNodes(storedBlock);
-    int numLiveReplicas = num.liveReplicas();
-    int numCurrentReplica = numLiveReplicas
-      + pendingReplications.getNumReplicas(block);
+      // filter out containingNodes that are marked for decommission.
+      NumberReplicas num = countNodes(storedBlock);
+      int numLiveReplicas = num.liveReplicas();
+      int numCurrentReplica = numLiveReplicas
+        + pendingReplications.getNumReplicas(block);
 
-    // check whether safe replication is reached for the block
-    incrementSafeBlockCount(numCurrentReplica);
+      // check whether safe replication is reached for the block
+      incrementSafeBlockCount(numCurrentReplica);
  
-    //
-    // if file is being actively written to, then do not check 
-    // replication-factor here. It will be checked when the file is closed.
-    //
-    if (blockUnderConstruction) {
-      INodeFileUnderConstruction cons = (INodeFileUnderConstruction)fileINode;
-      cons.addTarget(node);
-      return block;
-    }
+      //
+      // if file is being actively written to, then do not check 
+      // replication-factor here. It will be checked when the file is closed.
+      //
+      if (blockUnderConstruction) {
+        INodeFileUnderConstruction cons = (INodeFileUnderConstruction)fileINode;
+        cons.addTarget(node);
+        return block;
+      }
 
-    // do not handle mis-replicated blocks during startup
-    if(isInSafeMode())
-      return block;
+      // do not handle mis-replicated blocks during startup
+      if(isInSafeMode())
+        return block;
 
-    // handle underReplication/overReplication
-    short fileReplication = fileINode.getReplication();
-    if (numCurrentReplica >= fileReplication) {
-      neededReplications.remove(block, numCurrentReplica, 
-                                num.decommissionedReplicas, fileReplication);
-    } else {
-      updateNeededReplications(block, curReplicaDelta, 0);
-    }
-    if (numCurrentReplica > fileReplication) {
-      processOverReplicatedBlock(block, fileReplication, node, delNodeHint);
-    }
-    // If the file replication has reached desired value
-    // we can remove any corrupt replicas the block may have
-    int corruptReplicasCount = corruptReplicas.numCorruptReplicas(block); 
-    int numCorruptNodes = num.corruptReplicas();
-    if ( numCorruptNodes != corruptReplicasCount) {
-      LOG.warn("Inconsistent number of corrupt replicas for " + 
-          block + "blockMap has " + numCorruptNodes + 
-          " but corrupt replicas map has " + corruptReplicasCount);
+      // handle underReplication/overReplication
+      short fileReplication = fileINode.getReplication();
+      if (numCurrentReplica >= fileReplication) {
+        neededReplications.remove(block, numCurrentReplica, 
+                                  num.decommissionedReplicas, fileReplication);
+      } else {
+        updateNeededReplications(block, curReplicaDelta, 0);
+      }
+      if (numCurrentReplica > fileReplication) {
+        processOverReplicatedBlock(block, fileReplication, node, delNodeHint);
+      }
+      // If the file replication has reached desired value
+      // we can remove any corrupt replicas the block may have
+      int corruptReplicasCount = corruptReplicas.numCorruptReplicas(block); 
+      int numCorruptNodes = num.corruptReplicas();
+      if ( numCorruptNodes != corruptReplicasCount) {
+        LOG.warn("Inconsistent number of corrupt replicas for " + 
+            block + "blockMap has " + numCorruptNodes + 
+            " but corrupt replicas map has " + corruptReplicasCount);
+      }
+      if ((corruptReplicasCount > 0) && (numLiveReplicas >= fileReplication)) 
+        invalidateCorruptReplicas(block);
+      return block;
+    } finally {
+      writeUnlock();
     }
-    if ((corruptReplicasCount > 0) && (numLiveReplicas >= fileReplication)) 
-      invalidateCorruptReplicas(block);
-    return block;
   }
 
   /**
@@ -3726,39 +4141,44 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    * For each block in the name-node verify whether it belongs to any file,
    * over or under replicated. Place it into the respective queue.
    */
-  private synchronized void processMisReplicatedBlocks() {
-    long nrInvalid = 0, nrOverReplicated = 0, nrUnderReplicated = 0;
-    neededReplications.clear();
-    for(BlocksMap.BlockInfo block : blocksMap.getBlocks()) {
-      INodeFile fileINode = block.getINode();
-      if(fileINode == null) {
-        // block does not belong to any file
-        nrInvalid++;
-        addToInvalidates(block);
-        continue;
-      }
-      // calculate current replication
-      short expectedReplication = fileINode.getReplication();
-      NumberReplicas num = countNodes(block);
-      int numCurrentReplica = num.liveReplicas();
-      // add to under-replicated queue if need to be
-      if (neededReplications.add(block, 
-                                 numCurrentReplica,
-                                 num.decommissionedReplicas(),
-                                 expectedReplication)) {
-        nrUnderReplicated++;
-      }
+  private void processMisReplicatedBlocks() {
+    writeLock();
+    try {
+      long nrInvalid = 0, nrOverReplicated = 0, nrUnderReplicated = 0;
+      neededReplications.clear();
+      for(BlocksMap.BlockInfo block : blocksMap.getBlocks()) {
+        INodeFile fileINode = block.getINode();
+        if(fileINode == null) {
+          // block does not belong to any file
+          nrInvalid++;
+          addToInvalidates(block);
+          continue;
+        }
+        // calculate current replication
+        short expectedReplication = fileINode.getReplication();
+        NumberReplicas num = countNodes(block);
+        int numCurrentReplica = num.liveReplicas();
+        // add to under-replicated queue if need to be
+        if (neededReplications.add(block, 
+                                   numCurrentReplica,
+                                   num.decommissionedReplicas(),
+                                   expectedReplication)) {
+          nrUnderReplicated++;
+        }
 
-      if (numCurrentReplica > expectedReplication) {
-        // over-replicated block
-        nrOverReplicated++;
-        processOverReplicatedBlock(block, expectedReplication, null, null);
+        if (numCurrentReplica > expectedReplication) {
+          // over-replicated block
+          nrOverReplicated++;
+          processOverReplicatedBlock(block, expectedReplication, null, null);
+        }
       }
+      LOG.info("Total number of blocks = " + blocksMap.size());
+      LOG.info("Number of invalid blocks = " + nrInvalid);
+      LOG.info("Number of under-replicated blocks = " + nrUnderReplicated);
+      LOG.info("Number of  over-replicated blocks = " + nrOverReplicated);
+    } finally {
+      writeUnlock();
     }
-    LOG.info("Total number of blocks = " + blocksMap.size());
-    LOG.info("Number of invalid blocks = " + nrInvalid);
-    LOG.info("Number of under-replicated blocks = " + nrUnderReplicated);
-    LOG.info("Number of  over-replicated blocks = " + nrOverReplicated);
   }
 
   /**
@@ -3915,93 +4335,103 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    * Modify (block-->datanode) map.  Possibly generate 
    * replication tasks, if the removed block is still valid.
    */
-  synchronized void removeStoredBlock(Block block, DatanodeDescriptor node) {
-    NameNode.stateChangeLog.debug("BLOCK* NameSystem.removeStoredBlock: "
-                                  +block + " from "+node.getName());
-    if (!blocksMap.removeNode(block, node)) {
+  void removeStoredBlock(Block block, DatanodeDescriptor node) {
+    writeLock();
+    try {
       NameNode.stateChangeLog.debug("BLOCK* NameSystem.removeStoredBlock: "
-                                    +block+" has already been removed from node "+node);
-      return;
-    }
+                                    +block + " from "+node.getName());
+      if (!blocksMap.removeNode(block, node)) {
+        NameNode.stateChangeLog.debug("BLOCK* NameSystem.removeStoredBlock: "
+                                      +block+" has already been removed from node "+node);
+        return;
+      }
         
-    //
-    // It's possible that the block was removed because of a datanode
-    // failure.  If the block is still valid, check if replication is
-    // necessary.  In that case, put block on a possibly-will-
-    // be-replicated list.
-    //
-    INode fileINode = blocksMap.getINode(block);
-    if (fileINode != null) {
-      decrementSafeBlockCount(block);
-      updateNeededReplications(block, -1, 0);
-    }
+      //
+      // It's possible that the block was removed because of a datanode
+      // failure.  If the block is still valid, check if replication is
+      // necessary.  In that case, put block on a possibly-will-
+      // be-replicated list.
+      //
+      INode fileINode = blocksMap.getINode(block);
+      if (fileINode != null) {
+        decrementSafeBlockCount(block);
+        updateNeededReplications(block, -1, 0);
+      }
 
-    //
-    // We've removed a block from a node, so it's definitely no longer
-    // in "excess" there.
-    //
-    Collection<Block> excessBlocks = excessReplicateMap.get(node.getStorageID());
-    if (excessBlocks != null) {
-      if (excessBlocks.remove(block)) {
-        excessBlocksCount--;
-        NameNode.stateChangeLog.debug("BLOCK* NameSystem.removeStoredBlock: "
-            + block + " is removed from excessBlocks");
-        if (excessBlocks.size() == 0) {
-          excessReplicateMap.remove(node.getStorageID());
+      //
+      // We've removed a block from a node, so it's definitely no longer
+      // in "excess" there.
+      //
+      Collection<Block> excessBlocks = excessReplicateMap.get(node.getStorageID());
+      if (excessBlocks != null) {
+        if (excessBlocks.remove(block)) {
+          excessBlocksCount--;
+          NameNode.stateChangeLog.debug("BLOCK* NameSystem.removeStoredBlock: "
+              + block + " is removed from excessBlocks");
+          if (excessBlocks.size() == 0) {
+            excessReplicateMap.remove(node.getStorageID());
+          }
         }
       }
-    }
     
-    // Remove the replica from corruptReplicas
-    corruptReplicas.removeFromCorruptReplicasMap(block, node);
+      // Remove the replica from corruptReplicas
+      corruptReplicas.removeFromCorruptReplicasMap(block, node);
+    } finally {
+      writeUnlock();
+    }
   }
 
   /**
    * The given node is reporting that it received a certain block.
    */
-  public synchronized void blockReceived(DatanodeID nodeID,  
+  public void blockReceived(DatanodeID nodeID,  
                                          Block block,
                                          String delHint
                                          ) throws IOException {
-    DatanodeDescriptor node = getDatanode(nodeID);
-    if (node == null || !node.isAlive) {
-      NameNode.stateChangeLog.warn("BLOCK* NameSystem.blockReceived: " + block
-          + " is received from dead or unregistered node " + nodeID.getName());
-      throw new IOException(
-          "Got blockReceived message from unregistered or dead node " + nodeID.getName());
-    }
+    writeLock();
+    try {
+      DatanodeDescriptor node = getDatanode(nodeID);
+      if (node == null || !node.isAlive) {
+        NameNode.stateChangeLog.warn("BLOCK* NameSystem.blockReceived: " + block
+            + " is received from dead or unregistered node " + nodeID.getName());
+        throw new IOException(
+            "Got blockReceived message from unregistered or dead node " + nodeID.getName());
+      }
         
-    if (NameNode.stateChangeLog.isDebugEnabled()) {
-      NameNode.stateChangeLog.debug("BLOCK* NameSystem.blockReceived: "
-                                    +block+" is received from " + nodeID.getName());
-    }
+      if (NameNode.stateChangeLog.isDebugEnabled()) {
+        NameNode.stateChangeLog.debug("BLOCK* NameSystem.blockReceived: "
+                                      +block+" is received from " + nodeID.getName());
+      }
 
-    // Check if this datanode should actually be shutdown instead.
-    if (shouldNodeShutdown(node)) {
-      setDatanodeDead(node);
-      throw new DisallowedDatanodeException(node);
-    }
+      // Check if this datanode should actually be shutdown instead.
+      if (shouldNodeShutdown(node)) {
+        setDatanodeDead(node);
+        throw new DisallowedDatanodeException(node);
+      }
 
-    // decrement number of blocks scheduled to this datanode.
-    node.decBlocksScheduled();
+      // decrement number of blocks scheduled to this datanode.
+      node.decBlocksScheduled();
     
-    // get the deletion hint node
-    DatanodeDescriptor delHintNode = null;
-    if(delHint!=null && delHint.length()!=0) {
-      delHintNode = datanodeMap.get(delHint);
-      if(delHintNode == null) {
-        NameNode.stateChangeLog.warn("BLOCK* NameSystem.blockReceived: "
-            + block
-            + " is expected to be removed from an unrecorded node " 
-            + delHint);
+      // get the deletion hint node
+      DatanodeDescriptor delHintNode = null;
+      if(delHint!=null && delHint.length()!=0) {
+        delHintNode = datanodeMap.get(delHint);
+        if(delHintNode == null) {
+          NameNode.stateChangeLog.warn("BLOCK* NameSystem.blockReceived: "
+              + block
+              + " is expected to be removed from an unrecorded node " 
+              + delHint);
+        }
       }
-    }
 
-    //
-    // Modify the blocks->datanode map and node's map.
-    // 
-    pendingReplications.remove(block);
-    addStoredBlock(block, node, delHintNode );
+      //
+      // Modify the blocks->datanode map and node's map.
+      // 
+      pendingReplications.remove(block);
+      addStoredBlock(block, node, delHintNode );
+    } finally {
+      writeUnlock();
+    }
   }
 
   public long getMissingBlocksCount() {
@@ -4087,70 +4517,80 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
     return getDatanodeListForReport(type).size(); 
   }
 
-  private synchronized ArrayList<DatanodeDescriptor> getDatanodeListForReport(
+  private ArrayList<DatanodeDescriptor> getDatanodeListForReport(
                                                       DatanodeReportType type) {                  
+    readLock();
+    try {
     
-    boolean listLiveNodes = type == DatanodeReportType.ALL ||
-                            type == DatanodeReportType.LIVE;
-    boolean listDeadNodes = type == DatanodeReportType.ALL ||
-                            type == DatanodeReportType.DEAD;
+      boolean listLiveNodes = type == DatanodeReportType.ALL ||
+                              type == DatanodeReportType.LIVE;
+      boolean listDeadNodes = type == DatanodeReportType.ALL ||
+                              type == DatanodeReportType.DEAD;
 
-    HashMap<String, String> mustList = new HashMap<String, String>();
+      HashMap<String, String> mustList = new HashMap<String, String>();
     
-    if (listDeadNodes) {
-      //first load all the nodes listed in include and exclude files.
-      for (Iterator<String> it = hostsReader.getHosts().iterator(); 
-           it.hasNext();) {
-        mustList.put(it.next(), "");
-      }
-      for (Iterator<String> it = hostsReader.getExcludedHosts().iterator(); 
-           it.hasNext();) {
-        mustList.put(it.next(), "");
+      if (listDeadNodes) {
+        //first load all the nodes listed in include and exclude files.
+        for (Iterator<String> it = hostsReader.getHosts().iterator(); 
+             it.hasNext();) {
+          mustList.put(it.next(), "");
+        }
+        for (Iterator<String> it = hostsReader.getExcludedHosts().iterator(); 
+             it.hasNext();) {
+          mustList.put(it.next(), "");
+        }
       }
-    }
    
-    ArrayList<DatanodeDescriptor> nodes = null;
+      ArrayList<DatanodeDescriptor> nodes = null;
     
-    synchronized (datanodeMap) {
-      nodes = new ArrayList<DatanodeDescriptor>(datanodeMap.size() + 
-                                                mustList.size());
+      synchronized (datanodeMap) {
+        nodes = new ArrayList<DatanodeDescriptor>(datanodeMap.size() + 
+                                                  mustList.size());
       
-      for(Iterator<DatanodeDescriptor> it = datanodeMap.values().iterator(); 
-                                                               it.hasNext();) {
-        DatanodeDescriptor dn = it.next();
-        boolean isDead = isDatanodeDead(dn);
-        if ( (isDead && listDeadNodes) || (!isDead && listLiveNodes) ) {
-          nodes.add(dn);
+        for(Iterator<DatanodeDescriptor> it = datanodeMap.values().iterator(); 
+                                                                 it.hasNext();) {
+          DatanodeDescriptor dn = it.next();
+          boolean isDead = isDatanodeDead(dn);
+          if ( (isDead && listDeadNodes) || (!isDead && listLiveNodes) ) {
+            nodes.add(dn);
+          }
+          //Remove any form of the this datanode in include/exclude lists.
+          mustList.remove(dn.getName());
+          mustList.remove(dn.getHost());
+          mustList.remove(dn.getHostName());
         }
-        //Remove any form of the this datanode in include/exclude lists.
-        mustList.remove(dn.getName());
-        mustList.remove(dn.getHost());
-        mustList.remove(dn.getHostName());
       }
-    }
     
-    if (listDeadNodes) {
-      for (Iterator<String> it = mustList.keySet().iterator(); it.hasNext();) {
-        DatanodeDescriptor dn = 
-            new DatanodeDescriptor(new DatanodeID(it.next()));
-        dn.setLastUpdate(0);
-        nodes.add(dn);
+      if (listDeadNodes) {
+        for (Iterator<String> it = mustList.keySet().iterator(); it.hasNext();) {
+          DatanodeDescriptor dn = 
+              new DatanodeDescriptor(new DatanodeID(it.next()));
+          dn.setLastUpdate(0);
+          nodes.add(dn);
+        }
       }
-    }
     
-    return nodes;
+      return nodes;
+    } finally {
+      readUnlock();
+    }
   }
 
-  public synchronized DatanodeInfo[] datanodeReport( DatanodeReportType type
+  public DatanodeInfo[] datanodeReport( DatanodeReportType type
       ) throws AccessControlException {
-    checkSuperuserPrivilege();
+    readLock();
+    try {
+      checkSuperuserPrivilege();
 
-    ArrayList<DatanodeDescriptor> results = getDatanodeListForReport(type);
-    DatanodeInfo[] arr = new DatanodeInfo[results.size()];
-    for (int i=0; i<arr.length; i++) {
-      arr[i] = new DatanodeInfo(results.get(i));
+      ArrayList<DatanodeDescriptor> results = getDatanodeListForReport(type);
+      DatanodeInfo[] arr = new DatanodeInfo[results.size()];
+      for (int i=0; i<arr.length; i++) {
+        arr[i] = new DatanodeInfo(results.get(i));
+      }
+      return arr;
+    } finally {
+      readUnlock();
     }
-    return arr;
   }
 
   /**
@@ -4161,42 +4601,57 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    * @throws AccessControlException if superuser privilege is violated.
    * @throws IOException if 
    */
-  synchronized void saveNamespace() throws AccessControlException, IOException {
-    checkSuperuserPrivilege();
-    if(!isInSafeMode()) {
-      throw new IOException("Safe mode should be turned ON " +
-                            "in order to create namespace image.");
+  void saveNamespace() throws AccessControlException, IOException {
+    writeLock();
+    try {
+      checkSuperuserPrivilege();
+      if(!isInSafeMode()) {
+        throw new IOException("Safe mode should be turned ON " +
+                              "in order to create namespace image.");
+      }
+      getFSImage().saveNamespace(true);
+      LOG.info("New namespace image has been created.");
+    } finally {
+      writeUnlock();
     }
-    getFSImage().saveNamespace(true);
-    LOG.info("New namespace image has been created.");
   }
 
   /**
    */
-  public synchronized void DFSNodesStatus(ArrayList<DatanodeDescriptor> live, 
+  public void DFSNodesStatus(ArrayList<DatanodeDescriptor> live, 
                                           ArrayList<DatanodeDescriptor> dead) {
+    readLock();
+    try {
 
-    ArrayList<DatanodeDescriptor> results = 
-                            getDatanodeListForReport(DatanodeReportType.ALL);    
-    for(Iterator<DatanodeDescriptor> it = results.iterator(); it.hasNext();) {
-      DatanodeDescriptor node = it.next();
-      if (isDatanodeDead(node))
-        dead.add(node);
-      else
-        live.add(node);
+      ArrayList<DatanodeDescriptor> results = 
+                              getDatanodeListForReport(DatanodeReportType.ALL);    
+      for(Iterator<DatanodeDescriptor> it = results.iterator(); it.hasNext();) {
+        DatanodeDescriptor node = it.next();
+        if (isDatanodeDead(node))
+          dead.add(node);
+        else
+          live.add(node);
+      }
+    } finally {
+      readUnlock();
     }
   }
 
   /**
    * Prints information about all datanodes.
    */
-  private synchronized void datanodeDump(PrintWriter out) {
-    synchronized (datanodeMap) {
-      out.println("Metasave: Number of datanodes: " + datanodeMap.size());
-      for(Iterator<DatanodeDescriptor> it = datanodeMap.values().iterator(); it.hasNext();) {
-        DatanodeDescriptor node = it.next();
-        out.println(node.dumpDatanode());
+  private void datanodeDump(PrintWriter out) {
+    readLock();
+    try {
+      synchronized (datanodeMap) {
+        out.println("Metasave: Number of datanodes: " + datanodeMap.size());
+        for(Iterator<DatanodeDescriptor> it = datanodeMap.values().iterator(); it.hasNext();) {
+          DatanodeDescriptor node = it.next();
+          out.println(node.dumpDatanode());
+        }
       }
+    } finally {
+      readUnlock();
     }
   }
 
@@ -4252,6 +4707,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
   
   public void stallReplicationWork()   { stallReplicationWork = true;   }
   public void restartReplicationWork() { stallReplicationWork = false;  }
+  public void stallInvalidateWork()    { stallInvalidateWork = true;    }
+  public void restartInvalidateWork()  { stallInvalidateWork = false;   }
     
   /**
    * A immutable object that stores the number of live replicas and
@@ -4476,7 +4933,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
     hostsReader.updateFileNames(conf.get("dfs.hosts",""), 
                                 conf.get("dfs.hosts.exclude", ""));
     hostsReader.refresh();
-    synchronized (this) {
+    writeLock();
+    try {
       for (Iterator<DatanodeDescriptor> it = datanodeMap.values().iterator();
            it.hasNext();) {
         DatanodeDescriptor node = it.next();
@@ -4497,6 +4955,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
           }
         }
       }
+    } finally {
+      writeUnlock();
     } 
       
   }
@@ -4514,22 +4974,27 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    * Returns TRUE if node is registered (including when it is on the 
    * exclude list and is being decommissioned). 
    */
-  private synchronized boolean verifyNodeRegistration(DatanodeRegistration nodeReg, String ipAddr) 
+  private boolean verifyNodeRegistration(DatanodeRegistration nodeReg, String ipAddr) 
     throws IOException {
-    if (!inHostsList(nodeReg, ipAddr)) {
-      return false;    
-    }
-    if (inExcludedHostsList(nodeReg, ipAddr)) {
-      DatanodeDescriptor node = getDatanode(nodeReg);
-      if (node == null) {
-        throw new IOException("verifyNodeRegistration: unknown datanode " +
-                              nodeReg.getName());
-      }
-      if (!checkDecommissionStateInternal(node)) {
-        startDecommission(node);
+    writeLock();
+    try {
+      if (!inHostsList(nodeReg, ipAddr)) {
+        return false;    
       }
-    } 
-    return true;
+      if (inExcludedHostsList(nodeReg, ipAddr)) {
+        DatanodeDescriptor node = getDatanode(nodeReg);
+        if (node == null) {
+          throw new IOException("verifyNodeRegistration: unknown datanode " +
+                                nodeReg.getName());
+        }
+        if (!checkDecommissionStateInternal(node)) {
+          startDecommission(node);
+        }
+      } 
+      return true;
+    } finally {
+      writeUnlock();
+    }
   }
     
   /**
@@ -5061,34 +5526,44 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    * Enter safe mode manually.
    * @throws IOException
    */
-  synchronized void enterSafeMode(boolean resourcesLow) throws IOException {
-    getEditLog().logSyncAll();
-    if (!isInSafeMode()) {
-      safeMode = new SafeModeInfo(resourcesLow);
-      return;
-    }
-    if (resourcesLow) {
-      safeMode.setResourcesLow();
+  void enterSafeMode(boolean resourcesLow) throws IOException {
+    writeLock();
+    try {
+      getEditLog().logSyncAll();
+      if (!isInSafeMode()) {
+        safeMode = new SafeModeInfo(resourcesLow);
+        return;
+      }
+      if (resourcesLow) {
+        safeMode.setResourcesLow();
+      }
+      safeMode.setManual();
+      getEditLog().logSyncAll();
+      NameNode.stateChangeLog.info("STATE* Safe mode is ON. " 
+                                  + safeMode.getTurnOffTip());
+    } finally {
+      writeUnlock();
     }
-    safeMode.setManual();
-    getEditLog().logSyncAll();
-    NameNode.stateChangeLog.info("STATE* Safe mode is ON. " 
-                                + safeMode.getTurnOffTip());
   }
 
   /**
    * Leave safe mode.
    * @throws IOException
    */
-  synchronized void leaveSafeMode(boolean checkForUpgrades) throws SafeModeException {
-    if (!isInSafeMode()) {
-      NameNode.stateChangeLog.info("STATE* Safe mode is already OFF."); 
-      return;
+  void leaveSafeMode(boolean checkForUpgrades) throws SafeModeException {
+    writeLock();
+    try {
+      if (!isInSafeMode()) {
+        NameNode.stateChangeLog.info("STATE* Safe mode is already OFF."); 
+        return;
+      }
+      if(getDistributedUpgradeState())
+        throw new SafeModeException("Distributed upgrade is in progress",
+                                    safeMode);
+      safeMode.leave(checkForUpgrades);
+    } finally {
+      writeUnlock();
     }
-    if(getDistributedUpgradeState())
-      throw new SafeModeException("Distributed upgrade is in progress",
-                                  safeMode);
-    safeMode.leave(checkForUpgrades);
   }
     
   String getSafeModeTip() {
@@ -5101,22 +5576,32 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
     return getEditLog().getEditLogSize();
   }
 
-  synchronized CheckpointSignature rollEditLog() throws IOException {
-    if (isInSafeMode()) {
-      throw new SafeModeException("Checkpoint not created",
-                                  safeMode);
+  CheckpointSignature rollEditLog() throws IOException {
+    writeLock();
+    try {
+      if (isInSafeMode()) {
+        throw new SafeModeException("Checkpoint not created",
+                                    safeMode);
+      }
+      LOG.info("Roll Edit Log from " + Server.getRemoteAddress());
+      return getFSImage().rollEditLog();
+    } finally {
+      writeUnlock();
     }
-    LOG.info("Roll Edit Log from " + Server.getRemoteAddress());
-    return getFSImage().rollEditLog();
   }
 
-  synchronized void rollFSImage() throws IOException {
-    if (isInSafeMode()) {
-      throw new SafeModeException("Checkpoint not created",
-                                  safeMode);
+  void rollFSImage() throws IOException {
+    writeLock();
+    try {
+      if (isInSafeMode()) {
+        throw new SafeModeException("Checkpoint not created",
+                                    safeMode);
+      }
+      LOG.info("Roll FSImage from " + Server.getRemoteAddress());
+      getFSImage().rollFSImage();
+    } finally {
+      writeUnlock();
     }
-    LOG.info("Roll FSImage from " + Server.getRemoteAddress());
-    getFSImage().rollFSImage();
   }
 
   /**
@@ -5204,8 +5689,13 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
         fsOwner.getShortUserName(), supergroup);
     if (!pc.isSuper) {
       dir.waitForReady();
-      pc.checkPermission(path, dir.rootDir, doCheckOwner,
-          ancestorAccess, parentAccess, access, subAccess);
+      dir.readLock();
+      try {
+        pc.checkPermission(path, dir.rootDir, doCheckOwner,
+            ancestorAccess, parentAccess, access, subAccess);
+      } finally {
+        dir.readUnlock();
+      }
     }
     return pc;
   }
@@ -5258,8 +5748,13 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
     return excessBlocksCount;
   }
   
-  public synchronized int getBlockCapacity() {
-    return blocksMap.getCapacity();
+  public int getBlockCapacity() {
+    readLock();
+    try {
+      return blocksMap.getCapacity();
+    } finally {
+      readUnlock();
+    }
   }
 
   public String getFSState() {
@@ -5345,6 +5840,55 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
     return numDead;
   }
 
+  /**
+   * Number of times the namespace read lock has been acquired
+   */
+  public long getReadLockCount() {
+    return readLockCount.get();
+  }
+
+  /**
+   * Total time spent waiting for the namespace read lock
+   */
+  public long getReadLockWaitTimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(readLockWaitNanos.get());
+  }
+
+  /**
+   * Total time the namespace read lock has been held
+   */
+  public long getReadLockHoldTimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(readLockHoldNanos.get());
+  }
+
+  /**
+   * Number of times the namespace write lock has been acquired
+   */
+  public long getWriteLockCount() {
+    return writeLockCount.get();
+  }
+
+  /**
+   * Total time spent waiting for the namespace write lock
+   */
+  public long getWriteLockWaitTimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(writeLockWaitNanos.get());
+  }
+
+  /**
+   * Total time the namespace write lock has been held
+   */
+  public long getWriteLockHoldTimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(writeLockHoldNanos.get());
+  }
+
+  /**
+   * Number of threads waiting for the namespace lock
+   */
+  public int getLockQueueLength() {
+    return fsLock.getQueueLength();
+  }
+
   /**
    * Sets the generation stamp for this filesystem
    */
@@ -5376,48 +5920,53 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    * @param fromNN if it is for lease recovery initiated by NameNode
    * @return a new generation stamp
    */
-  synchronized long nextGenerationStampForBlock(Block block, boolean fromNN)
+  long nextGenerationStampForBlock(Block block, boolean fromNN)
   throws IOException {
-    if (isInSafeMode()) {
-      throw new SafeModeException("Cannot get nextGenStamp for " + block, safeMode);
-    }
-    BlockInfo storedBlock = blocksMap.getStoredBlock(block);
-    if (storedBlock == null) {
-      BlockInfo match =
-        blocksMap.getStoredBlock(block.getWithWildcardGS());
-      String msg = (match == null)
-        ? block + " is missing"
-        : block + " has out of date GS " + block.getGenerationStamp() +
-                  " found " + match.getGenerationStamp() +
-                  ", may already be committed";
-      LOG.info(msg);
-      throw new IOException(msg);
-    }
-    INodeFile fileINode = storedBlock.getINode();
-    if (!fileINode.isUnderConstruction()) {
-      String msg = block + " is already commited, !fileINode.isUnderConstruction().";
-      LOG.info(msg);
-      throw new IOException(msg);
-    }
-    // Disallow client-initiated recovery once NameNode initiated lease recovery
-    // starts
-    // There should always be a lease if the file is under recovery, but be
-    // paranoid about NPEs
-    Lease lease =
-      leaseManager.getLeaseByPath(FSDirectory.getFullPathName(fileINode));
-    if (!fromNN && (lease != null) && 
-        HdfsConstants.NN_RECOVERY_LEASEHOLDER.equals(lease.getHolder())) {
-      String msg = block +
-        "is being recovered by NameNode, ignoring the request from a client";
-      LOG.info(msg);
-      throw new IOException(msg);
-    }
-    if (!((INodeFileUnderConstruction)fileINode).setLastRecoveryTime(now())) {
-      String msg = block + " is already being recovered, ignoring this request.";
-      LOG.info(msg);
-      throw new IOException(msg);
-    }
-    return nextGenerationStamp();
+    writeLock();
+    try {
+      if (isInSafeMode()) {
+        throw new SafeModeException("Cannot get nextGenStamp for " + block, safeMode);
+      }
+      BlockInfo storedBlock = blocksMap.getStoredBlock(block);
+      if (storedBlock == null) {
+        BlockInfo match =
+          blocksMap.getStoredBlock(block.getWithWildcardGS());
+        String msg = (match == null)
+          ? block + " is missing"
+          : block + " has out of date GS " + block.getGenerationStamp() +
+                    " found " + match.getGenerationStamp() +
+                    ", may already be committed";
+        LOG.info(msg);
+        throw new IOException(msg);
+      }
+      INodeFile fileINode = storedBlock.getINode();
+      if (!fileINode.isUnderConstruction()) {
+        String msg = block + " is already commited, !fileINode.isUnderConstruction().";
+        LOG.info(msg);
+        throw new IOException(msg);
+      }
+      // Disallow client-initiated recovery once NameNode initiated lease recovery
+      // starts
+      // There should always be a lease if the file is under recovery, but be
+      // paranoid about NPEs
+      Lease lease =
+        leaseManager.getLeaseByPath(FSDirectory.getFullPathName(fileINode));
+      if (!fromNN && (lease != null) && 
+          HdfsConstants.NN_RECOVERY_LEASEHOLDER.equals(lease.getHolder())) {
+        String msg = block +
+          "is being recovered by NameNode, ignoring the request from a client";
+        LOG.info(msg);
+        throw new IOException(msg);
+      }
+      if (!((INodeFileUnderConstruction)fileINode).setLastRecoveryTime(now())) {
+        String msg = block + " is already being recovered, ignoring this request.";
+        LOG.info(msg);
+        throw new IOException(msg);
+      }
+      return nextGenerationStamp();
+    } finally {
+      writeUnlock();
+    }
   }
 
   // rename was successful. If any part of the renamed subtree had
@@ -5471,16 +6020,21 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
     }
   }
   
-  public synchronized ArrayList<DatanodeDescriptor> getDecommissioningNodes() {
-    ArrayList<DatanodeDescriptor> decommissioningNodes = new ArrayList<DatanodeDescriptor>();
-    ArrayList<DatanodeDescriptor> results = getDatanodeListForReport(DatanodeReportType.LIVE);
-    for (Iterator<DatanodeDescriptor> it = results.iterator(); it.hasNext();) {
-      DatanodeDescriptor node = it.next();
-      if (node.isDecommissionInProgress()) {
-        decommissioningNodes.add(node);
+  public ArrayList<DatanodeDescriptor> getDecommissioningNodes() {
+    readLock();
+    try {
+      ArrayList<DatanodeDescriptor> decommissioningNodes = new ArrayList<DatanodeDescriptor>();
+      ArrayList<DatanodeDescriptor> results = getDatanodeListForReport(DatanodeReportType.LIVE);
+      for (Iterator<DatanodeDescriptor> it = results.iterator(); it.hasNext();) {
+        DatanodeDescriptor node = it.next();
+        if (node.isDecommissionInProgress()) {
+          decommissioningNodes.add(node);
+        }
       }
+      return decommissioningNodes;
+    } finally {
+      readUnlock();
     }
-    return decommissioningNodes;
   }
 
   /*
@@ -5605,8 +6159,11 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    */
   private void logGetDelegationToken(DelegationTokenIdentifier id,
       long expiryTime) throws IOException {
-    synchronized (this) {
+    writeLock();
+    try {
       getEditLog().logGetDelegationToken(id, expiryTime);
+    } finally {
+      writeUnlock();
     }
     getEditLog().logSync();
   }
@@ -5619,8 +6176,11 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    */
   private void logRenewDelegationToken(DelegationTokenIdentifier id,
       long expiryTime) throws IOException {
-    synchronized (this) {
+    writeLock();
+    try {
       getEditLog().logRenewDelegationToken(id, expiryTime);
+    } finally {
+      writeUnlock();
     }
     getEditLog().logSync();
   }
@@ -5633,8 +6193,11 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    */
   private void logCancelDelegationToken(DelegationTokenIdentifier id)
       throws IOException {
-    synchronized (this) {
+    writeLock();
+    try {
       getEditLog().logCancelDelegationToken(id);
+    } finally {
+      writeUnlock();
     }
     getEditLog().logSync();
   }
@@ -5645,8 +6208,11 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean,
    * @param key new delegation key.
    */
   public void logUpdateMasterKey(DelegationKey key) throws IOException {
-    synchronized (this) {
+    writeLock();
+    try {
       getEditLog().logUpdateMasterKey(key);
+    } finally {
+      writeUnlock();
     }
     getEditLog().logSync();
   }
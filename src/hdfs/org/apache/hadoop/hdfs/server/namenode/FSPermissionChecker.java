@@ -95,6 +95,8 @@ private final UserGroupInformation ugi;
    * Further, if both foo and bar do not exist,
    * then the ancestor path is "/".
    *
+   * The caller must hold the read lock of the {@link FSDirectory}.
+   *
    * @param doCheckOwner Require user to be the owner of the path?
    * @param ancestorAccess The access required by the ancestor of the path.
    * @param parentAccess The access required by the parent of the path.
@@ -117,32 +119,30 @@ private final UserGroupInformation ugi;
           + ", subAccess=" + subAccess);
     }
     // check if (parentAccess != null) && file exists, then check sb
-    synchronized(root) {
-      INode[] inodes = root.getExistingPathINodes(path);
-      int ancestorIndex = inodes.length - 2;
-      for(; ancestorIndex >= 0 && inodes[ancestorIndex] == null;
-          ancestorIndex--);
-      checkTraverse(inodes, ancestorIndex);
-
-      if(parentAccess != null && parentAccess.implies(FsAction.WRITE)
-          && inodes[inodes.length - 1] != null)
-        checkStickyBit(inodes[inodes.length - 2], inodes[inodes.length - 1]);
-
-      if (ancestorAccess != null && inodes.length > 1) {
-        check(inodes, ancestorIndex, ancestorAccess);
-      }
-      if (parentAccess != null && inodes.length > 1) {
-        check(inodes, inodes.length - 2, parentAccess);
-      }
-      if (access != null) {
-        check(inodes[inodes.length - 1], access);
-      }
-      if (subAccess != null) {
-        checkSubAccess(inodes[inodes.length - 1], subAccess);
-      }
-      if (doCheckOwner) {
-        checkOwner(inodes[inodes.length - 1]);
-      }
+    INode[] inodes = root.getExistingPathINodes(path);
+    int ancestorIndex = inodes.length - 2;
+    for(; ancestorIndex >= 0 && inodes[ancestorIndex] == null;
+        ancestorIndex--);
+    checkTraverse(inodes, ancestorIndex);
+
+    if(parentAccess != null && parentAccess.implies(FsAction.WRITE)
+        && inodes[inodes.length - 1] != null)
+      checkStickyBit(inodes[inodes.length - 2], inodes[inodes.length - 1]);
+
+    if (ancestorAccess != null && inodes.length > 1) {
+      check(inodes, ancestorIndex, ancestorAccess);
+    }
+    if (parentAccess != null && inodes.length > 1) {
+      check(inodes, inodes.length - 2, parentAccess);
+    }
+    if (access != null) {
+      check(inodes[inodes.length - 1], access);
+    }
+    if (subAccess != null) {
+      checkSubAccess(inodes[inodes.length - 1], subAccess);
+    }
+    if (doCheckOwner) {
+      checkOwner(inodes[inodes.length - 1]);
     }
   }
 
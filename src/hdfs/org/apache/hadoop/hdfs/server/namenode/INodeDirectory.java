@@ -18,9 +18,10 @@
 package org.apache.hadoop.hdfs.server.namenode;
 
 import java.io.FileNotFoundException;
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.RandomAccess;
 
 import org.apache.hadoop.fs.permission.FsAction;
 import org.apache.hadoop.fs.permission.FsPermission;
@@ -32,10 +33,16 @@ import org.apache.hadoop.hdfs.protocol.Block;
  * Directory INode class.
  */
 class INodeDirectory extends INode {
-  protected static final int DEFAULT_FILES_PER_DIRECTORY = 5;
   final static String ROOT_NAME = "";
 
-  private List<INode> children;
+  /**
+   * Children sorted by name. Only the first numChildren slots are used.
+   * The array grows by an eighth of its size at a time, so that large
+   * directories keep little slack; a directory without children
+   * has no array at all.
+   */
+  private INode[] children;
+  private int numChildren;
 
   INodeDirectory(String name, PermissionStatus permissions) {
     super(name, permissions);
@@ -59,7 +66,8 @@ class INodeDirectory extends INode {
    */
   INodeDirectory(INodeDirectory other) {
     super(other);
-    this.children = other.getChildren();
+    this.children = other.children;
+    this.numChildren = other.numChildren;
   }
   
   /**
@@ -71,14 +79,43 @@ class INodeDirectory extends INode {
 
   INode removeChild(INode node) {
     assert children != null;
-    int low = Collections.binarySearch(children, node.name);
+    int low = searchChildren(node.name);
     if (low >= 0) {
-      return children.remove(low);
+      INode removed = children[low];
+      numChildren--;
+      if (numChildren == 0) {
+        children = null;
+      } else {
+        System.arraycopy(children, low + 1, children, low, numChildren - low);
+        children[numChildren] = null;
+      }
+      return removed;
     } else {
       return null;
     }
   }
 
+  /**
+   * Binary search for a child by name.
+   * @return index of the child if found, (-(insertion point) - 1) otherwise
+   */
+  private int searchChildren(byte[] name) {
+    int low = 0;
+    int high = numChildren - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = children[mid].compareTo(name);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
   /** Replace a child that has the same name as newChild by newChild.
    * 
    * @param newChild Child node to be added
@@ -87,9 +124,9 @@ class INodeDirectory extends INode {
     if ( children == null ) {
       throw new IllegalArgumentException("The directory is empty");
     }
-    int low = Collections.binarySearch(children, newChild.name);
+    int low = searchChildren(newChild.name);
     if (low>=0) { // an old child exists so replace by the newChild
-      children.set(low, newChild);
+      children[low] = newChild;
     } else {
       throw new IllegalArgumentException("No child exists to be replaced");
     }
@@ -103,9 +140,9 @@ class INodeDirectory extends INode {
     if (children == null) {
       return null;
     }
-    int low = Collections.binarySearch(children, name);
+    int low = searchChildren(name);
     if (low >= 0) {
-      return children.get(low);
+      return children[low];
     }
     return null;
   }
@@ -222,14 +259,11 @@ class INodeDirectory extends INode {
       node.setPermission(p);
     }
 
-    if (children == null) {
-      children = new ArrayList<INode>(DEFAULT_FILES_PER_DIRECTORY);
-    }
-    int low = Collections.binarySearch(children, node.name);
+    int low = searchChildren(node.name);
     if(low >= 0)
       return null;
     node.parent = this;
-    children.add(-low - 1, node);
+    insertChild(-low - 1, node);
     // update modification time of the parent directory
     setModificationTime(node.getModificationTime());
     if (node.getGroupName() == null) {
@@ -248,7 +282,7 @@ class INodeDirectory extends INode {
     if (name.length == 0) { // empty name
       return 0;
     }
-    int nextPos = Collections.binarySearch(children, name) + 1;
+    int nextPos = searchChildren(name) + 1;
     if (nextPos >= 0) {
       return nextPos;
     }
@@ -295,7 +329,21 @@ class INodeDirectory extends INode {
                                       INodeDirectory parent,
                                       boolean inheritPermission
                                     ) throws FileNotFoundException {
-    byte[][] pathComponents = getPathComponents(path);
+    return addToParent(path, getPathComponents(path), newNode, parent,
+                       inheritPermission);
+  }
+
+  /**
+   * Same as {@link #addToParent(String, INode, INodeDirectory, boolean)}
+   * for a path that has already been split into its components.
+   */
+  <T extends INode> INodeDirectory addToParent(
+                                      String path,
+                                      byte[][] pathComponents,
+                                      T newNode,
+                                      INodeDirectory parent,
+                                      boolean inheritPermission
+                                    ) throws FileNotFoundException {
     assert pathComponents != null : "Incorrect path " + path;
     int pathLen = pathComponents.length;
     if (pathLen < 2)  // add root
@@ -323,20 +371,16 @@ class INodeDirectory extends INode {
   /** {@inheritDoc} */
   DirCounts spaceConsumedInTree(DirCounts counts) {
     counts.nsCount += 1;
-    if (children != null) {
-      for (INode child : children) {
-        child.spaceConsumedInTree(counts);
-      }
+    for (int i = 0; i < numChildren; i++) {
+      children[i].spaceConsumedInTree(counts);
     }
     return counts;    
   }
 
   /** {@inheritDoc} */
   long[] computeContentSummary(long[] summary) {
-    if (children != null) {
-      for (INode child : children) {
-        child.computeContentSummary(summary);
-      }
+    for (int i = 0; i < numChildren; i++) {
+      children[i].computeContentSummary(summary);
     }
     if (this instanceof INodeDirectoryWithQuota) {
       // Warn if the cached and computed diskspace values differ
@@ -352,12 +396,53 @@ class INodeDirectory extends INode {
   }
 
   /**
+   * Insert a child at the given position of the sorted children array.
+   */
+  private void insertChild(int pos, INode node) {
+    if (children == null) {
+      children = new INode[1];
+    } else if (numChildren == children.length) {
+      INode[] newChildren = new INode[numChildren + 1 + (numChildren >> 3)];
+      System.arraycopy(children, 0, newChildren, 0, pos);
+      System.arraycopy(children, pos, newChildren, pos + 1, numChildren - pos);
+      children = newChildren;
+      children[pos] = node;
+      numChildren++;
+      return;
+    }
+    System.arraycopy(children, pos, children, pos + 1, numChildren - pos);
+    children[pos] = node;
+    numChildren++;
+  }
+
+  /**
+   * @return a read-only view of the children, sorted by name
    */
   List<INode> getChildren() {
-    return children==null ? new ArrayList<INode>() : children;
+    return children==null ? new ArrayList<INode>() : new ChildrenList();
   }
   List<INode> getChildrenRaw() {
-    return children;
+    return children==null ? null : new ChildrenList();
+  }
+
+  int getChildrenCount() {
+    return numChildren;
+  }
+
+  /** Read-only list view over the used part of the children array. */
+  private class ChildrenList extends AbstractList<INode>
+      implements RandomAccess {
+    public INode get(int index) {
+      if (index >= numChildren) {
+        throw new IndexOutOfBoundsException("Index: " + index
+            + ", Size: " + numChildren);
+      }
+      return children[index];
+    }
+
+    public int size() {
+      return numChildren;
+    }
   }
 
   int collectSubtreeBlocksAndClear(List<Block> v) {
@@ -365,11 +450,12 @@ class INodeDirectory extends INode {
     if (children == null) {
       return total;
     }
-    for (INode child : children) {
-      total += child.collectSubtreeBlocksAndClear(v);
+    for (int i = 0; i < numChildren; i++) {
+      total += children[i].collectSubtreeBlocksAndClear(v);
     }
     parent = null;
     children = null;
+    numChildren = 0;
     return total;
   }
 }
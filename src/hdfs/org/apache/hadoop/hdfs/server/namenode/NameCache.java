@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Caches frequently used names so that all the inodes with the same
+ * name share one copy of it, for example the byte[] local name of
+ * files such as {@code part-00000} or {@code _SUCCESS}.
+ * 
+ * While the namespace is loaded every name is counted in a transient map.
+ * A name used at least {@code useThreshold} times is promoted to the cache.
+ * {@link #initialized()} ends the loading phase: the counts are dropped and
+ * from then on the cache only looks up names, it never grows, so it costs
+ * nothing for names that are unique.
+ * 
+ * This class is not thread safe. Before {@link #initialized()} the caller
+ * serializes all calls; afterwards the cache is read-only.
+ * 
+ * @param <K> name to be cached
+ */
+class NameCache<K> {
+  public static final Log LOG = LogFactory.getLog(NameCache.class);
+
+  /**
+   * Use count of a name while the cache is being initialized
+   */
+  private static class UseCount {
+    int count;
+
+    UseCount() {
+      count = 1;
+    }
+
+    int increment() {
+      return ++count;
+    }
+  }
+
+  /** Names promoted to the cache */
+  private HashMap<K, K> cache = new HashMap<K, K>();
+
+  /** Use count of the names not yet promoted, null once initialized */
+  private Map<K, UseCount> transientMap = new HashMap<K, UseCount>();
+
+  /** Number of times a name must be used before it is cached */
+  private final int useThreshold;
+
+  /** Number of cache lookups that returned a cached name */
+  private int lookups = 0;
+
+  /**
+   * Constructor
+   * @param useThreshold names used at least this many times are cached
+   */
+  NameCache(int useThreshold) {
+    this.useThreshold = useThreshold;
+  }
+
+  /**
+   * Add a given name to the cache or track its use count.
+   * 
+   * @param name name to be added to the cache
+   * @return the cached copy of the name, or null if it is not cached
+   */
+  K put(final K name) {
+    K internal = cache.get(name);
+    if (internal != null) {
+      lookups++;
+      return internal;
+    }
+
+    // Track the usage count only during initialization
+    if (!isInitialized()) {
+      UseCount useCount = transientMap.get(name);
+      if (useCount == null) {
+        transientMap.put(name, new UseCount());
+      } else if (useCount.increment() >= useThreshold) {
+        promote(name);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the number of times a cached copy of a name was returned
+   */
+  int getLookupCount() {
+    return lookups;
+  }
+
+  /**
+   * @return the number of names in the cache
+   */
+  int size() {
+    return cache.size();
+  }
+
+  /**
+   * Mark the name cache as initialized. The use counts are discarded
+   * and no more names are added to the cache.
+   */
+  void initialized() {
+    LOG.info("initialized with " + size() + " entries " + lookups
+        + " lookups");
+    this.transientMap = null;
+  }
+
+  private boolean isInitialized() {
+    return transientMap == null;
+  }
+
+  /** Promote a frequently used name to the cache */
+  private void promote(final K name) {
+    transientMap.remove(name);
+    cache.put(name, name);
+    lookups += useThreshold;
+  }
+}
@@ -992,6 +992,14 @@ public class NameNode implements ClientProtocol, DatanodeProtocol,
     }
   }
 
+  public void blocksDeleted(DatanodeRegistration nodeReg,
+                            Block blocks[]) throws IOException {
+    verifyRequest(nodeReg);
+    stateChangeLog.debug("*BLOCK* NameNode.blocksDeleted: "
+                         +"from "+nodeReg.getName()+" "+blocks.length+" blocks.");
+    namesystem.blocksDeleted(nodeReg, blocks);
+  }
+
   /** {@inheritDoc} */
   public ExportedBlockKeys getBlockKeys() throws IOException {
     return namesystem.getBlockKeys();
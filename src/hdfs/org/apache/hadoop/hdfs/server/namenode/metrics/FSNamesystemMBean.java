@@ -109,4 +109,46 @@ public interface FSNamesystemMBean {
    * @return number of dead data nodes
    */
   public int numDeadDataNodes();
+
+  /**
+   * Number of times the namespace read lock was acquired
+   * @return number of read lock acquisitions
+   */
+  public long getReadLockCount();
+
+  /**
+   * Total time threads spent waiting for the namespace read lock
+   * @return read lock wait time in milliseconds
+   */
+  public long getReadLockWaitTimeMillis();
+
+  /**
+   * Total time the namespace read lock was held
+   * @return read lock hold time in milliseconds
+   */
+  public long getReadLockHoldTimeMillis();
+
+  /**
+   * Number of times the namespace write lock was acquired
+   * @return number of write lock acquisitions
+   */
+  public long getWriteLockCount();
+
+  /**
+   * Total time threads spent waiting for the namespace write lock
+   * @return write lock wait time in milliseconds
+   */
+  public long getWriteLockWaitTimeMillis();
+
+  /**
+   * Total time the namespace write lock was held
+   * @return write lock hold time in milliseconds
+   */
+  public long getWriteLockHoldTimeMillis();
+
+  /**
+   * Number of threads currently waiting for the namespace lock
+   * @return lock queue length
+   */
+  public int getLockQueueLength();
 }
@@ -59,6 +59,13 @@ public class FSNamesystemMetrics implements Updater {
   final MetricsIntValue scheduledReplicationBlocks = new MetricsIntValue("ScheduledReplicationBlocks", registry);
   final MetricsIntValue missingBlocks = new MetricsIntValue("MissingBlocks", registry);    
   final MetricsIntValue blockCapacity = new MetricsIntValue("BlockCapacity", registry);
+  final MetricsLongValue readLockCount = new MetricsLongValue("ReadLockCount", registry);
+  final MetricsLongValue readLockWaitTime = new MetricsLongValue("ReadLockWaitTimeMillis", registry);
+  final MetricsLongValue readLockHoldTime = new MetricsLongValue("ReadLockHoldTimeMillis", registry);
+  final MetricsLongValue writeLockCount = new MetricsLongValue("WriteLockCount", registry);
+  final MetricsLongValue writeLockWaitTime = new MetricsLongValue("WriteLockWaitTimeMillis", registry);
+  final MetricsLongValue writeLockHoldTime = new MetricsLongValue("WriteLockHoldTimeMillis", registry);
+  final MetricsIntValue lockQueueLength = new MetricsIntValue("LockQueueLength", registry);
    
   public FSNamesystemMetrics(Configuration conf) {
     String sessionId = conf.get("session.id");
@@ -114,6 +121,13 @@ public class FSNamesystemMetrics implements Updater {
                                       getScheduledReplicationBlocks());
       missingBlocks.set((int)fsNameSystem.getMissingBlocksCount());
       blockCapacity.set(fsNameSystem.getBlockCapacity());
+      readLockCount.set(fsNameSystem.getReadLockCount());
+      readLockWaitTime.set(fsNameSystem.getReadLockWaitTimeMillis());
+      readLockHoldTime.set(fsNameSystem.getReadLockHoldTimeMillis());
+      writeLockCount.set(fsNameSystem.getWriteLockCount());
+      writeLockWaitTime.set(fsNameSystem.getWriteLockWaitTimeMillis());
+      writeLockHoldTime.set(fsNameSystem.getWriteLockHoldTimeMillis());
+      lockQueueLength.set(fsNameSystem.getLockQueueLength());
 
       for (MetricsBase m : registry.getMetricsList()) {
         m.pushMetric(metricsRecord);
@@ -41,9 +41,9 @@ import org.apache.hadoop.security.KerberosInfo;
     clientPrincipal = DFSConfigKeys.DFS_DATANODE_USER_NAME_KEY)
 public interface DatanodeProtocol extends VersionedProtocol {
   /**
-   * 28: Added an additional member to NamespaceInfo
+   * 29: Added blocksDeleted
    */
-  public static final long versionID = 28L;
+  public static final long versionID = 29L;
 
   // error code
   final static int NOTIFY = 0;
@@ -131,6 +131,15 @@ public interface DatanodeProtocol extends VersionedProtocol {
                             Block blocks[],
                             String[] delHints) throws IOException;
 
+  /**
+   * blocksDeleted() tells the NameNode about the blocks the DataNode
+   * has recently deleted, usually on request of the NameNode.
+   * Together with blockReceived() this keeps the NameNode up to date
+   * between full block reports, which can then be sent rarely.
+   */
+  public void blocksDeleted(DatanodeRegistration registration,
+                            Block blocks[]) throws IOException;
+
   /**
    * errorReport() tells the NameNode about something that has gone
    * awry.  Useful for debugging.
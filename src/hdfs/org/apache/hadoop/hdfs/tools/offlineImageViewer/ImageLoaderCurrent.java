@@ -17,18 +17,23 @@
  */
 package org.apache.hadoop.hdfs.tools.offlineImageViewer;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.hdfs.protocol.DatanodeInfo.AdminStates;
 import org.apache.hadoop.hdfs.server.namenode.FSImage;
 import org.apache.hadoop.hdfs.tools.offlineImageViewer.ImageVisitor.ImageElement;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CompressionCodec;
 
 /**
  * ImageLoaderCurrent processes Hadoop FSImage files and walks over
@@ -38,12 +43,22 @@ import org.apache.hadoop.io.WritableUtils;
  * The only difference between v18 and v19 was the utilization of the
  * stickybit.  Therefore, the same viewer can reader either format.
  *
- * Versions -19 fsimage layout (with changes from -16 up):
+ * Image version -20 is only used by the image file: the storage of a
+ * namenode that writes it stays at layout version -19.
+ *
+ * Versions -20 fsimage layout (with changes from -16 up):
  * Image version (int)
  * Namepsace ID (int)
  * NumFiles (long)
  * Generation stamp (long)
- * INodes (count = NumFiles)
+ * IsCompressed (boolean) // added in -20
+ * CompressionCodec (String, only if compressed) // added in -20
+ * NumSections (int) // added in -20
+ * Sections (count = NumSections) // added in -20, before that the INodes
+ *  Section                      // follow the generation stamp directly
+ *    NumINodes (long)
+ *    Length (int)
+ *    INodes (count = NumINodes, Length bytes, compressed if IsCompressed)
  *  INode
  *    Path (String)
  *    Replication (short)
@@ -96,8 +111,9 @@ import org.apache.hadoop.io.WritableUtils;
 class ImageLoaderCurrent implements ImageLoader {
   protected final DateFormat dateFormat = 
                                       new SimpleDateFormat("yyyy-MM-dd HH:mm");
-  private static int [] versions = {-16, -17, -18, -19};
+  private static int [] versions = {-16, -17, -18, -19, -20};
   private int imageVersion = 0;
+  private CompressionCodec codec = null;
 
   /* (non-Javadoc)
    * @see ImageLoader#canProcessVersion(int)
@@ -131,7 +147,18 @@ class ImageLoaderCurrent implements ImageLoader {
 
       v.visit(ImageElement.GENERATION_STAMP, in.readLong());
 
-      processINodes(in, v, numInodes, skipBlocks);
+      if(imageVersion <= -20) { // sections added in version -20
+        boolean isCompressed = in.readBoolean();
+        v.visit(ImageElement.IS_COMPRESSED, String.valueOf(isCompressed));
+        if(isCompressed) {
+          String codecClassName = Text.readString(in);
+          v.visit(ImageElement.COMPRESS_CODEC, codecClassName);
+          codec = FSImage.getImageCodec(codecClassName, new Configuration());
+        }
+        processINodeSections(in, v, numInodes, skipBlocks);
+      } else {
+        processINodes(in, v, numInodes, skipBlocks);
+      }
 
       processINodesUC(in, v, skipBlocks);
 
@@ -260,30 +287,85 @@ class ImageLoaderCurrent implements ImageLoader {
         ImageElement.NUM_INODES, numInodes);
 
     for(long i = 0; i < numInodes; i++) {
-      v.visitEnclosingElement(ImageElement.INODE);
-      v.visit(ImageElement.INODE_PATH, FSImage.readString(in));
-      v.visit(ImageElement.REPLICATION, in.readShort());
-      v.visit(ImageElement.MODIFICATION_TIME, formatDate(in.readLong()));
-      if(imageVersion <= -17) // added in version -17
-        v.visit(ImageElement.ACCESS_TIME, formatDate(in.readLong()));
-      v.visit(ImageElement.BLOCK_SIZE, in.readLong());
-      int numBlocks = in.readInt();
+      processINode(in, v, skipBlocks);
+    }
+    
+    v.leaveEnclosingElement(); // INodes
+  }
 
-      processBlocks(in, v, numBlocks, skipBlocks);
+  /**
+   * Process the INode records stored in the sections of the fsimage.
+   * Each section is decompressed separately if the image is compressed.
+   *
+   * @param in Datastream to process
+   * @param v Visitor to walk over INodes
+   * @param numInodes Number of INodes stored in file
+   * @param skipBlocks Process all the blocks within the INode?
+   * @throws IOException
+   */
+  private void processINodeSections(DataInputStream in, ImageVisitor v,
+      long numInodes, boolean skipBlocks) throws IOException {
+    int numSections = in.readInt();
+    v.visitEnclosingElement(ImageElement.INODES,
+        ImageElement.NUM_INODES, numInodes);
 
-      if(numBlocks != 0) {
-        v.visit(ImageElement.NS_QUOTA, numBlocks <= 0 ? in.readLong() : -1);
-        if(imageVersion <= -18) // added in version -18
-          v.visit(ImageElement.DS_QUOTA, numBlocks <= 0 ? in.readLong() : -1);
-      }
+    long processed = 0;
+    for(int i = 0; i < numSections; i++) {
+      long numSectionInodes = in.readLong();
+      byte [] data = new byte[in.readInt()];
+      in.readFully(data);
 
-      processPermission(in, v);
-      v.leaveEnclosingElement(); // INode
+      InputStream sectionIn = new ByteArrayInputStream(data);
+      if(codec != null)
+        sectionIn = new BufferedInputStream(codec.createInputStream(sectionIn));
+      DataInputStream sectionData = new DataInputStream(sectionIn);
+      try {
+        for(long j = 0; j < numSectionInodes; j++) {
+          processINode(sectionData, v, skipBlocks);
+        }
+      } finally {
+        sectionData.close();
+      }
+      processed += numSectionInodes;
     }
-    
+    if(processed != numInodes)
+      throw new IOException("Image sections contain " + processed +
+                            " inodes, expected " + numInodes);
+
     v.leaveEnclosingElement(); // INodes
   }
 
+  /**
+   * Process a single INode record of the fsimage.
+   *
+   * @param in Datastream to process
+   * @param v Visitor to walk over INodes
+   * @param skipBlocks Process all the blocks within the INode?
+   * @throws IOException
+   */
+  private void processINode(DataInputStream in, ImageVisitor v,
+      boolean skipBlocks) throws IOException {
+    v.visitEnclosingElement(ImageElement.INODE);
+    v.visit(ImageElement.INODE_PATH, FSImage.readString(in));
+    v.visit(ImageElement.REPLICATION, in.readShort());
+    v.visit(ImageElement.MODIFICATION_TIME, formatDate(in.readLong()));
+    if(imageVersion <= -17) // added in version -17
+      v.visit(ImageElement.ACCESS_TIME, formatDate(in.readLong()));
+    v.visit(ImageElement.BLOCK_SIZE, in.readLong());
+    int numBlocks = in.readInt();
+
+    processBlocks(in, v, numBlocks, skipBlocks);
+
+    if(numBlocks != 0) {
+      v.visit(ImageElement.NS_QUOTA, numBlocks <= 0 ? in.readLong() : -1);
+      if(imageVersion <= -18) // added in version -18
+        v.visit(ImageElement.DS_QUOTA, numBlocks <= 0 ? in.readLong() : -1);
+    }
+
+    processPermission(in, v);
+    v.leaveEnclosingElement(); // INode
+  }
+
   /**
    * Helper method to format dates during processing.
    * @param date Date as read from image file
@@ -36,6 +36,8 @@ abstract class ImageVisitor {
     LAYOUT_VERSION,
     NUM_INODES,
     GENERATION_STAMP,
+    IS_COMPRESSED,
+    COMPRESS_CODEC,
     INODES,
     INODE,
     INODE_PATH,
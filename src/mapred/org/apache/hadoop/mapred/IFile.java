@@ -570,11 +570,12 @@ class IFile {
       
     public void close() {
       // Release
+      byte[] data = buffer;
       dataIn = null;
       buffer = null;
       
       // Inform the RamManager
-      ramManager.unreserve(bufferSize);
+      ramManager.unreserve(bufferSize, data);
     }
   }
 }
@@ -0,0 +1,371 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.mapred.MapTask.MapOutputCollector;
+import org.apache.hadoop.mapred.Task.CombinerRunner;
+import org.apache.hadoop.mapred.Task.TaskReporter;
+import org.apache.hadoop.util.Progress;
+
+/**
+ * Aggregates map output in memory before it reaches the sort buffer. The
+ * values collected for each key, compared by its serialized bytes, are
+ * kept in a hash table and combined once there are {@link #COMBINE_VALUES}
+ * of them, or twice as many as the combiner last left, so that a combiner
+ * that does not shrink the values is not run over them again and again.
+ * When the table holds more than map.aggregation.mb, every key is combined
+ * a last time and its records are passed on to the sort buffer. The map
+ * output counters count the records collected here, not those passed on.
+ */
+class MapOutputAggregator<K extends Object, V extends Object>
+    implements MapOutputCollector<K, V> {
+
+  private static final Log LOG = LogFactory.getLog(MapOutputAggregator.class);
+
+  /** Number of values of a key that are combined in the table */
+  static final int COMBINE_VALUES = 16;
+  /** Approximate bytes taken by a key in the table, besides its data */
+  private static final int ENTRY_OVERHEAD = 256;
+  /** Approximate bytes taken by a value in the table, besides its data */
+  private static final int VALUE_OVERHEAD = 4;
+
+  private final MapOutputCollector<K, V> out;
+  private final CombinerRunner<K, V> combinerRunner;
+  private final TaskReporter reporter;
+  private final int partitions;
+  private final Class<K> keyClass;
+  private final Class<V> valClass;
+  private final Serializer<K> keySerializer;
+  private final Serializer<V> valSerializer;
+  private final Deserializer<K> keyDeserializer;
+  private final Deserializer<V> valDeserializer;
+  private final DataOutputBuffer keyOut = new DataOutputBuffer();
+  private final DataOutputBuffer valOut = new DataOutputBuffer();
+  private final DataInputBuffer keyIn = new DataInputBuffer();
+  private final DataInputBuffer valIn = new DataInputBuffer();
+  private K flushKey = null;
+  private V flushValue = null;
+
+  private final Map<KeyBytes, Aggregate> table =
+    new HashMap<KeyBytes, Aggregate>();
+  private final KeyBytes probe = new KeyBytes();
+  private final long memoryLimit;
+  private long memoryUsed = 0;
+
+  // combiner state
+  private final CombineInput combineInput = new CombineInput();
+  private final CombineOutput combineOutput = new CombineOutput();
+  private final Aggregate combined = new Aggregate(null);
+  private Aggregate combining = null;
+  private int combinedValue;
+
+  private final Counters.Counter inputCounter;
+  private final Counters.Counter outputCounter;
+  private final Counters.Counter combineOutputCounter;
+  private final Counters.Counter mapOutputRecordCounter;
+  private final Counters.Counter mapOutputByteCounter;
+
+  @SuppressWarnings("unchecked")
+  MapOutputAggregator(JobConf job, TaskReporter reporter,
+                      MapOutputCollector<K, V> out,
+                      CombinerRunner<K, V> combinerRunner) throws IOException {
+    this.out = out;
+    this.combinerRunner = combinerRunner;
+    this.reporter = reporter;
+    partitions = job.getNumReduceTasks();
+    memoryLimit = ((long)job.getInt("map.aggregation.mb", 0)) << 20;
+    keyClass = (Class<K>)job.getMapOutputKeyClass();
+    valClass = (Class<V>)job.getMapOutputValueClass();
+    SerializationFactory serializationFactory = new SerializationFactory(job);
+    keySerializer = serializationFactory.getSerializer(keyClass);
+    keySerializer.open(keyOut);
+    valSerializer = serializationFactory.getSerializer(valClass);
+    valSerializer.open(valOut);
+    keyDeserializer = serializationFactory.getDeserializer(keyClass);
+    keyDeserializer.open(keyIn);
+    valDeserializer = serializationFactory.getDeserializer(valClass);
+    valDeserializer.open(valIn);
+    inputCounter = reporter.getCounter(Task.Counter.MAP_AGGREGATE_INPUT_RECORDS);
+    outputCounter =
+      reporter.getCounter(Task.Counter.MAP_AGGREGATE_OUTPUT_RECORDS);
+    combineOutputCounter =
+      reporter.getCounter(Task.Counter.COMBINE_OUTPUT_RECORDS);
+    mapOutputRecordCounter =
+      reporter.getCounter(Task.Counter.MAP_OUTPUT_RECORDS);
+    mapOutputByteCounter = reporter.getCounter(Task.Counter.MAP_OUTPUT_BYTES);
+    LOG.info("map.aggregation.mb = " + (memoryLimit >> 20));
+  }
+
+  public synchronized void collect(K key, V value, int partition
+                                   ) throws IOException, InterruptedException {
+    reporter.progress();
+    if (key.getClass() != keyClass) {
+      throw new IOException("Type mismatch in key from map: expected "
+                            + keyClass.getName() + ", recieved "
+                            + key.getClass().getName());
+    }
+    if (value.getClass() != valClass) {
+      throw new IOException("Type mismatch in value from map: expected "
+                            + valClass.getName() + ", recieved "
+                            + value.getClass().getName());
+    }
+    if (partition < 0 || partition >= partitions) {
+      throw new IOException("Illegal partition for " + key + " (" +
+          partition + ")");
+    }
+    inputCounter.increment(1);
+    keyOut.reset();
+    keySerializer.serialize(key);
+    probe.set(keyOut.getData(), keyOut.getLength(), partition);
+    Aggregate aggregate = table.get(probe);
+    if (aggregate == null) {
+      aggregate = new Aggregate(new KeyBytes(probe));
+      table.put(aggregate.key, aggregate);
+      memoryUsed += ENTRY_OVERHEAD + aggregate.key.length;
+    }
+    valOut.reset();
+    valSerializer.serialize(value);
+    mapOutputRecordCounter.increment(1);
+    mapOutputByteCounter.increment(keyOut.getLength() + valOut.getLength());
+    memoryUsed -= aggregate.getMemory();
+    aggregate.add(valOut.getData(), valOut.getLength());
+    if (aggregate.count >= aggregate.combineAt) {
+      combine(aggregate);
+    }
+    memoryUsed += aggregate.getMemory();
+    if (memoryUsed > memoryLimit) {
+      flushTable();
+    }
+  }
+
+  /**
+   * Combine every key with more than one value a last time and pass the
+   * records in the table on to the sort buffer.
+   */
+  private void flushTable() throws IOException, InterruptedException {
+    LOG.info("Flushing " + table.size() + " aggregated keys, " +
+             memoryUsed + " bytes");
+    for (Aggregate aggregate : table.values()) {
+      if (aggregate.count > 1) {
+        combine(aggregate);
+      }
+      keyIn.reset(aggregate.key.bytes, aggregate.key.length);
+      flushKey = keyDeserializer.deserialize(flushKey);
+      for (int i = 0; i < aggregate.count; ++i) {
+        aggregate.getValue(i, valIn);
+        flushValue = valDeserializer.deserialize(flushValue);
+        out.collect(flushKey, flushValue, aggregate.key.partition);
+        outputCounter.increment(1);
+      }
+    }
+    table.clear();
+    memoryUsed = 0;
+  }
+
+  public synchronized void flush() throws IOException, InterruptedException,
+                                          ClassNotFoundException {
+    flushTable();
+    LOG.info("Aggregated " + inputCounter.getValue() + " map output " +
+             "records into " + outputCounter.getValue());
+    out.flush();
+  }
+
+  public void close() throws IOException, InterruptedException {
+    out.close();
+  }
+
+  /**
+   * A serialized key and its partition.
+   */
+  private static class KeyBytes {
+    byte[] bytes;
+    int length;
+    int partition;
+    int hash;
+
+    KeyBytes() { }
+
+    KeyBytes(KeyBytes other) {
+      bytes = new byte[other.length];
+      System.arraycopy(other.bytes, 0, bytes, 0, other.length);
+      length = other.length;
+      partition = other.partition;
+      hash = other.hash;
+    }
+
+    void set(byte[] bytes, int length, int partition) {
+      this.bytes = bytes;
+      this.length = length;
+      this.partition = partition;
+      hash = WritableComparator.hashBytes(bytes, length) * 31 + partition;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof KeyBytes)) {
+        return false;
+      }
+      KeyBytes other = (KeyBytes)o;
+      return hash == other.hash && partition == other.partition &&
+        WritableComparator.compareBytes(bytes, 0, length,
+                                        other.bytes, 0, other.length) == 0;
+    }
+  }
+
+  /**
+   * The serialized values collected for a key since it was last passed on.
+   */
+  private static class Aggregate {
+    final KeyBytes key;
+    final DataOutputBuffer values = new DataOutputBuffer();
+    int[] ends = new int[4];
+    int count = 0;
+    /** Number of values at which the values are combined again */
+    int combineAt = COMBINE_VALUES;
+
+    Aggregate(KeyBytes key) {
+      this.key = key;
+    }
+
+    long getMemory() {
+      return values.getData().length + VALUE_OVERHEAD * ends.length;
+    }
+
+    void add(byte[] b, int length) throws IOException {
+      values.write(b, 0, length);
+      if (count == ends.length) {
+        int[] grown = new int[ends.length * 2];
+        System.arraycopy(ends, 0, grown, 0, ends.length);
+        ends = grown;
+      }
+      ends[count++] = values.getLength();
+    }
+
+    void getValue(int i, DataInputBuffer in) {
+      final int start = (i == 0) ? 0 : ends[i - 1];
+      in.reset(values.getData(), start, ends[i] - start);
+    }
+
+    void clear() {
+      values.reset();
+      count = 0;
+    }
+
+    void set(Aggregate other) throws IOException {
+      values.reset();
+      values.write(other.values.getData(), 0, other.values.getLength());
+      if (ends.length < other.count) {
+        ends = new int[other.ends.length];
+      }
+      System.arraycopy(other.ends, 0, ends, 0, other.count);
+      count = other.count;
+    }
+  }
+
+  /**
+   * Replace the values of a key with the output of the combiner.
+   */
+  private void combine(Aggregate aggregate)
+      throws IOException, InterruptedException {
+    combining = aggregate;
+    combined.clear();
+    combinedValue = -1;
+    try {
+      combinerRunner.combine(combineInput, combineOutput);
+    } catch (ClassNotFoundException e) {
+      throw (IOException)new IOException(
+          "Combiner class not found").initCause(e);
+    } finally {
+      combining = null;
+    }
+    aggregate.set(combined);
+    aggregate.combineAt = Math.max(COMBINE_VALUES, 2 * aggregate.count);
+  }
+
+  /**
+   * Iterates over the values of the key being combined.
+   */
+  private class CombineInput implements RawKeyValueIterator {
+    private final DataInputBuffer keyBuf = new DataInputBuffer();
+    private final DataInputBuffer valBuf = new DataInputBuffer();
+
+    public boolean next() {
+      return ++combinedValue < combining.count;
+    }
+
+    public DataInputBuffer getKey() {
+      keyBuf.reset(combining.key.bytes, combining.key.length);
+      return keyBuf;
+    }
+
+    public DataInputBuffer getValue() {
+      combining.getValue(combinedValue, valBuf);
+      return valBuf;
+    }
+
+    public Progress getProgress() {
+      return null;
+    }
+
+    public void close() { }
+  }
+
+  /**
+   * Collects the records written by the combiner for the key being
+   * combined. Records for other keys are passed on to the sort buffer.
+   */
+  private class CombineOutput implements OutputCollector<K, V> {
+    public void collect(K k, V v) throws IOException {
+      combineOutputCounter.increment(1);
+      final KeyBytes key = combining.key;
+      keyOut.reset();
+      keySerializer.serialize(k);
+      if (WritableComparator.compareBytes(keyOut.getData(), 0,
+              keyOut.getLength(), key.bytes, 0, key.length) != 0) {
+        try {
+          out.collect(k, v, key.partition);
+        } catch (InterruptedException e) {
+          throw (IOException)new IOException(
+              "Interrupted passing on combiner output").initCause(e);
+        }
+        outputCounter.increment(1);
+        return;
+      }
+      valOut.reset();
+      valSerializer.serialize(v);
+      combined.add(valOut.getData(), valOut.getLength());
+    }
+  }
+}
@@ -95,6 +95,21 @@ class MapOutputFile {
         + "file.out.index", size, conf);
   }
 
+  /**
+   * Create a local file name for the part of one partition of the map
+   * output that outgrew the region of the output file reserved for it.
+   * 
+   * @param partition the partition
+   * @param size the size of the file
+   * @return path
+   * @throws IOException
+   */
+  public Path getOutputPartFileForWrite(int partition, long size)
+      throws IOException {
+    return lDirAlloc.getLocalPathForWrite(TaskTracker.OUTPUT + "/file.out.part"
+        + partition, size, conf);
+  }
+
   /**
    * Return a local map spill file created earlier.
    * 
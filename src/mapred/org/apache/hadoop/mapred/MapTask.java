@@ -24,16 +24,30 @@ import static org.apache.hadoop.mapred.Task.Counter.MAP_INPUT_BYTES;
 import static org.apache.hadoop.mapred.Task.Counter.MAP_INPUT_RECORDS;
 import static org.apache.hadoop.mapred.Task.Counter.MAP_OUTPUT_BYTES;
 import static org.apache.hadoop.mapred.Task.Counter.MAP_OUTPUT_RECORDS;
+import static org.apache.hadoop.mapred.Task.Counter.MAP_SORT_MILLISECONDS;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -48,6 +62,7 @@ import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.PrefixComparator;
 import org.apache.hadoop.io.RawComparator;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
@@ -381,7 +396,7 @@ class MapTask extends Task {
     LOG.info("numReduceTasks: " + numReduceTasks);
     MapOutputCollector collector = null;
     if (numReduceTasks > 0) {
-      collector = new MapOutputBuffer(umbilical, job, reporter);
+      collector = createSortingCollector(job, umbilical, reporter);
     } else { 
       collector = new DirectMapOutputCollector(umbilical, job, reporter);
     }
@@ -555,7 +570,7 @@ class MapTask extends Task {
                        TaskUmbilicalProtocol umbilical,
                        TaskReporter reporter
                        ) throws IOException, ClassNotFoundException {
-      collector = new MapOutputBuffer<K,V>(umbilical, job, reporter);
+      collector = createSortingCollector(job, umbilical, reporter);
       partitions = jobContext.getNumReduceTasks();
       if (partitions > 0) {
         partitioner = (org.apache.hadoop.mapreduce.Partitioner<K,V>)
@@ -660,6 +675,30 @@ class MapTask extends Task {
     }
   }
 
+  /**
+   * Create the collector for map output that is sorted for the reduces.
+   * If map.aggregation.mb is set and the job has a combiner, the output is
+   * aggregated in memory before it reaches the sort buffer. The map output
+   * counters are then kept by the aggregator, so that they still count
+   * the records emitted by the map.
+   */
+  private <K, V> MapOutputCollector<K, V> createSortingCollector(
+      JobConf job, TaskUmbilicalProtocol umbilical, TaskReporter reporter
+      ) throws IOException, ClassNotFoundException {
+    if (job.getInt("map.aggregation.mb", 0) > 0) {
+      CombinerRunner<K, V> combinerRunner =
+        CombinerRunner.create(job, getTaskID(),
+                              reporter.getCounter(COMBINE_INPUT_RECORDS),
+                              reporter, null);
+      if (combinerRunner != null) {
+        return new MapOutputAggregator<K, V>(job, reporter,
+            new MapOutputBuffer<K, V>(umbilical, job, reporter, false),
+            combinerRunner);
+      }
+    }
+    return new MapOutputBuffer<K, V>(umbilical, job, reporter, true);
+  }
+
   interface MapOutputCollector<K, V> {
 
     public void collect(K key, V value, int partition
@@ -719,11 +758,13 @@ class MapTask extends Task {
     private final Class<K> keyClass;
     private final Class<V> valClass;
     private final RawComparator<K> comparator;
+    private final PrefixComparator<K> prefixComparator;
     private final SerializationFactory serializationFactory;
     private final Serializer<K> keySerializer;
     private final Serializer<V> valSerializer;
     private final CombinerRunner<K,V> combinerRunner;
     private final CombineOutputCollector<K, V> combineCollector;
+    private final boolean countOutput; // update the map output counters
     
     // Compression for map-outputs
     private CompressionCodec codec = null;
@@ -732,14 +773,18 @@ class MapTask extends Task {
     private volatile int kvstart = 0;  // marks beginning of spill
     private volatile int kvend = 0;    // marks beginning of collectable
     private int kvindex = 0;           // marks end of collected
-    private final int[] kvoffsets;     // indices into kvindices
-    private final int[] kvindices;     // partition, k/v offsets into kvbuffer
+    private int[] kvoffsets;           // indices into kvindices
+    private int[] kvindices;           // partition, k/v offsets into kvbuffer
+    private long[] kvprefixes;         // key prefixes, if cached
+    private int[] kvscratch;           // kvoffsets grouped by partition
     private volatile int bufstart = 0; // marks beginning of spill
     private volatile int bufend = 0;   // marks beginning of collectable
     private volatile int bufvoid = 0;  // marks the point where we should stop
                                        // reading at the end of the buffer
     private int bufindex = 0;          // marks end of collected
     private int bufmark = 0;           // marks end of record
+    private int keystart = 0;          // key of the record being collected
+    private int valstart = 0;          // value of the record being collected
     private byte[] kvbuffer;           // main output buffer
     private static final int PARTITION = 0; // partition offset in acct
     private static final int KEYSTART = 1;  // key offset in acct
@@ -747,14 +792,20 @@ class MapTask extends Task {
     private static final int ACCTSIZE = 3;  // total #fields in acct
     private static final int RECSIZE =
                        (ACCTSIZE + 1) * 4;  // acct bytes per record
+    private static final int PREFIXSIZE = 8; // prefix bytes per record
+    private static final int SCRATCHSIZE = 4; // grouping bytes per record
 
     // spill accounting
     private volatile int numSpills = 0;
     private volatile Throwable sortSpillException = null;
-    private final int softRecordLimit;
-    private final int softBufferLimit;
+    private final float spillper;
+    private int softRecordLimit;
+    private int softBufferLimit;
+    private final int maxRecordCapacity; // limit on growth of kvoffsets
+    private final int maxBufferLength;   // limit on growth of kvbuffer
     private final int minSpillsForCombine;
     private final IndexedSorter sorter;
+    private final ExecutorService sortPool;
     private final ReentrantLock spillLock = new ReentrantLock();
     private final Condition spillDone = spillLock.newCondition();
     private final Condition spillReady = spillLock.newCondition();
@@ -767,7 +818,9 @@ class MapTask extends Task {
    
     private final Counters.Counter mapOutputByteCounter;
     private final Counters.Counter mapOutputRecordCounter;
+    private final Counters.Counter combineInputCounter;
     private final Counters.Counter combineOutputCounter;
+    private final Counters.Counter sortMillisCounter;
     
     private ArrayList<SpillRecord> indexCacheList;
     private int totalIndexCacheMemory;
@@ -775,10 +828,11 @@ class MapTask extends Task {
 
     @SuppressWarnings("unchecked")
     public MapOutputBuffer(TaskUmbilicalProtocol umbilical, JobConf job,
-                           TaskReporter reporter
+                           TaskReporter reporter, boolean countOutput
                            ) throws IOException, ClassNotFoundException {
       this.job = job;
       this.reporter = reporter;
+      this.countOutput = countOutput;
       localFs = FileSystem.getLocal(job);
       partitions = job.getNumReduceTasks();
        
@@ -787,9 +841,10 @@ class MapTask extends Task {
       indexCacheList = new ArrayList<SpillRecord>();
       
       //sanity checks
-      final float spillper = job.getFloat("io.sort.spill.percent",(float)0.8);
+      spillper = job.getFloat("io.sort.spill.percent",(float)0.8);
       final float recper = job.getFloat("io.sort.record.percent",(float)0.05);
       final int sortmb = job.getInt("io.sort.mb", 100);
+      final int maxsortmb = job.getInt("io.sort.max.mb", sortmb);
       if (spillper > (float)1.0 || spillper < (float)0.0) {
         throw new IOException("Invalid \"io.sort.spill.percent\": " + spillper);
       }
@@ -799,24 +854,69 @@ class MapTask extends Task {
       if ((sortmb & 0x7FF) != sortmb) {
         throw new IOException("Invalid \"io.sort.mb\": " + sortmb);
       }
+      if ((maxsortmb & 0x7FF) != maxsortmb || maxsortmb < sortmb) {
+        throw new IOException("Invalid \"io.sort.max.mb\": " + maxsortmb);
+      }
       sorter = ReflectionUtils.newInstance(
             job.getClass("map.sort.class", QuickSort.class, IndexedSorter.class), job);
       LOG.info("io.sort.mb = " + sortmb);
+      comparator = job.getOutputKeyComparator();
+      prefixComparator = job.getBoolean("map.sort.key.prefix", false)
+        ? getPrefixComparator(comparator) : null;
+      if (prefixComparator != null) {
+        LOG.info("Caching key prefixes for " +
+                 comparator.getClass().getName());
+      }
+      final int sortThreads = job.getInt("map.sort.threads", 1);
+      if (sortThreads > 1) {
+        LOG.info("Sorting and merging partitions on " + sortThreads +
+                 " threads");
+        sortPool = Executors.newFixedThreadPool(sortThreads,
+            new ThreadFactory() {
+              private int count = 0;
+              public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SortThread-" + count++);
+                t.setDaemon(true);
+                return t;
+              }
+            });
+      } else {
+        sortPool = null;
+      }
       // buffers and accounting
+      int recsize = RECSIZE;
+      if (prefixComparator != null) {
+        recsize += PREFIXSIZE;
+      }
+      if (sortPool != null) {
+        recsize += SCRATCHSIZE;
+      }
       int maxMemUsage = sortmb << 20;
       int recordCapacity = (int)(maxMemUsage * recper);
-      recordCapacity -= recordCapacity % RECSIZE;
+      recordCapacity -= recordCapacity % recsize;
       kvbuffer = new byte[maxMemUsage - recordCapacity];
       bufvoid = kvbuffer.length;
-      recordCapacity /= RECSIZE;
+      recordCapacity /= recsize;
+      // the buffers may grow to the share of io.sort.max.mb
+      maxMemUsage = maxsortmb << 20;
+      int maxCapacity = (int)(maxMemUsage * recper);
+      maxCapacity -= maxCapacity % recsize;
+      maxBufferLength = maxMemUsage - maxCapacity;
+      maxRecordCapacity = maxCapacity / recsize;
+      if (maxsortmb > sortmb) {
+        LOG.info("io.sort.max.mb = " + maxsortmb);
+      }
       kvoffsets = new int[recordCapacity];
       kvindices = new int[recordCapacity * ACCTSIZE];
+      kvprefixes = (prefixComparator == null)
+        ? null
+        : new long[recordCapacity];
+      kvscratch = (sortPool == null) ? null : new int[recordCapacity];
       softBufferLimit = (int)(kvbuffer.length * spillper);
       softRecordLimit = (int)(kvoffsets.length * spillper);
       LOG.info("data buffer = " + softBufferLimit + "/" + kvbuffer.length);
       LOG.info("record buffer = " + softRecordLimit + "/" + kvoffsets.length);
       // k/v serialization
-      comparator = job.getOutputKeyComparator();
       keyClass = (Class<K>)job.getMapOutputKeyClass();
       valClass = (Class<V>)job.getMapOutputValueClass();
       serializationFactory = new SerializationFactory(job);
@@ -827,9 +927,9 @@ class MapTask extends Task {
       // counters
       mapOutputByteCounter = reporter.getCounter(MAP_OUTPUT_BYTES);
       mapOutputRecordCounter = reporter.getCounter(MAP_OUTPUT_RECORDS);
-      Counters.Counter combineInputCounter = 
-        reporter.getCounter(COMBINE_INPUT_RECORDS);
+      combineInputCounter = reporter.getCounter(COMBINE_INPUT_RECORDS);
       combineOutputCounter = reporter.getCounter(COMBINE_OUTPUT_RECORDS);
+      sortMillisCounter = reporter.getCounter(MAP_SORT_MILLISECONDS);
       // compression
       if (job.getCompressMapOutput()) {
         Class<? extends CompressionCodec> codecClass =
@@ -879,7 +979,7 @@ class MapTask extends Task {
                               + valClass.getName() + ", recieved "
                               + value.getClass().getName());
       }
-      final int kvnext = (kvindex + 1) % kvoffsets.length;
+      int kvnext = (kvindex + 1) % kvoffsets.length;
       spillLock.lock();
       try {
         boolean kvfull;
@@ -894,6 +994,11 @@ class MapTask extends Task {
               ? kvnext - kvend > softRecordLimit
               : kvend - kvnext <= kvoffsets.length - softRecordLimit);
           if (kvstart == kvend && kvsoftlimit) {
+            if (growRecords()) {
+              kvnext = (kvindex + 1) % kvoffsets.length;
+              kvfull = false;
+              continue;
+            }
             LOG.info("Spilling map output: record full = " + kvsoftlimit);
             startSpill();
           }
@@ -916,15 +1021,14 @@ class MapTask extends Task {
 
       try {
         // serialize key bytes into buffer
-        int keystart = bufindex;
+        keystart = valstart = bufindex;
         keySerializer.serialize(key);
         if (bufindex < keystart) {
           // wrapped the key; reset required
           bb.reset();
-          keystart = 0;
         }
         // serialize value bytes into buffer
-        final int valstart = bufindex;
+        valstart = bufindex;
         valSerializer.serialize(value);
         int valend = bb.markRecord();
 
@@ -933,10 +1037,12 @@ class MapTask extends Task {
               partition + ")");
         }
 
-        mapOutputRecordCounter.increment(1);
-        mapOutputByteCounter.increment(valend >= keystart
-            ? valend - keystart
-            : (bufvoid - keystart) + valend);
+        if (countOutput) {
+          mapOutputRecordCounter.increment(1);
+          mapOutputByteCounter.increment(valend >= keystart
+              ? valend - keystart
+              : (bufvoid - keystart) + valend);
+        }
 
         // update accounting info
         int ind = kvindex * ACCTSIZE;
@@ -944,11 +1050,17 @@ class MapTask extends Task {
         kvindices[ind + PARTITION] = partition;
         kvindices[ind + KEYSTART] = keystart;
         kvindices[ind + VALSTART] = valstart;
+        if (kvprefixes != null) {
+          kvprefixes[kvindex] = prefixComparator.getPrefix(kvbuffer,
+              keystart, valstart - keystart);
+        }
         kvindex = kvnext;
       } catch (MapBufferTooSmallException e) {
         LOG.info("Record too large for in-memory buffer: " + e.getMessage());
         spillSingleRecord(key, value, partition);
-        mapOutputRecordCounter.increment(1);
+        if (countOutput) {
+          mapOutputRecordCounter.increment(1);
+        }
         return;
       }
 
@@ -956,18 +1068,35 @@ class MapTask extends Task {
 
     /**
      * Compare logical range, st i, j MOD offset capacity.
-     * Compare by partition, then by key.
+     * Compare by partition, then by key prefix if cached, then by key.
      * @see IndexedSortable#compare
      */
     public int compare(int i, int j) {
+      return compare(i, j, comparator);
+    }
+
+    /**
+     * Compare logical range with the given key comparator. Partitions
+     * sorted concurrently each use their own comparator, since comparators
+     * need not be thread-safe.
+     */
+    private int compare(int i, int j, RawComparator<K> keyComparator) {
       final int ii = kvoffsets[i % kvoffsets.length];
       final int ij = kvoffsets[j % kvoffsets.length];
       // sort by partition
       if (kvindices[ii + PARTITION] != kvindices[ij + PARTITION]) {
         return kvindices[ii + PARTITION] - kvindices[ij + PARTITION];
       }
+      // sort by key prefix
+      if (kvprefixes != null) {
+        final long pi = kvprefixes[ii / ACCTSIZE];
+        final long pj = kvprefixes[ij / ACCTSIZE];
+        if (pi != pj) {
+          return pi < pj ? -1 : 1;
+        }
+      }
       // sort by key
-      return comparator.compare(kvbuffer,
+      return keyComparator.compare(kvbuffer,
           kvindices[ii + KEYSTART],
           kvindices[ii + VALSTART] - kvindices[ii + KEYSTART],
           kvbuffer,
@@ -987,6 +1116,217 @@ class MapTask extends Task {
       kvoffsets[j] = tmp;
     }
 
+    /**
+     * Double the record accounting, up to its share of io.sort.max.mb, and
+     * move the records collected since the last spill to its start. Called
+     * with spillLock held while no spill is in progress.
+     * @return whether the accounting grew
+     */
+    private boolean growRecords() {
+      if (kvoffsets.length >= maxRecordCapacity) {
+        return false;
+      }
+      final int capacity =
+        (int)Math.min(2L * kvoffsets.length, maxRecordCapacity);
+      final int count = (kvindex - kvend + kvoffsets.length) % kvoffsets.length;
+      final int[] newoffsets = new int[capacity];
+      final int[] newindices = new int[capacity * ACCTSIZE];
+      final long[] newprefixes = (kvprefixes == null)
+        ? null
+        : new long[capacity];
+      for (int i = 0; i < count; ++i) {
+        final int kvoff = kvoffsets[(kvend + i) % kvoffsets.length];
+        System.arraycopy(kvindices, kvoff, newindices, i * ACCTSIZE, ACCTSIZE);
+        newoffsets[i] = i * ACCTSIZE;
+        if (newprefixes != null) {
+          newprefixes[i] = kvprefixes[kvoff / ACCTSIZE];
+        }
+      }
+      kvoffsets = newoffsets;
+      kvindices = newindices;
+      kvprefixes = newprefixes;
+      if (kvscratch != null) {
+        kvscratch = new int[capacity];
+      }
+      kvstart = kvend = 0;
+      kvindex = count;
+      softRecordLimit = (int)(capacity * spillper);
+      LOG.info("record buffer = " + softRecordLimit + "/" + capacity);
+      return true;
+    }
+
+    /**
+     * Grow kvbuffer, up to its share of io.sort.max.mb, to at least twice
+     * its length or enough to hold the record being written and len more
+     * bytes. The records collected since the last spill are moved to the
+     * start of the new buffer, followed by the bytes of the record being
+     * written, so its serialization continues where it stopped. Called
+     * with spillLock held while no spill is in progress.
+     * @return whether the buffer grew
+     */
+    private boolean growBuffer(int len) {
+      if (kvbuffer.length >= maxBufferLength) {
+        return false;
+      }
+      if (bufmark == bufend && kvend != kvindex) {
+        // the records either fill the buffer or are empty
+        return false;
+      }
+      final boolean wrapped = bufmark < bufend;
+      final int used = wrapped
+        ? (bufvoid - bufend) + bufmark
+        : bufmark - bufend;
+      final long partial = (bufmark <= bufindex)
+        ? bufindex - bufmark
+        : (bufvoid - bufmark) + bufindex;
+      final int length = (int)Math.min(maxBufferLength,
+          Math.max(2L * kvbuffer.length, used + partial + len));
+      final byte[] newbuffer = new byte[length];
+      final int tail = wrapped ? bufvoid - bufend : used;
+      System.arraycopy(kvbuffer, bufend, newbuffer, 0, tail);
+      if (wrapped) {
+        System.arraycopy(kvbuffer, 0, newbuffer, tail, bufmark);
+      }
+      if (bufmark <= bufindex) {
+        System.arraycopy(kvbuffer, bufmark, newbuffer, used, (int)partial);
+      } else {
+        System.arraycopy(kvbuffer, bufmark, newbuffer, used,
+                         bufvoid - bufmark);
+        System.arraycopy(kvbuffer, 0, newbuffer, used + bufvoid - bufmark,
+                         bufindex);
+      }
+      for (int i = kvend; i != kvindex; i = (i + 1) % kvoffsets.length) {
+        final int kvoff = kvoffsets[i];
+        kvindices[kvoff + KEYSTART] =
+          movedOffset(kvindices[kvoff + KEYSTART], tail);
+        kvindices[kvoff + VALSTART] =
+          movedOffset(kvindices[kvoff + VALSTART], tail);
+      }
+      keystart = movedPartialOffset(keystart, used);
+      valstart = movedPartialOffset(valstart, used);
+      kvbuffer = newbuffer;
+      bufvoid = length;
+      bufstart = bufend = 0;
+      bufmark = used;
+      bufindex = used + (int)partial;
+      softBufferLimit = (int)(length * spillper);
+      LOG.info("data buffer = " + softBufferLimit + "/" + length);
+      return true;
+    }
+
+    /**
+     * Offset in the grown buffer of a byte at pos in kvbuffer, where the
+     * bytes from bufend to bufvoid were moved to the start.
+     */
+    private int movedOffset(int pos, int tail) {
+      return (pos >= bufend) ? pos - bufend : pos + tail;
+    }
+
+    /**
+     * Offset in the grown buffer of a byte at pos in the record being
+     * written, where the bytes from bufmark were moved to used.
+     */
+    private int movedPartialOffset(int pos, int used) {
+      return (pos >= bufmark) ? used + pos - bufmark
+                              : used + (bufvoid - bufmark) + pos;
+    }
+
+    /**
+     * Order the offsets of the records in the logical range [kvstart,
+     * endPosition) by partition, keeping the order of the records within
+     * each partition.
+     * @return the logical position of the first record of each partition,
+     *         followed by endPosition
+     */
+    private int[] groupByPartition(int endPosition) {
+      final int[] partStart = new int[partitions + 1];
+      for (int i = kvstart; i < endPosition; ++i) {
+        ++partStart[kvindices[kvoffsets[i % kvoffsets.length] + PARTITION]
+                    + 1];
+      }
+      partStart[0] = kvstart;
+      for (int p = 0; p < partitions; ++p) {
+        partStart[p + 1] += partStart[p];
+      }
+      final int[] next = Arrays.copyOf(partStart, partitions);
+      for (int i = kvstart; i < endPosition; ++i) {
+        final int kvoff = kvoffsets[i % kvoffsets.length];
+        kvscratch[next[kvindices[kvoff + PARTITION]]++ - kvstart] = kvoff;
+      }
+      for (int i = kvstart; i < endPosition; ++i) {
+        kvoffsets[i % kvoffsets.length] = kvscratch[i - kvstart];
+      }
+      return partStart;
+    }
+
+    /**
+     * Sorts the records of one partition of a spill on the sort pool, once
+     * they have been grouped by partition. Returns the sort time in
+     * nanoseconds.
+     */
+    private class PartitionSorter implements IndexedSortable, Callable<Long> {
+      private final int start;
+      private final int end;
+      private final RawComparator<K> keyComparator;
+
+      PartitionSorter(int start, int end) {
+        this.start = start;
+        this.end = end;
+        keyComparator = job.getOutputKeyComparator();
+      }
+
+      public int compare(int i, int j) {
+        return MapOutputBuffer.this.compare(i, j, keyComparator);
+      }
+
+      public void swap(int i, int j) {
+        MapOutputBuffer.this.swap(i, j);
+      }
+
+      public Long call() {
+        final long sortStart = System.nanoTime();
+        ReflectionUtils.newInstance(sorter.getClass(), job).sort(
+            this, start, end, reporter);
+        return System.nanoTime() - sortStart;
+      }
+    }
+
+    /**
+     * Wait for a task run on the sort pool, rethrowing its failure.
+     */
+    private <T> T waitFor(Future<T> task) throws IOException {
+      try {
+        return task.get();
+      } catch (InterruptedException e) {
+        throw (IOException)new IOException(
+            "Interrupted while waiting for the sort threads").initCause(e);
+      } catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException)cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException)cause;
+        } else if (cause instanceof Error) {
+          throw (Error)cause;
+        }
+        throw (IOException)new IOException(
+            "Sort thread failed").initCause(cause);
+      }
+    }
+
+    /**
+     * Cancel the tasks of a failed spill or merge that are still queued.
+     */
+    private void cancel(List<? extends Future<?>> tasks) {
+      if (tasks != null) {
+        for (Future<?> task : tasks) {
+          if (task != null) {
+            task.cancel(false);
+          }
+        }
+      }
+    }
+
     /**
      * Inner class managing the spill of serialized records to disk.
      */
@@ -1018,7 +1358,9 @@ class MapTask extends Task {
        * into itself, but starting at the beginning of the buffer. Note that
        * reset() should <b>only</b> be called immediately after detecting
        * this condition. To call it at any other time is undefined and would
-       * likely result in data loss or corruption.
+       * likely result in data loss or corruption. Sets keystart to where
+       * the key starts once rewritten, which is not the start of the buffer
+       * if the buffer grows while the key is rewritten.
        * @see #markRecord()
        */
       protected synchronized void reset() throws IOException {
@@ -1029,6 +1371,8 @@ class MapTask extends Task {
         // conservative path
         int headbytelen = bufvoid - bufmark;
         bufvoid = bufmark;
+        // growBuffer moves keystart along with the key being rewritten
+        keystart = 0;
         if (bufindex + headbytelen < bufstart) {
           System.arraycopy(kvbuffer, 0, kvbuffer, headbytelen, bufindex);
           System.arraycopy(kvbuffer, bufvoid, kvbuffer, 0, headbytelen);
@@ -1092,13 +1436,24 @@ class MapTask extends Task {
                   ? bufindex - bufend > softBufferLimit
                   : bufend - bufindex < bufvoid - softBufferLimit;
                 if (bufsoftlimit || (buffull && !wrap)) {
+                  if (growBuffer(len)) {
+                    // check the space again in the grown buffer
+                    buffull = true;
+                    wrap = false;
+                    continue;
+                  }
                   LOG.info("Spilling map output: buffer full= " + bufsoftlimit);
                   startSpill();
                 }
               } else if (buffull && !wrap) {
                 // We have no buffered records, and this record is too large
-                // to write into kvbuffer. We must spill it directly from
-                // collect
+                // to write into kvbuffer. Unless the buffer can grow, we
+                // must spill it directly from collect
+                if (growBuffer(len)) {
+                  buffull = true;
+                  wrap = false;
+                  continue;
+                }
                 final int size = ((bufend <= bufindex)
                   ? bufindex - bufend
                   : (bufvoid - bufend) + bufindex) + len;
@@ -1182,7 +1537,11 @@ class MapTask extends Task {
       mergeParts();
     }
 
-    public void close() { }
+    public void close() {
+      if (sortPool != null) {
+        sortPool.shutdownNow();
+      }
+    }
 
     protected class SpillThread extends Thread {
 
@@ -1243,6 +1602,7 @@ class MapTask extends Task {
           : (bufvoid - bufend) + bufstart) +
                   partitions * APPROX_HEADER_LENGTH;
       FSDataOutputStream out = null;
+      List<Future<Long>> sortTasks = null;
       try {
         // create spill file
         final SpillRecord spillRec = new SpillRecord(partitions);
@@ -1253,13 +1613,31 @@ class MapTask extends Task {
         final int endPosition = (kvend > kvstart)
           ? kvend
           : kvoffsets.length + kvend;
-        sorter.sort(MapOutputBuffer.this, kvstart, endPosition, reporter);
+        long sortNanos = 0;
+        if (sortPool == null) {
+          final long sortStart = System.nanoTime();
+          sorter.sort(MapOutputBuffer.this, kvstart, endPosition, reporter);
+          sortNanos = System.nanoTime() - sortStart;
+        } else {
+          // sort the partitions concurrently, writing each when it is sorted
+          final int[] partStart = groupByPartition(endPosition);
+          sortTasks = new ArrayList<Future<Long>>(partitions);
+          for (int i = 0; i < partitions; ++i) {
+            sortTasks.add(partStart[i + 1] - partStart[i] > 1
+                ? sortPool.submit(
+                    new PartitionSorter(partStart[i], partStart[i + 1]))
+                : null);
+          }
+        }
         int spindex = kvstart;
         IndexRecord rec = new IndexRecord();
         InMemValBytes value = new InMemValBytes();
         for (int i = 0; i < partitions; ++i) {
           IFile.Writer<K, V> writer = null;
           try {
+            if (sortTasks != null && sortTasks.get(i) != null) {
+              sortNanos += waitFor(sortTasks.get(i));
+            }
             long segmentStart = out.getPos();
             writer = new Writer<K, V>(job, out, keyClass, valClass, codec,
                                       spilledRecordsCounter);
@@ -1308,6 +1686,8 @@ class MapTask extends Task {
             if (null != writer) writer.close();
           }
         }
+        sortTasks = null;
+        sortMillisCounter.increment(sortNanos / 1000000);
 
         if (totalIndexCacheMemory >= INDEX_CACHE_MEMORY_LIMIT) {
           // create spill index file
@@ -1323,6 +1703,7 @@ class MapTask extends Task {
         LOG.info("Finished spill " + numSpills);
         ++numSpills;
       } finally {
+        cancel(sortTasks);
         if (out != null) out.close();
       }
     }
@@ -1523,48 +1904,22 @@ class MapTask extends Task {
         }
         return;
       }
+      if (sortPool != null) {
+        finalOut.close();
+        mergePartsConcurrently(filename, finalOutputFile, finalIndexFile);
+        return;
+      }
       {
         IndexRecord rec = new IndexRecord();
         final SpillRecord spillRec = new SpillRecord(partitions);
         for (int parts = 0; parts < partitions; parts++) {
-          //create the segments to be merged
-          List<Segment<K,V>> segmentList =
-            new ArrayList<Segment<K, V>>(numSpills);
-          for(int i = 0; i < numSpills; i++) {
-            IndexRecord indexRecord = indexCacheList.get(i).getIndex(parts);
-
-            Segment<K,V> s =
-              new Segment<K,V>(job, rfs, filename[i], indexRecord.startOffset,
-                               indexRecord.partLength, codec, true);
-            segmentList.add(i, s);
-
-            if (LOG.isDebugEnabled()) {
-              LOG.debug("MapId=" + mapId + " Reducer=" + parts +
-                  "Spill =" + i + "(" + indexRecord.startOffset + "," +
-                  indexRecord.rawLength + ", " + indexRecord.partLength + ")");
-            }
-          }
-
-          //merge
-          @SuppressWarnings("unchecked")
-          RawKeyValueIterator kvIter = Merger.merge(job, rfs,
-                         keyClass, valClass, codec,
-                         segmentList, job.getInt("io.sort.factor", 100),
-                         new Path(mapId.toString()),
-                         job.getOutputKeyComparator(), reporter,
-                         null, spilledRecordsCounter);
-
           //write merged output to disk
           long segmentStart = finalOut.getPos();
           Writer<K, V> writer =
               new Writer<K, V>(job, finalOut, keyClass, valClass, codec,
                                spilledRecordsCounter);
-          if (combinerRunner == null || numSpills < minSpillsForCombine) {
-            Merger.writeFile(kvIter, writer, reporter, job);
-          } else {
-            combineCollector.setWriter(writer);
-            combinerRunner.combine(kvIter, combineCollector);
-          }
+          mergePartition(parts, filename, writer, combinerRunner,
+                         combineCollector, new Path(mapId.toString()));
 
           //close
           writer.close();
@@ -1583,8 +1938,334 @@ class MapTask extends Task {
       }
     }
 
+    /**
+     * Merge one partition of all spills, running the combiner if there are
+     * enough spills, and write it with the given writer.
+     */
+    private void mergePartition(int parts, Path[] filename, Writer<K, V> writer,
+                                CombinerRunner<K,V> combiner,
+                                CombineOutputCollector<K,V> collector,
+                                Path tmpDir
+                                ) throws IOException, InterruptedException,
+                                         ClassNotFoundException {
+      final TaskAttemptID mapId = getTaskID();
+      //create the segments to be merged
+      List<Segment<K,V>> segmentList =
+        new ArrayList<Segment<K, V>>(numSpills);
+      for(int i = 0; i < numSpills; i++) {
+        IndexRecord indexRecord = indexCacheList.get(i).getIndex(parts);
+
+        Segment<K,V> s =
+          new Segment<K,V>(job, rfs, filename[i], indexRecord.startOffset,
+                           indexRecord.partLength, codec, true);
+        segmentList.add(i, s);
+
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("MapId=" + mapId + " Reducer=" + parts +
+              "Spill =" + i + "(" + indexRecord.startOffset + "," +
+              indexRecord.rawLength + ", " + indexRecord.partLength + ")");
+        }
+      }
+
+      //merge
+      @SuppressWarnings("unchecked")
+      RawKeyValueIterator kvIter = Merger.merge(job, rfs,
+                     keyClass, valClass, codec,
+                     segmentList, job.getInt("io.sort.factor", 100),
+                     tmpDir,
+                     job.getOutputKeyComparator(), reporter,
+                     null, spilledRecordsCounter);
+
+      if (combiner == null || numSpills < minSpillsForCombine) {
+        Merger.writeFile(kvIter, writer, reporter, job);
+      } else {
+        collector.setWriter(writer);
+        combiner.combine(kvIter, collector);
+      }
+    }
+
+    /**
+     * Merges one partition of all spills on the sort pool, writing it at a
+     * fixed offset of the final output file through a channel of its own.
+     * Returns the lengths of the merged segment.
+     */
+    private class PartitionMerger implements Callable<IndexRecord> {
+      private final int partition;
+      private final Path[] filename;
+      private final File finalOutFile;
+      private final long start;
+      private final long length;
+      private final Path overflowFile;
+      private boolean overflowed = false;
+
+      PartitionMerger(int partition, Path[] filename, File finalOutFile,
+                      long start, long length, Path overflowFile) {
+        this.partition = partition;
+        this.filename = filename;
+        this.finalOutFile = finalOutFile;
+        this.start = start;
+        this.length = length;
+        this.overflowFile = overflowFile;
+      }
+
+      public IndexRecord call() throws Exception {
+        RegionOutputStream region =
+          new RegionOutputStream(finalOutFile, start, length, rfs,
+                                 overflowFile);
+        FSDataOutputStream out = new FSDataOutputStream(
+            new BufferedOutputStream(region, 64 * 1024), null);
+        IndexRecord rec = new IndexRecord();
+        try {
+          Writer<K, V> writer =
+            new Writer<K, V>(job, out, keyClass, valClass, codec,
+                             spilledRecordsCounter);
+          // combiners and their comparators need not be thread-safe
+          CombinerRunner<K,V> combiner =
+            CombinerRunner.create(job, getTaskID(), combineInputCounter,
+                                  reporter, null);
+          CombineOutputCollector<K,V> collector = (combiner == null)
+            ? null
+            : new CombineOutputCollector<K,V>(combineOutputCounter);
+          mergePartition(partition, filename, writer, combiner, collector,
+                         new Path(getTaskID().toString(),
+                                  "part" + partition));
+          writer.close();
+          rec.rawLength = writer.getRawLength();
+          rec.partLength = writer.getCompressedLength();
+        } finally {
+          out.close();
+        }
+        overflowed = region.isOverflowed();
+        rec.startOffset = start;
+        return rec;
+      }
+    }
+
+    /**
+     * Merge the partitions concurrently on the sort pool. Each partition is
+     * given a region of the final output at a precomputed offset, sized to
+     * hold the merged segment unless a combiner or codec makes it grow. A
+     * segment outgrowing its region continues in an overflow file and is
+     * moved to the end of the final output once all merges are done. The
+     * index records each segment where it ends up. The final output has
+     * no gaps when there is a single partition, as local reduces read it
+     * whole.
+     */
+    private void mergePartsConcurrently(Path[] filename,
+                                        Path finalOutputFile,
+                                        Path finalIndexFile
+                                        ) throws IOException {
+      final File finalOutFile = new File(finalOutputFile.toUri().getPath());
+      final List<Future<IndexRecord>> mergeTasks =
+        new ArrayList<Future<IndexRecord>>(partitions);
+      final List<PartitionMerger> mergers =
+        new ArrayList<PartitionMerger>(partitions);
+      try {
+        long end = 0;
+        for (int parts = 0; parts < partitions; parts++) {
+          long partLength = 0;
+          for (int i = 0; i < numSpills; i++) {
+            partLength += indexCacheList.get(i).getIndex(parts).partLength;
+          }
+          // without a codec or a combiner the merged segment is never
+          // longer than the spilled segments; compressed, it is close
+          final long length = (codec == null)
+            ? partLength
+            : partLength + partLength / 64 + 1024;
+          PartitionMerger merger = new PartitionMerger(parts, filename,
+              finalOutFile, end, length,
+              mapOutputFile.getOutputPartFileForWrite(parts, partLength));
+          mergers.add(merger);
+          mergeTasks.add(sortPool.submit(merger));
+          end += length;
+        }
+        final SpillRecord spillRec = new SpillRecord(partitions);
+        for (int parts = 0; parts < partitions; parts++) {
+          IndexRecord rec = waitFor(mergeTasks.get(parts));
+          PartitionMerger merger = mergers.get(parts);
+          if (merger.overflowed) {
+            // a segment in the last region just continues past its end
+            if (merger.start + merger.length != end) {
+              LOG.info("Moving partition " + parts + " of " + rec.partLength
+                       + " bytes to the end of the map output");
+              rec.startOffset = end;
+            }
+            relocate(finalOutFile, merger.start, merger.length,
+                     merger.overflowFile, rec.startOffset);
+            end = rec.startOffset + rec.partLength;
+          }
+          spillRec.putIndex(rec, parts);
+        }
+        spillRec.writeToFile(finalIndexFile, job);
+        for(int i = 0; i < numSpills; i++) {
+          rfs.delete(filename[i],true);
+        }
+      } finally {
+        cancel(mergeTasks);
+      }
+    }
+
+    /**
+     * Write the region of the final output at <code>start</code> followed
+     * by the overflow file at offset <code>end</code> of the final output.
+     * The region is left in place if <code>end</code> is its start.
+     */
+    private void relocate(File finalOutFile, long start, long length,
+                          Path overflowFile, long end) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(finalOutFile, "rw");
+      try {
+        FileChannel channel = raf.getChannel();
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        for (long done = (end == start) ? length : 0; done < length; ) {
+          buf.clear();
+          buf.limit((int)Math.min(buf.capacity(), length - done));
+          int n = channel.read(buf, start + done);
+          if (n < 0) {
+            throw new IOException("Unexpected end of " + finalOutFile);
+          }
+          buf.flip();
+          while (buf.hasRemaining()) {
+            done += channel.write(buf, end + done);
+          }
+        }
+        end += length;
+        FileInputStream in =
+          new FileInputStream(overflowFile.toUri().getPath());
+        try {
+          FileChannel src = in.getChannel();
+          for (long pos = 0, size = src.size(); pos < size; ) {
+            pos += channel.transferFrom(src, end + pos, size - pos);
+          }
+        } finally {
+          in.close();
+        }
+      } finally {
+        raf.close();
+      }
+      rfs.delete(overflowFile, true);
+    }
+
   } // MapOutputBuffer
   
+  /**
+   * The comparator whose key prefixes a sort may cache, or null if
+   * <code>comparator</code> has none. The Text and BytesWritable comparators
+   * qualify only as exactly those classes, since a subclass may override
+   * compare() without overriding getPrefix().
+   */
+  @SuppressWarnings("unchecked")
+  static <K> PrefixComparator<K> getPrefixComparator(
+      RawComparator<K> comparator) {
+    if (comparator instanceof PrefixComparator) {
+      return (PrefixComparator<K>)comparator;
+    }
+    if (comparator.getClass() == Text.Comparator.class ||
+        comparator.getClass() == BytesWritable.Comparator.class) {
+      return new BuiltinPrefixComparator<K>(comparator);
+    }
+    return null;
+  }
+
+  /**
+   * Pairs the comparator of Text or BytesWritable keys with its prefix.
+   */
+  private static class BuiltinPrefixComparator<K>
+      implements PrefixComparator<K> {
+    private final RawComparator<K> comparator;
+    private final Text.Comparator text;
+    private final BytesWritable.Comparator bytes;
+
+    BuiltinPrefixComparator(RawComparator<K> comparator) {
+      this.comparator = comparator;
+      if (comparator instanceof Text.Comparator) {
+        text = (Text.Comparator)comparator;
+        bytes = null;
+      } else {
+        text = null;
+        bytes = (BytesWritable.Comparator)comparator;
+      }
+    }
+
+    public int compare(K o1, K o2) {
+      return comparator.compare(o1, o2);
+    }
+
+    public int compare(byte[] b1, int s1, int l1,
+                       byte[] b2, int s2, int l2) {
+      return comparator.compare(b1, s1, l1, b2, s2, l2);
+    }
+
+    public long getPrefix(byte[] b, int s, int l) {
+      return text != null ? text.getPrefix(b, s, l) : bytes.getPrefix(b, s, l);
+    }
+  }
+
+  /**
+   * Writes a region of a local file at a fixed offset through a channel of
+   * its own, so that several regions of one file may be written at once.
+   * Bytes beyond the end of the region are written to an overflow file.
+   */
+  private static class RegionOutputStream extends OutputStream {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long start;
+    private final long length;
+    private final FileSystem fs;
+    private final Path overflowFile;
+    private OutputStream overflow = null;
+    private long pos = 0;
+
+    RegionOutputStream(File file, long start, long length,
+                       FileSystem fs, Path overflowFile) throws IOException {
+      this.file = new RandomAccessFile(file, "rw");
+      this.channel = this.file.getChannel();
+      this.start = start;
+      this.length = length;
+      this.fs = fs;
+      this.overflowFile = overflowFile;
+    }
+
+    boolean isOverflowed() {
+      return overflow != null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (pos < length) {
+        final int n = (int)Math.min(len, length - pos);
+        ByteBuffer buf = ByteBuffer.wrap(b, off, n);
+        while (buf.hasRemaining()) {
+          pos += channel.write(buf, start + pos);
+        }
+        off += n;
+        len -= n;
+      }
+      if (len > 0) {
+        if (overflow == null) {
+          overflow = fs.create(overflowFile, true, 4096);
+        }
+        overflow.write(b, off, len);
+        pos += len;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        if (overflow != null) {
+          overflow.close();
+        }
+      } finally {
+        file.close();
+      }
+    }
+  }
+
   /**
    * Exception indicating that the allocated sort buffer is insufficient
    * to hold the current record.
@@ -0,0 +1,833 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.crypto.SecretKey;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.ReadaheadPool.ReadaheadRequest;
+import org.apache.hadoop.io.SecureIOUtils;
+import org.apache.hadoop.io.nativeio.NativeIO;
+import org.apache.hadoop.mapreduce.security.SecureShuffleUtils;
+import org.apache.hadoop.metrics.MetricsContext;
+import org.apache.hadoop.metrics.MetricsRecord;
+import org.apache.hadoop.metrics.MetricsUtil;
+import org.apache.hadoop.metrics.Updater;
+import org.apache.hadoop.util.Daemon;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * Serves map outputs to reduces over non-blocking sockets, as an
+ * alternative to the MapOutputServlet in the TaskTracker's Jetty.
+ * <p>
+ * It answers the same <code>GET /mapOutput</code> requests with the same
+ * headers as the servlet, so reduces fetch from it with the usual
+ * URLConnection. A few selector threads serve all the connections. The
+ * segment of a map output is sent with {@link FileChannel#transferTo}, so
+ * it goes from the page cache to the socket without being copied through
+ * the JVM heap, and connections are kept alive between fetches.
+ * <p>
+ * Locating a map output reads its index file and opens the output file
+ * in the selector thread, like the servlet does in its handler thread.
+ */
+class NioShuffleServer {
+  static final Log LOG = LogFactory.getLog(NioShuffleServer.class);
+
+  /**
+   * Port of the server. If set, TaskTrackers start the server and reduces
+   * fetch from it instead of the servlet, so it must have the same value
+   * for the TaskTrackers and the jobs.
+   */
+  static final String PORT_KEY = "mapred.tasktracker.shuffle.server.port";
+  /** Number of selector threads serving connections. */
+  static final String SELECTORS_KEY =
+    "mapred.tasktracker.shuffle.server.selectors";
+  static final int SELECTORS_DEFAULT = 2;
+
+  /** Requests are a request line and a few headers */
+  private static final int MAX_REQUEST_SIZE = 8 * 1024;
+  /** Kept-alive connections with no request for this long are closed */
+  private static final long IDLE_TIMEOUT = 60 * 1000;
+
+  private final TaskTracker tracker;
+  private final JobConf conf;
+  private final LocalDirAllocator lDirAlloc;
+  private final ServerSocketChannel acceptChannel;
+  private final ConnectionSelector[] selectors;
+  private final ShuffleMetrics metrics;
+  private final TaskTracker.LRUCache<String, Path> fileCache;
+  private final TaskTracker.LRUCache<String, Path> fileIndexCache;
+  private volatile boolean running = false;
+  private Daemon acceptor;
+
+  /**
+   * @param tracker the TaskTracker whose map outputs are served
+   * @param conf the TaskTracker's configuration
+   * @param lDirAlloc allocator of the local directories holding the outputs
+   * @param bindAddress address to listen on
+   * @param port port to listen on, 0 for any free port
+   */
+  NioShuffleServer(TaskTracker tracker, JobConf conf,
+      LocalDirAllocator lDirAlloc, String bindAddress, int port)
+      throws IOException {
+    this.tracker = tracker;
+    this.conf = conf;
+    this.lDirAlloc = lDirAlloc;
+    this.fileCache = new TaskTracker.LRUCache<String, Path>(
+        TaskTracker.FILE_CACHE_SIZE);
+    this.fileIndexCache = new TaskTracker.LRUCache<String, Path>(
+        TaskTracker.FILE_CACHE_SIZE);
+    this.metrics = new ShuffleMetrics(conf);
+
+    acceptChannel = ServerSocketChannel.open();
+    acceptChannel.socket().setReuseAddress(true);
+    acceptChannel.socket().bind(new InetSocketAddress(bindAddress, port));
+
+    int numSelectors = Math.max(1,
+        conf.getInt(SELECTORS_KEY, SELECTORS_DEFAULT));
+    selectors = new ConnectionSelector[numSelectors];
+    for (int i = 0; i < numSelectors; i++) {
+      selectors[i] = new ConnectionSelector();
+    }
+  }
+
+  /** @return the port the server listens on */
+  int getPort() {
+    return acceptChannel.socket().getLocalPort();
+  }
+
+  ShuffleMetrics getMetrics() {
+    return metrics;
+  }
+
+  void start() {
+    running = true;
+    for (int i = 0; i < selectors.length; i++) {
+      Daemon t = new Daemon(selectors[i]);
+      t.setName("NioShuffleServer selector #" + i);
+      t.start();
+    }
+    acceptor = new Daemon(new Runnable() {
+      public void run() {
+        accept();
+      }
+    });
+    acceptor.setName("NioShuffleServer acceptor on " + getPort());
+    acceptor.start();
+    LOG.info("Serving map outputs on port " + getPort() + " with " +
+             selectors.length + " selector(s)");
+  }
+
+  void stop() {
+    running = false;
+    try {
+      acceptChannel.close();
+    } catch (IOException ie) {
+      LOG.warn("Error closing the shuffle server socket", ie);
+    }
+    for (ConnectionSelector selector : selectors) {
+      selector.selector.wakeup();
+    }
+    if (acceptor != null) {
+      try {
+        acceptor.join();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    metrics.close();
+  }
+
+  private void accept() {
+    int next = 0;
+    while (running) {
+      try {
+        SocketChannel channel = acceptChannel.accept();
+        channel.socket().setTcpNoDelay(true);
+        selectors[next].add(new Connection(channel));
+        next = (next + 1) % selectors.length;
+      } catch (IOException ie) {
+        if (running) {
+          LOG.warn("Error accepting a shuffle connection: " +
+                   StringUtils.stringifyException(ie));
+        }
+      }
+    }
+  }
+
+  /** A map output segment to send, located from the index of its map. */
+  private static class Segment {
+    final String mapId;
+    final int reduce;
+    final IndexRecord info;
+    final String filePath;
+    final String runAsUserName;
+    /** ShuffleHeader sent before the segment in a batched response */
+    ByteBuffer shuffleHeader;
+
+    Segment(String mapId, int reduce, IndexRecord info, String filePath,
+            String runAsUserName) {
+      this.mapId = mapId;
+      this.reduce = reduce;
+      this.info = info;
+      this.filePath = filePath;
+      this.runAsUserName = runAsUserName;
+    }
+  }
+
+  /**
+   * A connection from a reduce. It alternates between reading a request
+   * and sending the response, which is the header followed by the map
+   * output segment. A request for the outputs of several maps is answered
+   * with their segments one after the other, each preceded by a
+   * {@link ShuffleHeader}.
+   */
+  private class Connection {
+    final SocketChannel channel;
+    SelectionKey key;
+    long idleDeadline;
+    final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+
+    /** Response header, or a whole error response, still to be sent */
+    ByteBuffer header;
+    /** Close the connection once the response is sent */
+    boolean closeWhenSent;
+    /** Segments of the response after the one being sent */
+    final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+    // the map output segment being sent
+    Segment segment;
+    FileInputStream mapOutputIn;
+    FileChannel mapOutput;
+    long position;
+    long startTime;
+    ReadaheadRequest readahead;
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    /** Read from the connection and start answering a complete request. */
+    void doRead() throws IOException {
+      if (channel.read(request) < 0) {
+        close();
+        return;
+      }
+      processRequest();
+    }
+
+    private void processRequest() throws IOException {
+      int end = findEndOfHeaders();
+      if (end < 0) {
+        if (!request.hasRemaining()) {
+          sendError(400, "Bad Request", null, "request too large");
+        }
+        return;
+      }
+      String text = new String(request.array(), 0, end, "ISO-8859-1");
+      // keep what the reduce has already sent of its next request
+      request.flip();
+      request.position(end);
+      request.compact();
+
+      handleRequest(text);
+      key.interestOps(SelectionKey.OP_WRITE);
+      doWrite();
+    }
+
+    private int findEndOfHeaders() {
+      byte[] buf = request.array();
+      for (int i = 3; i < request.position(); i++) {
+        if (buf[i] == '\n' && buf[i - 1] == '\r' &&
+            buf[i - 2] == '\n' && buf[i - 3] == '\r') {
+          return i + 1;
+        }
+      }
+      return -1;
+    }
+
+    /** Send as much of the response as the socket takes. */
+    void doWrite() throws IOException {
+      if (header != null) {
+        channel.write(header);
+        if (header.hasRemaining()) {
+          return;
+        }
+        header = null;
+      }
+      while (mapOutput != null) {
+        ByteBuffer shuffleHeader = segment.shuffleHeader;
+        if (shuffleHeader != null && shuffleHeader.hasRemaining()) {
+          channel.write(shuffleHeader);
+          if (shuffleHeader.hasRemaining()) {
+            return;
+          }
+        }
+        long end = segment.info.startOffset + segment.info.partLength;
+        while (position < end) {
+          if (tracker.manageOsCacheInShuffle &&
+              tracker.readaheadPool != null) {
+            readahead = tracker.readaheadPool.readaheadStream(
+                segment.filePath, mapOutputIn.getFD(), position,
+                tracker.readaheadLength, end, readahead);
+          }
+          long sent = mapOutput.transferTo(position, end - position, channel);
+          if (sent == 0) {
+            // the socket is full, wait until it is writable again
+            return;
+          }
+          position += sent;
+          metrics.outputBytes(sent);
+        }
+        finishSegment();
+        if (!segments.isEmpty()) {
+          // the response has started, so the reduce learns that a later
+          // map output is lost from the connection being closed
+          Segment next = segments.removeFirst();
+          try {
+            openSegment(next);
+          } catch (IOException ie) {
+            segmentLost(next.mapId, next.reduce, ie);
+            throw ie;
+          }
+        }
+      }
+      if (closeWhenSent) {
+        close();
+        return;
+      }
+      idleDeadline = System.currentTimeMillis() + IDLE_TIMEOUT;
+      key.interestOps(SelectionKey.OP_READ);
+      if (request.position() > 0) {
+        processRequest();
+      }
+    }
+
+    /**
+     * Parse a request and prepare its response. A request that cannot be
+     * served gets an error response and the connection is closed after it.
+     */
+    private void handleRequest(String text) throws IOException {
+      String[] lines = text.split("\r\n");
+      String[] requestLine = lines[0].split(" ");
+      if (requestLine.length != 3 || !requestLine[0].equals("GET")) {
+        sendError(400, "Bad Request", null, "cannot parse " + lines[0]);
+        return;
+      }
+      Map<String, String> headers = new HashMap<String, String>();
+      for (int i = 1; i < lines.length; i++) {
+        int colon = lines[i].indexOf(':');
+        if (colon > 0) {
+          headers.put(lines[i].substring(0, colon).trim().toLowerCase(),
+                      lines[i].substring(colon + 1).trim());
+        }
+      }
+      String connection = headers.get("connection");
+      if (requestLine[2].equals("HTTP/1.1")) {
+        closeWhenSent = "close".equalsIgnoreCase(connection);
+      } else {
+        closeWhenSent = !"keep-alive".equalsIgnoreCase(connection);
+      }
+
+      String uri = requestLine[1];
+      int q = uri.indexOf('?');
+      String path = q < 0 ? uri : uri.substring(0, q);
+      String query = q < 0 ? null : uri.substring(q + 1);
+      if (!path.equals("/mapOutput") || query == null) {
+        sendError(404, "Not Found", null, path);
+        return;
+      }
+      Map<String, String> params = parseQuery(query);
+      String jobId = params.get("job");
+      String mapId = params.get("map");
+      String reduceId = params.get("reduce");
+      if (jobId == null || mapId == null || reduceId == null) {
+        sendError(400, "Bad Request", null,
+                  "job, map and reduce parameters are required");
+        return;
+      }
+      int reduce;
+      try {
+        reduce = Integer.parseInt(reduceId);
+      } catch (NumberFormatException nfe) {
+        sendError(400, "Bad Request", null, "bad reduce " + reduceId);
+        return;
+      }
+
+      String replyHash;
+      try {
+        replyHash = verifyRequest(path, query,
+            headers.get(SecureShuffleUtils.HTTP_HEADER_URL_HASH.toLowerCase()),
+            jobId);
+      } catch (IOException ie) {
+        LOG.warn("Shuffle request from " + channel.socket()
+            .getRemoteSocketAddress() + " not authenticated: " + ie);
+        sendError(401, "Unauthorized", null, ie.getMessage());
+        return;
+      }
+
+      String[] mapIds = mapId.split(ShuffleHeader.MAP_ID_SEPARATOR);
+      boolean batched = mapIds.length > 1;
+      String current = null;
+      try {
+        long contentLength = 0;
+        for (String id : mapIds) {
+          current = id;
+          Segment s = locateSegment(jobId, id, reduce);
+          if (batched) {
+            DataOutputBuffer out = new DataOutputBuffer();
+            new ShuffleHeader(id, s.info.partLength, s.info.rawLength,
+                              reduce).write(out);
+            s.shuffleHeader =
+              ByteBuffer.wrap(out.getData(), 0, out.getLength());
+            contentLength += out.getLength();
+          }
+          contentLength += s.info.partLength;
+          segments.add(s);
+        }
+        current = mapIds[0];
+        openSegment(segments.removeFirst());
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 200 OK\r\n");
+        sb.append("Content-Type: application/octet-stream\r\n");
+        sb.append("Content-Length: ").append(contentLength).append("\r\n");
+        if (!batched) {
+          IndexRecord info = segment.info;
+          appendHeader(sb, MRConstants.FROM_MAP_TASK, mapId);
+          appendHeader(sb, MRConstants.RAW_MAP_OUTPUT_LENGTH,
+                       Long.toString(info.rawLength));
+          appendHeader(sb, MRConstants.MAP_OUTPUT_LENGTH,
+                       Long.toString(info.partLength));
+          appendHeader(sb, MRConstants.FOR_REDUCE_TASK,
+                       Integer.toString(reduce));
+        }
+        appendHeader(sb, SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH,
+                     replyHash);
+        appendHeader(sb, "Connection", closeWhenSent ? "close" : "keep-alive");
+        sb.append("\r\n");
+        header = ByteBuffer.wrap(sb.toString().getBytes("ISO-8859-1"));
+      } catch (IOException ie) {
+        segments.clear();
+        String errorMsg = segmentLost(current, reduce, ie);
+        sendError(410, "Gone", current, errorMsg);
+      }
+    }
+
+    /**
+     * Check the hash of the url sent by the reduce against the job token.
+     * @return the hash of that hash to send back
+     */
+    private String verifyRequest(String path, String query, String urlHash,
+        String jobId) throws IOException {
+      if (urlHash == null) {
+        throw new IOException("fetcher cannot be authenticated");
+      }
+      SecretKey tokenSecret = tracker.getJobTokenSecretManager()
+          .retrieveTokenSecret(jobId);
+      String encStr = SecureShuffleUtils.buildMsgFrom(path, query, getPort());
+      SecureShuffleUtils.verifyReply(urlHash, encStr, tokenSecret);
+      return SecureShuffleUtils.generateHash(urlHash.getBytes(), tokenSecret);
+    }
+
+    /** Find the segment of a map output for a reduce. */
+    private Segment locateSegment(String jobId, String mapId, int reduce)
+        throws IOException {
+      String userName;
+      String runAsUserName;
+      synchronized (tracker.runningJobs) {
+        TaskTracker.RunningJob rjob =
+          tracker.runningJobs.get(JobID.forName(jobId));
+        if (rjob == null) {
+          throw new IOException("Unknown job " + jobId + "!!");
+        }
+        userName = rjob.getJobConf().getUser();
+        runAsUserName =
+          tracker.getTaskController().getRunAsUser(rjob.getJobConf());
+      }
+      String intermediateOutputDir =
+        TaskTracker.getIntermediateOutputDir(userName, jobId, mapId);
+      Path indexFileName =
+        getLocalPath(fileIndexCache, intermediateOutputDir + "/file.out.index");
+      Path mapOutputFileName =
+        getLocalPath(fileCache, intermediateOutputDir + "/file.out");
+
+      IndexRecord info = tracker.getIndexCache().getIndexInformation(
+          mapId, reduce, indexFileName, runAsUserName);
+      return new Segment(mapId, reduce, info,
+          mapOutputFileName.toUri().getPath(), runAsUserName);
+    }
+
+    /** Open the file holding a segment and make it the one being sent. */
+    private void openSegment(Segment s) throws IOException {
+      segment = s;
+      mapOutputIn = SecureIOUtils.openForRead(new File(s.filePath),
+                                              s.runAsUserName);
+      mapOutput = mapOutputIn.getChannel();
+      long end = s.info.startOffset + s.info.partLength;
+      if (end > mapOutput.size()) {
+        throw new IOException(s.filePath + " has " + mapOutput.size() +
+            " bytes, segment for reduce " + s.reduce + " ends at " + end);
+      }
+      position = s.info.startOffset;
+      startTime = System.nanoTime();
+    }
+
+    private Path getLocalPath(TaskTracker.LRUCache<String, Path> cache,
+        String key) throws IOException {
+      Path p = cache.get(key);
+      if (p == null) {
+        p = lDirAlloc.getLocalPathToRead(key, conf);
+        cache.put(key, p);
+      }
+      return p;
+    }
+
+    /**
+     * Report a map output that could not be served as lost.
+     * @return the error message
+     */
+    private String segmentLost(String mapId, int reduce, IOException ie)
+        throws IOException {
+      String errorMsg = "getMapOutput(" + mapId + "," + reduce +
+                        ") failed :\n" + StringUtils.stringifyException(ie);
+      LOG.warn(errorMsg);
+      closeSegment();
+      metrics.failedOutput();
+      tracker.mapOutputLost(TaskAttemptID.forName(mapId), errorMsg);
+      return errorMsg;
+    }
+
+    private void finishSegment() throws IOException {
+      long length = segment.info.partLength;
+      if (readahead != null) {
+        readahead.cancel();
+      }
+      if (tracker.manageOsCacheInShuffle && length > 0) {
+        NativeIO.posixFadviseIfPossible(mapOutputIn.getFD(),
+            segment.info.startOffset, length, NativeIO.POSIX_FADV_DONTNEED);
+      }
+      closeSegment();
+      metrics.successOutput();
+      if (TaskTracker.ClientTraceLog.isInfoEnabled()) {
+        TaskTracker.ClientTraceLog.info(String.format(
+            TaskTracker.MR_CLIENTTRACE_FORMAT,
+            channel.socket().getLocalSocketAddress(),
+            channel.socket().getRemoteSocketAddress(),
+            length, "MAPRED_SHUFFLE", segment.mapId,
+            System.nanoTime() - startTime));
+      }
+    }
+
+    private void closeSegment() {
+      IOUtils.closeStream(mapOutputIn);
+      mapOutputIn = null;
+      mapOutput = null;
+      readahead = null;
+    }
+
+    /**
+     * Prepare an error response.
+     * @param mapId the map whose output could not be served, or null
+     */
+    private void sendError(int code, String reason, String mapId,
+        String message) throws UnsupportedEncodingException {
+      byte[] body = (message == null ? "" : message).getBytes("UTF-8");
+      StringBuilder sb = new StringBuilder();
+      sb.append("HTTP/1.1 ").append(code).append(' ').append(reason)
+        .append("\r\n");
+      appendHeader(sb, "Content-Type", "text/plain; charset=utf-8");
+      appendHeader(sb, "Content-Length", Integer.toString(body.length));
+      if (mapId != null) {
+        appendHeader(sb, MRConstants.FROM_MAP_TASK, mapId);
+      }
+      appendHeader(sb, "Connection", "close");
+      sb.append("\r\n");
+      byte[] head = sb.toString().getBytes("ISO-8859-1");
+      header = ByteBuffer.allocate(head.length + body.length);
+      header.put(head).put(body);
+      header.flip();
+      closeWhenSent = true;
+      key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    void close() {
+      if (mapOutput != null) {
+        metrics.failedOutput();
+      }
+      closeSegment();
+      segments.clear();
+      if (key != null) {
+        key.cancel();
+      }
+      IOUtils.closeStream(channel);
+      metrics.connectionClosed();
+    }
+
+    @Override
+    public String toString() {
+      return String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+  }
+
+  private static void appendHeader(StringBuilder sb, String name,
+      String value) {
+    sb.append(name).append(": ").append(value).append("\r\n");
+  }
+
+  private static Map<String, String> parseQuery(String query)
+      throws UnsupportedEncodingException {
+    Map<String, String> params = new HashMap<String, String>();
+    for (String param : query.split("&")) {
+      int eq = param.indexOf('=');
+      if (eq > 0) {
+        params.put(param.substring(0, eq),
+                   URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+      }
+    }
+    return params;
+  }
+
+  /**
+   * Serves the connections handed to it until the server stops.
+   * Connections waiting for a request longer than the idle timeout are
+   * closed.
+   */
+  private class ConnectionSelector implements Runnable {
+    private final Selector selector;
+    private final Queue<Connection> pending =
+      new ConcurrentLinkedQueue<Connection>();
+    /** No connection times out before this */
+    private long nextExpiry = Long.MAX_VALUE;
+
+    ConnectionSelector() throws IOException {
+      selector = Selector.open();
+    }
+
+    void add(Connection conn) {
+      pending.add(conn);
+      selector.wakeup();
+    }
+
+    public void run() {
+      try {
+        while (running) {
+          long now = System.currentTimeMillis();
+          registerPending(now);
+          if (now >= nextExpiry) {
+            closeExpired(now);
+          }
+          // select(0) waits until woken up
+          long timeout = nextExpiry == Long.MAX_VALUE ? 0 :
+            Math.max(1, nextExpiry - now);
+          selector.select(timeout);
+          Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+          while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            Connection conn = (Connection) key.attachment();
+            try {
+              if (key.isValid() && key.isReadable()) {
+                conn.doRead();
+              } else if (key.isValid() && key.isWritable()) {
+                conn.doWrite();
+              }
+            } catch (CancelledKeyException e) {
+              conn.close();
+            } catch (IOException ie) {
+              if (LOG.isDebugEnabled()) {
+                LOG.debug("Closing shuffle connection " + conn + ": " + ie);
+              }
+              conn.close();
+            } catch (RuntimeException re) {
+              LOG.warn("Closing shuffle connection " + conn + ": " +
+                       StringUtils.stringifyException(re));
+              conn.close();
+            }
+            if (conn.key.isValid() &&
+                conn.key.interestOps() == SelectionKey.OP_READ) {
+              nextExpiry = Math.min(nextExpiry, conn.idleDeadline);
+            }
+          }
+        }
+      } catch (IOException ie) {
+        LOG.error("Shuffle server selector exiting due to: " +
+                  StringUtils.stringifyException(ie));
+      } finally {
+        closeAll();
+      }
+    }
+
+    private void registerPending(long now) {
+      Connection conn;
+      while ((conn = pending.poll()) != null) {
+        try {
+          conn.channel.configureBlocking(false);
+          conn.key = conn.channel.register(selector, SelectionKey.OP_READ,
+                                           conn);
+          conn.idleDeadline = now + IDLE_TIMEOUT;
+          nextExpiry = Math.min(nextExpiry, conn.idleDeadline);
+          metrics.connectionOpened();
+        } catch (IOException ie) {
+          LOG.warn("Could not register shuffle connection " + conn + ": " +
+                   ie);
+          IOUtils.closeStream(conn.channel);
+        }
+      }
+    }
+
+    private void closeExpired(long now) {
+      nextExpiry = Long.MAX_VALUE;
+      for (SelectionKey key : selector.keys()) {
+        Connection conn = (Connection) key.attachment();
+        try {
+          if (!key.isValid() || key.interestOps() != SelectionKey.OP_READ) {
+            continue;
+          }
+        } catch (CancelledKeyException e) {
+          continue;
+        }
+        if (now >= conn.idleDeadline) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Closing idle shuffle connection " + conn);
+          }
+          conn.close();
+        } else {
+          nextExpiry = Math.min(nextExpiry, conn.idleDeadline);
+        }
+      }
+    }
+
+    private void closeAll() {
+      Connection conn;
+      while ((conn = pending.poll()) != null) {
+        IOUtils.closeStream(conn.channel);
+      }
+      for (SelectionKey key : selector.keys()) {
+        if (key.isValid()) {
+          ((Connection) key.attachment()).close();
+        }
+      }
+      try {
+        selector.close();
+      } catch (IOException ie) {
+        LOG.warn("Error closing shuffle server selector: " +
+                 StringUtils.stringifyException(ie));
+      }
+    }
+  }
+
+  /**
+   * Metrics of the NIO shuffle server, kept apart from the servlet's
+   * shuffleOutput record.
+   */
+  class ShuffleMetrics implements Updater {
+    private final MetricsContext context;
+    private final MetricsRecord shuffleMetricsRecord;
+    private int connections = 0;
+    private long outputBytes = 0;
+    private long successOutputs = 0;
+    private long failedOutputs = 0;
+    // totals already pushed to the metrics record
+    private long reportedOutputBytes = 0;
+    private long reportedSuccessOutputs = 0;
+    private long reportedFailedOutputs = 0;
+
+    ShuffleMetrics(JobConf conf) {
+      context = MetricsUtil.getContext("mapred");
+      shuffleMetricsRecord =
+        MetricsUtil.createRecord(context, "nioShuffleOutput");
+      shuffleMetricsRecord.setTag("sessionId", conf.getSessionId());
+      context.registerUpdater(this);
+    }
+
+    synchronized void connectionOpened() {
+      ++connections;
+    }
+    synchronized void connectionClosed() {
+      --connections;
+    }
+    synchronized void outputBytes(long bytes) {
+      outputBytes += bytes;
+    }
+    synchronized void successOutput() {
+      ++successOutputs;
+    }
+    synchronized void failedOutput() {
+      ++failedOutputs;
+    }
+
+    synchronized int getConnections() {
+      return connections;
+    }
+    synchronized long getOutputBytes() {
+      return outputBytes;
+    }
+    synchronized long getSuccessOutputs() {
+      return successOutputs;
+    }
+    synchronized long getFailedOutputs() {
+      return failedOutputs;
+    }
+
+    public void doUpdates(MetricsContext unused) {
+      synchronized (this) {
+        shuffleMetricsRecord.setMetric("shuffle_connections", connections);
+        shuffleMetricsRecord.incrMetric("shuffle_output_bytes",
+            outputBytes - reportedOutputBytes);
+        shuffleMetricsRecord.incrMetric("shuffle_success_outputs",
+            successOutputs - reportedSuccessOutputs);
+        shuffleMetricsRecord.incrMetric("shuffle_failed_outputs",
+            failedOutputs - reportedFailedOutputs);
+        reportedOutputBytes = outputBytes;
+        reportedSuccessOutputs = successOutputs;
+        reportedFailedOutputs = failedOutputs;
+      }
+      shuffleMetricsRecord.update();
+    }
+
+    void close() {
+      context.unregisterUpdater(this);
+    }
+  }
+}
@@ -41,4 +41,13 @@ interface RamManager {
    * @param requestedSize size of memory returned to the pool
    */
   void unreserve(int requestedSize);
+
+  /**
+   * Return memory to the pool along with the buffer that held the data, so
+   * that the buffer may be reused.
+   * 
+   * @param requestedSize size of memory returned to the pool
+   * @param buffer buffer that is no longer used
+   */
+  void unreserve(int requestedSize, byte[] buffer);
 }
@@ -20,7 +20,9 @@ package org.apache.hadoop.mapred;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -36,7 +38,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -581,6 +582,65 @@ class ReduceTask extends Task {
     OTHER_ERROR
   };
 
+  /**
+   * The segment of one map output in the response to a batched fetch. It
+   * reads no further than the segment, and closing it leaves the response
+   * open for the segments after it.
+   */
+  private static class SegmentInputStream extends FilterInputStream {
+    private long remaining;
+
+    SegmentInputStream(InputStream in, long length) {
+      super(in);
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int b = in.read();
+      if (b >= 0) {
+        --remaining;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int n = in.read(b, off, (int)Math.min(len, remaining));
+      if (n > 0) {
+        remaining -= n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(Math.min(n, remaining));
+      remaining -= skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int)Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
   class ReduceCopier<K, V> implements MRConstants {
 
     /** Reference to the umbilical object */
@@ -601,9 +661,10 @@ class ReduceTask extends Task {
     private ReduceTask reduceTask;
     
     /**
-     * the list of map outputs currently being copied
+     * the map outputs scheduled to be copied, in batches of outputs on the
+     * same host
      */
-    private List<MapOutputLocation> scheduledCopies;
+    private List<List<MapOutputLocation>> scheduledCopies;
     
     /**
      *  the results of dispatched copy attempts
@@ -625,6 +686,16 @@ class ReduceTask extends Task {
      */
     private int maxInFlight;
     
+    /**
+     * port of the NIO shuffle servers of the TaskTrackers, or 0 to fetch
+     * from the MapOutputServlet on their http port
+     */
+    private final int shuffleServerPort;
+    
+    /**
+     * the maximum number of map outputs fetched from a host in one request
+     */
+    private final int fetchBatchSize;
     
     /**
      * busy hosts from which copies are being backed off
@@ -633,9 +704,9 @@ class ReduceTask extends Task {
     private Map<String, Long> penaltyBox;
     
     /**
-     * the set of unique hosts from which we are copying
+     * the number of map outputs being copied from each host
      */
-    private Set<String> uniqueHosts;
+    private Map<String, Integer> hostCopiesInFlight;
     
     /**
      * A reference to the RamManager for writing the map outputs to.
@@ -669,16 +740,6 @@ class ReduceTask extends Task {
      */
     private volatile boolean exitGetMapEvents = false;
     
-    /**
-     * When we accumulate maxInMemOutputs number of files in ram, we merge/spill
-     */
-    private final int maxInMemOutputs;
-
-    /**
-     * Usage threshold for in-memory output accumulation.
-     */
-    private final float maxInMemCopyPer;
-
     /**
      * Maximum memory usage of map outputs to merge from memory into
      * the reduce, in bytes.
@@ -898,6 +959,10 @@ class ReduceTask extends Task {
       //a flag signifying whether a copy result is obsolete
       private static final int OBSOLETE = -2;
       
+      //a flag signifying that the copy was not attempted because an earlier
+      //copy of the same batch failed
+      private static final int UNFETCHED = -3;
+      
       private CopyOutputErrorType error = CopyOutputErrorType.NO_ERROR;
       CopyResult(MapOutputLocation loc, long size) {
         this.loc = loc;
@@ -914,6 +979,9 @@ class ReduceTask extends Task {
       public boolean isObsolete() { 
         return size == OBSOLETE;
       }
+      public boolean isUnfetched() {
+        return size == UNFETCHED;
+      }
       public long getSize() { return size; }
       public String getHost() { return loc.getHost(); }
       public MapOutputLocation getLocation() { return loc; }
@@ -966,6 +1034,7 @@ class ReduceTask extends Task {
       final Configuration conf;
       
       byte[] data;
+      final int length;
       final boolean inMemory;
       long compressedSize;
       
@@ -979,11 +1048,13 @@ class ReduceTask extends Task {
         this.compressedSize = size;
         
         this.data = null;
+        this.length = 0;
         
         this.inMemory = false;
       }
       
-      public MapOutput(TaskID mapId, TaskAttemptID mapAttemptId, byte[] data, int compressedLength) {
+      public MapOutput(TaskID mapId, TaskAttemptID mapAttemptId, byte[] data,
+                       int length, int compressedLength) {
         this.mapId = mapId;
         this.mapAttemptId = mapAttemptId;
         
@@ -991,6 +1062,7 @@ class ReduceTask extends Task {
         this.conf = null;
         
         this.data = data;
+        this.length = length;
         this.compressedSize = compressedLength;
         
         this.inMemory = true;
@@ -1006,156 +1078,6 @@ class ReduceTask extends Task {
       }
     }
     
-    class ShuffleRamManager implements RamManager {
-      /* Maximum percentage of the in-memory limit that a single shuffle can 
-       * consume*/ 
-      private static final float MAX_SINGLE_SHUFFLE_SEGMENT_FRACTION = 0.25f;
-      
-      /* Maximum percentage of shuffle-threads which can be stalled 
-       * simultaneously after which a merge is triggered. */ 
-      private static final float MAX_STALLED_SHUFFLE_THREADS_FRACTION = 0.75f;
-      
-      private final long maxSize;
-      private final long maxSingleShuffleLimit;
-      
-      private long size = 0;
-      
-      private Object dataAvailable = new Object();
-      private long fullSize = 0;
-      private int numPendingRequests = 0;
-      private int numRequiredMapOutputs = 0;
-      private int numClosed = 0;
-      private boolean closed = false;
-      
-      public ShuffleRamManager(Configuration conf) throws IOException {
-        final float maxInMemCopyUse =
-          conf.getFloat("mapred.job.shuffle.input.buffer.percent", 0.70f);
-        if (maxInMemCopyUse > 1.0 || maxInMemCopyUse < 0.0) {
-          throw new IOException("mapred.job.shuffle.input.buffer.percent" +
-                                maxInMemCopyUse);
-        }
-        // Allow unit tests to fix Runtime memory
-        maxSize = (int)(conf.getInt("mapred.job.reduce.total.mem.bytes",
-            (int)Math.min(Runtime.getRuntime().maxMemory(), Integer.MAX_VALUE))
-          * maxInMemCopyUse);
-        maxSingleShuffleLimit = (long)(maxSize * MAX_SINGLE_SHUFFLE_SEGMENT_FRACTION);
-        LOG.info("ShuffleRamManager: MemoryLimit=" + maxSize + 
-                 ", MaxSingleShuffleLimit=" + maxSingleShuffleLimit);
-      }
-      
-      public synchronized boolean reserve(int requestedSize, InputStream in) 
-      throws InterruptedException {
-        // Wait till the request can be fulfilled...
-        while (((long)size + (long)requestedSize) > maxSize) {
-          
-          // Close the input...
-          if (in != null) {
-            try {
-              in.close();
-            } catch (IOException ie) {
-              LOG.info("Failed to close connection with: " + ie);
-            } finally {
-              in = null;
-            }
-          } 
-
-          // Track pending requests
-          synchronized (dataAvailable) {
-            ++numPendingRequests;
-            dataAvailable.notify();
-          }
-
-          // Wait for memory to free up
-          wait();
-          
-          // Track pending requests
-          synchronized (dataAvailable) {
-            --numPendingRequests;
-          }
-        }
-        
-        size += requestedSize;
-        
-        return (in != null);
-      }
-      
-      public synchronized void unreserve(int requestedSize) {
-        size -= requestedSize;
-        
-        synchronized (dataAvailable) {
-          fullSize -= requestedSize;
-          --numClosed;
-        }
-        
-        // Notify the threads blocked on RamManager.reserve
-        notifyAll();
-      }
-      
-      public boolean waitForDataToMerge() throws InterruptedException {
-        boolean done = false;
-        synchronized (dataAvailable) {
-                 // Start in-memory merge if manager has been closed or...
-          while (!closed
-                 &&
-                 // In-memory threshold exceeded and at least two segments
-                 // have been fetched
-                 (getPercentUsed() < maxInMemCopyPer || numClosed < 2)
-                 &&
-                 // More than "mapred.inmem.merge.threshold" map outputs
-                 // have been fetched into memory
-                 (maxInMemOutputs <= 0 || numClosed < maxInMemOutputs)
-                 && 
-                 // More than MAX... threads are blocked on the RamManager
-                 // or the blocked threads are the last map outputs to be
-                 // fetched. If numRequiredMapOutputs is zero, either
-                 // setNumCopiedMapOutputs has not been called (no map ouputs
-                 // have been fetched, so there is nothing to merge) or the
-                 // last map outputs being transferred without
-                 // contention, so a merge would be premature.
-                 (numPendingRequests < 
-                      numCopiers*MAX_STALLED_SHUFFLE_THREADS_FRACTION && 
-                  (0 == numRequiredMapOutputs ||
-                   numPendingRequests < numRequiredMapOutputs))) {
-            dataAvailable.wait();
-          }
-          done = closed;
-        }
-        return done;
-      }
-      
-      public void closeInMemoryFile(int requestedSize) {
-        synchronized (dataAvailable) {
-          fullSize += requestedSize;
-          ++numClosed;
-          dataAvailable.notify();
-        }
-      }
-      
-      public void setNumCopiedMapOutputs(int numRequiredMapOutputs) {
-        synchronized (dataAvailable) {
-          this.numRequiredMapOutputs = numRequiredMapOutputs;
-          dataAvailable.notify();
-        }
-      }
-      
-      public void close() {
-        synchronized (dataAvailable) {
-          closed = true;
-          LOG.info("Closed ram manager");
-          dataAvailable.notify();
-        }
-      }
-      
-      private float getPercentUsed() {
-        return (float)fullSize/maxSize;
-      }
-
-      boolean canFitInMemory(long requestedSize) {
-        return (requestedSize < Integer.MAX_VALUE && 
-                requestedSize < maxSingleShuffleLimit);
-      }
-    }
-
     /** Copies map outputs as they become available */
     private class MapOutputCopier extends Thread {
       // basic/unit connection timeout (in milliseconds)
@@ -1169,6 +1091,8 @@ class ReduceTask extends Task {
       private int id = nextMapOutputCopierId++;
       private Reporter reporter;
       private boolean readError = false;
+      // whether the response to a batched fetch was closed before its end
+      private boolean responseClosed = false;
       
       // Decompression of map-outputs
       private CompressionCodec codec = null;
@@ -1238,15 +1162,20 @@ class ReduceTask extends Task {
       public void run() {
         while (true) {        
           try {
-            MapOutputLocation loc = null;
+            List<MapOutputLocation> batch = null;
             long size = -1;
             
             synchronized (scheduledCopies) {
               while (scheduledCopies.isEmpty()) {
                 scheduledCopies.wait();
               }
-              loc = scheduledCopies.remove(0);
+              batch = scheduledCopies.remove(0);
+            }
+            if (batch.size() > 1) {
+              copyOutputs(batch);
+              continue;
             }
+            MapOutputLocation loc = batch.get(0);
             CopyOutputErrorType error = CopyOutputErrorType.OTHER_ERROR;
             readError = false;
             try {
@@ -1328,6 +1257,203 @@ class ReduceTask extends Task {
                                 loc.getHost());
         }
         
+        return commitMapOutput(loc, mapOutput, filename);
+      }
+      
+      /**
+       * Copies the outputs of several maps from the same host with a single
+       * request. Each map output gets its own copy result. When one of them
+       * fails, the ones after it are not copied but are left to be fetched
+       * again later, without counting as failures.
+       * @param batch the map output locations to be copied
+       * @throws InterruptedException if the copier should give up
+       */
+      private void copyOutputs(List<MapOutputLocation> batch)
+      throws InterruptedException {
+        // check which outputs we still need to copy
+        List<MapOutputLocation> locs = 
+          new ArrayList<MapOutputLocation>(batch.size());
+        for (MapOutputLocation loc : batch) {
+          if (copiedMapOutputs.contains(loc.getTaskId()) || 
+              obsoleteMapIds.contains(loc.getTaskAttemptId())) {
+            start(loc);
+            finish(CopyResult.OBSOLETE, CopyOutputErrorType.NO_ERROR);
+          } else {
+            locs.add(loc);
+          }
+        }
+        if (locs.isEmpty()) {
+          return;
+        }
+        
+        StringBuilder mapIds = new StringBuilder();
+        for (MapOutputLocation loc : locs) {
+          if (mapIds.length() > 0) {
+            mapIds.append(ShuffleHeader.MAP_ID_SEPARATOR);
+          }
+          mapIds.append(loc.getTaskAttemptId());
+        }
+        
+        InputStream input = null;
+        shuffleClientMetrics.threadBusy();
+        try {
+          readError = false;
+          responseClosed = false;
+          URLConnection connection = null;
+          try {
+            URL url = new URL(locs.get(0).getOutputLocation(),
+                              "/mapOutput?job=" + 
+                              locs.get(0).getTaskAttemptId().getJobID() +
+                              "&map=" + mapIds + 
+                              "&reduce=" + getPartition());
+            connection = url.openConnection();
+            input = setupSecureConnection(locs.get(0), connection);
+          } catch (IOException e) {
+            // blame the map whose output the tasktracker could not serve
+            String failedMapId = connection == null ? null : 
+              connection.getHeaderField(FROM_MAP_TASK);
+            MapOutputLocation failed = locs.get(0);
+            for (MapOutputLocation loc : locs) {
+              if (loc.getTaskAttemptId().toString().equals(failedMapId)) {
+                failed = loc;
+              }
+            }
+            LOG.warn(reduceTask.getTaskID() + " copy failed: " +
+                     failed.getTaskAttemptId() + " from " + failed.getHost());
+            LOG.warn(StringUtils.stringifyException(e));
+            shuffleClientMetrics.failedFetch();
+            start(failed);
+            finish(-1, readError ? CopyOutputErrorType.READ_ERROR
+                                 : CopyOutputErrorType.OTHER_ERROR);
+            for (MapOutputLocation loc : locs) {
+              if (loc != failed) {
+                start(loc);
+                finish(CopyResult.UNFETCHED, CopyOutputErrorType.NO_ERROR);
+              }
+            }
+            return;
+          }
+          
+          DataInputStream in = new DataInputStream(input);
+          for (int i = 0; i < locs.size(); ++i) {
+            MapOutputLocation loc = locs.get(i);
+            long size = -1;
+            CopyOutputErrorType error = CopyOutputErrorType.OTHER_ERROR;
+            try {
+              start(loc);
+              size = copyOutput(loc, in);
+              shuffleClientMetrics.successFetch();
+              error = CopyOutputErrorType.NO_ERROR;
+            } catch (IOException e) {
+              LOG.warn(reduceTask.getTaskID() + " copy failed: " +
+                       loc.getTaskAttemptId() + " from " + loc.getHost());
+              LOG.warn(StringUtils.stringifyException(e));
+              shuffleClientMetrics.failedFetch();
+              if (readError) {
+                error = CopyOutputErrorType.READ_ERROR;
+              }
+              // Reset 
+              size = -1;
+            } finally {
+              finish(size, error);
+            }
+            
+            if (size == -1 || responseClosed) {
+              // the response is unusable or was closed, leave the rest
+              // of the batch for later
+              for (int j = i + 1; j < locs.size(); ++j) {
+                start(locs.get(j));
+                finish(CopyResult.UNFETCHED, CopyOutputErrorType.NO_ERROR);
+              }
+              break;
+            }
+          }
+          
+          // read to the end of the response so that the connection can be
+          // kept alive for the next batch
+          if (!responseClosed && in.read() != -1) {
+            LOG.warn("Unexpected data after the map outputs of " + mapIds +
+                     " from " + locs.get(0).getHost());
+          }
+        } catch (IOException ie) {
+          LOG.info("Failed to finish the response for " + mapIds + 
+                   " from " + locs.get(0).getHost(), ie);
+        } finally {
+          IOUtils.cleanup(LOG, input);
+          shuffleClientMetrics.threadFree();
+        }
+      }
+      
+      /**
+       * Copies the next map output from the response to a batched fetch.
+       * If the copier has to wait for memory to hold the map output, the
+       * response is closed and the output is fetched on its own.
+       * @param loc the map output location to be copied
+       * @param input the response, positioned at the ShuffleHeader of the
+       *              map output
+       * @return the size of the copied map output
+       * @throws IOException if there is an error copying the map output
+       * @throws InterruptedException if the copier should give up
+       */
+      private long copyOutput(MapOutputLocation loc, DataInputStream input
+                              ) throws IOException, InterruptedException {
+        ShuffleHeader header = new ShuffleHeader();
+        try {
+          header.readFields(input);
+        } catch (IOException ioe) {
+          readError = true;
+          throw ioe;
+        }
+        int reduce = reduceTask.getTaskID().getTaskID().getId();
+        if (!loc.getTaskAttemptId().toString().equals(header.mapId) ||
+            header.forReduce != reduce ||
+            header.compressedLength < 0 || header.uncompressedLength < 0) {
+          throw new IOException("Invalid map output header from " +
+              loc.getHost() + ": id: " + header.mapId + " for reduce " +
+              header.forReduce + ", compressed len: " +
+              header.compressedLength + ", decompressed len: " +
+              header.uncompressedLength + ", expected map output of " +
+              loc.getTaskAttemptId() + " for reduce " + reduce);
+        }
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("header: " + header.mapId + ", compressed len: " + 
+              header.compressedLength + ", decompressed len: " + 
+              header.uncompressedLength);
+        }
+        
+        Path filename =
+            new Path(String.format(
+                MapOutputFile.REDUCE_INPUT_FILE_FORMAT_STRING,
+                TaskTracker.OUTPUT, loc.getTaskId().getId()));
+        Path tmpMapOutput = new Path(filename+"-"+id);
+        InputStream segment = 
+          new SegmentInputStream(input, header.compressedLength);
+        
+        MapOutput mapOutput = null;
+        if (ramManager.canFitInMemory(header.uncompressedLength)) {
+          int mapOutputLength = (int)header.uncompressedLength;
+          if (!ramManager.reserve(mapOutputLength, input)) {
+            // the response was closed while waiting for memory
+            responseClosed = true;
+            segment = reopenConnection(loc, mapOutputLength);
+          }
+          mapOutput = shuffleInMemory(loc, segment, mapOutputLength,
+                                      (int)header.compressedLength);
+        } else {
+          mapOutput = shuffleToDisk(loc, segment, tmpMapOutput, 
+                                    header.compressedLength);
+        }
+        
+        return commitMapOutput(loc, mapOutput, filename);
+      }
+      
+      /**
+       * Adds a copied map output to the outputs to be merged, or discards
+       * it if the output of the map has already been copied.
+       * @return the size of the map output, or {@link CopyResult#OBSOLETE}
+       */
+      private long commitMapOutput(MapOutputLocation loc, MapOutput mapOutput,
+                                   Path filename) throws IOException {
         // The size of the map-output
         long bytes = mapOutput.compressedSize;
         
@@ -1359,7 +1485,7 @@ class ReduceTask extends Task {
           } else {
             // Rename the temporary file to the final file; 
             // ensure it is on the same partition
-            tmpMapOutput = mapOutput.file;
+            Path tmpMapOutput = mapOutput.file;
             filename = new Path(tmpMapOutput.getParent(), filename.getName());
             if (!localFileSys.rename(tmpMapOutput, filename)) {
               localFileSys.delete(tmpMapOutput, true);
@@ -1471,7 +1597,16 @@ class ReduceTask extends Task {
                 "into RAM from " + mapOutputLoc.getTaskAttemptId());
           }
 
-          mapOutput = shuffleInMemory(mapOutputLoc, connection, input,
+          // Reserve ram for the map-output
+          boolean createdNow = 
+            ramManager.reserve((int)decompressedLength, input);
+          
+          // Reconnect if we need to
+          if (!createdNow) {
+            input = reopenConnection(mapOutputLoc, (int)decompressedLength);
+          }
+          
+          mapOutput = shuffleInMemory(mapOutputLoc, input,
                                       (int)decompressedLength,
                                       (int)compressedLength);
         } else {
@@ -1572,33 +1707,37 @@ class ReduceTask extends Task {
         }
       }
 
+      /**
+       * Reconnects to fetch a map output whose connection was closed while
+       * waiting for memory to be reserved for it.
+       */
+      private InputStream reopenConnection(MapOutputLocation mapOutputLoc,
+                                           int mapOutputLength)
+      throws IOException {
+        try {
+          URLConnection connection = 
+            mapOutputLoc.getOutputLocation().openConnection();
+          return setupSecureConnection(mapOutputLoc, connection);
+        } catch (IOException ioe) {
+          LOG.info("Failed reopen connection to fetch map-output from " + 
+                   mapOutputLoc.getHost());
+          
+          // Inform the ram-manager
+          ramManager.closeInMemoryFile(mapOutputLength);
+          ramManager.unreserve(mapOutputLength);
+          
+          throw ioe;
+        }
+      }
+
+      /**
+       * Copies a map output into memory that has been reserved for it.
+       */
       private MapOutput shuffleInMemory(MapOutputLocation mapOutputLoc,
-                                        URLConnection connection, 
                                         InputStream input,
                                         int mapOutputLength,
                                         int compressedLength)
-      throws IOException, InterruptedException {
-        // Reserve ram for the map-output
-        boolean createdNow = ramManager.reserve(mapOutputLength, input);
-      
-        // Reconnect if we need to
-        if (!createdNow) {
-          // Reconnect
-          try {
-            connection = mapOutputLoc.getOutputLocation().openConnection();
-            input = setupSecureConnection(mapOutputLoc, connection);
-          } catch (IOException ioe) {
-            LOG.info("Failed reopen connection to fetch map-output from " + 
-                     mapOutputLoc.getHost());
-            
-            // Inform the ram-manager
-            ramManager.closeInMemoryFile(mapOutputLength);
-            ramManager.unreserve(mapOutputLength);
-            
-            throw ioe;
-          }
-        }
-
+      throws IOException {
         IFileInputStream checksumIn = 
           new IFileInputStream(input,compressedLength);
 
@@ -1611,14 +1750,15 @@ class ReduceTask extends Task {
         }
       
         // Copy map-output into an in-memory buffer
-        byte[] shuffleData = new byte[mapOutputLength];
+        byte[] shuffleData = ramManager.allocate(mapOutputLength);
         MapOutput mapOutput = 
           new MapOutput(mapOutputLoc.getTaskId(), 
-                        mapOutputLoc.getTaskAttemptId(), shuffleData, compressedLength);
+                        mapOutputLoc.getTaskAttemptId(), shuffleData,
+                        mapOutputLength, compressedLength);
         
         int bytesRead = 0;
         try {
-          int n = input.read(shuffleData, 0, shuffleData.length);
+          int n = input.read(shuffleData, 0, mapOutputLength);
           while (n > 0) {
             bytesRead += n;
             shuffleClientMetrics.inputBytes(n);
@@ -1626,7 +1766,7 @@ class ReduceTask extends Task {
             // indicate we're making progress
             reporter.progress();
             n = input.read(shuffleData, bytesRead, 
-                           (shuffleData.length-bytesRead));
+                           (mapOutputLength-bytesRead));
           }
 
           if (LOG.isDebugEnabled()) {
@@ -1641,7 +1781,7 @@ class ReduceTask extends Task {
 
           // Inform the ram-manager
           ramManager.closeInMemoryFile(mapOutputLength);
-          ramManager.unreserve(mapOutputLength);
+          ramManager.unreserve(mapOutputLength, shuffleData);
           
           // Discard the map-output
           try {
@@ -1666,7 +1806,7 @@ class ReduceTask extends Task {
         // Sanity check
         if (bytesRead != mapOutputLength) {
           // Inform the ram-manager
-          ramManager.unreserve(mapOutputLength);
+          ramManager.unreserve(mapOutputLength, shuffleData);
           
           // Discard the map-output
           try {
@@ -1690,7 +1830,7 @@ class ReduceTask extends Task {
         if (LOG.isDebugEnabled()) {
           if (mapOutputLength > 0) {
             DataInputBuffer dib = new DataInputBuffer();
-            dib.reset(shuffleData, 0, shuffleData.length);
+            dib.reset(shuffleData, 0, mapOutputLength);
             LOG.debug("Rec #1 from " + mapOutputLoc.getTaskAttemptId() + 
                 " -> (" + WritableUtils.readVInt(dib) + ", " + 
                 WritableUtils.readVInt(dib) + ") from " + 
@@ -1846,10 +1986,13 @@ class ReduceTask extends Task {
       this.umbilical = umbilical;      
       this.reduceTask = ReduceTask.this;
 
-      this.scheduledCopies = new ArrayList<MapOutputLocation>(100);
+      this.scheduledCopies = new ArrayList<List<MapOutputLocation>>(100);
       this.copyResults = new ArrayList<CopyResult>(100);    
       this.numCopiers = conf.getInt("mapred.reduce.parallel.copies", 5);
       this.maxInFlight = 4 * numCopiers;
+      this.shuffleServerPort = conf.getInt(NioShuffleServer.PORT_KEY, 0);
+      this.fetchBatchSize = Math.max(1,
+          conf.getInt("mapred.reduce.shuffle.fetch.batch.size", 1));
       Counters.Counter combineInputCounter = 
         reporter.getCounter(Task.Counter.COMBINE_INPUT_RECORDS);
       this.combinerRunner = CombinerRunner.create(conf, getTaskID(),
@@ -1869,9 +2012,6 @@ class ReduceTask extends Task {
 
       this.maxFailedUniqueFetches = Math.min(numMaps, 
                                              this.maxFailedUniqueFetches);
-      this.maxInMemOutputs = conf.getInt("mapred.inmem.merge.threshold", 1000);
-      this.maxInMemCopyPer =
-        conf.getFloat("mapred.job.shuffle.merge.percent", 0.66f);
       final float maxRedPer =
         conf.getFloat("mapred.job.reduce.input.buffer.percent", 0f);
       if (maxRedPer > 1.0 || maxRedPer < 0.0) {
@@ -1891,8 +2031,8 @@ class ReduceTask extends Task {
       // hosts -> next contact time
       this.penaltyBox = new LinkedHashMap<String, Long>();
       
-      // hostnames
-      this.uniqueHosts = new HashSet<String>();
+      // hosts -> number of outputs being copied
+      this.hostCopiesInFlight = new HashMap<String, Integer>();
       
       // Seed the random number generator with a reasonably globally unique seed
       long randomSeed = System.nanoTime() + 
@@ -2032,7 +2172,7 @@ class ReduceTask extends Task {
               }
               
               //Identify duplicate hosts here
-              if (uniqueHosts.contains(host)) {
+              if (hostCopiesInFlight.containsKey(host)) {
                  numDups += knownOutputsByLoc.size(); 
                  continue;
               }
@@ -2054,8 +2194,10 @@ class ReduceTask extends Task {
               synchronized (knownOutputsByLoc) {
               
                 locItr = knownOutputsByLoc.iterator();
+                List<MapOutputLocation> batch = 
+                  new ArrayList<MapOutputLocation>(fetchBatchSize);
             
-                while (locItr.hasNext()) {
+                while (locItr.hasNext() && batch.size() < fetchBatchSize) {
               
                   MapOutputLocation loc = locItr.next();
               
@@ -2065,12 +2207,15 @@ class ReduceTask extends Task {
                     continue;
                   }
 
-                  uniqueHosts.add(host);
-                  scheduledCopies.add(loc);
+                  batch.add(loc);
                   locItr.remove();  // remove from knownOutputs
                   numInFlight++; numScheduled++;
-
-                  break; //we have a map from this host
+                }
+                
+                // we have maps from this host
+                if (!batch.isEmpty()) {
+                  hostCopiesInFlight.put(host, batch.size());
+                  scheduledCopies.add(batch);
                 }
               }
             }
@@ -2138,6 +2283,9 @@ class ReduceTask extends Task {
               // Note successful fetch for this mapId to invalidate
               // (possibly) old fetch-failures
               fetchFailedMaps.remove(cr.getLocation().getTaskId());
+            } else if (cr.isUnfetched()) {
+              // try again, this map output did not fail
+              retryFetches.add(cr.getLocation());
             } else if (cr.isObsolete()) {
               //ignore
               LOG.info(reduceTask.getTaskID() + 
@@ -2230,7 +2378,12 @@ class ReduceTask extends Task {
                        cr.getHost() + " to penalty box, next contact in " +
                        (currentBackOff/1000) + " seconds");
             }
-            uniqueHosts.remove(cr.getHost());
+            int hostCopies = hostCopiesInFlight.get(cr.getHost()) - 1;
+            if (hostCopies == 0) {
+              hostCopiesInFlight.remove(cr.getHost());
+            } else {
+              hostCopiesInFlight.put(cr.getHost(), hostCopies);
+            }
             numInFlight--;
           }
         }
@@ -2317,15 +2470,15 @@ class ReduceTask extends Task {
         // closed but not yet present in mapOutputsFilesInMemory
         long fullSize = 0L;
         for (MapOutput mo : mapOutputsFilesInMemory) {
-          fullSize += mo.data.length;
+          fullSize += mo.length;
         }
         while(fullSize > leaveBytes) {
           MapOutput mo = mapOutputsFilesInMemory.remove(0);
-          totalSize += mo.data.length;
-          fullSize -= mo.data.length;
+          totalSize += mo.length;
+          fullSize -= mo.length;
           Reader<K, V> reader = 
             new InMemoryReader<K, V>(ramManager, mo.mapAttemptId,
-                                     mo.data, 0, mo.data.length);
+                                     mo.data, 0, mo.length);
           Segment<K, V> segment = 
             new Segment<K, V>(reader, true);
           inMemorySegments.add(segment);
@@ -2830,7 +2983,10 @@ class ReduceTask extends Task {
               URI u = URI.create(event.getTaskTrackerHttp());
               String host = u.getHost();
               TaskAttemptID taskId = event.getTaskAttemptId();
-              URL mapOutputLocation = new URL(event.getTaskTrackerHttp() + 
+              String server = shuffleServerPort > 0
+                ? "http://" + host + ":" + shuffleServerPort
+                : event.getTaskTrackerHttp();
+              URL mapOutputLocation = new URL(server + 
                                       "/mapOutput?job=" + taskId.getJobID() +
                                       "&map=" + taskId + 
                                       "&reduce=" + getPartition());
@@ -0,0 +1,136 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of the buffers that map outputs are shuffled into. Buffer sizes
+ * are rounded up to a slab size, at most an eighth more than the size
+ * asked for, so that a buffer freed by a merge can be reused for another
+ * map output of about the same size instead of being left to the garbage
+ * collector. Small buffers are not pooled.
+ *
+ * The pool does not limit the memory it holds; the caller decides when
+ * to {@link #trim(long)} it.
+ */
+class ShuffleBufferPool {
+
+  /** Buffers of up to this size are neither rounded up nor pooled */
+  static final int MAX_UNPOOLED_SIZE = 4096;
+
+  /** Buffers larger than this are not rounded up, so that sizes fit an int */
+  static final int MAX_POOLED_SIZE = 1 << 30;
+
+  private final ConcurrentHashMap<Integer, Queue<byte[]>> slabs =
+    new ConcurrentHashMap<Integer, Queue<byte[]>>();
+  private final AtomicLong pooledBytes = new AtomicLong();
+  private volatile boolean closed = false;
+
+  /**
+   * Get the size of the buffer that holds the given number of bytes.
+   */
+  static int getSlabSize(int size) {
+    if (size <= MAX_UNPOOLED_SIZE || size > MAX_POOLED_SIZE) {
+      return size;
+    }
+    // eight slab sizes between consecutive powers of two
+    final int shift = 28 - Integer.numberOfLeadingZeros(size - 1);
+    return (((size - 1) >>> shift) + 1) << shift;
+  }
+
+  private static boolean isPooled(int slabSize) {
+    return slabSize > MAX_UNPOOLED_SIZE && slabSize <= MAX_POOLED_SIZE;
+  }
+
+  /**
+   * Get a buffer of at least the given size, reusing a pooled one if there
+   * is one of the right slab size.
+   */
+  byte[] allocate(int size) {
+    final int slabSize = getSlabSize(size);
+    if (isPooled(slabSize)) {
+      Queue<byte[]> slab = slabs.get(slabSize);
+      byte[] buffer = slab == null ? null : slab.poll();
+      if (buffer != null) {
+        pooledBytes.addAndGet(-slabSize);
+        return buffer;
+      }
+    }
+    return new byte[slabSize];
+  }
+
+  /**
+   * Return a buffer that is no longer used to the pool.
+   */
+  void release(byte[] buffer) {
+    final int slabSize = buffer.length;
+    if (closed || !isPooled(slabSize) || getSlabSize(slabSize) != slabSize) {
+      return;
+    }
+    Queue<byte[]> slab = slabs.get(slabSize);
+    if (slab == null) {
+      slabs.putIfAbsent(slabSize, new ConcurrentLinkedQueue<byte[]>());
+      slab = slabs.get(slabSize);
+    }
+    slab.offer(buffer);
+    pooledBytes.addAndGet(slabSize);
+    if (closed) {
+      // close() may have emptied the pool before the buffer was added
+      trim(Long.MAX_VALUE);
+    }
+  }
+
+  /**
+   * Drop pooled buffers until at least the given number of bytes has been
+   * dropped or the pool is empty.
+   * @return the number of bytes dropped
+   */
+  long trim(long bytes) {
+    long dropped = 0;
+    Iterator<Queue<byte[]>> i = slabs.values().iterator();
+    while (dropped < bytes && i.hasNext()) {
+      Queue<byte[]> slab = i.next();
+      byte[] buffer;
+      while (dropped < bytes && (buffer = slab.poll()) != null) {
+        pooledBytes.addAndGet(-buffer.length);
+        dropped += buffer.length;
+      }
+    }
+    return dropped;
+  }
+
+  /**
+   * Get the number of bytes held by pooled buffers.
+   */
+  long getPooledBytes() {
+    return pooledBytes.get();
+  }
+
+  /**
+   * Drop every pooled buffer and stop pooling the buffers released later.
+   */
+  void close() {
+    closed = true;
+    trim(Long.MAX_VALUE);
+  }
+}
@@ -0,0 +1,300 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Manages the memory that a reduce shuffles map outputs into, and decides
+ * when the map outputs in memory should be merged.
+ *
+ * Reservations are charged the length of the map output. The buffer that
+ * holds it may be rounded up to a slab size of the {@link ShuffleBufferPool};
+ * that slack is charged separately, and together with the pooled buffers it
+ * only takes memory that no reservation holds.
+ */
+class ShuffleRamManager implements RamManager {
+
+  private static final Log LOG = LogFactory.getLog(ShuffleRamManager.class);
+
+  /* Maximum percentage of the in-memory limit that a single shuffle can 
+   * consume*/ 
+  private static final float MAX_SINGLE_SHUFFLE_SEGMENT_FRACTION = 0.25f;
+  
+  private final long maxSize;
+  private final long maxSingleShuffleLimit;
+  
+  /**
+   * When we accumulate maxInMemOutputs number of files in ram, we merge/spill
+   */
+  private final int maxInMemOutputs;
+
+  /**
+   * Usage threshold for in-memory output accumulation.
+   */
+  private final float maxInMemCopyPer;
+
+  /* Memory reserved for map outputs. It is updated without a lock; only a
+   * reservation that does not fit waits. */
+  private final AtomicLong size = new AtomicLong();
+  /* Bytes by which the buffers in use are longer than their map outputs */
+  private final AtomicLong slack = new AtomicLong();
+  private final ShuffleBufferPool bufferPool = new ShuffleBufferPool();
+  private final Object memoryAvailable = new Object();
+  private final AtomicInteger numWaiting = new AtomicInteger();
+  
+  private Object dataAvailable = new Object();
+  private final AtomicLong fullSize = new AtomicLong();
+  private final AtomicInteger numClosed = new AtomicInteger();
+  private int numPendingRequests = 0;
+  private int numRequiredMapOutputs = 0;
+  private boolean closed = false;
+  
+  public ShuffleRamManager(Configuration conf) throws IOException {
+    final float maxInMemCopyUse =
+      conf.getFloat("mapred.job.shuffle.input.buffer.percent", 0.70f);
+    if (maxInMemCopyUse > 1.0 || maxInMemCopyUse < 0.0) {
+      throw new IOException("mapred.job.shuffle.input.buffer.percent" +
+                            maxInMemCopyUse);
+    }
+    // Allow unit tests to fix Runtime memory
+    maxSize = (int)(conf.getInt("mapred.job.reduce.total.mem.bytes",
+        (int)Math.min(Runtime.getRuntime().maxMemory(), Integer.MAX_VALUE))
+      * maxInMemCopyUse);
+    maxSingleShuffleLimit = (long)(maxSize * MAX_SINGLE_SHUFFLE_SEGMENT_FRACTION);
+    maxInMemOutputs = conf.getInt("mapred.inmem.merge.threshold", 1000);
+    maxInMemCopyPer =
+      conf.getFloat("mapred.job.shuffle.merge.percent", 0.66f);
+    LOG.info("ShuffleRamManager: MemoryLimit=" + maxSize + 
+             ", MaxSingleShuffleLimit=" + maxSingleShuffleLimit);
+  }
+  
+  public boolean reserve(int requestedSize, InputStream in) 
+  throws InterruptedException {
+    if (tryReserve(requestedSize)) {
+      return (in != null);
+    }
+    
+    // Close the input...
+    if (in != null) {
+      try {
+        in.close();
+      } catch (IOException ie) {
+        LOG.info("Failed to close connection with: " + ie);
+      } finally {
+        in = null;
+      }
+    } 
+
+    // Track pending requests
+    synchronized (dataAvailable) {
+      ++numPendingRequests;
+      dataAvailable.notify();
+    }
+    
+    // Wait for memory to free up
+    try {
+      synchronized (memoryAvailable) {
+        numWaiting.incrementAndGet();
+        try {
+          while (!tryReserve(requestedSize)) {
+            memoryAvailable.wait();
+          }
+        } finally {
+          numWaiting.decrementAndGet();
+        }
+      }
+    } finally {
+      // Track pending requests
+      synchronized (dataAvailable) {
+        --numPendingRequests;
+      }
+    }
+    
+    return false;
+  }
+  
+  private boolean tryReserve(int requestedSize) {
+    long reserved;
+    do {
+      reserved = size.get();
+      if (reserved + slack.get() + requestedSize > maxSize) {
+        return false;
+      }
+    } while (!size.compareAndSet(reserved, reserved + requestedSize));
+    trimPool();
+    return true;
+  }
+
+  /**
+   * Drop the pooled buffers that take memory reserved or charged since
+   * they were pooled.
+   */
+  private void trimPool() {
+    final long excess = size.get() + slack.get() +
+                        bufferPool.getPooledBytes() - maxSize;
+    if (excess > 0) {
+      bufferPool.trim(excess);
+    }
+  }
+  
+  /**
+   * Get a buffer for a map output that memory has been reserved for. The
+   * buffer is rounded up to a slab size, so that it can be pooled, if
+   * the slack fits in the memory left; otherwise it has the exact size.
+   */
+  public byte[] allocate(int requestedSize) {
+    final int extra =
+      ShuffleBufferPool.getSlabSize(requestedSize) - requestedSize;
+    if (extra > 0) {
+      long charged;
+      do {
+        charged = slack.get();
+        if (size.get() + charged + extra > maxSize) {
+          return new byte[requestedSize];
+        }
+      } while (!slack.compareAndSet(charged, charged + extra));
+    }
+    byte[] buffer = bufferPool.allocate(requestedSize);
+    trimPool();
+    return buffer;
+  }
+  
+  public void unreserve(int requestedSize) {
+    unreserve(requestedSize, null);
+  }
+  
+  public void unreserve(int requestedSize, byte[] buffer) {
+    fullSize.addAndGet(-requestedSize);
+    numClosed.decrementAndGet();
+    size.addAndGet(-requestedSize);
+    if (buffer != null) {
+      slack.addAndGet(requestedSize - buffer.length);
+      // Pool the buffer only in memory that nothing else holds
+      if (size.get() + slack.get() + bufferPool.getPooledBytes() +
+          buffer.length <= maxSize) {
+        bufferPool.release(buffer);
+      }
+    }
+    
+    // Notify the threads blocked on RamManager.reserve
+    if (numWaiting.get() > 0) {
+      synchronized (memoryAvailable) {
+        memoryAvailable.notifyAll();
+      }
+    }
+  }
+  
+  public boolean waitForDataToMerge() throws InterruptedException {
+    boolean done = false;
+    synchronized (dataAvailable) {
+             // Start in-memory merge if manager has been closed or...
+      while (!closed
+             &&
+             // In-memory threshold exceeded and at least two segments
+             // have been fetched
+             (getPercentUsed() < maxInMemCopyPer || numClosed.get() < 2)
+             &&
+             // More than "mapred.inmem.merge.threshold" map outputs
+             // have been fetched into memory
+             (maxInMemOutputs <= 0 || numClosed.get() < maxInMemOutputs)
+             && 
+             // Threads are blocked on the RamManager and the copies in
+             // progress hold no more memory than is left free, so
+             // waiting for them would add little to the merge; or the
+             // blocked threads are the last map outputs to be
+             // fetched. If numRequiredMapOutputs is zero, either
+             // setNumCopiedMapOutputs has not been called (no map ouputs
+             // have been fetched, so there is nothing to merge) or the
+             // last map outputs being transferred without
+             // contention, so a merge would be premature.
+             (!isMemoryExhausted() && 
+              (0 == numRequiredMapOutputs ||
+               numPendingRequests < numRequiredMapOutputs))) {
+        dataAvailable.wait();
+      }
+      done = closed;
+    }
+    return done;
+  }
+  
+  private boolean isMemoryExhausted() {
+    if (numPendingRequests == 0 || numClosed.get() == 0) {
+      return false;
+    }
+    final long reserved = size.get();
+    return reserved - fullSize.get() <= maxSize - reserved;
+  }
+  
+  public void closeInMemoryFile(int requestedSize) {
+    fullSize.addAndGet(requestedSize);
+    numClosed.incrementAndGet();
+    synchronized (dataAvailable) {
+      dataAvailable.notify();
+    }
+  }
+  
+  public void setNumCopiedMapOutputs(int numRequiredMapOutputs) {
+    synchronized (dataAvailable) {
+      this.numRequiredMapOutputs = numRequiredMapOutputs;
+      dataAvailable.notify();
+    }
+  }
+  
+  public void close() {
+    // Buffers freed from now on would only take memory from the reduce
+    bufferPool.close();
+    synchronized (dataAvailable) {
+      closed = true;
+      LOG.info("Closed ram manager");
+      dataAvailable.notify();
+    }
+  }
+  
+  private float getPercentUsed() {
+    return (float)fullSize.get()/maxSize;
+  }
+
+  boolean canFitInMemory(long requestedSize) {
+    return (requestedSize < Integer.MAX_VALUE && 
+            requestedSize < maxSingleShuffleLimit);
+  }
+
+  /** The bytes reserved for map outputs. */
+  long getReservedBytes() {
+    return size.get();
+  }
+
+  /** The bytes by which the buffers in use are longer than their data. */
+  long getSlackBytes() {
+    return slack.get();
+  }
+
+  /** The bytes held by pooled buffers. */
+  long getPooledBytes() {
+    return bufferPool.getPooledBytes();
+  }
+}
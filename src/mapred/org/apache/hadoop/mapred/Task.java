@@ -87,7 +87,10 @@ abstract public class Task implements Writable, Configurable {
     CPU_MILLISECONDS,
     PHYSICAL_MEMORY_BYTES,
     VIRTUAL_MEMORY_BYTES,
-    COMMITTED_HEAP_BYTES
+    COMMITTED_HEAP_BYTES,
+    MAP_SORT_MILLISECONDS,
+    MAP_AGGREGATE_INPUT_RECORDS,
+    MAP_AGGREGATE_OUTPUT_RECORDS
   }
   
   /**
@@ -17,6 +17,7 @@
  */
 package org.apache.hadoop.mapred;
 
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -306,6 +307,8 @@ public class TaskTracker implements MRConstants, TaskUmbilicalProtocol,
   FileSystem systemFS = null;
   private LocalFileSystem localFs = null;
   private final HttpServer server;
+  /** Serves map outputs instead of the servlet, or null if not enabled */
+  private NioShuffleServer nioShuffleServer;
     
   volatile boolean shuttingDown = false;
     
@@ -376,9 +379,9 @@ public class TaskTracker implements MRConstants, TaskUmbilicalProtocol,
   static final String TT_OUTOFBAND_HEARBEAT =
     "mapreduce.tasktracker.outofband.heartbeat";
   private volatile boolean oobHeartbeatOnTaskCompletion;
-  private boolean manageOsCacheInShuffle = false;
-  private int readaheadLength;
-  private ReadaheadPool readaheadPool = ReadaheadPool.getInstance();
+  boolean manageOsCacheInShuffle = false;
+  int readaheadLength;
+  ReadaheadPool readaheadPool = ReadaheadPool.getInstance();
 
   // Track number of completed tasks to send an out-of-band heartbeat
   private IntWritable finishedCount = new IntWritable(0);
@@ -1469,6 +1472,10 @@ public class TaskTracker implements MRConstants, TaskUmbilicalProtocol,
   public synchronized void shutdown() throws IOException, InterruptedException {
     shuttingDown = true;
     close();
+    if (nioShuffleServer != null) {
+      LOG.info("Shutting down NioShuffleServer");
+      nioShuffleServer.stop();
+    }
     if (this.server != null) {
       try {
         LOG.info("Shutting down StatusHttpServer");
@@ -1648,6 +1655,12 @@ public class TaskTracker implements MRConstants, TaskUmbilicalProtocol,
     server.start();
     this.httpPort = server.getPort();
     checkJettyPort(httpPort);
+    int shuffleServerPort = conf.getInt(NioShuffleServer.PORT_KEY, 0);
+    if (shuffleServerPort > 0) {
+      nioShuffleServer = new NioShuffleServer(this, fConf, localDirAllocator,
+          httpBindAddress, shuffleServerPort);
+      nioShuffleServer.start();
+    }
     LOG.info("FILE_CACHE_SIZE for mapOutputServlet set to : " + FILE_CACHE_SIZE);
     mapRetainSize = conf.getLong(TaskLogsTruncater.MAP_USERLOG_RETAIN_SIZE, 
         TaskLogsTruncater.DEFAULT_RETAIN_SIZE);
@@ -1926,6 +1939,10 @@ public class TaskTracker implements MRConstants, TaskUmbilicalProtocol,
     this.indexCache = cache;
   }
 
+  IndexCache getIndexCache() {
+    return indexCache;
+  }
+
   /**
    * Build and transmit the heart beat to the JobTracker
    * @param now current time
@@ -3788,7 +3805,7 @@ public class TaskTracker implements MRConstants, TaskUmbilicalProtocol,
    */
   static class RunningJob{
     private JobID jobid; 
-    private JobConf jobConf;
+    JobConf jobConf;
     private Path localizedJobConf;
     // keep this for later use
     volatile Set<TaskInProgress> tasks;
@@ -4018,6 +4035,12 @@ public class TaskTracker implements MRConstants, TaskUmbilicalProtocol,
 
       verifyRequest(request, response, tracker, jobId);
 
+      String[] mapIds = mapId.split(ShuffleHeader.MAP_ID_SEPARATOR);
+      if (mapIds.length > 1) {
+        sendMapOutputs(request, response, tracker, jobId, mapIds, reduce);
+        return;
+      }
+
       long startTime = 0;
       try {
         shuffleMetrics.serverHandlerBusy();
@@ -4175,6 +4198,165 @@ public class TaskTracker implements MRConstants, TaskUmbilicalProtocol,
       shuffleMetrics.successOutput();
     }
     
+    /**
+     * Send the outputs of several maps for a reduce in one response, each
+     * preceded by its {@link ShuffleHeader}. The outputs are all located
+     * before the response starts, so that a lost one is reported to the
+     * reduce with an error.
+     */
+    private void sendMapOutputs(HttpServletRequest request,
+                                HttpServletResponse response,
+                                TaskTracker tracker, String jobId,
+                                String[] mapIds, int reduce
+                                ) throws IOException {
+      ServletContext context = getServletContext();
+      ShuffleServerMetrics shuffleMetrics =
+        (ShuffleServerMetrics) context.getAttribute("shuffleServerMetrics");
+      JobConf conf = (JobConf) context.getAttribute("conf");
+      LocalDirAllocator lDirAlloc =
+        (LocalDirAllocator)context.getAttribute("localDirAllocator");
+      byte[] buffer = new byte[MAX_BYTES_TO_READ];
+      // true iff IOException was caused by attempt to access input
+      boolean isInputException = true;
+      String mapId = mapIds[0];
+      FileInputStream mapOutputIn = null;
+
+      shuffleMetrics.serverHandlerBusy();
+      try {
+        String userName = null;
+        String runAsUserName = null;
+        synchronized (tracker.runningJobs) {
+          RunningJob rjob = tracker.runningJobs.get(JobID.forName(jobId));
+          if (rjob == null) {
+            throw new IOException("Unknown job " + jobId + "!!");
+          }
+          userName = rjob.jobConf.getUser();
+          runAsUserName =
+            tracker.getTaskController().getRunAsUser(rjob.jobConf);
+        }
+        IndexRecord[] infos = new IndexRecord[mapIds.length];
+        String[] filePaths = new String[mapIds.length];
+        for (int i = 0; i < mapIds.length; i++) {
+          mapId = mapIds[i];
+          String intermediateOutputDir =
+            TaskTracker.getIntermediateOutputDir(userName, jobId, mapId);
+          Path indexFileName = getLocalPath(fileIndexCache,
+              intermediateOutputDir + "/file.out.index", lDirAlloc, conf);
+          filePaths[i] = getLocalPath(fileCache,
+              intermediateOutputDir + "/file.out", lDirAlloc, conf)
+              .toUri().getPath();
+          infos[i] = tracker.indexCache.getIndexInformation(mapId, reduce,
+              indexFileName, runAsUserName);
+        }
+
+        response.setContentType("application/octet-stream");
+        response.setBufferSize(MAX_BYTES_TO_READ);
+        DataOutputStream outStream =
+          new DataOutputStream(response.getOutputStream());
+        for (int i = 0; i < mapIds.length; i++) {
+          mapId = mapIds[i];
+          IndexRecord info = infos[i];
+          long startTime = System.nanoTime();
+          mapOutputIn = SecureIOUtils.openForRead(
+              new File(filePaths[i]), runAsUserName);
+          ShuffleHeader header = new ShuffleHeader(mapId, info.partLength,
+              info.rawLength, reduce);
+          try {
+            header.write(outStream);
+          } catch (IOException ie) {
+            isInputException = false;
+            throw ie;
+          }
+
+          ReadaheadRequest curReadahead = null;
+          mapOutputIn.skip(info.startOffset);
+          long rem = info.partLength;
+          long offset = info.startOffset;
+          while (rem > 0) {
+            if (tracker.manageOsCacheInShuffle &&
+                tracker.readaheadPool != null) {
+              curReadahead = tracker.readaheadPool.readaheadStream(
+                  filePaths[i], mapOutputIn.getFD(), offset,
+                  tracker.readaheadLength, info.startOffset + info.partLength,
+                  curReadahead);
+            }
+            int len = mapOutputIn.read(buffer, 0,
+                                       (int)Math.min(rem, MAX_BYTES_TO_READ));
+            if (len < 0) {
+              throw new IOException("EOF in " + filePaths[i] + " at " +
+                                    offset + ", segment for reduce " +
+                                    reduce + " ends at " +
+                                    (info.startOffset + info.partLength));
+            }
+            rem -= len;
+            offset += len;
+            try {
+              shuffleMetrics.outputBytes(len);
+              outStream.write(buffer, 0, len);
+            } catch (IOException ie) {
+              isInputException = false;
+              throw ie;
+            }
+          }
+          if (curReadahead != null) {
+            curReadahead.cancel();
+          }
+          if (tracker.manageOsCacheInShuffle && info.partLength > 0) {
+            NativeIO.posixFadviseIfPossible(mapOutputIn.getFD(),
+                info.startOffset, info.partLength,
+                NativeIO.POSIX_FADV_DONTNEED);
+          }
+          mapOutputIn.close();
+          mapOutputIn = null;
+          shuffleMetrics.successOutput();
+          if (ClientTraceLog.isInfoEnabled()) {
+            ClientTraceLog.info(String.format(MR_CLIENTTRACE_FORMAT,
+                request.getLocalAddr() + ":" + request.getLocalPort(),
+                request.getRemoteAddr() + ":" + request.getRemotePort(),
+                info.partLength, "MAPRED_SHUFFLE", mapId,
+                System.nanoTime() - startTime));
+          }
+        }
+        outStream.close();
+      } catch (IOException ie) {
+        Log log = (Log) context.getAttribute("log");
+        String errorMsg = ("getMapOutput(" + mapId + "," + reduce +
+                           ") failed :\n"+
+                           StringUtils.stringifyException(ie));
+        log.warn(errorMsg);
+        checkException(ie,
+            (String) context.getAttribute("exceptionMsgRegex"),
+            (String) context.getAttribute("exceptionStackRegex"),
+            shuffleMetrics);
+        if (isInputException) {
+          tracker.mapOutputLost(TaskAttemptID.forName(mapId), errorMsg);
+        }
+        // once map outputs have been sent, the reduce learns about the
+        // failure from the response being cut short
+        if (!response.isCommitted()) {
+          response.setHeader(FROM_MAP_TASK, mapId);
+          response.sendError(HttpServletResponse.SC_GONE, errorMsg);
+        }
+        shuffleMetrics.failedOutput();
+        throw ie;
+      } finally {
+        if (null != mapOutputIn) {
+          mapOutputIn.close();
+        }
+        shuffleMetrics.serverHandlerFree();
+      }
+    }
+
+    private static Path getLocalPath(LRUCache<String, Path> cache, String key,
+        LocalDirAllocator lDirAlloc, JobConf conf) throws IOException {
+      Path p = cache.get(key);
+      if (p == null) {
+        p = lDirAlloc.getLocalPathToRead(key, conf);
+        cache.put(key, p);
+      }
+      return p;
+    }
+
     protected void checkException(IOException ie, String exceptionMsgRegex,
         String exceptionStackRegex, ShuffleServerMetrics shuffleMetrics) {
       // parse exception to see if it looks like a regular expression you
@@ -118,7 +118,7 @@ public class SecureShuffleUtils {
    * @param uri_query
    * @return string for encoding
    */
-  private static String buildMsgFrom(String uri_path, String uri_query, int port) {
+  public static String buildMsgFrom(String uri_path, String uri_query, int port) {
     return String.valueOf(port) + uri_path + "?" + uri_query;
   }
   
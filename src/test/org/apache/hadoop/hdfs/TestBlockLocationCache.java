@@ -0,0 +1,162 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.datanode.DataNode;
+
+/**
+ * Tests the block location cache of DFSClient.
+ */
+public class TestBlockLocationCache extends TestCase {
+
+  private static void writeFile(FileSystem fs, Path p, String contents)
+      throws IOException {
+    FSDataOutputStream out = fs.create(p, true);
+    out.writeBytes(contents);
+    out.close();
+  }
+
+  private static Configuration createConf(long ttlMillis) {
+    Configuration conf = new Configuration();
+    conf.setInt(DFSConfigKeys.DFS_CLIENT_BLOCK_LOCATION_CACHE_SIZE_KEY, 2);
+    conf.setLong(DFSConfigKeys.DFS_CLIENT_BLOCK_LOCATION_CACHE_TTL_MILLIS_KEY,
+                 ttlMillis);
+    conf.setInt("dfs.heartbeat.interval", 1);
+    return conf;
+  }
+
+  /** Repeated opens are served from the cache until it is invalidated. */
+  public void testHitsAndInvalidation() throws IOException {
+    Configuration conf = createConf(60 * 1000);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    DistributedFileSystem fs = (DistributedFileSystem)cluster.getFileSystem();
+    try {
+      BlockLocationCache cache = fs.getClient().getBlockLocationCache();
+      assertNotNull(cache);
+      Path p = new Path("/cache/a");
+      writeFile(fs, p, "first");
+
+      for (int i = 0; i < 5; i++) {
+        assertEquals("first", DFSTestUtil.readFile(fs, p));
+      }
+      assertEquals(1, cache.getMisses());
+      assertEquals(4, cache.getHits());
+
+      // changes made through this client drop the entry
+      writeFile(fs, p, "second");
+      assertEquals(1, cache.getInvalidations());
+      assertEquals("second", DFSTestUtil.readFile(fs, p));
+      assertEquals(2, cache.getMisses());
+
+      DFSTestUtil.readFile(fs, p);
+      assertEquals(1, cache.size());
+      fs.delete(new Path("/cache"), true);
+      assertEquals(0, cache.size());
+      assertEquals(2, cache.getInvalidations());
+
+      // only the two most recently opened files are kept
+      for (int i = 0; i < 3; i++) {
+        writeFile(fs, new Path("/cache/f" + i), "f" + i);
+        DFSTestUtil.readFile(fs, new Path("/cache/f" + i));
+      }
+      assertEquals(2, cache.size());
+      long misses = cache.getMisses();
+      DFSTestUtil.readFile(fs, new Path("/cache/f0"));
+      assertEquals(misses + 1, cache.getMisses());
+    } finally {
+      fs.close();
+      cluster.shutdown();
+    }
+  }
+
+  /** Entries are not served after they expire. */
+  public void testExpiry() throws Exception {
+    Configuration conf = createConf(100);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    DistributedFileSystem fs = (DistributedFileSystem)cluster.getFileSystem();
+    try {
+      BlockLocationCache cache = fs.getClient().getBlockLocationCache();
+      Path p = new Path("/expiry");
+      writeFile(fs, p, "data");
+      DFSTestUtil.readFile(fs, p);
+      DFSTestUtil.readFile(fs, p);
+      assertEquals(1, cache.getHits());
+      Thread.sleep(200);
+      DFSTestUtil.readFile(fs, p);
+      assertEquals(1, cache.getHits());
+      assertEquals(2, cache.getMisses());
+    } finally {
+      fs.close();
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * A file replaced by another client is read through stale cached
+   * locations. The failed read must drop the entry so that the next open
+   * sees the new file.
+   */
+  public void testInvalidateOnReadFailure() throws Exception {
+    Configuration conf = createConf(60 * 1000);
+    conf.setInt("dfs.client.max.block.acquire.failures", 1);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    DistributedFileSystem fs = (DistributedFileSystem)cluster.getFileSystem();
+    DFSClient other = new DFSClient(
+        cluster.getNameNode().getNameNodeAddress(), conf);
+    try {
+      BlockLocationCache cache = fs.getClient().getBlockLocationCache();
+      Path p = new Path("/replaced");
+      writeFile(fs, p, "old contents");
+      Block oldBlock = DFSTestUtil.getFirstBlock(fs, p);
+
+      other.delete(p.toString(), false);
+      OutputStream out = other.create(p.toString(), true);
+      out.write("new contents".getBytes());
+      out.close();
+
+      // wait for the datanode to remove the replica of the old file
+      DataNode dn = cluster.getDataNodes().get(0);
+      while (dn.getFSDataset().isValidBlock(oldBlock)) {
+        Thread.sleep(100);
+      }
+
+      try {
+        DFSTestUtil.readFile(fs, p);
+        fail("read through stale locations should fail");
+      } catch (IOException e) {
+        // expected
+      }
+      assertTrue(cache.getInvalidations() > 0);
+      assertEquals("new contents", DFSTestUtil.readFile(fs, p));
+    } finally {
+      other.close();
+      fs.close();
+      cluster.shutdown();
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.datanode.BlockMetadataHeader;
+import org.apache.hadoop.hdfs.server.datanode.DataNode;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.DataChecksum;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that files written with different checksum types
+ * can be read by clients configured with any type.
+ */
+public class TestChecksumType {
+  private static final int FILE_LEN = 5000; // not a multiple of 512
+
+  private Configuration conf;
+  private MiniDFSCluster cluster;
+  private final byte[] data = new byte[FILE_LEN];
+
+  @Before
+  public void setUp() throws IOException {
+    conf = new Configuration();
+    conf.setBoolean("dfs.support.broken.append", true);
+    conf.setInt("dfs.replication", 1);
+    cluster = new MiniDFSCluster(conf, 1, true, null);
+    cluster.waitActive();
+    new Random().nextBytes(data);
+  }
+
+  @After
+  public void tearDown() {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  private FileSystem getFileSystem(String checksumType) throws IOException {
+    Configuration c = new Configuration(conf);
+    c.set(DFSConfigKeys.DFS_CHECKSUM_TYPE_KEY, checksumType);
+    return FileSystem.newInstance(cluster.getFileSystem().getUri(), c);
+  }
+
+  private void writeFile(FileSystem fs, Path p, int off, int len,
+      boolean append) throws IOException {
+    FSDataOutputStream out = append ? fs.append(p) : fs.create(p);
+    try {
+      out.write(data, off, len);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void checkFile(FileSystem fs, Path p, int len) throws IOException {
+    byte[] buf = new byte[len];
+    FSDataInputStream in = fs.open(p);
+    try {
+      in.readFully(0, buf);
+    } finally {
+      in.close();
+    }
+    assertTrue(Arrays.equals(Arrays.copyOf(data, len), buf));
+  }
+
+  private int getStoredChecksumType(FileSystem fs, Path p) throws IOException {
+    Block b = DFSTestUtil.getFirstBlock(fs, p);
+    DataNode dn = cluster.getDataNodes().get(0);
+    DataInputStream in = new DataInputStream(
+        dn.getFSDataset().getMetaDataInputStream(b));
+    try {
+      return BlockMetadataHeader.readHeader(in).getChecksum().getChecksumType();
+    } finally {
+      IOUtils.closeStream(in);
+    }
+  }
+
+  @Test
+  public void testMixedChecksumTypes() throws IOException {
+    FileSystem crc32 = getFileSystem("CRC32");
+    FileSystem crc32c = getFileSystem("CRC32C");
+    Path p1 = new Path("/crc32");
+    Path p2 = new Path("/crc32c");
+    try {
+      writeFile(crc32, p1, 0, FILE_LEN, false);
+      writeFile(crc32c, p2, 0, FILE_LEN, false);
+
+      assertEquals(DataChecksum.CHECKSUM_CRC32,
+          getStoredChecksumType(crc32, p1));
+      assertEquals(DataChecksum.CHECKSUM_CRC32C,
+          getStoredChecksumType(crc32, p2));
+
+      // readers take the type from the block, whatever they are configured with
+      checkFile(crc32, p1, FILE_LEN);
+      checkFile(crc32, p2, FILE_LEN);
+      checkFile(crc32c, p1, FILE_LEN);
+      checkFile(crc32c, p2, FILE_LEN);
+
+      // the file checksum is computed over the block checksums
+      assertFalse(crc32.getFileChecksum(p1).equals(
+          crc32.getFileChecksum(p2)));
+    } finally {
+      crc32.close();
+      crc32c.close();
+    }
+  }
+
+  @Test
+  public void testAppendCrc32c() throws IOException {
+    FileSystem crc32c = getFileSystem("CRC32C");
+    Path p = new Path("/append");
+    try {
+      // the append starts in the middle of a chunk, so the datanode
+      // has to recompute the CRC32C of the partial chunk on disk
+      writeFile(crc32c, p, 0, 700, false);
+      writeFile(crc32c, p, 700, FILE_LEN - 700, true);
+      checkFile(crc32c, p, FILE_LEN);
+      assertEquals(DataChecksum.CHECKSUM_CRC32C,
+          getStoredChecksumType(crc32c, p));
+    } finally {
+      crc32c.close();
+    }
+  }
+
+  @Test
+  public void testAppendMixedChecksumTypes() throws IOException {
+    FileSystem crc32 = getFileSystem("CRC32");
+    FileSystem crc32c = getFileSystem("CRC32C");
+    Path p1 = new Path("/appendaligned");
+    Path p2 = new Path("/appendpartial");
+    try {
+      // appends continue with the type of the block, not the type the
+      // appending client is configured with, both at a chunk boundary
+      // and in the middle of a chunk
+      writeFile(crc32, p1, 0, 1024, false);
+      writeFile(crc32c, p1, 1024, FILE_LEN - 1024, true);
+      writeFile(crc32c, p2, 0, 700, false);
+      writeFile(crc32, p2, 700, FILE_LEN - 700, true);
+
+      checkFile(crc32, p1, FILE_LEN);
+      checkFile(crc32c, p2, FILE_LEN);
+      assertEquals(DataChecksum.CHECKSUM_CRC32,
+          getStoredChecksumType(crc32, p1));
+      assertEquals(DataChecksum.CHECKSUM_CRC32C,
+          getStoredChecksumType(crc32, p2));
+    } finally {
+      crc32.close();
+      crc32c.close();
+    }
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testUnknownChecksumType() throws IOException {
+    getFileSystem("MD5");
+  }
+}
@@ -20,6 +20,7 @@ package org.apache.hadoop.hdfs;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_CLIENT_MAX_BLOCK_ACQUIRE_FAILURES_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_DATANODE_SOCKET_REUSE_KEEPALIVE_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_DATANODE_SOCKET_WRITE_TIMEOUT_KEY;
+import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_DATANODE_XCEIVER_SELECTORS_KEY;
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -180,6 +181,70 @@ public class TestDataTransferKeepalive {
     DFSTestUtil.readFile(fs, TEST_FILE);
   }
 
+  /**
+   * Check that connections waiting for their next operation do not hold
+   * a datanode thread each, and are still served.
+   */
+  @Test(timeout=30000)
+  public void testIdleConnectionsWithoutThreads() throws Exception {
+    DataNodeProperties props = cluster.stopDataNode(0);
+    props.conf.setInt(DFS_DATANODE_SOCKET_REUSE_KEEPALIVE_KEY, 120000);
+    assertTrue(cluster.restartDataNode(props, true));
+    dn = cluster.getDataNodes().get(0);
+
+    DFSTestUtil.createFile(fs, TEST_FILE, 1L, (short)1, 0L);
+    // fewer than the client caches
+    InputStream[] stms = new InputStream[12];
+    try {
+      for (int i = 0; i < stms.length; i++) {
+        stms[i] = fs.open(TEST_FILE);
+      }
+      for (InputStream stm : stms) {
+        IOUtils.copyBytes(stm, new NullOutputStream(), 1024, false);
+      }
+    } finally {
+      IOUtils.cleanup(null, stms);
+    }
+    assertEquals(stms.length, dfsClient.socketCache.size());
+    assertXceiverCount(stms.length);
+    assertTrue(countXceiverThreads() < stms.length);
+
+    // the idle connections are reused
+    DFSTestUtil.readFile(fs, TEST_FILE);
+    assertXceiverCount(stms.length);
+  }
+
+  /**
+   * Check the keepalive timeout of a datanode with a thread per connection.
+   */
+  @Test(timeout=30000)
+  public void testKeepaliveTimeoutsThreadPerConnection() throws Exception {
+    DataNodeProperties props = cluster.stopDataNode(0);
+    props.conf.setInt(DFS_DATANODE_XCEIVER_SELECTORS_KEY, 0);
+    assertTrue(cluster.restartDataNode(props, true));
+    dn = cluster.getDataNodes().get(0);
+
+    DFSTestUtil.createFile(fs, TEST_FILE, 1L, (short)1, 0L);
+    DFSTestUtil.readFile(fs, TEST_FILE);
+    assertXceiverCount(1);
+    assertEquals(2, countXceiverThreads());
+
+    Thread.sleep(KEEPALIVE_TIMEOUT * 2);
+    assertXceiverCount(0);
+    DFSTestUtil.readFile(fs, TEST_FILE);
+  }
+
+  private int countXceiverThreads() {
+    int count = 0;
+    for (Thread t : Thread.getAllStackTraces().keySet()) {
+      ThreadGroup group = t.getThreadGroup();
+      if (group != null && "dataXceiverServer".equals(group.getName())) {
+        count++;
+      }
+    }
+    return count;
+  }
+
   private void assertXceiverCount(int expected) {
     // Subtract 1, since the DataXceiverServer
     // counts as one
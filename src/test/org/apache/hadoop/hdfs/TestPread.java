@@ -221,6 +221,50 @@ public class TestPread extends TestCase {
     }
   }
   
+  /**
+   * Tests positional read with hedged reads enabled. A threshold of zero
+   * makes every pread ask a second replica.
+   */
+  public void testHedgedPreadDFS() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.block.size", 4096);
+    conf.setLong("dfs.read.prefetch.size", 4096);
+    conf.setInt(DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE_KEY, 5);
+    conf.setLong(DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THRESHOLD_MILLIS_KEY, 0);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 3, true, null);
+    DistributedFileSystem fileSys =
+      (DistributedFileSystem)cluster.getFileSystem();
+    try {
+      assertTrue(fileSys.getClient().isHedgedReadsEnabled());
+      Path file1 = new Path("hedgedpreadtest.dat");
+      byte[] expected = new byte[12 * blockSize];
+      new Random(seed).nextBytes(expected);
+      DataOutputStream out = fileSys.create(file1, true, 4096, (short)3,
+                                            (long)blockSize);
+      out.write(expected);
+      out.close();
+      DFSTestUtil.waitReplication(fileSys, file1, (short)3);
+
+      FSDataInputStream stm = fileSys.open(file1);
+      byte[] actual = new byte[blockSize + 4096];
+      stm.readFully(blockSize - 2048, actual);
+      checkAndEraseData(actual, blockSize - 2048, expected, "Hedged Pread 1");
+      actual = new byte[8 * 4096];
+      stm.readFully(3 * blockSize, actual, 0, 8 * 4096);
+      checkAndEraseData(actual, 3 * blockSize, expected, "Hedged Pread 2");
+      stm.close();
+
+      DFSHedgedReadMetrics metrics = fileSys.getClient().getHedgedReadMetrics();
+      assertTrue("No hedged reads: " + metrics,
+                 metrics.getHedgedReadOps() > 0);
+      assertTrue(metrics.getHedgedReadWins() <= metrics.getHedgedReadOps());
+      cleanupFile(fileSys, file1);
+    } finally {
+      fileSys.close();
+      cluster.shutdown();
+    }
+  }
+
   public void testPreadDFSSimulated() throws IOException {
     simulatedStorage = true;
     testPreadDFS();
@@ -21,6 +21,7 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.PrivilegedExceptionAction;
 
 import org.apache.commons.logging.impl.Log4JLogger;
@@ -116,16 +117,56 @@ public class TestShortCircuitLocalRead {
     stm.close();
   }
 
+  /**
+   * Read the file through {@link FSDataInputStream#read(ByteBuffer)},
+   * first with a few small reads, then in blockSize pieces.
+   */
+  static void checkFileContentByteBuffer(FileSystem fs, Path name,
+      byte[] expected, int readOffset, boolean direct) throws IOException {
+    int len = expected.length - readOffset;
+    ByteBuffer buf = direct ? ByteBuffer.allocateDirect(len)
+                            : ByteBuffer.allocate(len);
+    FSDataInputStream stm = fs.open(name);
+    stm.seek(readOffset);
+    // Read a small number of bytes first, then across a chunk boundary
+    int[] sizes = {3, 2, 517};
+    for (int size : sizes) {
+      buf.limit(Math.min(buf.position() + size, len));
+      stm.read(buf);
+    }
+    while (buf.position() < len) {
+      buf.limit(Math.min(buf.position() + blockSize, len));
+      if (stm.read(buf) < 0) {
+        throw new EOFException("End of file reached before reading fully.");
+      }
+    }
+    Assert.assertEquals(-1, stm.read(ByteBuffer.allocate(1)));
+    stm.close();
+    byte[] actual = new byte[len];
+    buf.flip();
+    buf.get(actual);
+    checkData(actual, readOffset, expected,
+        (direct ? "Direct" : "Heap") + " ByteBuffer read");
+  }
+
   /**
    * Test that file data can be read by reading the block file
    * directly from the local store.
    */
   public void doTestShortCircuitRead(boolean ignoreChecksum, int size,
       int readOffset) throws IOException {
+    doTestShortCircuitRead(true, ignoreChecksum, false, size, readOffset);
+  }
+
+  public void doTestShortCircuitRead(boolean shortCircuit,
+      boolean ignoreChecksum, boolean mmap, int size, int readOffset)
+      throws IOException {
     Configuration conf = new Configuration();
-    conf.setBoolean(DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_KEY, true);
+    conf.setBoolean(DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_KEY,
+        shortCircuit);
     conf.setBoolean(DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_SKIP_CHECKSUM_KEY,
         ignoreChecksum);
+    conf.setBoolean(DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_KEY, mmap);
     conf.set(DFSConfigKeys.DFS_BLOCK_LOCAL_PATH_ACCESS_USER_KEY,
         UserGroupInformation.getCurrentUser().getShortUserName());
     if (simulatedStorage) {
@@ -148,6 +189,8 @@ public class TestShortCircuitLocalRead {
       stm.write(fileData);
       stm.close();
       checkFileContent(fs, file1, fileData, readOffset);
+      checkFileContentByteBuffer(fs, file1, fileData, readOffset, false);
+      checkFileContentByteBuffer(fs, file1, fileData, readOffset, true);
     } finally {
       fs.close();
       cluster.shutdown();
@@ -184,6 +227,17 @@ public class TestShortCircuitLocalRead {
     doTestShortCircuitRead(true, 10*blockSize+100, 777);
   }
   
+  @Test
+  public void testFileLocalReadMmap() throws IOException {
+    doTestShortCircuitRead(true, true, true, 3*blockSize+100, 0);
+    doTestShortCircuitRead(true, true, true, 3*blockSize+100, 777);
+  }
+
+  @Test
+  public void testByteBufferRemoteRead() throws IOException {
+    doTestShortCircuitRead(false, false, false, 3*blockSize+100, 777);
+  }
+
   @Test
   public void testGetBlockLocalPathInfo() throws IOException, InterruptedException {
     final Configuration conf = new Configuration();
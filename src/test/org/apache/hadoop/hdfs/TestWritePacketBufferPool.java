@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.ByteBufferPool;
+
+/**
+ * Tests that DFSOutputStream reuses the buffers of acknowledged packets.
+ * The main method benchmarks write throughput and allocation with and
+ * without the pool.
+ */
+public class TestWritePacketBufferPool extends TestCase {
+  static final int BLOCK_SIZE = 1024 * 1024;
+  static final int FILE_SIZE = 4 * BLOCK_SIZE;
+  static final int NUM_FILES = 8;
+
+  /** Write numFiles files of fileSize bytes each, one after another. */
+  static void writeFiles(FileSystem fs, Path dir, int numFiles,
+      int fileSize, long blockSize, byte[] data) throws IOException {
+    for (int i = 0; i < numFiles; i++) {
+      FSDataOutputStream out = fs.create(new Path(dir, "file" + i), true,
+          4096, (short)1, blockSize);
+      for (int written = 0; written < fileSize; written += data.length) {
+        out.write(data, 0, Math.min(data.length, fileSize - written));
+      }
+      out.close();
+    }
+  }
+
+  private long writeAndGetAllocated(long poolBytes) throws IOException {
+    Configuration conf = new Configuration();
+    conf.setLong(DFSConfigKeys.DFS_CLIENT_WRITE_PACKET_POOL_MAX_BYTES_KEY,
+                 poolBytes);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    DistributedFileSystem fs = (DistributedFileSystem)cluster.getFileSystem();
+    try {
+      byte[] data = new byte[10000];
+      new Random(0xDEADBEEFL).nextBytes(data);
+      Path dir = new Path("/packetpool");
+      writeFiles(fs, dir, NUM_FILES, FILE_SIZE, BLOCK_SIZE, data);
+
+      // the data must survive the buffer reuse
+      byte[] actual = new byte[data.length];
+      for (int i = 0; i < NUM_FILES; i++) {
+        FSDataInputStream in = fs.open(new Path(dir, "file" + i));
+        for (int pos = 0; pos + data.length <= FILE_SIZE;
+             pos += data.length) {
+          in.readFully(pos, actual);
+          for (int j = 0; j < data.length; j++) {
+            assertEquals("file" + i + " byte " + (pos + j),
+                         data[j], actual[j]);
+          }
+        }
+        in.close();
+      }
+      ByteBufferPool pool = fs.getClient().packetBufferPool;
+      return pool.getAllocatedBytes();
+    } finally {
+      fs.close();
+      cluster.shutdown();
+    }
+  }
+
+  public void testPacketBuffersReused() throws IOException {
+    long written = (long)NUM_FILES * FILE_SIZE;
+    long allocated = writeAndGetAllocated(
+        DFSConfigKeys.DFS_CLIENT_WRITE_PACKET_POOL_MAX_BYTES_DEFAULT);
+    // at most the packets in flight for one stream are ever allocated
+    assertTrue("Allocated " + allocated + " bytes of packets to write " +
+               written + " bytes", allocated < written / 2);
+  }
+
+  public void testPoolDisabled() throws IOException {
+    long written = (long)NUM_FILES * FILE_SIZE;
+    long allocated = writeAndGetAllocated(0);
+    assertTrue("Allocated " + allocated + " bytes of packets to write " +
+               written + " bytes", allocated >= written);
+  }
+
+  /** Bytes allocated so far by the current thread, or -1 if unknown. */
+  private static long getThreadAllocatedBytes() {
+    java.lang.management.ThreadMXBean bean =
+      ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean)bean)
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  /**
+   * Benchmark write throughput and allocation with and without pooled
+   * packet buffers against a mini cluster.
+   * <br>
+   * Run this using the following command:
+   * bin/hadoop org.apache.hadoop.hdfs.TestWritePacketBufferPool \
+   * [number of files] [file size in MB]
+   */
+  public static void main(String[] args) throws Exception {
+    int numFiles = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+    int fileSize = (args.length > 1 ? Integer.parseInt(args[1]) : 16)
+        * 1024 * 1024;
+    byte[] data = new byte[64 * 1024];
+    new Random(0xDEADBEEFL).nextBytes(data);
+    long poolSizes[] = {0,
+        DFSConfigKeys.DFS_CLIENT_WRITE_PACKET_POOL_MAX_BYTES_DEFAULT};
+    for (long poolBytes : poolSizes) {
+      Configuration conf = new Configuration();
+      conf.setLong(DFSConfigKeys.DFS_CLIENT_WRITE_PACKET_POOL_MAX_BYTES_KEY,
+                   poolBytes);
+      MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+      DistributedFileSystem fs =
+        (DistributedFileSystem)cluster.getFileSystem();
+      try {
+        Path dir = new Path("/benchmark");
+        long blockSize = 64L * 1024 * 1024;
+        writeFiles(fs, dir, 2, fileSize, blockSize, data); // warm up
+        long startAllocated = getThreadAllocatedBytes();
+        long startPool = fs.getClient().packetBufferPool.getAllocatedBytes();
+        long start = System.currentTimeMillis();
+        writeFiles(fs, dir, numFiles, fileSize, blockSize, data);
+        long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+        long bytes = (long)numFiles * fileSize;
+        System.out.println("pool.max.bytes=" + poolBytes
+            + " MB/s=" + (bytes * 1000 / elapsed / (1024 * 1024))
+            + " writerAllocatedMB="
+            + ((getThreadAllocatedBytes() - startAllocated) / (1024 * 1024))
+            + " packetAllocatedMB="
+            + ((fs.getClient().packetBufferPool.getAllocatedBytes()
+                - startPool) / (1024 * 1024)));
+      } finally {
+        fs.close();
+        cluster.shutdown();
+      }
+    }
+  }
+}
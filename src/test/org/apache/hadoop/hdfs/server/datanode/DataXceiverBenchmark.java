@@ -0,0 +1,200 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSClient;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.net.NetUtils;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * DataXceiverBenchmark keeps many client connections open to a datanode,
+ * as HBase region servers do, and compares a datanode with a thread per
+ * connection with one multiplexing the idle connections over a selector.
+ * Each connection reads a small block once and is then kept alive; a few
+ * reader threads then read the block again over the open connections.
+ * It reports the datanode threads, the heap in use and the reads per
+ * second.
+ * Input arguments:
+ * <ul>
+ * <li>numConnections - number of concurrent connections (default 10000)</li>
+ * <li>numReaders - number of threads reading over them (default 16)</li>
+ * <li>numPasses - reads per connection after they are open (default 3)</li>
+ * </ul>
+ * Each connection takes two file descriptors, and with a thread per
+ * connection each idle thread also holds a selector, so the open file
+ * limit must be well above four times the number of connections.
+ */
+public class DataXceiverBenchmark {
+  private static final Path FILE = new Path("/benchmark.dat");
+  private static final int FILE_SIZE = 16 * 1024;
+
+  private final int numConnections;
+  private final int numReaders;
+  private final int numPasses;
+
+  private DataXceiverBenchmark(int numConnections, int numReaders,
+      int numPasses) {
+    this.numConnections = numConnections;
+    this.numReaders = numReaders;
+    this.numPasses = numPasses;
+  }
+
+  /** Read the whole block, leaving the connection open for the next read. */
+  private static void readBlock(Socket s, LocatedBlock blk) throws IOException {
+    DFSClient.RemoteBlockReader reader = (DFSClient.RemoteBlockReader)
+      DFSClient.RemoteBlockReader.newBlockReader(s, FILE.toString(),
+          blk.getBlock().getBlockId(), blk.getBlockToken(),
+          blk.getBlock().getGenerationStamp(), 0, FILE_SIZE, 4096);
+    byte[] buf = new byte[4096];
+    int n = 0;
+    while (n < FILE_SIZE) {
+      int read = reader.read(buf, 0, buf.length);
+      if (read < 0) {
+        throw new IOException("Unexpected end of block after " + n);
+      }
+      n += read;
+    }
+    if (reader.read(buf, 0, 1) != -1 || !reader.hasSentStatusCode()) {
+      throw new IOException("Connection cannot be reused");
+    }
+    reader.takeSocket();
+    reader.close();
+  }
+
+  private static long usedHeap() {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  private void run(final String name, int selectors) throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt(DFSConfigKeys.DFS_DATANODE_XCEIVER_SELECTORS_KEY, selectors);
+    conf.setInt(DFSConfigKeys.DFS_DATANODE_MAX_XCIEVERS_KEY,
+        numConnections + 256);
+    conf.setInt(DFSConfigKeys.DFS_DATANODE_SOCKET_REUSE_KEEPALIVE_KEY,
+        3600 * 1000);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    List<Socket> sockets = new ArrayList<Socket>(numConnections);
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      DFSTestUtil.createFile(fs, FILE, FILE_SIZE, (short)1, 0L);
+      DFSClient client = new DFSClient(
+          NetUtils.createSocketAddr("localhost:" + cluster.getNameNodePort()),
+          conf);
+      final LocatedBlock blk =
+        client.namenode.getBlockLocations(FILE.toString(), 0, FILE_SIZE)
+        .get(0);
+      client.close();
+      DataNode dn = cluster.getDataNodes().get(0);
+      InetSocketAddress addr = NetUtils.createSocketAddr(
+          blk.getLocations()[0].getName());
+      long heapBefore = usedHeap();
+      int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+      long start = System.nanoTime();
+      for (int i = 0; i < numConnections; i++) {
+        Socket s = NetUtils.getDefaultSocketFactory(conf).createSocket();
+        NetUtils.connect(s, addr, 60000);
+        s.setSoTimeout(60000);
+        readBlock(s, blk);
+        sockets.add(s);
+      }
+      long openMs = (System.nanoTime() - start) / 1000000;
+      // let the datanode settle
+      Thread.sleep(1000);
+      int dnThreads = dn.threadGroup.activeCount();
+      int jvmThreads = ManagementFactory.getThreadMXBean().getThreadCount() -
+        threadsBefore;
+      long heapMb = (usedHeap() - heapBefore) >> 20;
+
+      final List<Socket> open = sockets;
+      final AtomicLong reads = new AtomicLong();
+      final AtomicLong failures = new AtomicLong();
+      Thread[] readers = new Thread[numReaders];
+      start = System.nanoTime();
+      for (int r = 0; r < numReaders; r++) {
+        final int first = r;
+        readers[r] = new Thread() {
+          public void run() {
+            for (int pass = 0; pass < numPasses; pass++) {
+              for (int i = first; i < open.size(); i += numReaders) {
+                try {
+                  readBlock(open.get(i), blk);
+                  reads.incrementAndGet();
+                } catch (IOException e) {
+                  failures.incrementAndGet();
+                }
+              }
+            }
+          }
+        };
+        readers[r].start();
+      }
+      for (Thread t : readers) {
+        t.join();
+      }
+      long readMs = Math.max(1, (System.nanoTime() - start) / 1000000);
+
+      System.out.printf("%-22s %8d %12d %12d %10d %12d %10d%n", name, openMs,
+          dnThreads, jvmThreads, heapMb, reads.get() * 1000 / readMs,
+          failures.get());
+    } finally {
+      for (Socket s : sockets) {
+        s.close();
+      }
+      cluster.shutdown();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numConnections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int numReaders = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+    int numPasses = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+    Logger.getRootLogger().setLevel(Level.WARN);
+    DataXceiverBenchmark bench =
+      new DataXceiverBenchmark(numConnections, numReaders, numPasses);
+
+    System.out.println(numConnections + " connections, " + numReaders +
+        " readers, " + numPasses + " passes");
+    System.out.printf("%-22s %8s %12s %12s %10s %12s %10s%n", "datanode",
+        "open ms", "dn threads", "new threads", "heap MB", "reads/s",
+        "failures");
+    bench.run("thread per connection", 0);
+    bench.run("selector", 1);
+  }
+}
@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.*;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSVolume;
+import org.apache.hadoop.hdfs.server.datanode.FSDatasetInterface.BlockWriteStreams;
+import org.apache.hadoop.util.DataChecksum;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Check that a volume which is slow to finalize blocks does not hold up
+ * writes to the other volumes, nor block reports.
+ */
+public class TestFSDatasetVolumeLocking {
+  private static final long STALL_MS = 3000;
+  private static final int NUM_BLOCKS = 6;
+  private static final long GEN_STAMP = 1001;
+
+  private MiniDFSCluster cluster;
+  private FSDataset ds;
+
+  @Before
+  public void startCluster() throws IOException {
+    Configuration conf = new Configuration();
+    cluster = new MiniDFSCluster(conf, 1, true, null);
+    cluster.waitActive();
+    ds = (FSDataset) cluster.getDataNodes().get(0).data;
+  }
+
+  @After
+  public void shutdownCluster() {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  private void writeBlock(Block b, int len) throws IOException {
+    BlockWriteStreams streams = ds.writeToBlock(b, false, false);
+    DataOutputStream checksumOut = new DataOutputStream(streams.checksumOut);
+    DataChecksum checksum =
+      DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32, 512);
+    BlockMetadataHeader.writeHeader(checksumOut, checksum);
+    byte[] data = new byte[len];
+    checksum.update(data, 0, len);
+    checksum.writeValue(checksumOut, true);
+    streams.dataOut.write(data);
+    streams.dataOut.close();
+    checksumOut.close();
+    b.setNumBytes(len);
+  }
+
+  @Test
+  public void testSlowVolume() throws Exception {
+    assertTrue(ds.volumes.volumes.length >= 2);
+    final FSVolume slow = ds.volumes.volumes[0];
+
+    // simulate a disk that is stuck moving a finalized block
+    final CountDownLatch stalled = new CountDownLatch(1);
+    final Thread staller = new Thread("staller") {
+      public void run() {
+        synchronized (slow) {
+          stalled.countDown();
+          try {
+            Thread.sleep(STALL_MS);
+          } catch (InterruptedException e) {
+          }
+        }
+      }
+    };
+    staller.start();
+    stalled.await();
+    long start = System.currentTimeMillis();
+
+    // block reports go on meanwhile
+    final AtomicInteger reports = new AtomicInteger();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread reporter = new Thread("reporter") {
+      public void run() {
+        try {
+          while (staller.isAlive()) {
+            ds.getBlockReport();
+            reports.incrementAndGet();
+          }
+        } catch (Throwable t) {
+          error.set(t);
+        }
+      }
+    };
+    reporter.start();
+
+    List<Block> blocks = new ArrayList<Block>();
+    List<Thread> slowFinalizers = new ArrayList<Thread>();
+    int fastBlocks = 0;
+    for (int i = 0; i < NUM_BLOCKS; i++) {
+      final Block b = new Block(1000000 + i, 0, GEN_STAMP);
+      writeBlock(b, 1000 + i);
+      blocks.add(b);
+      if (ds.volumeMap.get(b).getVolume() == slow) {
+        Thread t = new Thread("finalize " + b) {
+          public void run() {
+            try {
+              ds.finalizeBlock(b);
+            } catch (Throwable t) {
+              error.set(t);
+            }
+          }
+        };
+        t.start();
+        slowFinalizers.add(t);
+      } else {
+        ds.finalizeBlock(b);
+        assertTrue(ds.isValidBlock(b));
+        fastBlocks++;
+      }
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    assertTrue(fastBlocks > 0);
+    assertFalse(slowFinalizers.isEmpty());
+    assertTrue("Writes to the other volumes waited " + elapsed + " ms",
+        elapsed < STALL_MS);
+    assertTrue(staller.isAlive());
+
+    staller.join();
+    for (Thread t : slowFinalizers) {
+      t.join();
+    }
+    reporter.join();
+    assertNull(error.get());
+    assertTrue("No block report during the stall", reports.get() > 0);
+
+    Set<Block> reported = new HashSet<Block>(Arrays.asList(ds.getBlockReport()));
+    for (Block b : blocks) {
+      assertTrue(ds.isValidBlock(b));
+      assertTrue("Block report is missing " + b, reported.contains(b));
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.DatanodeID;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * This class benchmarks the heap used by the {@link BlocksMap} and the
+ * garbage collection pauses it causes, with the block triplets either on
+ * the heap or off-heap. It fills a map with the given number of blocks,
+ * each one placed on replication datanodes, then times full collections
+ * and a round of block churn. Run it once per mode in a fresh JVM, e.g.
+ * <pre>
+ * java -Xmx64g -XX:MaxDirectMemorySize=16g ... BlocksMapGCBenchmark \
+ *   -blocks 200000000 -datanodes 4000 -replication 3 [-offheap]
+ * </pre>
+ */
+public class BlocksMapGCBenchmark extends Configured implements Tool {
+  private static final String USAGE = "Usage: BlocksMapGCBenchmark"
+    + " [-blocks n] [-datanodes n] [-replication n] [-gcs n] [-offheap]";
+
+  private long numBlocks = 1000000;
+  private int numDatanodes = 100;
+  private int replication = 3;
+  private int numGCs = 5;
+
+  public int run(String[] args) throws Exception {
+    Configuration conf = getConf();
+    for (int i = 0; i < args.length; i++) {
+      if ("-blocks".equals(args[i])) {
+        numBlocks = Long.parseLong(args[++i]);
+      } else if ("-datanodes".equals(args[i])) {
+        numDatanodes = Integer.parseInt(args[++i]);
+      } else if ("-replication".equals(args[i])) {
+        replication = Integer.parseInt(args[++i]);
+      } else if ("-gcs".equals(args[i])) {
+        numGCs = Integer.parseInt(args[++i]);
+      } else if ("-offheap".equals(args[i])) {
+        conf.setBoolean(DFSConfigKeys.DFS_NAMENODE_BLOCKSMAP_OFFHEAP_KEY, true);
+      } else {
+        System.err.println(USAGE);
+        return -1;
+      }
+    }
+    if (replication > numDatanodes) {
+      System.err.println("replication must not exceed datanodes");
+      return -1;
+    }
+
+    long heapBefore = usedHeapAfterGC();
+    BlocksMap map = new BlocksMap(conf);
+    DatanodeDescriptor[] datanodes = new DatanodeDescriptor[numDatanodes];
+    for (int i = 0; i < numDatanodes; i++) {
+      datanodes[i] = new DatanodeDescriptor(new DatanodeID("dn" + i + ":50010",
+          "storage" + i, 50075, 50020));
+    }
+
+    long start = System.currentTimeMillis();
+    Random r = new Random(0);
+    for (long id = 0; id < numBlocks; id++) {
+      addBlock(map, new Block(id, 0, 1), datanodes, r);
+    }
+    long fillTime = System.currentTimeMillis() - start;
+    long heapUsed = usedHeapAfterGC() - heapBefore;
+
+    System.out.println("off-heap           = " + map.isOffHeap());
+    System.out.println("blocks             = " + map.size()
+        + " x " + replication + " replicas on " + numDatanodes + " datanodes");
+    System.out.println("fill time          = " + fillTime + " ms");
+    System.out.println("heap used          = " + (heapUsed >> 20) + " MB, "
+        + heapUsed / numBlocks + " bytes per block");
+    System.out.println("direct memory used = " + (map.getOffHeapBytes() >> 20)
+        + " MB");
+
+    long total = 0, max = 0;
+    for (int i = 0; i < numGCs; i++) {
+      long pause = timeFullGC();
+      total += pause;
+      max = Math.max(max, pause);
+    }
+    System.out.println("full GC pause      = " + total / Math.max(numGCs, 1)
+        + " ms average, " + max + " ms max over " + numGCs + " collections");
+
+    // replace a tenth of the blocks, as deletes and new files would
+    long churn = numBlocks / 10;
+    long gcTime = collectionTime();
+    start = System.currentTimeMillis();
+    for (long i = 0; i < churn; i++) {
+      long id = (long)(r.nextDouble() * numBlocks);
+      map.removeBlock(map.getStoredBlock(new Block(id, 0, 1)));
+      addBlock(map, new Block(id, 0, 1), datanodes, r);
+    }
+    System.out.println("churn of " + churn + " blocks = "
+        + (System.currentTimeMillis() - start) + " ms, of which GC "
+        + (collectionTime() - gcTime) + " ms");
+    map.close();
+    return 0;
+  }
+
+  private void addBlock(BlocksMap map, Block b,
+      DatanodeDescriptor[] datanodes, Random r) {
+    int first = r.nextInt(datanodes.length);
+    for (int j = 0; j < replication; j++) {
+      map.addNode(b, datanodes[(first + j) % datanodes.length], replication);
+    }
+  }
+
+  private static long usedHeapAfterGC() {
+    System.gc();
+    System.gc();
+    Runtime rt = Runtime.getRuntime();
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  /** @return the wall clock time of a full collection in ms */
+  private static long timeFullGC() {
+    long start = System.nanoTime();
+    System.gc();
+    return (System.nanoTime() - start) / 1000000;
+  }
+
+  /** @return the accumulated collection time of all collectors in ms */
+  private static long collectionTime() {
+    long time = 0;
+    List<GarbageCollectorMXBean> gcs =
+      ManagementFactory.getGarbageCollectorMXBeans();
+    for (GarbageCollectorMXBean gc : gcs) {
+      time += Math.max(gc.getCollectionTime(), 0);
+    }
+    return time;
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.exit(ToolRunner.run(new Configuration(),
+        new BlocksMapGCBenchmark(), args));
+  }
+}
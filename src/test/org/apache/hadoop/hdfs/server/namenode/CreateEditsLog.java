@@ -31,9 +31,10 @@ import org.apache.hadoop.hdfs.server.namenode.BlocksMap.BlockInfo;
  * 
  * CreateEditsLog
  *   Synopsis: CreateEditsLog -f numFiles StartingBlockId numBlocksPerFile
- *        [-r replicafactor] [-d editsLogDirectory]
+ *        [-r replicafactor] [-d editsLogDirectory] [-s]
  *             Default replication factor is 1
  *             Default edits log directory is /tmp/EditsLogOut
+ *             -s flushes the edits log from a separate sync thread
  *   
  *   Create a name node's edits log in /tmp/EditsLogOut.
  *   The file /tmp/EditsLogOut/current/edits can be copied to a name node's
@@ -116,9 +117,10 @@ public class CreateEditsLog {
   
   static String usage = "Usage: createditlogs " +
   " -f  numFiles startingBlockIds NumBlocksPerFile  [-r replicafactor] " + 
-  		"[-d editsLogDirectory]\n" + 
+  		"[-d editsLogDirectory] [-s]\n" + 
   		"      Default replication factor is 1\n" +
-  		"      Default edits log direcory is " + EDITS_DIR + "\n";
+  		"      Default edits log direcory is " + EDITS_DIR + "\n" +
+  		"      -s flushes the edits log from a separate sync thread\n";
 
 
 
@@ -142,6 +144,7 @@ public class CreateEditsLog {
     int numFiles = 0;
     short replication = 1;
     int numBlocksPerFile = 0;
+    boolean useSyncThread = false;
 
     if (args.length == 0) {
       printUsageExit();
@@ -162,6 +165,8 @@ public class CreateEditsLog {
        if (numFiles <=0 || numBlocksPerFile <= 0) {
          printUsageExit("numFiles and numBlocksPerFile most be greater than 0");
        }
+      } else if (args[i].equals("-s")) {
+        useSyncThread = true;
       } else if (args[i].equals("-r") || args[i+1].startsWith("-")) {
         if (i + 1 >= args.length) {
           printUsageExit(
@@ -202,9 +207,16 @@ public class CreateEditsLog {
     FSEditLog editLog = fsImage.getEditLog();
     editLog.createEditLogFile(fsImage.getFsEditName());
     editLog.open();
+    editLog.setSyncThreadEnabled(useSyncThread);
+    long start = System.currentTimeMillis();
     addFiles(editLog, numFiles, replication, numBlocksPerFile, startingBlockId,
              nameGenerator);
     editLog.logSync();
+    long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+    long numTransactions = editLog.getNumTransactions();
+    System.out.println(" logged " + numTransactions + " transactions in " +
+        elapsed + " msec (" + (numTransactions * 1000 / elapsed) +
+        " transactions/sec) with " + editLog.getNumSyncs() + " syncs");
     editLog.close();
   }
 }
@@ -148,6 +148,8 @@ public class NNThroughputBenchmark {
     protected boolean keepResults = false;// don't clean base directory on exit
     protected Level logLevel;             // logging level, ERROR by default
     protected int ugcRefreshCount = 0;    // user group cache refresh count
+    protected long numTransactions = 0;   // edits logged during the run
+    protected long numSyncs = 0;          // edits log syncs during the run
 
     protected List<StatsDaemon> daemons;
 
@@ -229,6 +231,9 @@ public class NNThroughputBenchmark {
           opsPerThread[tIdx] = 0;
         generateInputs(opsPerThread);
         setNameNodeLoggingLevel(logLevel);
+        FSEditLog editLog = nameNode.getNamesystem().getEditLog();
+        numTransactions = -editLog.getNumTransactions();
+        numSyncs = -editLog.getNumSyncs();
         for(tIdx=0; tIdx < numThreads; tIdx++)
           daemons.add(new StatsDaemon(tIdx, opsPerThread[tIdx], this));
         start = System.currentTimeMillis();
@@ -240,6 +245,11 @@ public class NNThroughputBenchmark {
           // try {Thread.sleep(500);} catch (InterruptedException e) {}
         }
         elapsedTime = System.currentTimeMillis() - start;
+        if(start > 0) {
+          FSEditLog editLog = nameNode.getNamesystem().getEditLog();
+          numTransactions += editLog.getNumTransactions();
+          numSyncs += editLog.getNumSyncs();
+        }
         for(StatsDaemon d : daemons) {
           incrementStats(d.localNumOpsExecuted, d.localCumulativeTime);
           // System.out.println(d.toString() + ": ops Exec = " + d.localNumOpsExecuted);
@@ -348,6 +358,11 @@ public class NNThroughputBenchmark {
       LOG.info("Elapsed Time: " + getElapsedTime());
       LOG.info(" Ops per sec: " + getOpsPerSecond());
       LOG.info("Average Time: " + getAverageTime());
+      if(numSyncs > 0) {
+        LOG.info("Edits logged: " + numTransactions);
+        LOG.info("  Edit syncs: " + numSyncs);
+        LOG.info("Edits / sync: " + (double)numTransactions / numSyncs);
+      }
     }
   }
 
@@ -706,6 +721,90 @@ public class NNThroughputBenchmark {
     }
   }
 
+  /**
+   * Mixed read/write statistics.
+   * 
+   * Measure how the name-node scales when most of the calls only read
+   * the namespace. Each thread calls getBlockLocations() for its files
+   * and replaces every P-th percent of the calls by setPermission().
+   */
+  class ReadWriteMixStats extends OpenFileStats {
+    // Operation types
+    static final String OP_MIX_NAME = "readWriteMix";
+    static final String OP_MIX_USAGE = 
+      "-op " + OP_MIX_NAME + OP_USAGE_ARGS + " [-writePercent P]";
+
+    private int writePercent;  // percentage of write operations
+    private long[] lockStats;  // namespace lock counters before the run
+
+    ReadWriteMixStats(List<String> args) {
+      super(args);
+    }
+
+    String getOpName() {
+      return OP_MIX_NAME;
+    }
+
+    void parseArguments(List<String> args) {
+      writePercent = 10;
+      int wpIndex = args.indexOf("-writePercent");
+      if(wpIndex >= 0) {
+        if(args.size() <= wpIndex + 1)
+          printUsage();
+        writePercent = Integer.parseInt(args.get(wpIndex+1));
+        if(writePercent < 0 || writePercent > 100)
+          printUsage();
+        args.remove(wpIndex+1);
+        args.remove(wpIndex);
+      }
+      super.parseArguments(args);
+    }
+
+    void generateInputs(int[] opsPerThread) throws IOException {
+      super.generateInputs(opsPerThread);
+      lockStats = getLockStats();
+    }
+
+    private long[] getLockStats() {
+      FSNamesystem ns = nameNode.getNamesystem();
+      return new long[] {
+          ns.getReadLockCount(), ns.getReadLockWaitTimeMillis(),
+          ns.getWriteLockCount(), ns.getWriteLockWaitTimeMillis()};
+    }
+
+    void benchmark() throws IOException {
+      super.benchmark();
+      long[] after = getLockStats();
+      for(int i = 0; i < lockStats.length; i++)
+        lockStats[i] = after[i] - lockStats[i];
+    }
+
+    long executeOp(int daemonId, int inputIdx, String ignore) 
+    throws IOException {
+      long start = System.currentTimeMillis();
+      // spread writePercent writes evenly over every 100 operations
+      if((inputIdx + 1) * writePercent / 100 != inputIdx * writePercent / 100)
+        nameNode.setPermission(fileNames[daemonId][inputIdx],
+                               FsPermission.getDefault());
+      else
+        nameNode.getBlockLocations(fileNames[daemonId][inputIdx], 0L, BLOCK_SIZE);
+      long end = System.currentTimeMillis();
+      return end-start;
+    }
+
+    void printResults() {
+      LOG.info("--- " + getOpName() + " inputs ---");
+      LOG.info("nrFiles = " + numOpsRequired);
+      LOG.info("nrThreads = " + numThreads);
+      LOG.info("writePercent = " + writePercent);
+      LOG.info("read locks = " + lockStats[0]
+          + ", read lock wait ms = " + lockStats[1]);
+      LOG.info("write locks = " + lockStats[2]
+          + ", write lock wait ms = " + lockStats[3]);
+      printStats();
+    }
+  }
+
   /**
    * Minimal data-node simulator.
    */
@@ -1137,6 +1236,7 @@ public class NNThroughputBenchmark {
         + " | \n\t" + OpenFileStats.OP_OPEN_USAGE
         + " | \n\t" + DeleteFileStats.OP_DELETE_USAGE
         + " | \n\t" + RenameFileStats.OP_RENAME_USAGE
+        + " | \n\t" + ReadWriteMixStats.OP_MIX_USAGE
         + " | \n\t" + BlockReportStats.OP_BLOCK_REPORT_USAGE
         + " | \n\t" + ReplicationStats.OP_REPLICATION_USAGE
         + " | \n\t" + CleanAllStats.OP_CLEAN_USAGE
@@ -1177,6 +1277,10 @@ public class NNThroughputBenchmark {
         opStat = bench.new RenameFileStats(args);
         ops.add(opStat);
       }
+      if(runAll || ReadWriteMixStats.OP_MIX_NAME.equals(type)) {
+        opStat = bench.new ReadWriteMixStats(args);
+        ops.add(opStat);
+      }
       if(runAll || BlockReportStats.OP_BLOCK_REPORT_NAME.equals(type)) {
         opStat = bench.new BlockReportStats(args);
         ops.add(opStat);
@@ -37,6 +37,7 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.permission.*;
 
+import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.MiniDFSCluster;
 import org.apache.hadoop.hdfs.protocol.FSConstants.SafeModeAction;
 import org.apache.hadoop.hdfs.server.common.Storage.StorageDirectory;
@@ -318,6 +319,8 @@ public class TestEditLogRace extends TestCase {
    */
   public void testSaveImageWhileSyncInProgress() throws Throwable {
     Configuration conf = getConf();
+    // the edit thread has to do the flush itself
+    conf.setBoolean(DFSConfigKeys.DFS_NAMENODE_EDITS_SYNC_THREAD_KEY, false);
     NameNode.format(conf);
     NameNode fakeNN = mock(NameNode.class);
     NameNode.myMetrics = new NameNodeMetrics(conf, fakeNN);
@@ -627,4 +630,57 @@ public class TestEditLogRace extends TestCase {
     }
   }
 
+  /**
+   * With the sync thread enabled the edits of several handlers are
+   * flushed together, and never by the handlers themselves.
+   */
+  public void testSyncThread() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setBoolean(DFSConfigKeys.DFS_NAMENODE_EDITS_SYNC_THREAD_KEY, true);
+    MiniDFSCluster cluster = null;
+    ExecutorService threadA = Executors.newSingleThreadExecutor();
+    ExecutorService threadB = Executors.newSingleThreadExecutor();
+    try {
+      cluster = new MiniDFSCluster(conf, NUM_DATA_NODES, true, null);
+      cluster.waitActive();
+      final FSNamesystem namesystem = cluster.getNameNode().namesystem;
+      final FSEditLog editLog = namesystem.getFSImage().getEditLog();
+
+      ArrayList<EditLogOutputStream> streams = editLog.getEditStreams();
+      EditLogOutputStream spyElos = spy(streams.get(0));
+      streams.set(0, spyElos);
+      final List<String> flushThreads = new ArrayList<String>();
+      doAnswer(new Answer<Void>() {
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+          synchronized (flushThreads) {
+            flushThreads.add(Thread.currentThread().getName());
+          }
+          invocation.callRealMethod();
+          return null;
+        }
+      }).when(spyElos).flush();
+
+      doLogEdit(threadA, editLog, "thread-a 1");
+      doLogEdit(threadB, editLog, "thread-b 1");
+      assertEquals("logging edits without syncing should not affect txid",
+        0, editLog.getSyncTxId());
+
+      // syncing the first edit commits the second one as well
+      doCallLogSync(threadA, editLog);
+      assertEquals("sync thread should commit both edits",
+        2, editLog.getSyncTxId());
+      doCallLogSync(threadB, editLog);
+      assertEquals("second logSync should be batched",
+        2, editLog.getSyncTxId());
+
+      synchronized (flushThreads) {
+        assertEquals(1, flushThreads.size());
+        assertEquals("EditLogSyncer", flushThreads.get(0));
+      }
+    } finally {
+      threadA.shutdown();
+      threadB.shutdown();
+      if(cluster != null) cluster.shutdown();
+    }
+  }
 }
@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.FSConstants;
+import org.apache.hadoop.hdfs.protocol.FSConstants.SafeModeAction;
+
+/**
+ * Test saving and loading an image whose inodes are split into sections.
+ */
+public class TestImageSections extends TestCase {
+
+  /**
+   * Save a namespace in many small compressed sections, load it with
+   * several threads, then switch to a single uncompressed section
+   * and make sure nothing is lost along the way.
+   */
+  public void testSaveAndLoadSections() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setBoolean(DFSConfigKeys.DFS_IMAGE_COMPRESS_KEY, true);
+    conf.setLong(DFSConfigKeys.DFS_IMAGE_SECTION_INODES_KEY, 5);
+    conf.setInt(DFSConfigKeys.DFS_IMAGE_PARALLEL_THREADS_KEY, 3);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      cluster.waitActive();
+      DistributedFileSystem fs = (DistributedFileSystem)cluster.getFileSystem();
+
+      // a deep and a wide subtree, so that sections are split both
+      // inside a directory and between directories
+      Path deep = new Path("/deep");
+      for (int i = 0; i < 8; i++) {
+        deep = new Path(deep, "d" + i);
+        DFSTestUtil.createFile(fs, new Path(deep, "f"), 10, (short)1, 0L);
+      }
+      Path wide = new Path("/wide");
+      for (int i = 0; i < 23; i++) {
+        DFSTestUtil.createFile(fs, new Path(wide, "f" + i), 10, (short)1, 0L);
+      }
+      Path quota = new Path("/quota");
+      fs.mkdirs(quota);
+      fs.setQuota(quota, 100, 100000);
+      fs.setPermission(wide, new FsPermission((short)0700));
+      fs.setPermission(new Path("/"), new FsPermission((short)0711));
+
+      Map<String, String> before = listTree(fs);
+      long numINodes = cluster.getNameNode().getNamesystem().dir
+          .rootDir.numItemsInTree();
+      assertTrue("namespace must span several sections", numINodes > 15);
+
+      saveNamespace(cluster);
+      cluster.restartNameNode();
+      fs = (DistributedFileSystem)cluster.getFileSystem();
+      assertEquals(before, listTree(fs));
+      assertEquals(100, fs.getContentSummary(quota).getQuota());
+
+      // only the image file carries the sectioned version
+      NameNode nn = cluster.getNameNode();
+      DataInputStream in = new DataInputStream(
+          new FileInputStream(nn.getFsImageName()));
+      try {
+        assertEquals(FSImage.SECTIONED_IMAGE_VERSION, in.readInt());
+      } finally {
+        in.close();
+      }
+      assertEquals(FSConstants.LAYOUT_VERSION,
+                   nn.getFSImage().getLayoutVersion());
+
+      // the compressed image is read back regardless of the new settings
+      conf.setBoolean(DFSConfigKeys.DFS_IMAGE_COMPRESS_KEY, false);
+      conf.setLong(DFSConfigKeys.DFS_IMAGE_SECTION_INODES_KEY, 1000);
+      conf.setInt(DFSConfigKeys.DFS_IMAGE_PARALLEL_THREADS_KEY, 1);
+      cluster.restartNameNode();
+      fs = (DistributedFileSystem)cluster.getFileSystem();
+      assertEquals(before, listTree(fs));
+
+      saveNamespace(cluster);
+      cluster.restartNameNode();
+      fs = (DistributedFileSystem)cluster.getFileSystem();
+      assertEquals(before, listTree(fs));
+      assertEquals(100, fs.getContentSummary(quota).getQuota());
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  private static void saveNamespace(MiniDFSCluster cluster)
+      throws IOException {
+    NameNode nn = cluster.getNameNode();
+    nn.setSafeMode(SafeModeAction.SAFEMODE_ENTER);
+    nn.saveNamespace();
+    nn.setSafeMode(SafeModeAction.SAFEMODE_LEAVE);
+  }
+
+  private static Map<String, String> listTree(FileSystem fs)
+      throws IOException {
+    Map<String, String> tree = new TreeMap<String, String>();
+    addTree(fs, fs.getFileStatus(new Path("/")), tree);
+    return tree;
+  }
+
+  private static void addTree(FileSystem fs, FileStatus stat,
+      Map<String, String> tree) throws IOException {
+    // loading the image resets the modification time of a directory
+    // to that of its last child, so only compare it for files
+    tree.put(stat.getPath().toUri().getPath(), stat.isDir() + " "
+        + stat.getLen() + " " + stat.getPermission() + " "
+        + (stat.isDir() ? 0 : stat.getModificationTime()) + " "
+        + stat.getOwner());
+    if (stat.isDir()) {
+      for (FileStatus child : fs.listStatus(stat.getPath())) {
+        addTree(fs, child, tree);
+      }
+    }
+  }
+}
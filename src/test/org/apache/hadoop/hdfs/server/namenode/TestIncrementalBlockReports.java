@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.BlockListAsLongs;
+import org.apache.hadoop.hdfs.server.datanode.DataNode;
+
+/**
+ * Test that datanodes report deleted blocks as they go,
+ * and that full block reports are processed in chunks.
+ */
+public class TestIncrementalBlockReports extends TestCase {
+  private static final long BLOCK_SIZE = 1024;
+
+  private static Configuration newConf() {
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.block.size", BLOCK_SIZE);
+    conf.setInt("io.bytes.per.checksum", 512);
+    conf.setLong("dfs.heartbeat.interval", 1);
+    conf.setInt("dfs.replication.interval", 1);
+    // no full block report besides the first one
+    conf.setLong(DFSConfigKeys.DFS_BLOCKREPORT_INTERVAL_MSEC_KEY, 3600000L);
+    conf.setInt(DFSConfigKeys.DFS_NAMENODE_BLOCKREPORT_CHUNK_SIZE_KEY, 3);
+    return conf;
+  }
+
+  /**
+   * The blocks of a deleted file leave the blocks map once the datanodes
+   * report the deletions, without waiting for a full block report.
+   */
+  public void testDeletedBlocks() throws Exception {
+    MiniDFSCluster cluster = new MiniDFSCluster(newConf(), 2, true, null);
+    try {
+      cluster.waitActive();
+      FSNamesystem namesystem = cluster.getNameNode().getNamesystem();
+      FileSystem fs = cluster.getFileSystem();
+      Path keep = new Path("/keep");
+      Path delete = new Path("/delete");
+      DFSTestUtil.createFile(fs, keep, 3 * BLOCK_SIZE, (short)2, 0L);
+      DFSTestUtil.createFile(fs, delete, 5 * BLOCK_SIZE, (short)2, 0L);
+      DFSTestUtil.waitReplication(fs, delete, (short)2);
+      assertEquals(8, namesystem.getBlocksTotal());
+
+      assertTrue(fs.delete(delete, false));
+      for (int i = 0; i < 300 && namesystem.getBlocksTotal() > 3; i++) {
+        Thread.sleep(100);
+      }
+      assertEquals(3, namesystem.getBlocksTotal());
+      for (DataNode dn : cluster.getDataNodes()) {
+        DatanodeDescriptor node = namesystem.getDatanode(dn.dnRegistration);
+        assertEquals(3, node.numBlocks());
+      }
+      DFSTestUtil.readFile(fs, keep);
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * A full block report, processed a few blocks at a time,
+   * adds the missing replicas and removes those which were not reported.
+   */
+  public void testChunkedReport() throws Exception {
+    MiniDFSCluster cluster = new MiniDFSCluster(newConf(), 1, true, null);
+    try {
+      cluster.waitActive();
+      NameNode nn = cluster.getNameNode();
+      FSNamesystem namesystem = nn.getNamesystem();
+      FileSystem fs = cluster.getFileSystem();
+      Path file = new Path("/file");
+      DFSTestUtil.createFile(fs, file, 10 * BLOCK_SIZE, (short)1, 0L);
+
+      DataNode dn = cluster.getDataNodes().get(0);
+      DatanodeDescriptor node = namesystem.getDatanode(dn.dnRegistration);
+      Block[] blocks = dn.getFSDataset().getBlockReport();
+      assertEquals(10, blocks.length);
+      assertEquals(10, node.numBlocks());
+
+      // report only the first 7 blocks
+      Block[] partial = Arrays.copyOf(blocks, 7);
+      nn.blockReport(dn.dnRegistration,
+          BlockListAsLongs.convertToArrayLongs(partial));
+      assertEquals(7, node.numBlocks());
+      for (int i = 0; i < blocks.length; i++) {
+        assertEquals(i < 7 ? 1 : 0, namesystem.blocksMap.numNodes(blocks[i]));
+      }
+
+      // the full report brings back the other replicas
+      nn.blockReport(dn.dnRegistration,
+          BlockListAsLongs.convertToArrayLongs(blocks));
+      assertEquals(10, node.numBlocks());
+      for (Block b : blocks) {
+        assertEquals(1, namesystem.blocksMap.numNodes(b));
+      }
+      DFSTestUtil.readFile(fs, file);
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
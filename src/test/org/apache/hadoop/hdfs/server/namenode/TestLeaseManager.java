@@ -62,8 +62,11 @@ public class TestLeaseManager extends TestCase {
     leaseManager.addLease(holder, path2);
     Thread.sleep(1000);
 
-    synchronized (spyNamesystem) { // checkLeases is always called with FSN lock
+    spyNamesystem.writeLock(); // checkLeases is always called with FSN lock
+    try {
       leaseManager.checkLeases();
+    } finally {
+      spyNamesystem.writeUnlock();
     }
     verify(spyNamesystem).internalReleaseLeaseOne((LeaseManager.Lease)anyObject(), eq("/file-1"));
     verify(spyNamesystem).internalReleaseLeaseOne((LeaseManager.Lease)anyObject(), eq("/file-2"));
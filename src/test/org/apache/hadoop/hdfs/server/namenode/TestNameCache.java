@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.apache.hadoop.hdfs.DFSUtil;
+import org.apache.hadoop.hdfs.util.ByteArray;
+
+/**
+ * Test for {@link NameCache} and the compact children
+ * of {@link INodeDirectory}.
+ */
+public class TestNameCache extends TestCase {
+  private static final PermissionStatus PERM = new PermissionStatus(
+      "user", "group", new FsPermission((short)0755));
+
+  public void testNameCache() {
+    String[] matching = { "part-00000", "part-00001", "_SUCCESS" };
+    String[] notMatching = { "part-00002", "_logs" };
+
+    int useThreshold = 10;
+    NameCache<String> cache = new NameCache<String>(useThreshold);
+
+    // Add names to the cache below the use threshold
+    for (String s : notMatching) {
+      for (int i = 1; i < useThreshold; i++) {
+        assertNull(cache.put(s));
+      }
+    }
+    // Add names at the use threshold, these are promoted to the cache
+    for (String s : matching) {
+      for (int i = 1; i < useThreshold; i++) {
+        assertNull(cache.put(s));
+      }
+      assertNull(cache.put(s));
+      assertSame(s, cache.put(new String(s)));
+    }
+
+    cache.initialized();
+    assertEquals(matching.length, cache.size());
+
+    // After initialization names are looked up, but never added
+    for (String s : matching) {
+      assertSame(s, cache.put(new String(s)));
+    }
+    for (String s : notMatching) {
+      for (int i = 0; i < useThreshold; i++) {
+        assertNull(cache.put(s));
+      }
+    }
+    assertEquals(matching.length, cache.size());
+  }
+
+  public void testByteArrayKeys() {
+    NameCache<ByteArray> cache = new NameCache<ByteArray>(2);
+    byte[] first = DFSUtil.string2Bytes("part-00000");
+    assertNull(cache.put(new ByteArray(first)));
+    // the copy promoted on reaching the threshold is the one shared
+    assertNull(cache.put(new ByteArray(first)));
+    cache.initialized();
+    ByteArray cached =
+      cache.put(new ByteArray(DFSUtil.string2Bytes("part-00000")));
+    assertNotNull(cached);
+    assertSame(first, cached.getBytes());
+  }
+
+  public void testDirectoryChildren() {
+    INodeDirectory dir = new INodeDirectory(PERM, 0L);
+    int n = 100;
+    // insert out of order, the children must come back sorted
+    for (int i = 0; i < n; i++) {
+      int k = (i * 37) % n;
+      INodeDirectory child = new INodeDirectory(
+          DFSUtil.string2Bytes(String.format("c%03d", k)), PERM, 0L);
+      assertSame(child, dir.addChild(child, false));
+    }
+    assertNull("duplicate names are rejected", dir.addChild(
+        new INodeDirectory(DFSUtil.string2Bytes("c042"), PERM, 0L), false));
+    assertEquals(n, dir.getChildrenCount());
+    assertEquals(n, dir.getChildren().size());
+    for (int i = 0; i < n; i++) {
+      INode child = dir.getChildren().get(i);
+      assertEquals(String.format("c%03d", i), child.getLocalName());
+      assertSame(dir, child.getParent());
+      assertSame(child, dir.getChild(child.getLocalName()));
+    }
+    assertEquals(11, dir.nextChild(DFSUtil.string2Bytes("c010")));
+    assertEquals(11, dir.nextChild(DFSUtil.string2Bytes("c010a")));
+
+    // remove every other child
+    for (int i = 0; i < n; i += 2) {
+      INode child = dir.getChild(String.format("c%03d", i));
+      assertSame(child, dir.removeChild(child));
+      assertNull(dir.removeChild(child));
+    }
+    assertEquals(n / 2, dir.getChildrenCount());
+    for (int i = 0; i < n; i++) {
+      INode child = dir.getChild(String.format("c%03d", i));
+      assertEquals(i % 2 == 1, child != null);
+    }
+    for (int i = 1; i < n; i += 2) {
+      dir.removeChild(dir.getChild(String.format("c%03d", i)));
+    }
+    assertEquals(0, dir.getChildrenCount());
+    assertNull(dir.getChildrenRaw());
+    assertTrue(dir.getChildren().isEmpty());
+  }
+}
@@ -130,6 +130,9 @@ public class TestNodeCount extends TestCase {
       DFSTestUtil.waitReplication(fs, FILE_PATH, REPLICATION_FACTOR);
 
       LOG.info("Restarting first datanode");
+      // keep the excess replica until it has been counted; once deleted,
+      // the datanode reports it right away
+      namesystem.stallInvalidateWork();
       // restart the first datanode
       cluster.restartDataNode(dnprop);
       cluster.waitActive(false);
@@ -153,6 +156,15 @@ public class TestNodeCount extends TestCase {
       }
       assertTrue(nonExcessDN!=null);
 
+      LOG.info("Waiting for the excess replica to be deleted");
+      // the excess node deletes its replica and reports it through
+      // blocksDeleted; wait for that so that the deleted replica is not
+      // counted while the block is replicated again below
+      namesystem.restartInvalidateWork();
+      waitForExcessReplicasToChangeTo(namesystem, block, 0);
+      assertEquals(REPLICATION_FACTOR,
+                   namesystem.countNodes(block).liveReplicas());
+
       LOG.info("Stopping non-excess node: " + nonExcessDN);
       // bring down non excessive datanode
       dnprop = cluster.stopDataNode(nonExcessDN.getName());
@@ -170,6 +182,7 @@ public class TestNodeCount extends TestCase {
       } while (num.liveReplicas() != REPLICATION_FACTOR);
 
       LOG.info("Restarting first DN");
+      namesystem.stallInvalidateWork();
       // restart the first datanode
       cluster.restartDataNode(dnprop);
       cluster.waitActive(false);
@@ -177,8 +190,13 @@ public class TestNodeCount extends TestCase {
       Thread.sleep(3000);
 
       LOG.info("Waiting for excess replicas to be detected");
-      // check if excessive replica is detected
-      waitForExcessReplicasToChangeTo(namesystem, block, 2);
+      // check if excessive replica is detected; the first excess replica
+      // was deleted and reported, so only the restarted node is excess
+      waitForExcessReplicasToChangeTo(namesystem, block, 1);
+
+      LOG.info("Waiting for the excess replica to be deleted");
+      namesystem.restartInvalidateWork();
+      waitForExcessReplicasToChangeTo(namesystem, block, 0);
     } finally {
       cluster.shutdown();
     }
@@ -192,8 +210,11 @@ public class TestNodeCount extends TestCase {
     NumberReplicas num;
     long startChecking = System.currentTimeMillis();
     do {
-      synchronized (namesystem) {
+      namesystem.readLock();
+      try {
         num = namesystem.countNodes(block);
+      } finally {
+        namesystem.readUnlock();
       }
       LOG.info("Waiting for excess replicas == " + waitForReplicas +
        " - current: " + num);
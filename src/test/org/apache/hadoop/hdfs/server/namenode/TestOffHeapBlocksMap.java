@@ -0,0 +1,213 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.DatanodeID;
+import org.apache.hadoop.hdfs.server.namenode.BlocksMap.BlockInfo;
+
+/**
+ * Test the {@link BlocksMap} with the block triplets stored off-heap.
+ */
+public class TestOffHeapBlocksMap extends TestCase {
+  private static final int NUM_DATANODES = 5;
+  private static final int NUM_BLOCKS = 500;
+
+  /**
+   * Apply the same random operations to an on-heap and an off-heap map
+   * and compare the locations and the datanode lists after every round.
+   */
+  public void testRandomOperations() {
+    BlocksMap heap = new BlocksMap(16, 0.75f, false);
+    BlocksMap offHeap = new BlocksMap(16, 0.75f, true);
+    assertFalse(heap.isOffHeap());
+    assertTrue(offHeap.isOffHeap());
+    DatanodeDescriptor[] heapNodes = newDatanodes();
+    DatanodeDescriptor[] offHeapNodes = newDatanodes();
+    Random r = new Random(0xB10C);
+
+    for (int round = 0; round < 20; round++) {
+      for (int i = 0; i < 2 * NUM_BLOCKS; i++) {
+        Block b = new Block(r.nextInt(NUM_BLOCKS), 0, 1);
+        int dn = r.nextInt(NUM_DATANODES);
+        // the replication is exceeded when more than 3 nodes get a block
+        switch (r.nextInt(4)) {
+        case 0:
+        case 1:
+          assertEquals(heap.addNode(b, heapNodes[dn], 3),
+                       offHeap.addNode(b, offHeapNodes[dn], 3));
+          break;
+        case 2:
+          assertEquals(heap.removeNode(b, heapNodes[dn]),
+                       offHeap.removeNode(b, offHeapNodes[dn]));
+          break;
+        default:
+          if (r.nextInt(10) == 0) {
+            heap.removeBlock(heap.getStoredBlock(b));
+            offHeap.removeBlock(offHeap.getStoredBlock(b));
+          } else if (heap.contains(b, heapNodes[dn])) {
+            heapNodes[dn].moveBlockToHead(heap.getStoredBlock(b));
+            offHeapNodes[dn].moveBlockToHead(offHeap.getStoredBlock(b));
+          }
+        }
+      }
+      assertSameContents(heap, heapNodes, offHeap, offHeapNodes);
+    }
+
+    // remove everything, the freed records must not leave anything behind
+    long bytes = offHeap.getOffHeapBytes();
+    assertTrue(bytes > 0);
+    for (int i = 0; i < NUM_BLOCKS; i++) {
+      offHeap.removeBlock(offHeap.getStoredBlock(new Block(i, 0, 1)));
+    }
+    assertEquals(0, offHeap.size());
+    for (DatanodeDescriptor dn : offHeapNodes) {
+      assertEquals(0, dn.numBlocks());
+    }
+    // and the records are reused
+    for (int i = 0; i < NUM_BLOCKS; i++) {
+      offHeap.addNode(new Block(i, 0, 1), offHeapNodes[i % NUM_DATANODES], 3);
+    }
+    assertEquals(bytes, offHeap.getOffHeapBytes());
+    for (DatanodeDescriptor dn : offHeapNodes) {
+      assertEquals(NUM_BLOCKS / NUM_DATANODES, dn.numBlocks());
+    }
+    heap.close();
+    offHeap.close();
+  }
+
+  /**
+   * Run a cluster with the block triplets off-heap through writes,
+   * block reports, increased replication and deletes.
+   */
+  public void testMiniCluster() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setBoolean(DFSConfigKeys.DFS_NAMENODE_BLOCKSMAP_OFFHEAP_KEY, true);
+    conf.setLong("dfs.block.size", 1024);
+    conf.setInt("io.bytes.per.checksum", 512);
+    conf.setInt("dfs.replication.interval", 1);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 4, true, null);
+    try {
+      cluster.waitActive();
+      FSNamesystem namesystem = cluster.getNameNode().getNamesystem();
+      assertTrue(namesystem.blocksMap.isOffHeap());
+      FileSystem fs = cluster.getFileSystem();
+      List<Path> files = new ArrayList<Path>();
+      for (int i = 0; i < 10; i++) {
+        Path p = new Path("/offheap/file" + i);
+        DFSTestUtil.createFile(fs, p, 4096, (short)3, i);
+        files.add(p);
+      }
+      for (Path p : files) {
+        DFSTestUtil.waitReplication(fs, p, (short)3);
+      }
+
+      // datanodes coming back send full block reports
+      cluster.restartDataNodes();
+      cluster.waitActive();
+      for (Path p : files) {
+        DFSTestUtil.waitReplication(fs, p, (short)3);
+        DFSTestUtil.readFile(fs, p);
+      }
+
+      // four replicas do not fit in the first record of a block
+      fs.setReplication(files.get(0), (short)4);
+      DFSTestUtil.waitReplication(fs, files.get(0), (short)4);
+      DFSTestUtil.readFile(fs, files.get(0));
+
+      for (Path p : files.subList(1, files.size())) {
+        assertTrue(fs.delete(p, false));
+      }
+      DFSTestUtil.readFile(fs, files.get(0));
+      Block b = DFSTestUtil.getFirstBlock(fs, files.get(0));
+      assertEquals(4, namesystem.blocksMap.numNodes(b));
+      assertEquals(files.get(0).toString(),
+          namesystem.blocksMap.getINode(b).getFullPathName());
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  private static DatanodeDescriptor[] newDatanodes() {
+    DatanodeDescriptor[] nodes = new DatanodeDescriptor[NUM_DATANODES];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = new DatanodeDescriptor(new DatanodeID("h" + i + ":5020"));
+    }
+    return nodes;
+  }
+
+  private static void assertSameContents(
+      BlocksMap expected, DatanodeDescriptor[] expectedNodes,
+      BlocksMap actual, DatanodeDescriptor[] actualNodes) {
+    assertEquals(expected.size(), actual.size());
+    Map<DatanodeDescriptor, Integer> index =
+      new HashMap<DatanodeDescriptor, Integer>();
+    for (int i = 0; i < actualNodes.length; i++) {
+      index.put(actualNodes[i], i);
+    }
+    for (BlockInfo e : expected.getBlocks()) {
+      BlockInfo a = actual.getStoredBlock(e);
+      assertNotNull(a);
+      assertEquals(e.numNodes(), a.numNodes());
+      Set<Integer> locations = new HashSet<Integer>();
+      for (Iterator<DatanodeDescriptor> it = actual.nodeIterator(a);
+           it.hasNext();) {
+        locations.add(index.get(it.next()));
+      }
+      for (Iterator<DatanodeDescriptor> it = expected.nodeIterator(e);
+           it.hasNext();) {
+        DatanodeDescriptor dn = it.next();
+        int i = Arrays.asList(expectedNodes).indexOf(dn);
+        assertTrue(locations.remove(i));
+      }
+      assertTrue(locations.isEmpty());
+    }
+    for (int i = 0; i < expectedNodes.length; i++) {
+      assertEquals(listBlocks(expectedNodes[i]), listBlocks(actualNodes[i]));
+      assertEquals(listBlocks(actualNodes[i]).size(),
+                   actualNodes[i].numBlocks());
+    }
+  }
+
+  /** @return the ids of the blocks on the list of a datanode, in order */
+  private static List<Long> listBlocks(DatanodeDescriptor dn) {
+    List<Long> ids = new ArrayList<Long>();
+    for (Iterator<Block> it = dn.getBlockIterator(); it.hasNext();) {
+      ids.add(it.next().getBlockId());
+    }
+    return ids;
+  }
+}
@@ -77,7 +77,7 @@ public class TestOfflineImageViewer extends TestCase {
   public void testOIV() {
     File originalFsimage = null;
     try {
-    originalFsimage = initFsimage();
+    originalFsimage = initFsimage(new Configuration());
     assertNotNull("originalFsImage shouldn't be null", originalFsimage);
     
     // Tests:
@@ -94,13 +94,30 @@ public class TestOfflineImageViewer extends TestCase {
     }
   }
 
+  // Verify that the viewer reads an fsimage whose inodes are split into
+  // several compressed sections
+  public void testOIVCompressedSections() {
+    File originalFsimage = null;
+    try {
+      Configuration conf = new Configuration();
+      conf.setBoolean("dfs.image.compress", true);
+      conf.setLong("dfs.image.section.inodes", FILES_PER_DIR);
+      originalFsimage = initFsimage(conf);
+      assertNotNull("originalFsImage shouldn't be null", originalFsimage);
+
+      outputOfLSVisitor(originalFsimage);
+    } finally {
+      if(originalFsimage != null && originalFsimage.exists())
+        originalFsimage.delete();
+    }
+  }
+
   // Create a populated namespace for later testing.  Save its contents to a
   // data structure and store its fsimage location.
-  private File initFsimage() {
+  private File initFsimage(Configuration conf) {
     MiniDFSCluster cluster = null;
     File orig = null;
     try {
-      Configuration conf = new Configuration();
       cluster = new MiniDFSCluster(conf, 4, true, null);
       FileSystem hdfs = cluster.getFileSystem();
       
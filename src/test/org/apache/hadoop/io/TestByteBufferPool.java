@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.io;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * This is the unit test for ByteBufferPool.
+ */
+public class TestByteBufferPool extends TestCase {
+
+  public void testSizeClasses() throws Exception {
+    ByteBufferPool pool = new ByteBufferPool(1000, 5000, 1 << 20, true);
+    // sizes round up to a power of two of at least the smallest class
+    ByteBuffer buf = pool.getBuffer(10);
+    assertTrue(buf.isDirect());
+    assertEquals(1024, buf.capacity());
+    assertEquals(0, buf.position());
+    assertEquals(10, buf.limit());
+    assertEquals(2048, pool.getBuffer(1025).capacity());
+    assertEquals(8192, pool.getBuffer(8192).capacity());
+    assertEquals(1024 + 2048 + 8192, pool.getAllocatedBytes());
+
+    // a returned buffer is handed out again, with a new limit
+    buf.put((byte)1);
+    pool.putBuffer(buf);
+    assertEquals(1024, pool.getPooledBytes());
+    ByteBuffer again = pool.getBuffer(1000);
+    assertSame(buf, again);
+    assertEquals(0, again.position());
+    assertEquals(1000, again.limit());
+    assertEquals(0, pool.getPooledBytes());
+    assertEquals(1024 + 2048 + 8192, pool.getAllocatedBytes());
+
+    // too large to pool, and kept out of direct memory
+    ByteBuffer large = pool.getBuffer(10000);
+    assertEquals(10000, large.capacity());
+    assertFalse(large.isDirect());
+    pool.putBuffer(large);
+    assertEquals(0, pool.getPooledBytes());
+    assertNotSame(large, pool.getBuffer(10000));
+
+    // buffers of the wrong kind or size are not taken
+    pool.putBuffer(ByteBuffer.allocate(1024));
+    pool.putBuffer(ByteBuffer.allocateDirect(1500));
+    pool.putBuffer(ByteBuffer.allocateDirect(512));
+    assertEquals(0, pool.getPooledBytes());
+  }
+
+  public void testMaxPooledBytes() throws Exception {
+    ByteBufferPool pool = new ByteBufferPool(1024, 4096, 5000, false);
+    ByteBuffer[] bufs = new ByteBuffer[3];
+    for (int i = 0; i < bufs.length; i++) {
+      bufs[i] = pool.getBuffer(2048);
+      assertFalse(bufs[i].isDirect());
+    }
+    for (ByteBuffer buf : bufs) {
+      pool.putBuffer(buf);
+    }
+    // only two of the three fit
+    assertEquals(4096, pool.getPooledBytes());
+    pool.getBuffer(2048);
+    pool.getBuffer(2048);
+    assertEquals(0, pool.getPooledBytes());
+    long allocated = pool.getAllocatedBytes();
+    pool.getBuffer(2048);
+    assertEquals(allocated + 2048, pool.getAllocatedBytes());
+  }
+}
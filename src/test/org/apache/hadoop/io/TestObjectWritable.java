@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * This is the unit test for ObjectWritable.
+ */
+public class TestObjectWritable extends TestCase {
+  private static final Configuration conf = new Configuration();
+
+  enum Color { RED, GREEN }
+
+  /** Arrays of primitives keep the format of boxed elements. */
+  public void testPrimitiveArrayFormat() throws Exception {
+    int[] values = {1, -2, Integer.MAX_VALUE};
+    DataOutputBuffer out = new DataOutputBuffer();
+    ObjectWritable.writeObject(out, values, int[].class, conf);
+
+    DataOutputBuffer expected = new DataOutputBuffer();
+    UTF8.writeString(expected, int[].class.getName());
+    expected.writeInt(values.length);
+    for (int value : values) {
+      UTF8.writeString(expected, "int");
+      expected.writeInt(value);
+    }
+    assertEquals(expected.getLength(), out.getLength());
+    assertTrue(Arrays.equals(
+        Arrays.copyOf(expected.getData(), expected.getLength()),
+        Arrays.copyOf(out.getData(), out.getLength())));
+
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    assertTrue(Arrays.equals(values,
+                             (int[])ObjectWritable.readObject(in, conf)));
+
+    Object[] arrays = {
+      new boolean[] {true, false}, new char[] {'a', 'b'},
+      new byte[] {1, 2}, new short[] {3, 4}, new long[] {5L, 6L},
+      new float[] {7f, 8f}, new double[] {9d, 10d}
+    };
+    for (Object array : arrays) {
+      assertTrue(Arrays.deepEquals(new Object[] {array},
+          new Object[] {roundTrip(array, array.getClass())}));
+    }
+  }
+
+  public void testCompact() throws Exception {
+    Object[][] cases = {
+      {Integer.TYPE, 42},
+      {Long.TYPE, -1L},
+      {Boolean.TYPE, true},
+      {String.class, "foo"},
+      {String.class, null},
+      {String[].class, new String[] {"a", null, "b"}},
+      {long[].class, new long[] {1L, 2L, 3L}},
+      {long[].class, null},
+      {Color.class, Color.GREEN},
+      {Text.class, new Text("bar")},
+      {Writable.class, new Text("baz")},
+      {Writable.class, null},
+      {Writable[].class, new Writable[] {new Text("x"), new UTF8("y")}},
+    };
+    for (Object[] c : cases) {
+      Class<?> declaredClass = (Class<?>)c[0];
+      Object value = c[1];
+      DataOutputBuffer out = new DataOutputBuffer();
+      ObjectWritable.writeCompact(out, value, declaredClass, conf);
+      DataInputBuffer in = new DataInputBuffer();
+      in.reset(out.getData(), out.getLength());
+      Object read = ObjectWritable.readCompact(in, declaredClass, conf);
+      assertEquals(out.getLength(), in.getPosition());
+      assertTrue(declaredClass + ": " + value + " != " + read,
+          Arrays.deepEquals(new Object[] {value}, new Object[] {read}));
+
+      if (value != null && !declaredClass.isPrimitive()) {
+        // no class names, except for subclasses of Writable
+        out.reset();
+        ObjectWritable.writeObject(out, value, declaredClass, conf);
+        assertTrue(in.getPosition() < out.getLength());
+      }
+    }
+  }
+
+  private static Object roundTrip(Object value, Class<?> declaredClass)
+    throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    ObjectWritable.writeObject(out, value, declaredClass, conf);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    return ObjectWritable.readObject(in, conf);
+  }
+}
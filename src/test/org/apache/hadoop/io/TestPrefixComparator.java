@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.io;
+
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the prefixes of Text and BytesWritable keys never order two
+ * keys differently from their comparators.
+ */
+public class TestPrefixComparator extends TestCase {
+
+  private static final Random RANDOM = new Random();
+
+  /** Random bytes drawn from a small alphabet, so prefixes often tie. */
+  private static byte[] randomBytes() {
+    byte[] b = new byte[RANDOM.nextInt(12)];
+    for (int i = 0; i < b.length; ++i) {
+      b[i] = (byte)(new int[] { 0, 1, 'a', 0x7F, 0x80, 0xFF }[
+          RANDOM.nextInt(6)]);
+    }
+    return b;
+  }
+
+  /** The prefix function of a Text or BytesWritable comparator. */
+  private interface Prefix {
+    long getPrefix(byte[] b, int s, int l);
+  }
+
+  private static void checkConsistent(Writable w1, Writable w2,
+      RawComparator<?> comparator, Prefix prefix) throws IOException {
+    DataOutputBuffer b1 = new DataOutputBuffer();
+    DataOutputBuffer b2 = new DataOutputBuffer();
+    w1.write(b1);
+    w2.write(b2);
+    long p1 = prefix.getPrefix(b1.getData(), 0, b1.getLength());
+    long p2 = prefix.getPrefix(b2.getData(), 0, b2.getLength());
+    int cmp = comparator.compare(b1.getData(), 0, b1.getLength(),
+                                 b2.getData(), 0, b2.getLength());
+    if (p1 < p2) {
+      assertTrue(w1 + " < " + w2, cmp < 0);
+    } else if (p1 > p2) {
+      assertTrue(w1 + " > " + w2, cmp > 0);
+    }
+  }
+
+  public void testText() throws IOException {
+    final Text.Comparator comparator =
+      (Text.Comparator)WritableComparator.get(Text.class);
+    Prefix prefix = new Prefix() {
+      public long getPrefix(byte[] b, int s, int l) {
+        return comparator.getPrefix(b, s, l);
+      }
+    };
+    for (int i = 0; i < 10000; ++i) {
+      Text t1 = new Text();
+      Text t2 = new Text();
+      t1.set(randomBytes());
+      t2.set(randomBytes());
+      checkConsistent(t1, t2, comparator, prefix);
+    }
+    assertTrue(comparator.getPrefix(new byte[] { 1, 'b' }, 0, 2) >
+               comparator.getPrefix(new byte[] { 2, 'a', 'z' }, 0, 3));
+  }
+
+  public void testBytesWritable() throws IOException {
+    final BytesWritable.Comparator comparator =
+      (BytesWritable.Comparator)WritableComparator.get(BytesWritable.class);
+    Prefix prefix = new Prefix() {
+      public long getPrefix(byte[] b, int s, int l) {
+        return comparator.getPrefix(b, s, l);
+      }
+    };
+    for (int i = 0; i < 10000; ++i) {
+      checkConsistent(new BytesWritable(randomBytes()),
+                      new BytesWritable(randomBytes()), comparator, prefix);
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.net.NetUtils;
+
+/**
+ * RPCInvocationBenchmark compares RPC calls naming their method and
+ * parameter classes with calls using method ids and compact parameters.
+ * For a few typical calls it reports the bytes of each serialized
+ * invocation and the time to write and read it back, then the time per call
+ * and the bytes received per call by a local server.
+ * Input arguments:
+ * <ul>
+ * <li>numIterations - number of invocations per call (default 1000000)</li>
+ * </ul>
+ */
+public class RPCInvocationBenchmark {
+
+  public interface BenchmarkProtocol extends VersionedProtocol {
+    public static final long versionID = 1L;
+
+    long getLength(String path, long offset, long length) throws IOException;
+    int add(int[] values) throws IOException;
+    Writable echo(Writable value) throws IOException;
+  }
+
+  public static class BenchmarkImpl implements BenchmarkProtocol {
+    public long getProtocolVersion(String protocol, long clientVersion) {
+      return versionID;
+    }
+
+    public long getLength(String path, long offset, long length) {
+      return length;
+    }
+
+    public int add(int[] values) {
+      int sum = 0;
+      for (int value : values) {
+        sum += value;
+      }
+      return sum;
+    }
+
+    public Writable echo(Writable value) {
+      return value;
+    }
+  }
+
+  private static final Configuration conf = new Configuration();
+
+  private static Object[][] calls() throws NoSuchMethodException {
+    Class<BenchmarkProtocol> p = BenchmarkProtocol.class;
+    return new Object[][] {
+      {p.getMethod("getLength", String.class, Long.TYPE, Long.TYPE),
+       new Object[] {"/user/foo/part-00000", 0L, 128L << 20}},
+      {p.getMethod("add", int[].class),
+       new Object[] {new int[] {1, 2, 3, 4, 5, 6, 7, 8}}},
+      {p.getMethod("echo", Writable.class),
+       new Object[] {new LongWritable(42)}},
+    };
+  }
+
+  private static void serialization(int numIterations) throws Exception {
+    RPC.MethodTable.register(BenchmarkImpl.class);
+    RPC.MethodTable table = RPC.MethodTable.get(BenchmarkProtocol.class);
+    DataOutputBuffer out = new DataOutputBuffer();
+    DataInputBuffer in = new DataInputBuffer();
+    for (Object[] call : calls()) {
+      Method method = (Method)call[0];
+      Object[] args = (Object[])call[1];
+      for (boolean compact : new boolean[] {false, true}) {
+        RPC.Invocation invocation = compact
+          ? new RPC.Invocation(table, method, args)
+          : new RPC.Invocation(method, args);
+        invocation.setConf(conf);
+        RPC.Invocation read = new RPC.Invocation();
+        read.setConf(conf);
+        int bytes = 0;
+        for (int pass = 0; pass < 2; pass++) {       // warm up, then measure
+          long start = System.nanoTime();
+          for (int i = 0; i < numIterations; i++) {
+            out.reset();
+            invocation.write(out);
+            in.reset(out.getData(), out.getLength());
+            read.readFields(in);
+          }
+          bytes = out.getLength();
+          if (pass == 1) {
+            System.out.printf("%-10s %-8s %4d bytes %8.3f us/invocation%n",
+                method.getName(), compact ? "ids" : "names", bytes,
+                (System.nanoTime() - start) / 1000.0 / numIterations);
+          }
+        }
+      }
+    }
+  }
+
+  private static void calls(int numIterations) throws Exception {
+    Server server = RPC.getServer(new BenchmarkImpl(), "0.0.0.0", 0, conf);
+    server.start();
+    try {
+      InetSocketAddress addr = NetUtils.getConnectAddress(server);
+      for (boolean compact : new boolean[] {false, true}) {
+        Configuration clientConf = new Configuration(conf);
+        clientConf.setBoolean(CommonConfigurationKeys.IPC_CLIENT_METHOD_IDS_KEY,
+                              compact);
+        BenchmarkProtocol proxy = (BenchmarkProtocol)RPC.getProxy(
+            BenchmarkProtocol.class, BenchmarkProtocol.versionID, addr,
+            clientConf);
+        try {
+          Text value = new Text("foo");
+          long startBytes = server.rpcMetrics.receivedBytes
+            .getCurrentIntervalValue();
+          long start = System.nanoTime();
+          for (int i = 0; i < numIterations; i++) {
+            proxy.getLength("/user/foo/part-00000", i, 1024);
+            proxy.echo(value);
+          }
+          long elapsed = System.nanoTime() - start;
+          long bytes = server.rpcMetrics.receivedBytes
+            .getCurrentIntervalValue() - startBytes;
+          System.out.printf("%-19s %6.1f bytes %8.3f us/call%n",
+              compact ? "rpc with ids" : "rpc with names",
+              bytes / (2.0 * numIterations), elapsed / 2000.0 / numIterations);
+        } finally {
+          RPC.stopProxy(proxy);
+        }
+      }
+    } finally {
+      server.stop();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numIterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    serialization(numIterations);
+    calls(Math.max(1, numIterations / 50));
+  }
+}
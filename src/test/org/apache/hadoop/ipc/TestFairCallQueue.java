@@ -0,0 +1,204 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.ipc.TestRPC.TestImpl;
+import org.apache.hadoop.ipc.TestRPC.TestProtocol;
+import org.apache.hadoop.metrics.spi.NullContext;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
+import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.security.UserGroupInformation;
+
+/**
+ * Unit tests for {@link FairCallQueue}.
+ */
+public class TestFairCallQueue extends TestCase {
+
+  /** A priority protocol for the tests */
+  interface PriorityProtocol {}
+
+  private static class FakeCall implements Schedulable {
+    private final UserGroupInformation ugi;
+    private final Class<?> protocol;
+    private int level;
+
+    FakeCall(String user, Class<?> protocol) {
+      this.ugi = UserGroupInformation.createRemoteUser(user);
+      this.protocol = protocol;
+    }
+
+    public UserGroupInformation getUserGroupInformation() {
+      return ugi;
+    }
+
+    public Class<?> getProtocol() {
+      return protocol;
+    }
+
+    public int getPriorityLevel() {
+      return level;
+    }
+
+    public void setPriorityLevel(int level) {
+      this.level = level;
+    }
+  }
+
+  private static Configuration newConf() {
+    Configuration conf = new Configuration();
+    conf.set(CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_PRIORITY_PROTOCOLS_KEY,
+             PriorityProtocol.class.getName());
+    conf.setLong(
+        CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_FAIR_DECAY_PERIOD_KEY,
+        3600 * 1000L);
+    return conf;
+  }
+
+  public void testLevels() throws Exception {
+    FairCallQueue<FakeCall> queue = new FairCallQueue<FakeCall>(100, newConf());
+    assertEquals(5, queue.getNumLevels());
+
+    // a user making all the calls ends up in the lowest level
+    for (int i = 0; i < 10; i++) {
+      queue.put(new FakeCall("heavy", Object.class));
+    }
+    assertEquals(10, queue.size(4));
+
+    // a light user stays in the highest fair level
+    FakeCall light = new FakeCall("light", Object.class);
+    queue.put(light);
+    assertEquals(1, light.getPriorityLevel());
+
+    // priority protocols go to level 0 whoever makes the call
+    FakeCall priority = new FakeCall("heavy", PriorityProtocol.class);
+    queue.put(priority);
+    assertEquals(0, priority.getPriorityLevel());
+
+    assertEquals(12, queue.size());
+    assertSame(priority, queue.peek());
+    assertSame(priority, queue.take());
+    assertSame(light, queue.take());
+    assertEquals(10, queue.size());
+  }
+
+  public void testWeightedRoundRobin() throws Exception {
+    FairCallQueue<FakeCall> queue = new FairCallQueue<FakeCall>(1000, newConf());
+    // make "heavy" the only user the queue has seen so far
+    for (int i = 0; i < 100; i++) {
+      queue.put(new FakeCall("heavy", Object.class));
+    }
+    // "light" makes fewer than 1/8 of the calls
+    for (int i = 0; i < 10; i++) {
+      queue.put(new FakeCall("light", Object.class));
+    }
+    assertEquals(10, queue.size(1));
+    assertEquals(100, queue.size(4));
+
+    // level 1 gets 8 turns for every turn of level 4, until it runs dry
+    List<FakeCall> taken = new ArrayList<FakeCall>();
+    queue.drainTo(taken, 11);
+    int heavy = 0;
+    for (FakeCall call : taken) {
+      if (call.getPriorityLevel() == 4) {
+        heavy++;
+      }
+    }
+    assertTrue("heavy user was served " + heavy + " times", heavy >= 1);
+    assertTrue("heavy user was served " + heavy + " times", heavy <= 2);
+    // the heavy user is not starved
+    assertNotNull(queue.poll(1, TimeUnit.SECONDS));
+    queue.drainTo(new ArrayList<FakeCall>());
+    assertEquals(0, queue.size());
+    assertNull(queue.poll());
+    assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+  }
+
+  public void testCapacity() throws Exception {
+    // 5 levels of 2 calls each
+    FairCallQueue<FakeCall> queue = new FairCallQueue<FakeCall>(10, newConf());
+    assertEquals(10, queue.remainingCapacity());
+    assertTrue(queue.offer(new FakeCall("heavy", Object.class)));
+    assertTrue(queue.offer(new FakeCall("heavy", Object.class)));
+    // the level of the heavy user is full, others are not
+    assertFalse(queue.offer(new FakeCall("heavy", Object.class)));
+    assertFalse(queue.offer(new FakeCall("heavy", Object.class),
+                            10, TimeUnit.MILLISECONDS));
+    assertTrue(queue.offer(new FakeCall("heavy", PriorityProtocol.class)));
+    assertEquals(7, queue.remainingCapacity());
+  }
+
+  public void testDecay() throws Exception {
+    FairCallQueue<FakeCall> queue = new FairCallQueue<FakeCall>(1000, newConf());
+    for (int i = 0; i < 64; i++) {
+      queue.put(new FakeCall("heavy", Object.class));
+    }
+    for (int i = 0; i < 8; i++) {
+      queue.put(new FakeCall("light", Object.class));
+    }
+    // heavy 64 -> 8, light 8 -> 1
+    queue.decay();
+    queue.decay();
+    queue.decay();
+    for (int i = 0; i < 15; i++) {
+      queue.put(new FakeCall("light", Object.class));
+    }
+    // heavy now makes 9 of the last 25 calls rather than 65 of 88
+    FakeCall call = new FakeCall("heavy", Object.class);
+    queue.put(call);
+    assertEquals(3, call.getPriorityLevel());
+  }
+
+  public void testServerWithFairCallQueue() throws IOException {
+    Configuration conf = newConf();
+    conf.set(CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_IMPL_KEY,
+             FairCallQueue.class.getName());
+    conf.set(CommonConfigurationKeys.IPC_SERVER_CALLQUEUE_PRIORITY_PROTOCOLS_KEY,
+             TestProtocol.class.getName());
+    Server server = RPC.getServer(new TestImpl(), "0.0.0.0", 0, 2, false, conf);
+    TestProtocol proxy = null;
+    try {
+      server.start();
+      assertEquals(5, server.getCallQueueLevels());
+      InetSocketAddress addr = NetUtils.getConnectAddress(server);
+      proxy = (TestProtocol)RPC.getProxy(
+          TestProtocol.class, TestProtocol.versionID, addr, conf);
+      assertEquals("foo", proxy.echo("foo"));
+
+      server.rpcMetrics.doUpdates(new NullContext());
+      MetricsTimeVaryingRate waitTime =
+        server.rpcMetrics.callQueueLevelWaitTime[0];
+      // getProtocolVersion and echo went through the priority lane
+      assertEquals(2, waitTime.getPreviousIntervalNumOps());
+    } finally {
+      server.stop();
+      if (proxy != null) {
+        RPC.stopProxy(proxy);
+      }
+    }
+  }
+}
@@ -25,7 +25,11 @@ import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.net.NetUtils;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
@@ -248,6 +252,64 @@ public class TestIPC {
     }
   }
 	
+  @Test
+  public void testAsyncCalls() throws Exception {
+    Server server = new TestServer(5, false);
+    InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    server.start();
+    Client client = new Client(LongWritable.class, conf);
+    try {
+      Client.ConnectionId remoteId =
+        Client.ConnectionId.getConnectionId(addr, null, null, 0, conf);
+      // one thread keeps all the calls in flight
+      List<LongWritable> params = new ArrayList<LongWritable>();
+      List<Future<Writable>> futures = new ArrayList<Future<Writable>>();
+      for (int i = 0; i < 500; i++) {
+        LongWritable param = new LongWritable(RANDOM.nextLong());
+        params.add(param);
+        futures.add(client.callAsync(param, remoteId));
+      }
+      assertEquals(1, client.getConnectionIds().size());
+      for (int i = 0; i < params.size(); i++) {
+        assertEquals(params.get(i), futures.get(i).get());
+        assertTrue(futures.get(i).isDone());
+        assertFalse(futures.get(i).cancel(true));
+      }
+
+      // the value of a cancelled call is dropped
+      Future<Writable> cancelled =
+        client.callAsync(new LongWritable(1), remoteId);
+      if (cancelled.cancel(true)) {
+        assertTrue(cancelled.isCancelled());
+      }
+      LongWritable param = new LongWritable(2);
+      assertEquals(param, client.callAsync(param, remoteId).get());
+    } finally {
+      client.stop();
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testAsyncCallError() throws Exception {
+    Client client = new Client(LongWritable.class, conf);
+    InetSocketAddress address = new InetSocketAddress("127.0.0.1", 10);
+    try {
+      client.callAsync(new LongWritable(RANDOM.nextLong()),
+          Client.ConnectionId.getConnectionId(address, null, null, 0, conf))
+          .get();
+      fail("Expected an exception to have been thrown");
+    } catch (IOException e) {
+      // connection failures may be reported before the call is sent
+      assertTrue(e.getMessage().contains(address.toString()));
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+      assertTrue(e.getCause().getMessage().contains(address.toString()));
+    } finally {
+      client.stop();
+    }
+  }
+
   @Test
   public void testStandAloneClient() throws Exception {
     testParallel(10, false, 2, 4, 2, 4, 100);
@@ -18,6 +18,8 @@
 
 package org.apache.hadoop.ipc;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
@@ -30,6 +32,8 @@ import junit.framework.TestCase;
 
 import java.util.Arrays;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -38,11 +42,13 @@ import org.apache.commons.logging.*;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.io.ObjectWritable;
 import org.apache.hadoop.io.UTF8;
 import org.apache.hadoop.io.Writable;
 
 import org.apache.hadoop.metrics.MetricsRecord;
 import org.apache.hadoop.metrics.spi.NullContext;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingLong;
 import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
 import org.apache.hadoop.net.NetUtils;
 import org.apache.hadoop.security.authorize.AuthorizationException;
@@ -276,6 +282,13 @@ public class TestRPC extends TestCase {
     metrics = 
       (MetricsTimeVaryingRate)server.rpcDetailedMetrics.registry.get("ping");
     assertEquals(1, metrics.getPreviousIntervalNumOps());
+
+    // Allocations are counted per method, when the JVM keeps track of them
+    MetricsTimeVaryingLong allocated = (MetricsTimeVaryingLong)
+      server.rpcDetailedMetrics.registry.get("echoAllocatedBytes");
+    if (allocated != null) {
+      assertTrue(allocated.getPreviousIntervalValue() >= 0);
+    }
     
     String[] stringResults = proxy.echo(new String[]{"foo","bar"});
     assertTrue(Arrays.equals(stringResults, new String[]{"foo","bar"}));
@@ -506,6 +519,223 @@ public class TestRPC extends TestCase {
     new TestRPC("testnoPings").testCalls(conf);
   }
 
+  public void testCallsByMethodName() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setBoolean(CommonConfigurationKeys.IPC_CLIENT_METHOD_IDS_KEY, false);
+    new TestRPC("testCallsByMethodName").testCalls(conf);
+  }
+
+  /** A server which, like old servers, does not understand method ids. */
+  private static class NoMethodIdsServer extends RPC.Server {
+    int callsWithIds = 0;
+
+    NoMethodIdsServer() throws IOException {
+      super(new TestImpl(), conf, ADDRESS, 0);
+    }
+
+    @Override
+    public Writable call(Class<?> protocol, Writable param, long receivedTime)
+      throws IOException {
+      if (((RPC.Invocation)param).getMethod() != null) {
+        callsWithIds++;
+        throw new IOException(
+            new NoSuchMethodException(protocol.getName() + ".()").toString());
+      }
+      return super.call(protocol, param, receivedTime);
+    }
+  }
+
+  public void testFallbackToMethodNames() throws Exception {
+    NoMethodIdsServer server = new NoMethodIdsServer();
+    TestProtocol proxy = null;
+    try {
+      server.start();
+      InetSocketAddress addr = NetUtils.getConnectAddress(server);
+      proxy = (TestProtocol)RPC.getProxy(
+          TestProtocol.class, TestProtocol.versionID, addr, conf);
+      assertEquals("foo", proxy.echo("foo"));
+      assertEquals(3, proxy.add(1, 2));
+      // only the first call was tried with an id
+      assertEquals(1, server.callsWithIds);
+      try {
+        proxy.error();
+        fail("Expected an exception");
+      } catch (RemoteException e) {
+        assertTrue(e.getMessage().contains("bobo"));
+      }
+    } finally {
+      server.stop();
+      if (proxy != null) {
+        RPC.stopProxy(proxy);
+      }
+    }
+  }
+
+  public void testAsyncProxy() throws Exception {
+    Server server = RPC.getServer(new TestImpl(), ADDRESS, 0, 2, false, conf);
+    TestProtocol proxy = null;
+    try {
+      server.start();
+      InetSocketAddress addr = NetUtils.getConnectAddress(server);
+      proxy = (TestProtocol)RPC.getAsyncProxy(
+          TestProtocol.class, TestProtocol.versionID, addr, conf);
+
+      // a slow call does not hold up the calls after it
+      assertNull(RPC.getCallFuture());
+      proxy.slowPing(true);
+      Future<Object> slow = RPC.getCallFuture();
+      assertEquals(0, proxy.add(1, 2));
+      assertEquals(3, RPC.getCallFuture().get());
+      proxy.slowPing(false);
+      proxy.slowPing(false);
+      assertNull(slow.get());
+
+      Future<?>[] futures = new Future<?>[200];
+      for (int i = 0; i < futures.length; i++) {
+        assertNull(proxy.echo("foo" + i));
+        futures[i] = RPC.getCallFuture();
+      }
+      for (int i = 0; i < futures.length; i++) {
+        assertEquals("foo" + i, futures[i].get());
+      }
+
+      proxy.error();
+      try {
+        RPC.getCallFuture().get();
+        fail("Expected an exception");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof RemoteException);
+        assertTrue(e.getCause().getMessage().contains("bobo"));
+      }
+    } finally {
+      server.stop();
+      if (proxy != null) {
+        RPC.stopProxy(proxy);
+      }
+    }
+  }
+
+  /** A call by method id whose ids are chosen by the test. */
+  private static class MethodIdCall implements Writable {
+    private final int protocolId;
+    private final int methodId;
+
+    MethodIdCall(int protocolId, int methodId) {
+      this.protocolId = protocolId;
+      this.methodId = methodId;
+    }
+
+    public void write(DataOutput out) throws IOException {
+      UTF8.writeString(out, "");
+      out.writeInt(0);
+      out.writeInt(protocolId);
+      out.writeInt(methodId);
+      out.writeInt(42); // a parameter the server cannot read
+    }
+
+    public void readFields(DataInput in) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static Writable invoke(Client client, InetSocketAddress addr,
+      Writable param) throws Exception {
+    return client.call(param, addr, TestProtocol.class, null, 0, conf);
+  }
+
+  private static RPC.Invocation newInvocation(String name, Object... args)
+      throws Exception {
+    Class<?>[] parameterClasses = new Class<?>[args.length];
+    for (int i = 0; i < args.length; i++) {
+      parameterClasses[i] = args[i] instanceof Boolean
+          ? Boolean.TYPE : args[i].getClass();
+    }
+    RPC.Invocation invocation = new RPC.Invocation(
+        RPC.MethodTable.get(TestProtocol.class),
+        TestProtocol.class.getMethod(name, parameterClasses), args);
+    invocation.setConf(conf);
+    return invocation;
+  }
+
+  /**
+   * An unknown method or protocol id must fail only its own call, not the
+   * other calls on the same connection.
+   */
+  public void testUnknownMethodId() throws Exception {
+    Server server = RPC.getServer(new TestImpl(), ADDRESS, 0, 5, false, conf);
+    final Client client = new Client(ObjectWritable.class, conf);
+    try {
+      server.start();
+      final InetSocketAddress addr = NetUtils.getConnectAddress(server);
+      RPC.MethodTable table = RPC.MethodTable.get(TestProtocol.class);
+      int methodId = 0;
+      while (table.getMethod(methodId) != null) {
+        methodId++;
+      }
+      int protocolId = table.getProtocolId() + 1;
+      while (RPC.MethodTable.get(protocolId) != null) {
+        protocolId++;
+      }
+
+      // a call which stays in flight until two fast pings arrive
+      final RPC.Invocation slowPing = newInvocation("slowPing", true);
+      final AtomicReference<Throwable> slowPingError =
+        new AtomicReference<Throwable>();
+      Thread slow = new Thread() {
+        public void run() {
+          try {
+            invoke(client, addr, slowPing);
+          } catch (Throwable t) {
+            slowPingError.set(t);
+          }
+        }
+      };
+      slow.start();
+
+      Writable[] badCalls = {
+        new MethodIdCall(table.getProtocolId(), methodId),
+        new MethodIdCall(protocolId, 0)
+      };
+      for (Writable badCall : badCalls) {
+        try {
+          invoke(client, addr, badCall);
+          fail("Expected a RemoteException");
+        } catch (RemoteException e) {
+          assertTrue(e.getMessage(),
+              e.getMessage().contains("java.lang.NoSuchMethodException"));
+        }
+      }
+
+      assertEquals("foo", ((ObjectWritable)invoke(client, addr,
+          newInvocation("echo", "foo"))).get());
+      invoke(client, addr, newInvocation("slowPing", false));
+      invoke(client, addr, newInvocation("slowPing", false));
+      slow.join();
+      assertNull(slowPingError.get());
+    } finally {
+      client.stop();
+      server.stop();
+    }
+  }
+
+  public void testMethodTable() throws Exception {
+    RPC.MethodTable table = RPC.MethodTable.get(TestProtocol.class);
+    Method echoString = TestProtocol.class.getMethod("echo", String.class);
+    Method echoWritable = TestProtocol.class.getMethod("echo", Writable.class);
+    assertEquals(echoString, table.getMethod("echo", new Class[] {String.class}));
+    assertEquals(echoWritable,
+               table.getMethod("echo", new Class[] {Writable.class}));
+    assertNotNull(table.getId(echoString));
+    assertFalse(table.getId(echoString).equals(table.getId(echoWritable)));
+    assertEquals(echoString, table.getMethod(table.getId(echoString)));
+    try {
+      table.getMethod("echo", new Class[] {Integer.TYPE});
+      fail("Expected NoSuchMethodException");
+    } catch (NoSuchMethodException e) {
+      // expected
+    }
+  }
+
   /**
    * Count the number of threads that have a stack frame containing
    * the given string
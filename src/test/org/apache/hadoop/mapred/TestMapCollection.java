@@ -44,6 +44,7 @@ public class TestMapCollection extends TestCase {
 
     private final byte c = (byte)('K' & 0xFF);
     static private boolean pedantic = false;
+    static private int writes = 0;
     protected int expectedlen;
 
     public void configure(JobConf conf) {
@@ -93,6 +94,7 @@ public class TestMapCollection extends TestCase {
     }
 
     public void write(DataOutput out) throws IOException {
+      ++writes;
       if (expectedlen != 0) {
         if (expectedlen > 1024) {
           byte[] b = new byte[expectedlen];
@@ -244,9 +246,17 @@ public class TestMapCollection extends TestCase {
   private static void runTest(String name, int keylen, int vallen,
       int records, int ioSortMB, float recPer, float spillPer,
       boolean pedantic) throws Exception {
+    runTest(name, keylen, vallen, records, ioSortMB, ioSortMB, recPer,
+            spillPer, pedantic);
+  }
+
+  private static RunningJob runTest(String name, int keylen, int vallen,
+      int records, int ioSortMB, int ioSortMaxMB, float recPer,
+      float spillPer, boolean pedantic) throws Exception {
     JobConf conf = new JobConf(new Configuration(), SpillMapper.class);
 
     conf.setInt("io.sort.mb", ioSortMB);
+    conf.setInt("io.sort.max.mb", ioSortMaxMB);
     conf.set("io.sort.record.percent", Float.toString(recPer));
     conf.set("io.sort.spill.percent", Float.toString(spillPer));
 
@@ -265,7 +275,7 @@ public class TestMapCollection extends TestCase {
     conf.setMapOutputValueClass(ValWritable.class);
 
     LOG.info("Running " + name);
-    JobClient.runJob(conf);
+    return JobClient.runJob(conf);
   }
 
   private static void runTest(String name, int keylen, int vallen, int records,
@@ -293,6 +303,178 @@ public class TestMapCollection extends TestCase {
     runTest("lt50perspill", 100, 100, 10000, 1, 0.05f, 0.3f, true);
   }
 
+  public void testGrowBuffer() throws Exception {
+    // records larger than io.sort.mb are collected in the grown buffer
+    long fixed = runTest("largerecfixed", 100, 1024*1024, 5, 1, 1, 0.05f,
+        .8f, false).getCounters().findCounter(
+            Task.Counter.SPILLED_RECORDS).getValue();
+    KeyWritable.writes = 0;
+    long grown = runTest("largerecgrown", 100, 1024*1024, 5, 1, 16, 0.05f,
+        .8f, false).getCounters().findCounter(
+            Task.Counter.SPILLED_RECORDS).getValue();
+    assertTrue(fixed + " records spilled without growth, " + grown +
+               " with", grown < fixed);
+    // growing the buffer keeps the bytes already serialized
+    assertEquals(2 * 5, KeyWritable.writes);
+    // buffers growing while records wrap and spills are written
+    runTest("growwrap", 128, 896, 10000, 1, 4, 0.05f, .8f, true);
+    runTest("growrecords", 1, 1, 100000, 1, 8, 0.01f, .8f, true);
+    runTest("growzerokeyval", 0, 0, 100000, 1, 4, 0.01f, 1.0f, false);
+  }
+
+  private static final int SMALL_RECORDS = 50000;
+  private static final int LARGE_RECORDS = 10000;
+
+  /** The value of the record with the given key. */
+  private static void fillValue(BytesWritable value, int i) {
+    value.setSize(i < SMALL_RECORDS ? 10 : 500 + i % 100);
+    byte[] b = value.getBytes();
+    for (int j = 0; j < value.getLength(); ++j) {
+      b[j] = (byte)(i + j);
+    }
+  }
+
+  /**
+   * Emits small records, so that spills are started by the record
+   * accounting and wrap the data buffer, and then large records, so that
+   * the data buffer fills up and grows.
+   */
+  public static class GrowingRecordMapper
+      implements Mapper<NullWritable,NullWritable,Text,BytesWritable> {
+
+    public void configure(JobConf job) { }
+
+    public void map(NullWritable key, NullWritable value,
+        OutputCollector<Text,BytesWritable> out, Reporter reporter)
+        throws IOException {
+      Text k = new Text();
+      BytesWritable v = new BytesWritable();
+      for (int i = 0; i < SMALL_RECORDS + LARGE_RECORDS; ++i) {
+        k.set(String.format("%08d", i));
+        fillValue(v, i);
+        out.collect(k, v);
+      }
+    }
+
+    public void close() { }
+  }
+
+  public static class GrowingRecordReducer
+      implements Reducer<Text,BytesWritable,NullWritable,NullWritable> {
+
+    private int next = 0;
+    private final BytesWritable expected = new BytesWritable();
+
+    public void configure(JobConf job) { }
+
+    public void reduce(Text key, Iterator<BytesWritable> values,
+        OutputCollector<NullWritable,NullWritable> out, Reporter reporter) {
+      assertEquals(String.format("%08d", next), key.toString());
+      fillValue(expected, next);
+      assertEquals(expected, values.next());
+      assertFalse(values.hasNext());
+      ++next;
+    }
+
+    public void close() {
+      assertEquals(SMALL_RECORDS + LARGE_RECORDS, next);
+    }
+  }
+
+  public void testGrowWrappedBuffer() throws Exception {
+    // the buffer grows after spills have wrapped the records around its end
+    JobConf conf = new JobConf(TestMapCollection.class);
+    conf.setInt("io.sort.mb", 1);
+    conf.setInt("io.sort.max.mb", 4);
+    conf.setNumMapTasks(1);
+    conf.setNumReduceTasks(1);
+    conf.setInputFormat(FakeIF.class);
+    conf.setOutputFormat(NullOutputFormat.class);
+    conf.setMapperClass(GrowingRecordMapper.class);
+    conf.setReducerClass(GrowingRecordReducer.class);
+    conf.setMapOutputKeyClass(Text.class);
+    conf.setMapOutputValueClass(BytesWritable.class);
+    assertTrue(JobClient.runJob(conf).isSuccessful());
+  }
+
+  private static final int WRAPPED_KEY_RECORDS = 11000;
+  private static final int WRAPPED_KEY_LENGTH = 900 * 1024;
+
+  /** The key of the record with the given index. */
+  private static void fillKey(Text key, int i) {
+    String k = String.format("%08d", i);
+    if (i < WRAPPED_KEY_RECORDS) {
+      key.set(k);
+    } else {
+      byte[] b = new byte[WRAPPED_KEY_LENGTH];
+      Arrays.fill(b, (byte)'K');
+      System.arraycopy(k.getBytes(), 0, b, 0, k.length());
+      key.set(b);
+    }
+  }
+
+  /**
+   * Emits small records, so that spills are started by the record
+   * accounting, and then a key too large for the space left before the
+   * end of the data buffer, so that it wraps and the buffer grows while
+   * the key is copied to its start.
+   */
+  public static class WrappedKeyMapper
+      implements Mapper<NullWritable,NullWritable,Text,NullWritable> {
+
+    public void configure(JobConf job) { }
+
+    public void map(NullWritable key, NullWritable value,
+        OutputCollector<Text,NullWritable> out, Reporter reporter)
+        throws IOException {
+      Text k = new Text();
+      for (int i = 0; i <= WRAPPED_KEY_RECORDS; ++i) {
+        fillKey(k, i);
+        out.collect(k, NullWritable.get());
+      }
+    }
+
+    public void close() { }
+  }
+
+  public static class WrappedKeyReducer
+      implements Reducer<Text,NullWritable,NullWritable,NullWritable> {
+
+    private int next = 0;
+    private final Text expected = new Text();
+
+    public void configure(JobConf job) { }
+
+    public void reduce(Text key, Iterator<NullWritable> values,
+        OutputCollector<NullWritable,NullWritable> out, Reporter reporter) {
+      fillKey(expected, next);
+      assertEquals("record " + next + " key length",
+                   expected.getLength(), key.getLength());
+      assertEquals("record " + next, expected, key);
+      ++next;
+    }
+
+    public void close() {
+      assertEquals(WRAPPED_KEY_RECORDS + 1, next);
+    }
+  }
+
+  public void testGrowWrappedKey() throws Exception {
+    // the buffer grows while a key that wrapped is copied to its start
+    JobConf conf = new JobConf(TestMapCollection.class);
+    conf.setInt("io.sort.mb", 1);
+    conf.setInt("io.sort.max.mb", 4);
+    conf.setNumMapTasks(1);
+    conf.setNumReduceTasks(1);
+    conf.setInputFormat(FakeIF.class);
+    conf.setOutputFormat(NullOutputFormat.class);
+    conf.setMapperClass(WrappedKeyMapper.class);
+    conf.setReducerClass(WrappedKeyReducer.class);
+    conf.setMapOutputKeyClass(Text.class);
+    conf.setMapOutputValueClass(NullWritable.class);
+    assertTrue(JobClient.runJob(conf).isSuccessful());
+  }
+
   public void testZeroLength() throws Exception {
     // test key/value at zero-length
     runTest("zeroval", 1, 0, 10000, true);
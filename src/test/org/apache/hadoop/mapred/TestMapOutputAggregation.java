@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.TestMapCollection.FakeIF;
+import org.apache.hadoop.mapred.lib.IdentityReducer;
+import org.apache.hadoop.mapred.lib.LongSumReducer;
+import org.apache.hadoop.mapred.lib.NullOutputFormat;
+
+/**
+ * Runs jobs whose map output is aggregated with the combiner before it is
+ * sorted and checks that the reduce sees the right totals.
+ */
+public class TestMapOutputAggregation extends TestCase {
+
+  private static final int RECORDS = 200000;
+
+  public static class CountingMapper
+      implements Mapper<NullWritable,NullWritable,Text,LongWritable> {
+
+    private int numkeys;
+
+    public void configure(JobConf job) {
+      numkeys = job.getInt("test.aggregation.keys", 100);
+    }
+
+    public void map(NullWritable key, NullWritable value,
+        OutputCollector<Text,LongWritable> out, Reporter reporter)
+        throws IOException {
+      Text k = new Text();
+      LongWritable one = new LongWritable(1);
+      for (int i = 0; i < RECORDS; ++i) {
+        k.set("key" + (i % numkeys));
+        out.collect(k, one);
+      }
+    }
+
+    public void close() { }
+  }
+
+  public static class SumCheckReducer
+      implements Reducer<Text,LongWritable,NullWritable,NullWritable> {
+
+    private int numkeys;
+    private int seen = 0;
+
+    public void configure(JobConf job) {
+      numkeys = job.getInt("test.aggregation.keys", 100);
+    }
+
+    public void reduce(Text key, Iterator<LongWritable> values,
+        OutputCollector<NullWritable,NullWritable> out, Reporter reporter) {
+      long sum = 0;
+      while (values.hasNext()) {
+        sum += values.next().get();
+      }
+      assertEquals(key.toString(), RECORDS / numkeys, sum);
+      ++seen;
+    }
+
+    public void close() {
+      assertEquals(numkeys, seen);
+    }
+  }
+
+  private static RunningJob runJob(int aggregationMB, int keys)
+      throws IOException {
+    return runJob(aggregationMB, keys, LongSumReducer.class);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static RunningJob runJob(int aggregationMB, int keys,
+      Class<? extends Reducer> combiner) throws IOException {
+    JobConf conf = new JobConf(TestMapOutputAggregation.class);
+    conf.setInt("map.aggregation.mb", aggregationMB);
+    conf.setInt("io.sort.mb", 1);
+    conf.setInt("test.aggregation.keys", keys);
+    conf.setNumMapTasks(1);
+    conf.setNumReduceTasks(1);
+    conf.setInputFormat(FakeIF.class);
+    conf.setOutputFormat(NullOutputFormat.class);
+    conf.setMapperClass(CountingMapper.class);
+    conf.setCombinerClass(combiner);
+    conf.setReducerClass(SumCheckReducer.class);
+    conf.setMapOutputKeyClass(Text.class);
+    conf.setMapOutputValueClass(LongWritable.class);
+    return JobClient.runJob(conf);
+  }
+
+  private static long getCounter(RunningJob job, Task.Counter counter)
+      throws IOException {
+    return job.getCounters().findCounter(counter).getValue();
+  }
+
+  public void testAggregation() throws IOException {
+    // every key fits in the table, so each reaches the sort buffer once
+    RunningJob job = runJob(1, 1000);
+    assertTrue(job.isSuccessful());
+    assertEquals(RECORDS,
+        getCounter(job, Task.Counter.MAP_AGGREGATE_INPUT_RECORDS));
+    assertEquals(1000,
+        getCounter(job, Task.Counter.MAP_AGGREGATE_OUTPUT_RECORDS));
+    // the map output counters still count what the map emitted
+    RunningJob plain = runJob(0, 1000);
+    assertEquals(RECORDS, getCounter(job, Task.Counter.MAP_OUTPUT_RECORDS));
+    assertEquals(getCounter(plain, Task.Counter.MAP_OUTPUT_BYTES),
+        getCounter(job, Task.Counter.MAP_OUTPUT_BYTES));
+  }
+
+  public void testTableFull() throws IOException {
+    // the table is flushed many times, the totals must still be right
+    RunningJob job = runJob(1, 50000);
+    assertTrue(job.isSuccessful());
+    assertEquals(RECORDS,
+        getCounter(job, Task.Counter.MAP_AGGREGATE_INPUT_RECORDS));
+    assertEquals(RECORDS, getCounter(job, Task.Counter.MAP_OUTPUT_RECORDS));
+  }
+
+  public void testNonReducingCombiner() throws IOException {
+    // a combiner that leaves every value is not run again for every
+    // further value of its key
+    RunningJob job = runJob(1, 100, IdentityReducer.class);
+    assertTrue(job.isSuccessful());
+    assertEquals(RECORDS,
+        getCounter(job, Task.Counter.MAP_AGGREGATE_OUTPUT_RECORDS));
+    long combined = getCounter(job, Task.Counter.COMBINE_INPUT_RECORDS);
+    assertTrue(combined + " values combined", combined < 8 * RECORDS);
+  }
+
+  public void testNoAggregation() throws IOException {
+    RunningJob job = runJob(0, 1000);
+    assertTrue(job.isSuccessful());
+    assertEquals(0,
+        getCounter(job, Task.Counter.MAP_AGGREGATE_INPUT_RECORDS));
+    assertEquals(RECORDS, getCounter(job, Task.Counter.MAP_OUTPUT_RECORDS));
+  }
+}
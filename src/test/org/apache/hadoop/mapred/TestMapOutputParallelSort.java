@@ -0,0 +1,161 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.TestMapCollection.FakeIF;
+import org.apache.hadoop.mapred.TestMapOutputPrefixSort.OrderCheckReducer;
+import org.apache.hadoop.mapred.TestMapOutputPrefixSort.RandomKeyMapper;
+import org.apache.hadoop.mapred.lib.NullOutputFormat;
+
+/**
+ * Runs jobs whose map output is sorted and merged on several threads and
+ * checks that the reduce sees every key in order.
+ */
+public class TestMapOutputParallelSort extends TestCase {
+
+  public static class PaddedValueMapper
+      implements Mapper<NullWritable,NullWritable,Text,Text> {
+
+    private int numrecs;
+
+    public void configure(JobConf job) {
+      numrecs = job.getInt("test.prefixsort.records", 100);
+    }
+
+    public void map(NullWritable key, NullWritable value,
+        OutputCollector<Text,Text> out, Reporter reporter)
+        throws IOException {
+      Random r = new Random(numrecs);
+      Text k = new Text();
+      Text v = new Text("x");
+      for (int i = 0; i < numrecs; ++i) {
+        k.set(Integer.toString(r.nextInt(100000)));
+        out.collect(k, v);
+      }
+    }
+
+    public void close() { }
+  }
+
+  /** Joins the values of a key and pads them, so combining grows them. */
+  public static class PaddingCombiner extends MapReduceBase
+      implements Reducer<Text,Text,Text,Text> {
+    public void reduce(Text key, Iterator<Text> values,
+        OutputCollector<Text,Text> out, Reporter reporter)
+        throws IOException {
+      StringBuilder sb = new StringBuilder();
+      while (values.hasNext()) {
+        sb.append(values.next().toString());
+      }
+      sb.append("----------------");
+      out.collect(key, new Text(sb.toString()));
+    }
+  }
+
+  /** Checks the key order and counts the x of every value. */
+  public static class PaddedValueReducer extends MapReduceBase
+      implements Reducer<Text,Text,NullWritable,NullWritable> {
+
+    private int numrecs;
+    private int seen = 0;
+    private Text last = null;
+
+    public void configure(JobConf job) {
+      numrecs = job.getInt("test.prefixsort.records", 100);
+    }
+
+    public void reduce(Text key, Iterator<Text> values,
+        OutputCollector<NullWritable,NullWritable> out, Reporter reporter) {
+      if (last != null) {
+        assertTrue(last + " before " + key, last.compareTo(key) < 0);
+      } else {
+        last = new Text();
+      }
+      last.set(key);
+      while (values.hasNext()) {
+        String value = values.next().toString();
+        seen += value.replace("-", "").length();
+      }
+    }
+
+    public void close() {
+      assertEquals(numrecs, seen);
+    }
+  }
+
+  private static RunningJob runJob(int records, boolean prefix)
+      throws IOException {
+    JobConf conf = new JobConf(TestMapOutputParallelSort.class);
+    conf.setInt("map.sort.threads", 4);
+    conf.setBoolean("map.sort.key.prefix", prefix);
+    conf.setInt("io.sort.mb", 1);
+    conf.setInt("io.sort.factor", 2);
+    conf.setInt("test.prefixsort.records", records);
+    conf.setNumMapTasks(1);
+    conf.setNumReduceTasks(1);
+    conf.setInputFormat(FakeIF.class);
+    conf.setOutputFormat(NullOutputFormat.class);
+    conf.setMapperClass(RandomKeyMapper.class);
+    conf.setReducerClass(OrderCheckReducer.class);
+    conf.setMapOutputKeyClass(Text.class);
+    conf.setMapOutputValueClass(NullWritable.class);
+    return JobClient.runJob(conf);
+  }
+
+  public void testParallelSortAndMerge() throws IOException {
+    // several spills, merged in more than one pass
+    RunningJob job = runJob(100000, false);
+    assertTrue(job.isSuccessful());
+    assertTrue(job.getCounters().findCounter(
+        Task.Counter.SPILLED_RECORDS).getValue() > 200000);
+  }
+
+  public void testParallelPrefixSort() throws IOException {
+    assertTrue(runJob(100000, true).isSuccessful());
+  }
+
+  public void testSingleSpill() throws IOException {
+    assertTrue(runJob(1000, false).isSuccessful());
+  }
+
+  public void testGrowingCombiner() throws IOException {
+    // the merged segment outgrows the region reserved for it
+    JobConf conf = new JobConf(TestMapOutputParallelSort.class);
+    conf.setInt("map.sort.threads", 4);
+    conf.setInt("io.sort.mb", 1);
+    conf.setInt("test.prefixsort.records", 100000);
+    conf.setNumMapTasks(1);
+    conf.setNumReduceTasks(1);
+    conf.setInputFormat(FakeIF.class);
+    conf.setOutputFormat(NullOutputFormat.class);
+    conf.setMapperClass(PaddedValueMapper.class);
+    conf.setCombinerClass(PaddingCombiner.class);
+    conf.setReducerClass(PaddedValueReducer.class);
+    conf.setMapOutputKeyClass(Text.class);
+    conf.setMapOutputValueClass(Text.class);
+    assertTrue(JobClient.runJob(conf).isSuccessful());
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.TestMapCollection.FakeIF;
+import org.apache.hadoop.mapred.lib.NullOutputFormat;
+
+/**
+ * Runs a job whose map output is sorted with cached key prefixes and checks
+ * that the reduce sees every key in order.
+ */
+public class TestMapOutputPrefixSort extends TestCase {
+
+  private static final String[] PREFIXES = { "", "a", "common-prefix-" };
+
+  public static class RandomKeyMapper
+      implements Mapper<NullWritable,NullWritable,Text,NullWritable> {
+
+    private int numrecs;
+
+    public void configure(JobConf job) {
+      numrecs = job.getInt("test.prefixsort.records", 100);
+    }
+
+    public void map(NullWritable key, NullWritable value,
+        OutputCollector<Text,NullWritable> out, Reporter reporter)
+        throws IOException {
+      Random r = new Random(numrecs);
+      Text k = new Text();
+      for (int i = 0; i < numrecs; ++i) {
+        k.set(PREFIXES[r.nextInt(PREFIXES.length)] + r.nextInt(100000));
+        out.collect(k, NullWritable.get());
+      }
+    }
+
+    public void close() { }
+  }
+
+  public static class OrderCheckReducer
+      implements Reducer<Text,NullWritable,NullWritable,NullWritable> {
+
+    private int numrecs;
+    private int order;
+    private int seen = 0;
+    private Text last = null;
+
+    public void configure(JobConf job) {
+      numrecs = job.getInt("test.prefixsort.records", 100);
+      order = job.getOutputKeyComparator() instanceof ReverseComparator
+        ? -1 : 1;
+    }
+
+    public void reduce(Text key, Iterator<NullWritable> values,
+        OutputCollector<NullWritable,NullWritable> out, Reporter reporter) {
+      if (last != null) {
+        assertTrue(last + " before " + key, order * last.compareTo(key) < 0);
+      } else {
+        last = new Text();
+      }
+      last.set(key);
+      while (values.hasNext()) {
+        values.next();
+        ++seen;
+      }
+    }
+
+    public void close() {
+      assertEquals(numrecs, seen);
+    }
+  }
+
+  /** Inherits getPrefix() from Text.Comparator but reverses the order. */
+  public static class ReverseComparator extends Text.Comparator {
+    public int compare(byte[] b1, int s1, int l1,
+                       byte[] b2, int s2, int l2) {
+      return super.compare(b2, s2, l2, b1, s1, l1);
+    }
+  }
+
+  private static JobConf createConf(boolean prefix) {
+    JobConf conf = new JobConf(TestMapOutputPrefixSort.class);
+    conf.setBoolean("map.sort.key.prefix", prefix);
+    conf.setInt("io.sort.mb", 1);
+    conf.setInt("test.prefixsort.records", 50000);
+    conf.setNumMapTasks(1);
+    conf.setNumReduceTasks(1);
+    conf.setInputFormat(FakeIF.class);
+    conf.setOutputFormat(NullOutputFormat.class);
+    conf.setMapperClass(RandomKeyMapper.class);
+    conf.setReducerClass(OrderCheckReducer.class);
+    conf.setMapOutputKeyClass(Text.class);
+    conf.setMapOutputValueClass(NullWritable.class);
+    return conf;
+  }
+
+  public void testPrefixSort() throws IOException {
+    RunningJob job = JobClient.runJob(createConf(true));
+    assertTrue(job.isSuccessful());
+    Counters counters = job.getCounters();
+    // the records did not fit in one spill
+    assertTrue(counters.findCounter(Task.Counter.SPILLED_RECORDS).getValue()
+               > 50000);
+    assertNotNull(counters.findCounter(Task.Counter.MAP_SORT_MILLISECONDS));
+  }
+
+  public void testComparatorSort() throws IOException {
+    assertTrue(JobClient.runJob(createConf(false)).isSuccessful());
+  }
+
+  public void testSubclassedComparator() throws IOException {
+    assertNull(MapTask.getPrefixComparator(new ReverseComparator()));
+    JobConf conf = createConf(true);
+    conf.setOutputKeyComparatorClass(ReverseComparator.class);
+    assertTrue(JobClient.runJob(conf).isSuccessful());
+  }
+}
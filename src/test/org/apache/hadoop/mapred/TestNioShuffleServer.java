@@ -0,0 +1,300 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+
+import javax.crypto.SecretKey;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.security.SecureShuffleUtils;
+import org.apache.hadoop.mapreduce.security.token.JobTokenIdentifier;
+import org.apache.hadoop.mapreduce.security.token.JobTokenSecretManager;
+import org.apache.hadoop.security.token.Token;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the NIO shuffle server serves map outputs the way the
+ * MapOutputServlet does.
+ */
+public class TestNioShuffleServer {
+  private static final File TEST_DIR = new File(
+      System.getProperty("test.build.data", "/tmp"), "TestNioShuffleServer");
+  private static final String JOB_ID = "job_20091117075357176_0001";
+  private static final String MAP_ID =
+    "attempt_20091117075357176_0001_m_000000_0";
+  private static final String MAP_ID2 =
+    "attempt_20091117075357176_0001_m_000002_0";
+  private static final int NUM_REDUCES = 3;
+  private static final int SEGMENT_LENGTH = 100 * 1024;
+
+  private NioShuffleServer server;
+  private SecretKey tokenSecret;
+  private byte[] mapOutput;
+  private byte[] mapOutput2;
+
+  @Before
+  public void setUp() throws Exception {
+    FileUtil.fullyDelete(TEST_DIR);
+    JobConf conf = new JobConf();
+    conf.set("mapred.local.dir", new File(TEST_DIR, "local").getPath());
+
+    TaskTracker tt = new TaskTracker();
+    tt.setIndexCache(new IndexCache(conf));
+    tt.setTaskController(new DefaultTaskController());
+    JobID jobId = JobID.forName(JOB_ID);
+    TaskTracker.RunningJob rjob = new TaskTracker.RunningJob(jobId);
+    rjob.jobConf = new JobConf(conf);
+    rjob.jobConf.setUser(System.getProperty("user.name"));
+    tt.runningJobs.put(jobId, rjob);
+    JobTokenSecretManager secretManager = new JobTokenSecretManager();
+    Token<JobTokenIdentifier> token = new Token<JobTokenIdentifier>(
+        new JobTokenIdentifier(new Text(JOB_ID)), secretManager);
+    tt.getJobTokenSecretManager().addTokenForJob(JOB_ID, token);
+    tokenSecret = JobTokenSecretManager.createSecretKey(token.getPassword());
+
+    mapOutput = writeMapOutput(conf, rjob.jobConf.getUser(), MAP_ID, 0);
+    mapOutput2 = writeMapOutput(conf, rjob.jobConf.getUser(), MAP_ID2, 7);
+
+    server = new NioShuffleServer(tt, conf,
+        new LocalDirAllocator("mapred.local.dir"), "127.0.0.1", 0);
+    server.start();
+  }
+
+  /** Write a map output with one segment per reduce. */
+  private static byte[] writeMapOutput(JobConf conf, String user,
+      String mapId, int seed) throws IOException {
+    String outputDir =
+      TaskTracker.getIntermediateOutputDir(user, JOB_ID, mapId);
+    File dir = new File(new File(TEST_DIR, "local"), outputDir);
+    assertTrue(dir.mkdirs());
+    byte[] data = new byte[NUM_REDUCES * SEGMENT_LENGTH];
+    SpillRecord index = new SpillRecord(NUM_REDUCES);
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i * 31 + i / SEGMENT_LENGTH + seed);
+    }
+    for (int r = 0; r < NUM_REDUCES; r++) {
+      index.putIndex(new IndexRecord((long) r * SEGMENT_LENGTH,
+          SEGMENT_LENGTH + r, SEGMENT_LENGTH), r);
+    }
+    FileOutputStream out = new FileOutputStream(new File(dir, "file.out"));
+    out.write(data);
+    out.close();
+    index.writeToFile(new Path(new File(dir, "file.out.index").getPath()),
+                      conf);
+    return data;
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (server != null) {
+      server.stop();
+    }
+    FileUtil.fullyDelete(TEST_DIR);
+  }
+
+  private URL getMapOutputURL(String mapId, int reduce) throws IOException {
+    return new URL("http://127.0.0.1:" + server.getPort() +
+        "/mapOutput?job=" + JOB_ID + "&map=" + mapId + "&reduce=" + reduce);
+  }
+
+  private String hash(URL url) throws IOException {
+    return SecureShuffleUtils.hashFromString(
+        SecureShuffleUtils.buildMsgFrom(url), tokenSecret);
+  }
+
+  private void assertSegment(int reduce, byte[] data) {
+    assertSegment(mapOutput, reduce, data);
+  }
+
+  private static void assertSegment(byte[] output, int reduce, byte[] data) {
+    byte[] expected = new byte[SEGMENT_LENGTH];
+    System.arraycopy(output, reduce * SEGMENT_LENGTH, expected, 0,
+                     SEGMENT_LENGTH);
+    assertArrayEquals("segment of reduce " + reduce, expected, data);
+  }
+
+  /** Fetch the segments the way ReduceTask does. */
+  @Test
+  public void testFetch() throws Exception {
+    for (int r = 0; r < NUM_REDUCES; r++) {
+      URL url = getMapOutputURL(MAP_ID, r);
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      String urlHash = hash(url);
+      connection.setRequestProperty(SecureShuffleUtils.HTTP_HEADER_URL_HASH,
+                                    urlHash);
+      DataInputStream in = new DataInputStream(connection.getInputStream());
+      SecureShuffleUtils.verifyReply(connection.getHeaderField(
+          SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH), urlHash, tokenSecret);
+      assertEquals(MAP_ID, connection.getHeaderField(MRConstants.FROM_MAP_TASK));
+      assertEquals(r, Integer.parseInt(
+          connection.getHeaderField(MRConstants.FOR_REDUCE_TASK)));
+      assertEquals(SEGMENT_LENGTH, Long.parseLong(
+          connection.getHeaderField(MRConstants.MAP_OUTPUT_LENGTH)));
+      assertEquals(SEGMENT_LENGTH + r, Long.parseLong(
+          connection.getHeaderField(MRConstants.RAW_MAP_OUTPUT_LENGTH)));
+      byte[] data = new byte[SEGMENT_LENGTH];
+      in.readFully(data);
+      assertEquals(-1, in.read());
+      in.close();
+      assertSegment(r, data);
+    }
+    NioShuffleServer.ShuffleMetrics metrics = server.getMetrics();
+    assertEquals(NUM_REDUCES, metrics.getSuccessOutputs());
+    assertEquals((long) NUM_REDUCES * SEGMENT_LENGTH,
+                 metrics.getOutputBytes());
+  }
+
+  /** The outputs of several maps are sent in one response. */
+  @Test
+  public void testBatchFetch() throws Exception {
+    int reduce = 1;
+    URL url = getMapOutputURL(MAP_ID + "," + MAP_ID2, reduce);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    String urlHash = hash(url);
+    connection.setRequestProperty(SecureShuffleUtils.HTTP_HEADER_URL_HASH,
+                                  urlHash);
+    DataInputStream in = new DataInputStream(connection.getInputStream());
+    SecureShuffleUtils.verifyReply(connection.getHeaderField(
+        SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH), urlHash, tokenSecret);
+    String[] mapIds = { MAP_ID, MAP_ID2 };
+    byte[][] outputs = { mapOutput, mapOutput2 };
+    for (int i = 0; i < mapIds.length; i++) {
+      ShuffleHeader header = new ShuffleHeader();
+      header.readFields(in);
+      assertEquals(mapIds[i], header.mapId);
+      assertEquals(reduce, header.forReduce);
+      assertEquals(SEGMENT_LENGTH, header.compressedLength);
+      assertEquals(SEGMENT_LENGTH + reduce, header.uncompressedLength);
+      byte[] data = new byte[SEGMENT_LENGTH];
+      in.readFully(data);
+      assertSegment(outputs[i], reduce, data);
+    }
+    assertEquals(-1, in.read());
+    in.close();
+    assertEquals(2, server.getMetrics().getSuccessOutputs());
+
+    // a lost map output fails the batch before it starts
+    String missingMap = "attempt_20091117075357176_0001_m_000001_0";
+    url = getMapOutputURL(MAP_ID + "," + missingMap, reduce);
+    connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestProperty(SecureShuffleUtils.HTTP_HEADER_URL_HASH,
+                                  hash(url));
+    assertEquals(HttpURLConnection.HTTP_GONE, connection.getResponseCode());
+    assertEquals(missingMap,
+                 connection.getHeaderField(MRConstants.FROM_MAP_TASK));
+    assertEquals(1, server.getMetrics().getFailedOutputs());
+    assertEquals(2, server.getMetrics().getSuccessOutputs());
+  }
+
+  /** Requests sent back to back over one connection are all answered. */
+  @Test
+  public void testKeepAlive() throws Exception {
+    Socket s = new Socket("127.0.0.1", server.getPort());
+    try {
+      OutputStream out = s.getOutputStream();
+      StringBuilder requests = new StringBuilder();
+      for (int r = 0; r < NUM_REDUCES; r++) {
+        URL url = getMapOutputURL(MAP_ID, r);
+        requests.append("GET ").append(url.getFile()).append(" HTTP/1.1\r\n")
+          .append("Host: 127.0.0.1\r\n")
+          .append(SecureShuffleUtils.HTTP_HEADER_URL_HASH).append(": ")
+          .append(hash(url)).append("\r\n\r\n");
+      }
+      out.write(requests.toString().getBytes("ISO-8859-1"));
+      out.flush();
+
+      DataInputStream in = new DataInputStream(s.getInputStream());
+      for (int r = 0; r < NUM_REDUCES; r++) {
+        assertEquals("HTTP/1.1 200 OK", readLine(in));
+        long length = -1;
+        for (String line = readLine(in); line.length() > 0;
+             line = readLine(in)) {
+          if (line.startsWith("Content-Length: ")) {
+            length = Long.parseLong(line.substring(16));
+          } else if (line.startsWith("Connection: ")) {
+            assertEquals("Connection: keep-alive", line);
+          }
+        }
+        assertEquals(SEGMENT_LENGTH, length);
+        byte[] data = new byte[SEGMENT_LENGTH];
+        in.readFully(data);
+        assertSegment(r, data);
+      }
+      assertEquals(1, server.getMetrics().getConnections());
+    } finally {
+      s.close();
+    }
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    int c;
+    while ((c = in.read()) != '\n') {
+      if (c < 0) {
+        throw new IOException("connection closed");
+      }
+      if (c != '\r') {
+        sb.append((char) c);
+      }
+    }
+    return sb.toString();
+  }
+
+  /** Unauthenticated requests and missing outputs get errors. */
+  @Test
+  public void testErrors() throws Exception {
+    URL url = getMapOutputURL(MAP_ID, 0);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestProperty(SecureShuffleUtils.HTTP_HEADER_URL_HASH,
+                                  "bogus");
+    assertEquals(HttpURLConnection.HTTP_UNAUTHORIZED,
+                 connection.getResponseCode());
+
+    String missingMap = "attempt_20091117075357176_0001_m_000001_0";
+    url = getMapOutputURL(missingMap, 0);
+    connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestProperty(SecureShuffleUtils.HTTP_HEADER_URL_HASH,
+                                  hash(url));
+    try {
+      connection.getInputStream();
+      fail("fetched output of a map that does not exist");
+    } catch (IOException ie) {
+      assertEquals(HttpURLConnection.HTTP_GONE, connection.getResponseCode());
+    }
+    assertEquals(1, server.getMetrics().getFailedOutputs());
+  }
+}
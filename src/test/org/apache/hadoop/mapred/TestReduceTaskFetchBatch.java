@@ -0,0 +1,368 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.http.HttpServer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Task.TaskReporter;
+import org.apache.hadoop.mapreduce.security.token.JobTokenIdentifier;
+import org.apache.hadoop.mapreduce.security.token.JobTokenSecretManager;
+import org.apache.hadoop.security.token.Token;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Runs the shuffle of a reduce against a MapOutputServlet with
+ * mapred.reduce.shuffle.fetch.batch.size > 1, and checks that map outputs
+ * that fail in a batch are retried and blamed the way single fetches are.
+ */
+public class TestReduceTaskFetchBatch {
+  private static final File TEST_DIR = new File(
+      System.getProperty("test.build.data", "/tmp"),
+      "TestReduceTaskFetchBatch");
+  private static final String JOB_ID = "job_20091117075357176_0001";
+  private static final int NUM_MAPS = 8;
+  private static final int BATCH_SIZE = 4;
+  private static final int RECORDS = 100;
+
+  private static String[] mapIds;
+  private static long[] partLengths;
+
+  /** map ids requested from the servlet, one entry per request */
+  private static final List<String> requests = new ArrayList<String>();
+  /** map whose first request gets a 410 naming it */
+  private static String lostMap;
+  /** map whose segment is cut short the first time it is batched */
+  private static String cutMap;
+
+  private HttpServer server;
+  private Token<JobTokenIdentifier> token;
+
+  /**
+   * Serves map outputs like the MapOutputServlet, except that it loses
+   * {@link #lostMap} once and cuts the response in the middle of the
+   * segment of {@link #cutMap} once.
+   */
+  public static class FlakyMapOutputServlet
+      extends TaskTracker.MapOutputServlet {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response
+                      ) throws ServletException, IOException {
+      String maps = request.getParameter("map");
+      List<String> ids = Arrays.asList(
+          maps.split(ShuffleHeader.MAP_ID_SEPARATOR));
+      synchronized (requests) {
+        requests.add(maps);
+        if (lostMap != null && ids.contains(lostMap)) {
+          response.setHeader(MRConstants.FROM_MAP_TASK, lostMap);
+          response.sendError(HttpServletResponse.SC_GONE);
+          lostMap = null;
+          return;
+        }
+        if (cutMap != null && ids.size() > 1 && ids.contains(cutMap)) {
+          response = new CutResponse(response, getCutOffset(ids, cutMap));
+          cutMap = null;
+        }
+      }
+      super.doGet(request, response);
+    }
+  }
+
+  /** The offset in a batched response of the middle of a map's segment. */
+  private static long getCutOffset(List<String> ids, String map)
+      throws IOException {
+    long offset = 0;
+    for (String id : ids) {
+      int i = Arrays.asList(mapIds).indexOf(id);
+      DataOutputBuffer header = new DataOutputBuffer();
+      new ShuffleHeader(id, partLengths[i], partLengths[i], 0).write(header);
+      offset += header.getLength();
+      if (id.equals(map)) {
+        return offset + partLengths[i] / 2;
+      }
+      offset += partLengths[i];
+    }
+    throw new IllegalArgumentException(map + " not in " + ids);
+  }
+
+  /** A response that fails once a number of bytes have been sent. */
+  private static class CutResponse extends HttpServletResponseWrapper {
+    private final long limit;
+
+    CutResponse(HttpServletResponse response, long limit) {
+      super(response);
+      this.limit = limit;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      final ServletOutputStream out = super.getOutputStream();
+      return new ServletOutputStream() {
+        private long written = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+          write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          if (written + len > limit) {
+            out.write(b, off, (int) (limit - written));
+            out.flush();
+            throw new IOException("Cut the response after " + limit +
+                                  " bytes");
+          }
+          out.write(b, off, len);
+          written += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+          out.flush();
+        }
+      };
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    FileUtil.fullyDelete(TEST_DIR);
+    requests.clear();
+    lostMap = null;
+    cutMap = null;
+
+    JobConf conf = new JobConf();
+    conf.set("mapred.local.dir", new File(TEST_DIR, "tt").getPath());
+    TaskTracker tt = new TaskTracker();
+    tt.setIndexCache(new IndexCache(conf));
+    tt.setTaskController(new DefaultTaskController());
+    JobID jobId = JobID.forName(JOB_ID);
+    TaskTracker.RunningJob rjob = new TaskTracker.RunningJob(jobId);
+    rjob.jobConf = new JobConf(conf);
+    rjob.jobConf.setUser(System.getProperty("user.name"));
+    tt.runningJobs.put(jobId, rjob);
+    JobTokenSecretManager secretManager = new JobTokenSecretManager();
+    token = new Token<JobTokenIdentifier>(
+        new JobTokenIdentifier(new Text(JOB_ID)), secretManager);
+    tt.getJobTokenSecretManager().addTokenForJob(JOB_ID, token);
+
+    mapIds = new String[NUM_MAPS];
+    partLengths = new long[NUM_MAPS];
+    for (int i = 0; i < NUM_MAPS; i++) {
+      mapIds[i] = new TaskAttemptID(new TaskID(jobId, true, i), 0).toString();
+      partLengths[i] = writeMapOutput(conf, rjob.jobConf.getUser(), i);
+    }
+
+    server = new HttpServer("task", "127.0.0.1", 0, true, conf);
+    server.setAttribute("task.tracker", tt);
+    server.setAttribute("conf", conf);
+    server.setAttribute("local.file.system", FileSystem.getLocal(conf));
+    server.setAttribute("log", TaskTracker.LOG);
+    server.setAttribute("localDirAllocator",
+                        new LocalDirAllocator("mapred.local.dir"));
+    server.setAttribute("shuffleServerMetrics",
+                        tt.new ShuffleServerMetrics(conf));
+    server.addInternalServlet("mapOutput", "/mapOutput",
+                              FlakyMapOutputServlet.class);
+    server.start();
+  }
+
+  /**
+   * Write the output of a map with a single partition holding RECORDS
+   * records.
+   * @return the length of the partition
+   */
+  private static long writeMapOutput(JobConf conf, String user, int map)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    IFile.Writer<Text, Text> writer = new IFile.Writer<Text, Text>(conf,
+        new FSDataOutputStream(bytes, null), Text.class, Text.class,
+        null, null);
+    char[] value = new char[100];
+    Arrays.fill(value, (char) ('a' + map));
+    for (int i = 0; i < RECORDS; i++) {
+      writer.append(new Text(String.format("key%05d", i)),
+                    new Text(new String(value)));
+    }
+    writer.close();
+
+    File dir = new File(new File(TEST_DIR, "tt"),
+        TaskTracker.getIntermediateOutputDir(user, JOB_ID, mapIds[map]));
+    assertTrue(dir.mkdirs());
+    FileOutputStream out = new FileOutputStream(new File(dir, "file.out"));
+    out.write(bytes.toByteArray());
+    out.close();
+    SpillRecord index = new SpillRecord(1);
+    index.putIndex(new IndexRecord(0, writer.getRawLength(),
+                                   writer.getCompressedLength()), 0);
+    index.writeToFile(new Path(new File(dir, "file.out.index").getPath()),
+                      conf);
+    return writer.getCompressedLength();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (server != null) {
+      server.stop();
+    }
+    FileUtil.fullyDelete(TEST_DIR);
+  }
+
+  /** Map completion events for every map, all on the server. */
+  private TaskUmbilicalProtocol getUmbilical() throws IOException {
+    final TaskCompletionEvent[] events = new TaskCompletionEvent[NUM_MAPS];
+    for (int i = 0; i < NUM_MAPS; i++) {
+      events[i] = new TaskCompletionEvent(i, TaskAttemptID.forName(mapIds[i]),
+          i, true, TaskCompletionEvent.Status.SUCCEEDED,
+          "http://localhost:" + server.getPort());
+    }
+    TaskUmbilicalProtocol umbilical = mock(TaskUmbilicalProtocol.class);
+    when(umbilical.getMapCompletionEvents(any(JobID.class), anyInt(),
+        anyInt(), any(TaskAttemptID.class), any(JvmContext.class)))
+      .thenAnswer(new Answer<MapTaskCompletionEventsUpdate>() {
+        public MapTaskCompletionEventsUpdate answer(InvocationOnMock inv) {
+          int fromIndex = (Integer) inv.getArguments()[1];
+          return new MapTaskCompletionEventsUpdate(fromIndex == 0
+              ? events : new TaskCompletionEvent[0], false);
+        }
+      });
+    return umbilical;
+  }
+
+  /**
+   * Run the shuffle of reduce 0.
+   * @return the maps reported to the JobTracker as failing
+   */
+  private List<TaskAttemptID> shuffle(JobConf conf) throws Exception {
+    conf.set("mapred.local.dir", new File(TEST_DIR, "reduce").getPath());
+    conf.setInt("mapred.reduce.shuffle.fetch.batch.size", BATCH_SIZE);
+    conf.setInt("mapred.reduce.parallel.copies", 2);
+    conf.setInt("mapreduce.reduce.shuffle.maxfetchfailures", 1);
+    conf.setMapOutputKeyClass(Text.class);
+    conf.setMapOutputValueClass(Text.class);
+    TaskAttemptID reduceId = new TaskAttemptID(
+        new TaskID(JobID.forName(JOB_ID), false, 0), 0);
+    ReduceTask reduce = new ReduceTask(
+        new File(TEST_DIR, "job.xml").getPath(), reduceId, 0, NUM_MAPS, 1);
+    reduce.setConf(conf);
+    reduce.setJobTokenSecret(
+        JobTokenSecretManager.createSecretKey(token.getPassword()));
+    reduce.getProgress().addPhase("copy");
+
+    ReduceTask.ReduceCopier<Text, Text> copier =
+      reduce.new ReduceCopier<Text, Text>(getUmbilical(), conf,
+                                          mock(TaskReporter.class));
+    assertTrue("shuffle failed", copier.fetchOutputs());
+
+    long bytes = 0;
+    for (long length : partLengths) {
+      bytes += length;
+    }
+    assertEquals("every map output is counted once", bytes,
+        reduce.getCounters().findCounter(
+            Task.Counter.REDUCE_SHUFFLE_BYTES).getValue());
+    return reduce.taskStatus.getFetchFailedMaps();
+  }
+
+  /** The number of map outputs requested, over all requests. */
+  private static int getRequestedOutputs() {
+    int n = 0;
+    for (String maps : requests) {
+      n += maps.split(ShuffleHeader.MAP_ID_SEPARATOR).length;
+    }
+    return n;
+  }
+
+  @Test(timeout=120000)
+  public void testBatchFetch() throws Exception {
+    List<TaskAttemptID> failed = shuffle(new JobConf());
+    assertTrue("unexpected failures " + failed, failed.isEmpty());
+    assertEquals(requests.toString(), NUM_MAPS, getRequestedOutputs());
+    assertTrue(requests.toString(), requests.size() < NUM_MAPS);
+  }
+
+  @Test(timeout=120000)
+  public void testFailuresInBatch() throws Exception {
+    // the batch holding one map is refused with a 410 naming that map,
+    // and a later batch is cut in the middle of the segment of another
+    lostMap = mapIds[1];
+    cutMap = mapIds[NUM_MAPS - 2];
+    List<TaskAttemptID> failed = shuffle(new JobConf());
+
+    // only the maps that failed are reported, not the ones retried with them
+    Set<TaskAttemptID> expected = new HashSet<TaskAttemptID>();
+    expected.add(TaskAttemptID.forName(mapIds[1]));
+    expected.add(TaskAttemptID.forName(mapIds[NUM_MAPS - 2]));
+    assertEquals(requests.toString(), expected,
+                 new HashSet<TaskAttemptID>(failed));
+  }
+
+  @Test(timeout=120000)
+  public void testReserveClosesBatch() throws Exception {
+    // shuffle memory for only a few outputs, merged only when a copier
+    // has to wait for memory
+    JobConf conf = new JobConf();
+    long memory = 0;
+    for (int i = 0; i < BATCH_SIZE + 1; i++) {
+      memory += partLengths[i];
+    }
+    conf.setInt("mapred.job.reduce.total.mem.bytes", (int) memory);
+    conf.setFloat("mapred.job.shuffle.input.buffer.percent", 1.0f);
+    conf.setFloat("mapred.job.shuffle.merge.percent", 1.0f);
+    List<TaskAttemptID> failed = shuffle(conf);
+    assertTrue("unexpected failures " + failed, failed.isEmpty());
+    // the output that waited for memory was fetched again on its own, and
+    // the ones after it in its batch were left for a later request
+    assertTrue(requests.toString(), getRequestedOutputs() > NUM_MAPS);
+  }
+}
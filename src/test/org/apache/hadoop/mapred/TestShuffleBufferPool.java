@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the slab sizes of the shuffle buffer pool and that released
+ * buffers are reused, trimmed and dropped on close.
+ */
+public class TestShuffleBufferPool extends TestCase {
+
+  public void testSlabSize() {
+    assertEquals(0, ShuffleBufferPool.getSlabSize(0));
+    assertEquals(4096, ShuffleBufferPool.getSlabSize(4096));
+    assertEquals(4608, ShuffleBufferPool.getSlabSize(4097));
+    assertEquals(5120, ShuffleBufferPool.getSlabSize(5000));
+    assertEquals(8192, ShuffleBufferPool.getSlabSize(8192));
+    assertEquals(9216, ShuffleBufferPool.getSlabSize(8193));
+    for (int size = 4097; size < 1 << 20; size += 997) {
+      int slabSize = ShuffleBufferPool.getSlabSize(size);
+      assertTrue(size + " -> " + slabSize,
+                 slabSize >= size && slabSize - size <= size / 8);
+      assertEquals(slabSize, ShuffleBufferPool.getSlabSize(slabSize));
+    }
+    assertEquals(Integer.MAX_VALUE / 2 + 1,
+                 ShuffleBufferPool.getSlabSize(Integer.MAX_VALUE / 2 + 1));
+    assertEquals(Integer.MAX_VALUE - 1,
+                 ShuffleBufferPool.getSlabSize(Integer.MAX_VALUE - 1));
+  }
+
+  public void testReuse() {
+    ShuffleBufferPool pool = new ShuffleBufferPool();
+    byte[] buffer = pool.allocate(5000);
+    assertEquals(5120, buffer.length);
+    pool.release(buffer);
+    assertEquals(5120, pool.getPooledBytes());
+    // any size in the same slab gets the pooled buffer
+    assertSame(buffer, pool.allocate(4700));
+    assertEquals(0, pool.getPooledBytes());
+    assertNotSame(buffer, pool.allocate(5000));
+
+    // small buffers are not pooled
+    byte[] small = pool.allocate(100);
+    assertEquals(100, small.length);
+    pool.release(small);
+    assertEquals(0, pool.getPooledBytes());
+  }
+
+  public void testTrimAndClose() {
+    ShuffleBufferPool pool = new ShuffleBufferPool();
+    for (int i = 0; i < 4; ++i) {
+      pool.release(new byte[8192]);
+    }
+    pool.release(new byte[16384]);
+    assertEquals(4 * 8192 + 16384, pool.getPooledBytes());
+    long dropped = pool.trim(10000);
+    assertTrue(dropped >= 10000);
+    assertEquals(4 * 8192 + 16384 - dropped, pool.getPooledBytes());
+
+    pool.close();
+    assertEquals(0, pool.getPooledBytes());
+    pool.release(new byte[8192]);
+    assertEquals(0, pool.getPooledBytes());
+  }
+}
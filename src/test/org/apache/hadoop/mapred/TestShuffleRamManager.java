@@ -0,0 +1,231 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Checks the accounting of the shuffle memory, that blocked reservations
+ * are woken up, and when the in-memory merge is triggered.
+ */
+public class TestShuffleRamManager extends TestCase {
+
+  private static final int MAX_SIZE = 100000;
+
+  private static ShuffleRamManager createRamManager() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt("mapred.job.reduce.total.mem.bytes", MAX_SIZE);
+    conf.setFloat("mapred.job.shuffle.input.buffer.percent", 1.0f);
+    conf.setFloat("mapred.job.shuffle.merge.percent", 1.0f);
+    conf.setInt("mapred.inmem.merge.threshold", 0);
+    return new ShuffleRamManager(conf);
+  }
+
+  /** An input for reserve to close if the reservation has to wait. */
+  private static InputStream newInput() {
+    return new ByteArrayInputStream(new byte[0]);
+  }
+
+  /** Waits for a thread to block, failing if it ends. */
+  private static void assertBlocked(Thread thread) throws Exception {
+    for (int i = 0; i < 100 && thread.getState() != Thread.State.WAITING;
+         ++i) {
+      Thread.sleep(10);
+    }
+    assertEquals(Thread.State.WAITING, thread.getState());
+  }
+
+  public void testSlack() throws Exception {
+    ShuffleRamManager ramManager = createRamManager();
+    assertTrue(ramManager.reserve(50000, newInput()));
+    byte[] buffer = ramManager.allocate(50000);
+    // the reservation is charged the length, the buffer is a slab
+    assertEquals(53248, buffer.length);
+    assertEquals(50000, ramManager.getReservedBytes());
+    assertEquals(3248, ramManager.getSlackBytes());
+    ramManager.closeInMemoryFile(50000);
+    ramManager.unreserve(50000, buffer);
+    assertEquals(0, ramManager.getReservedBytes());
+    assertEquals(0, ramManager.getSlackBytes());
+    assertEquals(53248, ramManager.getPooledBytes());
+
+    // a reservation takes the memory of the pooled buffer
+    assertTrue(ramManager.reserve(99000, newInput()));
+    assertEquals(0, ramManager.getPooledBytes());
+    // and leaves no room for the slack of a slab
+    buffer = ramManager.allocate(99000);
+    assertEquals(99000, buffer.length);
+    assertEquals(0, ramManager.getSlackBytes());
+    ramManager.closeInMemoryFile(99000);
+    ramManager.unreserve(99000, buffer);
+    assertEquals(0, ramManager.getReservedBytes());
+    assertEquals(0, ramManager.getPooledBytes());
+  }
+
+  public void testConcurrentReservations() throws Exception {
+    final ShuffleRamManager ramManager = createRamManager();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread[] copiers = new Thread[8];
+    for (int i = 0; i < copiers.length; ++i) {
+      final long seed = i;
+      copiers[i] = new Thread() {
+        public void run() {
+          try {
+            Random r = new Random(seed);
+            for (int j = 0; j < 2000; ++j) {
+              int size = 1 + r.nextInt(MAX_SIZE / 4);
+              ramManager.reserve(size, null);
+              byte[] buffer = ramManager.allocate(size);
+              assertTrue(buffer.length >= size);
+              assertTrue(ramManager.getReservedBytes() +
+                         ramManager.getSlackBytes() <= MAX_SIZE);
+              ramManager.closeInMemoryFile(size);
+              ramManager.unreserve(size, buffer);
+            }
+          } catch (Throwable t) {
+            error.compareAndSet(null, t);
+          }
+        }
+      };
+      copiers[i].start();
+    }
+    for (Thread copier : copiers) {
+      copier.join();
+    }
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+    assertEquals(0, ramManager.getReservedBytes());
+    assertEquals(0, ramManager.getSlackBytes());
+    assertTrue(ramManager.getPooledBytes() <= MAX_SIZE);
+  }
+
+  public void testBlockedReservation() throws Exception {
+    final ShuffleRamManager ramManager = createRamManager();
+    assertTrue(ramManager.reserve(80000, newInput()));
+    final boolean[] reserved = new boolean[] { true };
+    Thread copier = new Thread() {
+      public void run() {
+        try {
+          reserved[0] = ramManager.reserve(30000, newInput());
+        } catch (InterruptedException e) {
+          // the reservation stays marked as immediate
+        }
+      }
+    };
+    copier.start();
+    assertBlocked(copier);
+    // freeing too little memory does not wake the copier for good
+    assertTrue(ramManager.reserve(10000, newInput()));
+    ramManager.unreserve(10000);
+    assertBlocked(copier);
+    ramManager.unreserve(80000);
+    copier.join(10000);
+    assertFalse(copier.isAlive());
+    // a reservation that had to wait returns false
+    assertFalse(reserved[0]);
+    assertEquals(30000, ramManager.getReservedBytes());
+  }
+
+  public void testMemoryExhaustedMerge() throws Exception {
+    final ShuffleRamManager ramManager = createRamManager();
+    final boolean[] done = new boolean[] { true };
+    Thread merger = new Thread() {
+      public void run() {
+        try {
+          done[0] = ramManager.waitForDataToMerge();
+        } catch (InterruptedException e) {
+          // the merge stays marked as done
+        }
+      }
+    };
+    ramManager.setNumCopiedMapOutputs(10);
+    for (int i = 0; i < 2; ++i) {
+      assertTrue(ramManager.reserve(20000, newInput()));
+      ramManager.closeInMemoryFile(20000);
+    }
+    merger.start();
+    assertBlocked(merger);
+    // a copy in progress that holds less memory than is free
+    assertTrue(ramManager.reserve(20000, newInput()));
+    // a copier blocked on the rest of the memory triggers the merge
+    Thread copier = new Thread() {
+      public void run() {
+        try {
+          ramManager.reserve(45000, newInput());
+        } catch (InterruptedException e) {
+        }
+      }
+    };
+    copier.start();
+    merger.join(10000);
+    assertFalse(merger.isAlive());
+    assertFalse(done[0]);
+    assertTrue(copier.isAlive());
+    ramManager.unreserve(20000);
+    copier.join(10000);
+    assertFalse(copier.isAlive());
+  }
+
+  public void testCopiesInProgressDelayMerge() throws Exception {
+    final ShuffleRamManager ramManager = createRamManager();
+    ramManager.setNumCopiedMapOutputs(10);
+    assertTrue(ramManager.reserve(10000, newInput()));
+    ramManager.closeInMemoryFile(10000);
+    // copies in progress hold more memory than is free
+    for (int i = 0; i < 3; ++i) {
+      assertTrue(ramManager.reserve(25000, newInput()));
+    }
+    Thread merger = new Thread() {
+      public void run() {
+        try {
+          ramManager.waitForDataToMerge();
+        } catch (InterruptedException e) {
+        }
+      }
+    };
+    Thread copier = new Thread() {
+      public void run() {
+        try {
+          ramManager.reserve(20000, newInput());
+        } catch (InterruptedException e) {
+        }
+      }
+    };
+    merger.start();
+    copier.start();
+    assertBlocked(copier);
+    assertBlocked(merger);
+    // the merge starts once the copies are done
+    ramManager.close();
+    merger.join(10000);
+    assertFalse(merger.isAlive());
+    for (int i = 0; i < 3; ++i) {
+      ramManager.unreserve(25000);
+    }
+    copier.join(10000);
+    assertFalse(copier.isAlive());
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.apache.hadoop.fs.ChecksumException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the bulk checksum methods of DataChecksum against the
+ * chunk-at-a-time update/compare interface.
+ */
+public class TestDataChecksum {
+  private static final int BYTES_PER_CHECKSUM = 512;
+  private static final int DATA_LEN = 10 * BYTES_PER_CHECKSUM + 100;
+  private static final int NUM_CHUNKS =
+    (DATA_LEN + BYTES_PER_CHECKSUM - 1) / BYTES_PER_CHECKSUM;
+
+  private final Random r = new Random();
+
+  @Test
+  public void testBulkOps() throws Exception {
+    for (int type : new int[] {DataChecksum.CHECKSUM_CRC32,
+                               DataChecksum.CHECKSUM_CRC32C}) {
+      for (boolean direct : new boolean[] {false, true}) {
+        doBulkTest(DataChecksum.newDataChecksum(type, BYTES_PER_CHECKSUM),
+                   direct);
+      }
+    }
+  }
+
+  private void doBulkTest(DataChecksum checksum, boolean useDirect)
+      throws Exception {
+    int sumSize = checksum.getChecksumSize();
+    byte[] data = new byte[DATA_LEN + 10];
+    r.nextBytes(data);
+
+    // checksums computed one chunk at a time
+    byte[] expected = new byte[NUM_CHUNKS * sumSize];
+    for (int i = 0; i < NUM_CHUNKS; i++) {
+      int off = i * BYTES_PER_CHECKSUM;
+      checksum.reset();
+      checksum.update(data, 5 + off, Math.min(BYTES_PER_CHECKSUM,
+                                              DATA_LEN - off));
+      checksum.writeValue(expected, i * sumSize, true);
+    }
+
+    // bulk computation over arrays, starting at a non-zero offset
+    byte[] sums = new byte[NUM_CHUNKS * sumSize + 3];
+    checksum.calculateChunkedSums(data, 5, DATA_LEN, sums, 3);
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertEquals(expected[i], sums[3 + i]);
+    }
+    checksum.verifyChunkedSums(data, 5, DATA_LEN, sums, 3, "test", 0);
+
+    // the same through byte buffers
+    ByteBuffer dataBuf = wrap(data, 5, DATA_LEN, useDirect);
+    ByteBuffer sumBuf = useDirect
+      ? ByteBuffer.allocateDirect(expected.length)
+      : ByteBuffer.allocate(expected.length);
+    checksum.calculateChunkedSums(dataBuf, sumBuf);
+    Assert.assertEquals(0, sumBuf.position());
+    Assert.assertEquals(0, dataBuf.position());
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertEquals(expected[i], sumBuf.get(i));
+    }
+    checksum.verifyChunkedSums(dataBuf, sumBuf, "test", 0);
+    Assert.assertEquals(0, sumBuf.position());
+    Assert.assertEquals(0, dataBuf.position());
+
+    // corrupt a byte in the fourth chunk
+    int corruptAt = 3 * BYTES_PER_CHECKSUM + 7;
+    data[5 + corruptAt]++;
+    try {
+      checksum.verifyChunkedSums(data, 5, DATA_LEN, sums, 3, "test", 1000);
+      Assert.fail("checksum error not detected");
+    } catch (ChecksumException ce) {
+      Assert.assertEquals(1000 + 3 * BYTES_PER_CHECKSUM, ce.getPos());
+    }
+    dataBuf = wrap(data, 5, DATA_LEN, useDirect);
+    try {
+      checksum.verifyChunkedSums(dataBuf, sumBuf, "test", 1000);
+      Assert.fail("checksum error not detected");
+    } catch (ChecksumException ce) {
+      Assert.assertEquals(1000 + 3 * BYTES_PER_CHECKSUM, ce.getPos());
+    }
+
+    // the running checksum is left reset
+    Assert.assertEquals(0, checksum.getNumBytesInSum());
+  }
+
+  private static ByteBuffer wrap(byte[] b, int off, int len, boolean direct) {
+    if (!direct) {
+      return ByteBuffer.wrap(b, off, len).slice();
+    }
+    ByteBuffer buf = ByteBuffer.allocateDirect(len);
+    buf.put(b, off, len);
+    buf.flip();
+    return buf;
+  }
+
+  @Test
+  public void testNullChecksum() throws Exception {
+    DataChecksum checksum = DataChecksum.newDataChecksum(
+        DataChecksum.CHECKSUM_NULL, BYTES_PER_CHECKSUM);
+    byte[] data = new byte[DATA_LEN];
+    r.nextBytes(data);
+    checksum.calculateChunkedSums(data, 0, DATA_LEN, new byte[0], 0);
+    checksum.verifyChunkedSums(data, 0, DATA_LEN, new byte[0], 0, "test", 0);
+  }
+}
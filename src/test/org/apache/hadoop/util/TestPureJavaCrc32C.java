@@ -0,0 +1,233 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test to verify that the pure-Java CRC32C algorithm gives the
+ * same results as a straightforward bit-at-a-time implementation of
+ * the Castagnoli polynomial.
+ */
+public class TestPureJavaCrc32C {
+  private final Checksum theirs = new BitwiseCrc32C();
+  private final PureJavaCrc32C ours = new PureJavaCrc32C();
+
+  @Test
+  public void testKnownValues() throws Exception {
+    // check value from the CRC-32C catalogue entry
+    ours.update("123456789".getBytes("UTF-8"), 0, 9);
+    Assert.assertEquals(0xE3069283L, ours.getValue());
+
+    // iSCSI test vectors from RFC 3720, appendix B.4
+    ours.reset();
+    ours.update(new byte[32], 0, 32);
+    Assert.assertEquals(0x8A9136AAL, ours.getValue());
+
+    byte[] ones = new byte[32];
+    java.util.Arrays.fill(ones, (byte)0xff);
+    ours.reset();
+    ours.update(ones, 0, 32);
+    Assert.assertEquals(0x62A8AB43L, ours.getValue());
+  }
+
+  @Test
+  public void testCorrectness() throws Exception {
+    checkSame();
+
+    theirs.update(104);
+    ours.update(104);
+    checkSame();
+
+    checkOnBytes(new byte[] {40, 60, 97, -70});
+    
+    checkOnBytes("hello world!".getBytes("UTF-8"));
+
+    Random r = new Random();
+    for (int i = 0; i < 10000; i++) {
+      byte randomBytes[] = new byte[r.nextInt(2048)];
+      r.nextBytes(randomBytes);
+      checkOnBytes(randomBytes);
+    }
+  }
+
+  @Test
+  public void testDataChecksum() throws Exception {
+    DataChecksum sum = DataChecksum.newDataChecksum(
+        DataChecksum.CHECKSUM_CRC32C, 512);
+    Assert.assertEquals(DataChecksum.CHECKSUM_CRC32C, sum.getChecksumType());
+    Assert.assertEquals(4, sum.getChecksumSize());
+    Assert.assertEquals(DataChecksum.CHECKSUM_CRC32C,
+        DataChecksum.getChecksumTypeByName("crc32c"));
+    Assert.assertEquals(DataChecksum.CHECKSUM_CRC32,
+        DataChecksum.getChecksumTypeByName("CRC32"));
+
+    // the type survives a round trip through the header
+    DataChecksum copy = DataChecksum.newDataChecksum(sum.getHeader(), 0);
+    Assert.assertEquals(DataChecksum.CHECKSUM_CRC32C, copy.getChecksumType());
+    Assert.assertEquals(512, copy.getBytesPerChecksum());
+
+    byte[] data = new byte[512];
+    new Random().nextBytes(data);
+    sum.update(data, 0, data.length);
+    byte[] value = new byte[4];
+    sum.writeValue(value, 0, true);
+    theirs.update(data, 0, data.length);
+    Assert.assertEquals(theirs.getValue(),
+        ((value[0] & 0xffL) << 24) | ((value[1] & 0xff) << 16) |
+        ((value[2] & 0xff) << 8) | (value[3] & 0xff));
+  }
+
+  private void checkOnBytes(byte[] bytes) {
+    theirs.reset();
+    ours.reset();
+    checkSame();
+    
+    for (int i = 0; i < bytes.length; i++) {
+      ours.update(bytes[i]);
+      theirs.update(bytes[i]);
+      checkSame();
+    }
+
+    theirs.reset();
+    ours.reset();
+    
+    ours.update(bytes, 0, bytes.length);
+    theirs.update(bytes, 0, bytes.length);
+    checkSame();
+    
+    if (bytes.length >= 10) {
+      ours.update(bytes, 5, 5);
+      theirs.update(bytes, 5, 5);
+      checkSame();
+    }
+  }
+
+  private void checkSame() {
+    Assert.assertEquals(theirs.getValue(), ours.getValue());
+  }
+
+  /** Reference CRC32C implementation, one bit at a time. */
+  static class BitwiseCrc32C implements Checksum {
+    private int crc = 0xffffffff;
+
+    public long getValue() {
+      return (~crc) & 0xffffffffL;
+    }
+
+    public void reset() {
+      crc = 0xffffffff;
+    }
+
+    public void update(byte[] b, int off, int len) {
+      for (int i = off; i < off + len; i++) {
+        update(b[i]);
+      }
+    }
+
+    public void update(int b) {
+      crc ^= b & 0xff;
+      for (int k = 0; k < 8; k++) {
+        crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+      }
+    }
+  }
+
+  /**
+   * Performance test comparing CRC32C with the CRC32 implementations
+   * over chunk sizes typical of HDFS checksum chunks. Each chunk is
+   * checksummed from a reset state, as DataChecksum does. When the JVM
+   * provides java.util.zip.CRC32C (Java 9 and later) it is included as
+   * well. Run with:
+   *
+   *   java -cp path/to/test/classes:path/to/common/classes \
+   *      'org.apache.hadoop.util.TestPureJavaCrc32C$PerformanceTest'
+   *
+   * The output is in JIRA table format, in MB/sec.
+   */
+  public static class PerformanceTest {
+    public static final int DATA_LEN = 64*1024*1024;
+    public static final int MAX_CHUNK = 64*1024;
+
+    public static void main(String args[]) throws Exception {
+      final List<Checksum> crcs = new ArrayList<Checksum>();
+      crcs.add(new CRC32());
+      crcs.add(new PureJavaCrc32());
+      crcs.add(new PureJavaCrc32C());
+      try {
+        crcs.add((Checksum)Class.forName("java.util.zip.CRC32C").newInstance());
+      } catch (ClassNotFoundException e) {
+        // not available before Java 9
+      }
+      doBench(crcs, System.out);
+    }
+
+    private static void doBench(List<Checksum> crcs, PrintStream out) {
+      final byte[] bytes = new byte[DATA_LEN];
+      new Random().nextBytes(bytes);
+
+      out.printf("\nPerformance Table (The unit is MB/sec)\n|| %9s |",
+          "Chunk");
+      for (Checksum c : crcs) {
+        out.printf("| %14s |", c.getClass().getSimpleName());
+      }
+      out.printf("|\n");
+
+      // warm up so that the JIT has compiled every implementation
+      for (Checksum c : crcs) {
+        for (int i = 0; i < 5; i++) {
+          doBench(c, bytes, 512);
+        }
+      }
+
+      for (int size = 64; size <= MAX_CHUNK; size *= 2) {
+        out.printf("| %9d |", size);
+        for (Checksum c : crcs) {
+          System.gc();
+          out.printf(" %14.1f |", doBench(c, bytes, size));
+        }
+        out.printf("\n");
+      }
+    }
+
+    /** @return throughput in MB/sec */
+    private static double doBench(Checksum crc, byte[] bytes, int size) {
+      final int chunks = bytes.length / size;
+      long sink = 0;
+      final long st = System.nanoTime();
+      for (int i = 0; i < chunks; i++) {
+        crc.reset();
+        crc.update(bytes, i * size, size);
+        sink += crc.getValue();
+      }
+      final long et = System.nanoTime();
+      if (sink == 42) {
+        System.out.print("");
+      }
+      return (chunks * (double)size / 1024.0 / 1024.0) /
+          ((et - st) / 1000000000.0d);
+    }
+  }
+}